@@ -0,0 +1,63 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures batch evaluation over wide columns using the Vector API column kernels compared to the plain loops. The
+ * Vector API kernels are only used when running on Java 17 or later.
+ * @author Redempt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ColumnKernelBenchmark {
+
+	private static final int ROWS = 1 << 16;
+
+	@Param({"$1 * $2 + $3", "($1 + $2) / ($3 * 2)", "$1 < $2", "sqrt(abs($1)) - $2"})
+	public String expression;
+
+	private CompiledExpression compiled;
+	private double[][] columns;
+	private double[] out;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(0);
+		columns = new double[3][ROWS];
+		for (double[] column : columns) {
+			for (int i = 0; i < ROWS; i++) {
+				column[i] = random.nextDouble() * 10 - 5;
+			}
+		}
+		compiled = Crunch.compileExpression(expression);
+		out = new double[ROWS];
+	}
+
+	@Benchmark
+	public double[] vectorKernels() {
+		compiled.evaluateBatch(columns, ROWS, out);
+		return out;
+	}
+
+	@Benchmark
+	@Fork(jvmArgsAppend = "-Dredempt.crunch.vectorKernels=false")
+	public double[] scalarKernels() {
+		compiled.evaluateBatch(columns, ROWS, out);
+		return out;
+	}
+
+}
@@ -0,0 +1,49 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import redempt.crunch.CompileMode;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.functional.ExpressionEnv;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing expressions into CompiledExpressions
+ * @author Redempt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CompileBenchmark {
+	
+	@Param({"simple", "complex", "functions"})
+	public String input;
+	
+	private String expression;
+	private ExpressionEnv env;
+	
+	@Setup
+	public void setup() {
+		env = Expressions.functionEnv();
+		expression = Expressions.get(input);
+	}
+	
+	@Benchmark
+	public CompiledExpression compile() {
+		return Crunch.compileExpression(expression, env);
+	}
+	
+	@Benchmark
+	public CompiledExpression compileBytecode() {
+		return Crunch.compileExpression(expression, env, CompileMode.BYTECODE);
+	}
+	
+}
@@ -0,0 +1,98 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import redempt.crunch.CompileMode;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.EvaluationContext;
+import redempt.crunch.functional.ExpressionEnv;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures evaluating CompiledExpressions through each of the evaluate overloads
+ * @author Redempt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EvaluateBenchmark {
+	
+	@Param({"TREE", "BYTECODE", "PROGRAM"})
+	public CompileMode mode;
+	
+	private CompiledExpression constant;
+	private CompiledExpression oneVariable;
+	private CompiledExpression twoVariables;
+	private CompiledExpression threeVariables;
+	private CompiledExpression functionCall;
+	private CompiledExpression primitiveFunctionCall;
+	private CompiledExpression lazyVariable;
+	private EvaluationContext context;
+	private double x = 1.5;
+	private double y = 2.5;
+	private double z = 3.5;
+	
+	@Setup
+	public void setup() {
+		ExpressionEnv env = Expressions.functionEnv();
+		double[] lazy = {4};
+		env.addLazyVariable("lazy", () -> lazy[0]);
+		constant = Crunch.compileExpression(Expressions.COMPLEX, env, mode);
+		oneVariable = Crunch.compileExpression(Expressions.VARIABLES, env, mode);
+		twoVariables = Crunch.compileExpression("$1 * $2 + $1 / $2", env, mode);
+		threeVariables = Crunch.compileExpression("$1 * $2 + $3 ^ 2", env, mode);
+		functionCall = Crunch.compileExpression(Expressions.FUNCTIONS, env, mode);
+		primitiveFunctionCall = Crunch.compileExpression(Expressions.FUNCTIONS, Expressions.primitiveFunctionEnv(), mode);
+		lazyVariable = Crunch.compileExpression("lazy * $1 + lazy", env, mode);
+		context = threeVariables.createContext();
+	}
+	
+	@Benchmark
+	public double constant() {
+		return constant.evaluate();
+	}
+	
+	@Benchmark
+	public double oneVariable() {
+		return oneVariable.evaluate(x);
+	}
+	
+	@Benchmark
+	public double twoVariables() {
+		return twoVariables.evaluate(x, y);
+	}
+	
+	@Benchmark
+	public double threeVariables() {
+		return threeVariables.evaluate(x, y, z);
+	}
+	
+	@Benchmark
+	public double context() {
+		return threeVariables.evaluate(context.setVariables(x, y, z));
+	}
+	
+	@Benchmark
+	public double functionCall() {
+		return functionCall.evaluate(x, y);
+	}
+	
+	@Benchmark
+	public double primitiveFunctionCall() {
+		return primitiveFunctionCall.evaluate(x, y);
+	}
+	
+	@Benchmark
+	public double lazyVariable() {
+		return lazyVariable.evaluate(x);
+	}
+	
+}
@@ -0,0 +1,82 @@
+package redempt.crunch.benchmark;
+
+import redempt.crunch.functional.ExpressionEnv;
+
+/**
+ * The expressions and environments shared by the benchmarks
+ * @author Redempt
+ */
+final class Expressions {
+	
+	static final String SIMPLE = "3*5";
+	static final String COMPLEX = "6.5*7.8^2.3 + (3.5^3+7/2)^3 -(5*4/(2-3))*4 + 6.5*7.8^2.3 + (3.5^3+7/2)^3 -(5*4/(2-3))*4"
+			+ " + 6.5*7.8^2.3 + (3.5^3+7/2)^3 -(5*4/(2-3))*4 + 6.5*7.8^2.3 + (3.5^3+7/2)^3 -(5*4/(2-3))*4";
+	static final String FUNCTIONS = "mul(add($1, 2), sqrt($2)) + add(mul($1, $1), sin($2)) - clamp(mul($1, 3), 0, add($2, 10))";
+	static final String VARIABLES = "(10*$1)+5/2";
+	
+	private Expressions() {
+		// Prevent instantiation
+	}
+	
+	static String get(String name) {
+		switch (name) {
+			case "simple":
+				return SIMPLE;
+			case "complex":
+				return COMPLEX;
+			case "functions":
+				return FUNCTIONS;
+			case "variables":
+				return VARIABLES;
+			default:
+				throw new IllegalArgumentException("Unknown expression " + name);
+		}
+	}
+	
+	/**
+	 * @return An environment with the functions used by {@link #FUNCTIONS}
+	 */
+	static ExpressionEnv functionEnv() {
+		ExpressionEnv env = new ExpressionEnv();
+		env.addFunction("add", 2, d -> d[0] + d[1]);
+		env.addFunction("mul", 2, d -> d[0] * d[1]);
+		env.addFunction("clamp", 3, d -> Math.max(d[1], Math.min(d[2], d[0])));
+		return env;
+	}
+	
+	/**
+	 * @return An environment with the functions used by {@link #FUNCTIONS}, taking their arguments without an array
+	 */
+	static ExpressionEnv primitiveFunctionEnv() {
+		ExpressionEnv env = new ExpressionEnv();
+		env.addFunction("add", (a, b) -> a + b);
+		env.addFunction("mul", (a, b) -> a * b);
+		env.addFunction("clamp", (value, min, max) -> Math.max(min, Math.min(max, value)));
+		return env;
+	}
+	
+	/**
+	 * Creates an environment with many functions and variables whose names share prefixes, to stress name lookups
+	 * @param size The number of functions and the number of variables to add
+	 * @return The environment
+	 */
+	static ExpressionEnv largeEnv(int size) {
+		ExpressionEnv env = new ExpressionEnv();
+		String[] names = new String[size];
+		for (int i = 0; i < size; i++) {
+			env.addFunction(functionName(i), 1, d -> d[0] + 1);
+			names[i] = variableName(i);
+		}
+		env.setVariableNames(names);
+		return env;
+	}
+	
+	static String functionName(int index) {
+		return "function" + index;
+	}
+	
+	static String variableName(int index) {
+		return "variable" + index;
+	}
+	
+}
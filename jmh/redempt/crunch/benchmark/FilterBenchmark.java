@@ -0,0 +1,76 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.interval.Interval;
+import redempt.crunch.interval.IntervalEvaluator;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures filtering sorted time series rows with a predicate, evaluating every row compared to skipping and
+ * accepting whole blocks using the bounds of their variables
+ * @author Redempt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FilterBenchmark {
+
+	private static final int ROWS = 1 << 16;
+	private static final int BLOCK_SIZE = 1024;
+
+	@Param({"$1 > 60000 & $2 < 3", "$1 > 1000 & $1 < 2000 | $2 > 4.9"})
+	public String predicate;
+
+	private CompiledExpression expression;
+	private IntervalEvaluator evaluator;
+	private double[][] columns;
+	private Interval[][] blockBounds;
+	private double[] results;
+	private int[] selected;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(0);
+		double[] time = new double[ROWS];
+		double[] reading = new double[ROWS];
+		for (int i = 0; i < ROWS; i++) {
+			time[i] = i;
+			reading[i] = random.nextDouble() * 5;
+		}
+		columns = new double[][] {time, reading};
+		expression = Crunch.compileExpression(predicate);
+		evaluator = new IntervalEvaluator(expression);
+		blockBounds = IntervalEvaluator.computeBlockBounds(columns, ROWS, BLOCK_SIZE);
+		results = new double[ROWS];
+		selected = new int[ROWS];
+	}
+
+	@Benchmark
+	public int evaluateEveryRow() {
+		expression.evaluateBatch(columns, ROWS, results);
+		int count = 0;
+		for (int i = 0; i < ROWS; i++) {
+			if (results[i] == 1) {
+				selected[count++] = i;
+			}
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int skipBlocks() {
+		return evaluator.filter(columns, ROWS, BLOCK_SIZE, blockBounds, selected);
+	}
+
+}
@@ -0,0 +1,74 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.derivative.Differentiator;
+import redempt.crunch.derivative.GradientEvaluator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures computing the gradient of an expression with many variables using central finite differences compared to
+ * a single reverse-mode pass
+ * @author Redempt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GradientBenchmark {
+
+	private static final int VARIABLES = 16;
+	private static final double STEP = 1e-6;
+
+	private CompiledExpression expression;
+	private GradientEvaluator evaluator;
+	private double[] values;
+	private double[] gradient;
+
+	@Setup
+	public void setup() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 1; i <= VARIABLES; i++) {
+			if (i > 1) {
+				builder.append(" + ");
+			}
+			int next = i % VARIABLES + 1;
+			builder.append("sin($").append(i).append(") * $").append(next).append("^2");
+		}
+		expression = Crunch.compileExpression(builder.toString());
+		evaluator = new Differentiator().gradient(expression);
+		values = new double[VARIABLES];
+		for (int i = 0; i < VARIABLES; i++) {
+			values[i] = i * 0.1 + 0.5;
+		}
+		gradient = new double[VARIABLES];
+	}
+
+	@Benchmark
+	public double finiteDifferences() {
+		double value = expression.evaluate(values);
+		for (int i = 0; i < VARIABLES; i++) {
+			double original = values[i];
+			values[i] = original + STEP;
+			double above = expression.evaluate(values);
+			values[i] = original - STEP;
+			double below = expression.evaluate(values);
+			values[i] = original;
+			gradient[i] = (above - below) / (2 * STEP);
+		}
+		return value;
+	}
+
+	@Benchmark
+	public double reverseMode() {
+		return evaluator.evaluate(values, gradient);
+	}
+
+}
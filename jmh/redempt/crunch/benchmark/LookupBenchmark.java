@@ -0,0 +1,77 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.data.Pair;
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.token.Token;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures name lookups in environments with many functions and variables, and the cost of building environments
+ * @author Redempt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LookupBenchmark {
+	
+	@Param({"10", "1000"})
+	public int size;
+	
+	private ExpressionEnv env;
+	private ExpressionEnv frozen;
+	private String expression;
+	private String functionName;
+	
+	@Setup
+	public void setup() {
+		env = Expressions.largeEnv(size);
+		frozen = Expressions.largeEnv(size).freeze();
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			int index = (i * 7919) % size;
+			if (i > 0) {
+				builder.append(" + ");
+			}
+			builder.append(Expressions.functionName(index)).append('(').append(Expressions.variableName(index)).append(')');
+		}
+		expression = builder.toString();
+		functionName = Expressions.functionName(size - 1);
+	}
+	
+	@Benchmark
+	public Pair<Token, Integer> leadingOperator() {
+		return env.getLeadingOperators().getFrom(functionName, 0);
+	}
+	
+	@Benchmark
+	public CompiledExpression compile() {
+		return Crunch.compileExpression(expression, env);
+	}
+	
+	@Benchmark
+	public ExpressionEnv createEnv() {
+		return new ExpressionEnv();
+	}
+	
+	@Benchmark
+	public ExpressionEnv createChildEnv() {
+		return new ExpressionEnv(frozen).setVariableNames("tenantA", "tenantB").addFunction("tenantFunction", x -> x);
+	}
+	
+	@Benchmark
+	public ExpressionEnv buildLargeEnv() {
+		return Expressions.largeEnv(size);
+	}
+	
+}
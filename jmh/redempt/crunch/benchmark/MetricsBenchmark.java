@@ -0,0 +1,55 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.metrics.CrunchMetrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of metrics on evaluation: for expressions compiled without a listener, for expressions compiled
+ * with a listener which has since been removed, and while a listener is collecting measurements
+ * @author Redempt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+
+	@Param({"disabled", "removed", "enabled"})
+	public String metrics;
+
+	private CompiledExpression expression;
+	private double x = 3;
+
+	@Setup
+	public void setup() {
+		if (!metrics.equals("disabled")) {
+			Crunch.setMetricsListener(new CrunchMetrics());
+		}
+		expression = Crunch.compileExpression("($1 * 2 + 5) / ($1 - 7)");
+		if (metrics.equals("removed")) {
+			Crunch.setMetricsListener(null);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		Crunch.setMetricsListener(null);
+	}
+
+	@Benchmark
+	public double evaluate() {
+		return expression.evaluate(x);
+	}
+
+}
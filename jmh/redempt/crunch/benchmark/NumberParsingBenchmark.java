@@ -0,0 +1,77 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import redempt.crunch.data.FastNumberParsing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing numbers with FastNumberParsing compared to the JDK, one at a time and as a whole column
+ * @author Redempt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NumberParsingBenchmark {
+	
+	@Param({"short", "long", "exponent"})
+	public String input;
+	
+	private String number;
+	private String text;
+	private byte[] bytes;
+	private double[] column;
+	
+	@Setup
+	public void setup() {
+		switch (input) {
+			case "short":
+				number = "123.45";
+				break;
+			case "long":
+				number = "0.12345678901234567";
+				break;
+			default:
+				number = "6.02214076e23";
+				break;
+		}
+		Random random = new Random(0);
+		StringBuilder builder = new StringBuilder();
+		column = new double[1000];
+		for (int i = 0; i < column.length; i++) {
+			builder.append(random.nextDouble() * 1000).append('\n');
+		}
+		text = builder.toString();
+		bytes = text.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	@Benchmark
+	public double fastParseDouble() {
+		return FastNumberParsing.parseDouble(number);
+	}
+	
+	@Benchmark
+	public double jdkParseDouble() {
+		return Double.parseDouble(number);
+	}
+	
+	@Benchmark
+	public int parseColumnString() {
+		return FastNumberParsing.parseColumn(text, 0, text.length(), '\n', column, 0);
+	}
+	
+	@Benchmark
+	public int parseColumnBytes() {
+		return FastNumberParsing.parseColumn(bytes, 0, bytes.length, '\n', column, 0);
+	}
+	
+}
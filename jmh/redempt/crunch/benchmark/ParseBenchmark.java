@@ -0,0 +1,83 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import redempt.crunch.CompileOptions;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.functional.ExpressionEnv;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing expressions from each supported kind of input. Parsing an expression embedded in a larger buffer
+ * should cost the same as parsing it from its own String, since the input is never copied.
+ * @author Redempt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ParseBenchmark {
+	
+	@Param({"simple", "complex", "functions", "nested"})
+	public String input;
+	
+	private String expression;
+	private char[] chars;
+	private byte[] bytes;
+	private ByteBuffer direct;
+	private ExpressionEnv env;
+	private CompileOptions options;
+	
+	@Setup
+	public void setup() {
+		env = Expressions.functionEnv();
+		options = new CompileOptions();
+		if (input.equals("nested")) {
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < 1000; i++) {
+				builder.append("(");
+			}
+			builder.append("$1");
+			for (int i = 0; i < 1000; i++) {
+				builder.append(" + 1)");
+			}
+			expression = builder.toString();
+		} else {
+			expression = Expressions.get(input);
+		}
+		chars = expression.toCharArray();
+		bytes = expression.getBytes(StandardCharsets.UTF_8);
+		direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes).flip();
+	}
+	
+	@Benchmark
+	public CompiledExpression parseString() {
+		return Crunch.compileExpression(expression, env);
+	}
+	
+	@Benchmark
+	public CompiledExpression parseCharArray() {
+		return Crunch.compileExpression(chars, 0, chars.length, env, options);
+	}
+	
+	@Benchmark
+	public CompiledExpression parseByteArray() {
+		return Crunch.compileExpression(bytes, 0, bytes.length, env, options);
+	}
+	
+	@Benchmark
+	public CompiledExpression parseDirectBuffer() {
+		return Crunch.compileExpression(direct, env, options);
+	}
+	
+}
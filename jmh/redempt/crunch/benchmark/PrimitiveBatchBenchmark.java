@@ -0,0 +1,100 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.program.FloatExpression;
+import redempt.crunch.program.IntegerOverflow;
+import redempt.crunch.program.LongExpression;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures batch evaluation of the same expression over double, float, long and int columns
+ * @author Redempt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PrimitiveBatchBenchmark {
+
+	private static final int ROWS = 1 << 20;
+
+	@Param({"x * y + z * 3 - x", "(x + y) * (y - z) + z * z"})
+	public String expression;
+
+	private CompiledExpression doubles;
+	private FloatExpression floats;
+	private LongExpression longs;
+	private LongExpression checkedLongs;
+	private double[][] doubleColumns;
+	private float[][] floatColumns;
+	private long[][] longColumns;
+	private int[][] intColumns;
+	private double[] doubleOut;
+	private float[] floatOut;
+	private long[] longOut;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(0);
+		doubleColumns = new double[3][ROWS];
+		floatColumns = new float[3][ROWS];
+		longColumns = new long[3][ROWS];
+		intColumns = new int[3][ROWS];
+		for (int j = 0; j < 3; j++) {
+			for (int i = 0; i < ROWS; i++) {
+				int value = random.nextInt(20000) - 10000;
+				doubleColumns[j][i] = floatColumns[j][i] = longColumns[j][i] = intColumns[j][i] = value;
+			}
+		}
+		ExpressionEnv env = new ExpressionEnv().setVariableNames("x", "y", "z");
+		doubles = Crunch.compileExpression(expression, env);
+		floats = Crunch.compileFloatExpression(expression, env);
+		longs = Crunch.compileLongExpression(expression, env, IntegerOverflow.WRAP);
+		checkedLongs = Crunch.compileLongExpression(expression, env, IntegerOverflow.CHECKED);
+		doubleOut = new double[ROWS];
+		floatOut = new float[ROWS];
+		longOut = new long[ROWS];
+	}
+
+	@Benchmark
+	public double[] doubleColumns() {
+		doubles.evaluateBatch(doubleColumns, ROWS, doubleOut);
+		return doubleOut;
+	}
+
+	@Benchmark
+	public float[] floatColumns() {
+		floats.evaluateBatch(floatColumns, ROWS, floatOut);
+		return floatOut;
+	}
+
+	@Benchmark
+	public long[] longColumns() {
+		longs.evaluateBatch(longColumns, ROWS, longOut);
+		return longOut;
+	}
+
+	@Benchmark
+	public long[] intColumns() {
+		longs.evaluateBatch(intColumns, ROWS, longOut);
+		return longOut;
+	}
+
+	@Benchmark
+	public long[] checkedLongColumns() {
+		checkedLongs.evaluateBatch(longColumns, ROWS, longOut);
+		return longOut;
+	}
+
+}
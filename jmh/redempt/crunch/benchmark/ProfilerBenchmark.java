@@ -0,0 +1,51 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.ExpressionProfiler;
+import redempt.crunch.functional.ExpressionEnv;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of profiling an expression against evaluating its unoptimized tree, at several sample intervals
+ * @author Redempt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProfilerBenchmark {
+
+	private static final String EXPRESSION = "sqrt(x^2 + y^2) * sin(x) + -(x - 1) / 3";
+
+	@Param({"0", "1", "16", "256"})
+	public int sampleInterval;
+
+	private CompiledExpression expression;
+	private double x = 3;
+	private double y = 4;
+
+	@Setup
+	public void setup() {
+		ExpressionEnv env = new ExpressionEnv().setVariableNames("x", "y");
+		if (sampleInterval == 0) {
+			expression = Crunch.compileExpression(EXPRESSION, env);
+		} else {
+			expression = ExpressionProfiler.profile(EXPRESSION, env, sampleInterval).getExpression();
+		}
+	}
+
+	@Benchmark
+	public double evaluate() {
+		return expression.evaluate(x, y);
+	}
+
+}
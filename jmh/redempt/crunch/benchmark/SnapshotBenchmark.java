@@ -0,0 +1,57 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import redempt.crunch.CompileMode;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.program.ExpressionReader;
+import redempt.crunch.program.ExpressionWriter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures loading an expression from a binary snapshot compared to parsing it from text
+ * @author Redempt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SnapshotBenchmark {
+	
+	@Param({"simple", "complex", "functions"})
+	public String input;
+	
+	@Param({"TREE", "PROGRAM"})
+	public CompileMode mode;
+	
+	private String expression;
+	private ByteBuffer snapshot;
+	private ExpressionEnv env;
+	
+	@Setup
+	public void setup() {
+		env = Expressions.functionEnv();
+		expression = Expressions.get(input);
+		snapshot = ByteBuffer.wrap(ExpressionWriter.toBytes(Crunch.compileExpression(expression, env)));
+	}
+	
+	@Benchmark
+	public CompiledExpression parse() {
+		return Crunch.compileExpression(expression, env, mode);
+	}
+	
+	@Benchmark
+	public CompiledExpression load() {
+		return new ExpressionReader(snapshot, env, mode).next();
+	}
+	
+}
@@ -0,0 +1,191 @@
+package redempt.crunch;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.UnaryOperator;
+
+/**
+ * Column kernels using explicit SIMD instructions from the Vector API, for the operators whose vector results are
+ * exactly the same as their scalar results. Every other operator, and the values left over after the last full vector,
+ * use the plain loops. Floor and ceiling also use the plain loops, since the JIT already compiles them to vector
+ * rounding instructions, and the Vector API has no rounding operation to do better. Only included in the Java 17 part
+ * of the multi-release jar, and only loaded when the {@code jdk.incubator.vector} module is enabled.
+ * @author Redempt
+ */
+final class VectorKernels extends ColumnKernels {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	VectorKernels() {
+		// Fails here rather than on first use if the module is missing, so the plain loops are used instead
+		DoubleVector.zero(SPECIES);
+	}
+
+	@Override
+	boolean isVectorized() {
+		return true;
+	}
+
+	@Override
+	void applyBinary(BinaryOperator operator, double[] a, double[] b, int start, int end) {
+		int bound = start + SPECIES.loopBound(end - start);
+		switch (operator) {
+			case ADD:
+				add(a, b, start, bound);
+				break;
+			case SUBTRACT:
+				subtract(a, b, start, bound);
+				break;
+			case MULTIPLY:
+				multiply(a, b, start, bound);
+				break;
+			case DIVIDE:
+				divide(a, b, start, bound);
+				break;
+			case GREATER_THAN:
+				greaterThan(a, b, start, bound);
+				break;
+			case LESS_THAN:
+				lessThan(a, b, start, bound);
+				break;
+			case GREATER_THAN_OR_EQUAL_TO:
+				greaterThanOrEqualTo(a, b, start, bound);
+				break;
+			case LESS_THAN_OR_EQUAL_TO:
+				lessThanOrEqualTo(a, b, start, bound);
+				break;
+			case EQUAL_TO:
+			case EQUAL_TO_ALT:
+				equalTo(a, b, start, bound);
+				break;
+			case NOT_EQUAL_TO:
+				notEqualTo(a, b, start, bound);
+				break;
+			default:
+				super.applyBinary(operator, a, b, start, end);
+				return;
+		}
+		super.applyBinary(operator, a, b, bound, end);
+	}
+
+	@Override
+	void applyUnary(UnaryOperator operator, double[] a, int start, int end) {
+		int bound = start + SPECIES.loopBound(end - start);
+		switch (operator) {
+			case NEGATE:
+				negate(a, start, bound);
+				break;
+			case NOT:
+				not(a, start, bound);
+				break;
+			case ABS:
+				abs(a, start, bound);
+				break;
+			case SQRT:
+				sqrt(a, start, bound);
+				break;
+			default:
+				super.applyUnary(operator, a, start, end);
+				return;
+		}
+		super.applyUnary(operator, a, bound, end);
+	}
+
+	// Each operator has its own small loop so that the Vector API calls are inlined and compiled to SIMD instructions
+
+	private static void add(double[] a, double[] b, int start, int bound) {
+		for (int i = start; i < bound; i += SPECIES.length()) {
+			load(a, i).add(load(b, i)).intoArray(a, i);
+		}
+	}
+
+	private static void subtract(double[] a, double[] b, int start, int bound) {
+		for (int i = start; i < bound; i += SPECIES.length()) {
+			load(a, i).sub(load(b, i)).intoArray(a, i);
+		}
+	}
+
+	private static void multiply(double[] a, double[] b, int start, int bound) {
+		for (int i = start; i < bound; i += SPECIES.length()) {
+			load(a, i).mul(load(b, i)).intoArray(a, i);
+		}
+	}
+
+	private static void divide(double[] a, double[] b, int start, int bound) {
+		for (int i = start; i < bound; i += SPECIES.length()) {
+			load(a, i).div(load(b, i)).intoArray(a, i);
+		}
+	}
+
+	private static void greaterThan(double[] a, double[] b, int start, int bound) {
+		for (int i = start; i < bound; i += SPECIES.length()) {
+			toBoolean(load(a, i).compare(VectorOperators.GT, load(b, i))).intoArray(a, i);
+		}
+	}
+
+	private static void lessThan(double[] a, double[] b, int start, int bound) {
+		for (int i = start; i < bound; i += SPECIES.length()) {
+			toBoolean(load(a, i).compare(VectorOperators.LT, load(b, i))).intoArray(a, i);
+		}
+	}
+
+	private static void greaterThanOrEqualTo(double[] a, double[] b, int start, int bound) {
+		for (int i = start; i < bound; i += SPECIES.length()) {
+			toBoolean(load(a, i).compare(VectorOperators.GE, load(b, i))).intoArray(a, i);
+		}
+	}
+
+	private static void lessThanOrEqualTo(double[] a, double[] b, int start, int bound) {
+		for (int i = start; i < bound; i += SPECIES.length()) {
+			toBoolean(load(a, i).compare(VectorOperators.LE, load(b, i))).intoArray(a, i);
+		}
+	}
+
+	private static void equalTo(double[] a, double[] b, int start, int bound) {
+		for (int i = start; i < bound; i += SPECIES.length()) {
+			toBoolean(load(a, i).compare(VectorOperators.EQ, load(b, i))).intoArray(a, i);
+		}
+	}
+
+	private static void notEqualTo(double[] a, double[] b, int start, int bound) {
+		for (int i = start; i < bound; i += SPECIES.length()) {
+			toBoolean(load(a, i).compare(VectorOperators.NE, load(b, i))).intoArray(a, i);
+		}
+	}
+
+	private static void negate(double[] a, int start, int bound) {
+		for (int i = start; i < bound; i += SPECIES.length()) {
+			load(a, i).neg().intoArray(a, i);
+		}
+	}
+
+	private static void not(double[] a, int start, int bound) {
+		for (int i = start; i < bound; i += SPECIES.length()) {
+			toBoolean(load(a, i).eq(1).not()).intoArray(a, i);
+		}
+	}
+
+	private static void abs(double[] a, int start, int bound) {
+		for (int i = start; i < bound; i += SPECIES.length()) {
+			load(a, i).abs().intoArray(a, i);
+		}
+	}
+
+	private static void sqrt(double[] a, int start, int bound) {
+		for (int i = start; i < bound; i += SPECIES.length()) {
+			load(a, i).lanewise(VectorOperators.SQRT).intoArray(a, i);
+		}
+	}
+
+	private static DoubleVector load(double[] array, int index) {
+		return DoubleVector.fromArray(SPECIES, array, index);
+	}
+
+	private static DoubleVector toBoolean(VectorMask<Double> mask) {
+		return DoubleVector.zero(SPECIES).blend(1, mask);
+	}
+
+}
@@ -0,0 +1,146 @@
+package redempt.crunch.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import redempt.crunch.exceptions.ExpressionCompilationException;
+
+/**
+ * Records measurements as Java Flight Recorder events. Events which are not enabled in the running recordings cost
+ * only a check. Only included in the Java 17 part of the multi-release jar, and created with
+ * {@link MetricsListener#flightRecorder()}.
+ * @author Redempt
+ */
+final class FlightRecorderListener implements MetricsListener {
+
+	@Override
+	public void onCompile(String expression, long nanos, int nodeCount, int depth) {
+		CompileEvent event = new CompileEvent();
+		if (event.shouldCommit()) {
+			event.expression = expression;
+			event.time = nanos;
+			event.nodeCount = nodeCount;
+			event.depth = depth;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void onCompileFailure(String expression, long nanos, ExpressionCompilationException exception) {
+		CompileEvent event = new CompileEvent();
+		if (event.shouldCommit()) {
+			event.expression = expression;
+			event.time = nanos;
+			event.error = exception.getMessage();
+			event.commit();
+		}
+	}
+
+	@Override
+	public void onEvaluate(String expression, long nanos) {
+		EvaluateEvent event = new EvaluateEvent();
+		if (event.shouldCommit()) {
+			event.expression = expression;
+			event.time = nanos;
+			event.rowCount = 1;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void onBatchEvaluate(String expression, int rowCount, long nanos) {
+		EvaluateEvent event = new EvaluateEvent();
+		if (event.shouldCommit()) {
+			event.expression = expression;
+			event.time = nanos;
+			event.rowCount = rowCount;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void onEvaluationFailure(String expression, long nanos, RuntimeException exception) {
+		EvaluateEvent event = new EvaluateEvent();
+		if (event.shouldCommit()) {
+			event.expression = expression;
+			event.time = nanos;
+			event.error = exception.toString();
+			event.commit();
+		}
+	}
+
+	@Override
+	public void onCacheLookup(boolean hit) {
+		CacheLookupEvent event = new CacheLookupEvent();
+		if (event.shouldCommit()) {
+			event.hit = hit;
+			event.commit();
+		}
+	}
+
+	@Name("redempt.crunch.Compile")
+	@Label("Expression Compilation")
+	@Category("Crunch")
+	@StackTrace(false)
+	static final class CompileEvent extends Event {
+
+		@Label("Expression")
+		String expression;
+
+		@Label("Compile Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long time;
+
+		@Label("Node Count")
+		int nodeCount;
+
+		@Label("Depth")
+		int depth;
+
+		@Label("Error")
+		@Description("The message of the exception thrown if compilation failed")
+		String error;
+
+	}
+
+	@Name("redempt.crunch.Evaluate")
+	@Label("Expression Evaluation")
+	@Category("Crunch")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class EvaluateEvent extends Event {
+
+		@Label("Expression")
+		String expression;
+
+		@Label("Evaluation Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long time;
+
+		@Label("Row Count")
+		int rowCount;
+
+		@Label("Error")
+		@Description("The exception thrown if evaluation failed")
+		String error;
+
+	}
+
+	@Name("redempt.crunch.CacheLookup")
+	@Label("Expression Cache Lookup")
+	@Category("Crunch")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class CacheLookupEvent extends Event {
+
+		@Label("Hit")
+		boolean hit;
+
+	}
+
+}
@@ -0,0 +1,418 @@
+package redempt.crunch;
+
+import redempt.crunch.bytecode.GeneratedValue;
+import redempt.crunch.exceptions.ExpressionEvaluationException;
+import redempt.crunch.functional.DoubleQuaternaryOperator;
+import redempt.crunch.functional.DoubleTernaryOperator;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.program.Program;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.ConditionalOperation;
+import redempt.crunch.token.Constant;
+import redempt.crunch.token.FusedMultiplyAddOperation;
+import redempt.crunch.token.IntegerPowerOperation;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.SharedValueReference;
+import redempt.crunch.token.ShortCircuitOperation;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.Value;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Evaluates a Value tree over many rows at once. Rows are processed in chunks, and the tree is walked once per chunk,
+ * with every operation applied to the whole chunk in a tight loop. Operands which are only evaluated conditionally are
+ * evaluated for just the rows that need them. Nodes which cannot be evaluated column-wise,
+ * like lazy variables and values created by function factories, are evaluated row by row.
+ * A ColumnEvaluator holds its own scratch buffers, so it must not be shared between threads.
+ * @author Redempt
+ */
+final class ColumnEvaluator {
+
+	static final int CHUNK_SIZE = 256;
+	/**
+	 * The most instructions a Program can have to be evaluated through its tree. Walking the tree recurses once per
+	 * level, and larger programs may be too deep for that, so they are evaluated row by row instead.
+	 */
+	private static final int MAX_TREE_PROGRAM_SIZE = 1024;
+	private static final ColumnKernels KERNELS = ColumnKernels.load();
+
+	private final Value root;
+	private final int variableCount;
+	private final double[] row;
+	private double[][] buffers = new double[8][];
+	private double[][] shared = new double[0][];
+	private int top;
+	private double[][] gathered;
+	private double[] gatheredResults;
+	private Map<Value, ColumnEvaluator> selectedEvaluators;
+
+	private double[][] columns;
+	private double[] rows;
+	private int stride;
+	private int offset;
+
+	/**
+	 * Creates a ColumnEvaluator
+	 * @param root The Value to evaluate, which should be unwrapped with {@link #columnRoot(Value)}
+	 * @param variableCount The number of variables used in the expression
+	 * @param frameSize The length of the array the Value is evaluated with when a node has to be evaluated row by row
+	 */
+	ColumnEvaluator(Value root, int variableCount, int frameSize) {
+		this.root = root;
+		this.variableCount = variableCount;
+		row = new double[Math.max(variableCount, frameSize)];
+	}
+
+	/**
+	 * Gets the Value tree to evaluate column-wise in place of the Value of an expression. Generated bytecode and
+	 * programs could only be evaluated row by row, so the tree they were compiled from is evaluated instead.
+	 * @param value The Value of the expression
+	 * @return The Value to pass to a ColumnEvaluator
+	 */
+	static Value columnRoot(Value value) {
+		if (value instanceof GeneratedValue) {
+			return ((GeneratedValue) value).getSource();
+		}
+		if (value instanceof Program && ((Program) value).getInstructionCount() <= MAX_TREE_PROGRAM_SIZE) {
+			return ((Program) value).toTree();
+		}
+		return value;
+	}
+
+	/**
+	 * Evaluates the expression for every row of a set of columns
+	 * @param columns The variable columns, one per variable in order, each at least rowCount long
+	 * @param start The index of the first row to evaluate
+	 * @param end The index after the last row to evaluate
+	 * @param out The array to write results to, at the same indices as the rows
+	 */
+	void evaluateColumns(double[][] columns, int start, int end, double[] out) {
+		evaluateColumns(columns, start, end, out, start);
+	}
+
+	/**
+	 * Evaluates the expression for a range of rows of a set of columns
+	 * @param columns The variable columns, one per variable in order, each at least end long
+	 * @param start The index of the first row to evaluate
+	 * @param end The index after the last row to evaluate
+	 * @param out The array to write results to
+	 * @param outStart The index in the output array to write the result of the first row to
+	 */
+	void evaluateColumns(double[][] columns, int start, int end, double[] out, int outStart) {
+		this.columns = columns;
+		this.rows = null;
+		evaluate(start, end, out, outStart);
+	}
+
+	/**
+	 * Evaluates the expression for every row of a row-major array
+	 * @param rows The variable values, with the values of each row stored consecutively
+	 * @param stride The distance between the starts of two consecutive rows
+	 * @param start The index of the first row to evaluate
+	 * @param end The index after the last row to evaluate
+	 * @param out The array to write results to, at the same indices as the rows
+	 */
+	void evaluateRows(double[] rows, int stride, int start, int end, double[] out) {
+		this.rows = rows;
+		this.stride = stride;
+		this.columns = null;
+		evaluate(start, end, out, start);
+	}
+
+	private void evaluate(int start, int end, double[] out, int outStart) {
+		for (offset = start; offset < end; offset += CHUNK_SIZE) {
+			int length = Math.min(CHUNK_SIZE, end - offset);
+			int result = evaluate(root, length);
+			System.arraycopy(buffers[result], 0, out, outStart + offset - start, length);
+			top = 0;
+		}
+	}
+
+	static void checkColumns(double[][] columns, int variableCount, int rowCount, double[] out) {
+		checkColumns(columns, variableCount, rowCount);
+		checkOutput(rowCount, out);
+	}
+
+	static void checkColumns(double[][] columns, int variableCount, int rowCount) {
+		if (columns.length < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable columns - expected " + variableCount + ", got " + columns.length);
+		}
+		for (int i = 0; i < variableCount; i++) {
+			if (columns[i].length < rowCount) {
+				throw new ExpressionEvaluationException("Column " + (i + 1) + " has fewer than " + rowCount + " rows");
+			}
+		}
+	}
+
+	static void checkRows(double[] rows, int stride, int variableCount, int rowCount, double[] out) {
+		if (stride < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable values per row - expected " + variableCount + ", got " + stride);
+		}
+		if (rowCount > 0 && (long) (rowCount - 1) * stride + variableCount > rows.length) {
+			throw new ExpressionEvaluationException("Row array has fewer than " + rowCount + " rows");
+		}
+		checkOutput(rowCount, out);
+	}
+
+	static void checkOutput(int rowCount, double[] out) {
+		if (rowCount < 0) {
+			throw new IllegalArgumentException("Row count cannot be negative");
+		}
+		if (out.length < rowCount) {
+			throw new IllegalArgumentException("Output array has fewer than " + rowCount + " elements");
+		}
+	}
+
+	private int push() {
+		if (top == buffers.length) {
+			buffers = Arrays.copyOf(buffers, top * 2);
+		}
+		if (buffers[top] == null) {
+			buffers[top] = new double[CHUNK_SIZE];
+		}
+		return top++;
+	}
+
+	private int evaluate(Value value, int length) {
+		if (value instanceof LiteralValue || value instanceof Constant) {
+			int index = push();
+			Arrays.fill(buffers[index], 0, length, value.getValue(row));
+			return index;
+		}
+		if (value instanceof Variable) {
+			int index = push();
+			loadVariable(((Variable) value).getIndex(), buffers[index], length);
+			return index;
+		}
+		if (value instanceof IntegerPowerOperation) {
+			IntegerPowerOperation operation = (IntegerPowerOperation) value;
+			int index = evaluate(operation.getBase(), length);
+			double[] buffer = buffers[index];
+			int exponent = operation.getExponent();
+			for (int i = 0; i < length; i++) {
+				buffer[i] = IntegerPowerOperation.power(buffer[i], exponent);
+			}
+			return index;
+		}
+		if (value instanceof FusedMultiplyAddOperation) {
+			Value[] operands = ((FusedMultiplyAddOperation) value).getOperands();
+			int first = evaluate(operands[0], length);
+			double[] a = buffers[first];
+			double[] b = buffers[evaluate(operands[1], length)];
+			double[] c = buffers[evaluate(operands[2], length)];
+			for (int i = 0; i < length; i++) {
+				a[i] = FusedMultiplyAddOperation.fma(a[i], b[i], c[i]);
+			}
+			top = first + 1;
+			return first;
+		}
+		if (value instanceof ShortCircuitOperation) {
+			return evaluateShortCircuit((ShortCircuitOperation) value, length);
+		}
+		if (value instanceof ConditionalOperation) {
+			return evaluateConditional((ConditionalOperation) value, length);
+		}
+		if (value instanceof BinaryOperation) {
+			BinaryOperation operation = (BinaryOperation) value;
+			Value[] values = operation.getValues();
+			int first = evaluate(values[0], length);
+			int second = evaluate(values[1], length);
+			KERNELS.applyBinary(operation.getOperator(), buffers[first], buffers[second], 0, length);
+			top--;
+			return first;
+		}
+		if (value instanceof UnaryOperation) {
+			UnaryOperation operation = (UnaryOperation) value;
+			int index = evaluate(operation.getChild(), length);
+			KERNELS.applyUnary(operation.getOperator(), buffers[index], 0, length);
+			return index;
+		}
+		if (value instanceof FunctionCall) {
+			return evaluateFunctionCall((FunctionCall) value, length);
+		}
+		if (value instanceof SharedValue) {
+			SharedValue sharedValue = (SharedValue) value;
+			int index = evaluate(sharedValue.getChild(), length);
+			System.arraycopy(buffers[index], 0, sharedBuffer(sharedValue.getSlot()), 0, length);
+			return index;
+		}
+		if (value instanceof SharedValueReference) {
+			int index = push();
+			System.arraycopy(sharedBuffer(((SharedValueReference) value).getSlot()), 0, buffers[index], 0, length);
+			return index;
+		}
+		int index = push();
+		double[] buffer = buffers[index];
+		for (int i = 0; i < length; i++) {
+			loadRow(i);
+			buffer[i] = value.getValue(row);
+		}
+		return index;
+	}
+
+	private int evaluateShortCircuit(ShortCircuitOperation operation, int length) {
+		Value[] values = operation.getValues();
+		int index = evaluate(values[0], length);
+		double[] buffer = buffers[index];
+		int[] selected = new int[length];
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			boolean decided = buffer[i] == 1;
+			if (decided != operation.isAnd()) {
+				buffer[i] = decided ? 1d : 0d;
+			} else {
+				selected[count++] = i;
+			}
+		}
+		evaluateSelected(values[1], selected, count, length, buffer);
+		for (int i = 0; i < count; i++) {
+			int row = selected[i];
+			buffer[row] = buffer[row] == 1 ? 1d : 0d;
+		}
+		return index;
+	}
+
+	private int evaluateConditional(ConditionalOperation conditional, int length) {
+		int index = evaluate(conditional.getCondition(), length);
+		double[] buffer = buffers[index];
+		int[] ifTrue = new int[length];
+		int[] ifFalse = new int[length];
+		int trueCount = 0;
+		int falseCount = 0;
+		for (int i = 0; i < length; i++) {
+			if (buffer[i] == 1) {
+				ifTrue[trueCount++] = i;
+			} else {
+				ifFalse[falseCount++] = i;
+			}
+		}
+		evaluateSelected(conditional.getIfTrue(), ifTrue, trueCount, length, buffer);
+		evaluateSelected(conditional.getIfFalse(), ifFalse, falseCount, length, buffer);
+		return index;
+	}
+
+	/**
+	 * Evaluates a conditionally evaluated operand for only the selected rows of the current chunk, writing each result
+	 * to the same row of the output. The variables of the selected rows are gathered into compact columns so that the
+	 * operand can still be evaluated column-wise.
+	 */
+	private void evaluateSelected(Value value, int[] selected, int count, int length, double[] out) {
+		if (count == 0) {
+			return;
+		}
+		if (count == length) {
+			int index = evaluate(value, length);
+			System.arraycopy(buffers[index], 0, out, 0, length);
+			top--;
+			return;
+		}
+		if (gathered == null) {
+			gathered = new double[variableCount][CHUNK_SIZE];
+			gatheredResults = new double[CHUNK_SIZE];
+			selectedEvaluators = new IdentityHashMap<>();
+		}
+		for (int j = 0; j < variableCount; j++) {
+			double[] column = gathered[j];
+			for (int i = 0; i < count; i++) {
+				column[i] = variableAt(j, offset + selected[i]);
+			}
+		}
+		selectedEvaluators.computeIfAbsent(value, v -> new ColumnEvaluator(v, variableCount, row.length))
+				.evaluateColumns(gathered, 0, count, gatheredResults);
+		for (int i = 0; i < count; i++) {
+			out[selected[i]] = gatheredResults[i];
+		}
+	}
+
+	private double variableAt(int variable, int rowIndex) {
+		return columns != null ? columns[variable][rowIndex] : rows[rowIndex * stride + variable];
+	}
+
+	private double[] sharedBuffer(int slot) {
+		if (slot >= shared.length) {
+			shared = Arrays.copyOf(shared, slot + 1);
+		}
+		if (shared[slot] == null) {
+			shared[slot] = new double[CHUNK_SIZE];
+		}
+		return shared[slot];
+	}
+
+	private int evaluateFunctionCall(FunctionCall call, int length) {
+		Value[] args = call.getArguments();
+		int base = top;
+		for (Value arg : args) {
+			evaluate(arg, length);
+		}
+		int index = args.length == 0 ? push() : base;
+		double[] buffer = buffers[index];
+		Function function = call.getFunction();
+		if (function.getUnaryOperator() != null) {
+			DoubleUnaryOperator operator = function.getUnaryOperator();
+			for (int i = 0; i < length; i++) {
+				buffer[i] = operator.applyAsDouble(buffer[i]);
+			}
+		} else if (function.getBinaryOperator() != null) {
+			DoubleBinaryOperator operator = function.getBinaryOperator();
+			double[] second = buffers[base + 1];
+			for (int i = 0; i < length; i++) {
+				buffer[i] = operator.applyAsDouble(buffer[i], second[i]);
+			}
+		} else if (function.getTernaryOperator() != null) {
+			DoubleTernaryOperator operator = function.getTernaryOperator();
+			double[] second = buffers[base + 1];
+			double[] third = buffers[base + 2];
+			for (int i = 0; i < length; i++) {
+				buffer[i] = operator.applyAsDouble(buffer[i], second[i], third[i]);
+			}
+		} else if (function.getQuaternaryOperator() != null) {
+			DoubleQuaternaryOperator operator = function.getQuaternaryOperator();
+			double[] second = buffers[base + 1];
+			double[] third = buffers[base + 2];
+			double[] fourth = buffers[base + 3];
+			for (int i = 0; i < length; i++) {
+				buffer[i] = operator.applyAsDouble(buffer[i], second[i], third[i], fourth[i]);
+			}
+		} else {
+			double[] numbers = new double[args.length];
+			for (int i = 0; i < length; i++) {
+				for (int j = 0; j < numbers.length; j++) {
+					numbers[j] = buffers[base + j][i];
+				}
+				buffer[i] = function.call(numbers);
+			}
+		}
+		top = index + 1;
+		return index;
+	}
+
+	private void loadVariable(int variable, double[] buffer, int length) {
+		if (columns != null) {
+			System.arraycopy(columns[variable], offset, buffer, 0, length);
+			return;
+		}
+		int position = offset * stride + variable;
+		for (int i = 0; i < length; i++, position += stride) {
+			buffer[i] = rows[position];
+		}
+	}
+
+	private void loadRow(int index) {
+		int rowIndex = offset + index;
+		if (columns != null) {
+			for (int i = 0; i < variableCount; i++) {
+				row[i] = columns[i][rowIndex];
+			}
+		} else {
+			System.arraycopy(rows, rowIndex * stride, row, 0, variableCount);
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+package redempt.crunch;
+
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.UnaryOperator;
+
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * The loops used by {@link ColumnEvaluator} to apply an operator to a whole chunk of values at once. On Java 17 and
+ * later, the multi-release jar contains a subclass using explicit SIMD instructions from the incubating Vector API,
+ * which is used when the {@code jdk.incubator.vector} module is enabled with {@code --add-modules jdk.incubator.vector}.
+ * Otherwise, or when the system property {@code redempt.crunch.vectorKernels} is set to {@code false}, these plain
+ * loops are used.
+ * @author Redempt
+ */
+class ColumnKernels {
+
+	private static final String VECTOR_KERNELS = "redempt.crunch.VectorKernels";
+
+	/**
+	 * Loads the fastest kernels supported by the running JVM
+	 * @return The kernels to use
+	 */
+	static ColumnKernels load() {
+		if (!Boolean.parseBoolean(System.getProperty("redempt.crunch.vectorKernels", "true"))) {
+			return new ColumnKernels();
+		}
+		try {
+			return Class.forName(VECTOR_KERNELS).asSubclass(ColumnKernels.class).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// Running on Java 8, from a jar without the versioned classes, or without the Vector API module
+			return new ColumnKernels();
+		}
+	}
+
+	/**
+	 * @return Whether these kernels use explicit SIMD instructions
+	 */
+	boolean isVectorized() {
+		return false;
+	}
+
+	/**
+	 * Applies a binary operator to two chunks of values, writing the results to the first
+	 * @param operator The operator to apply
+	 * @param a The first operands, which are replaced by the results
+	 * @param b The second operands
+	 * @param start The index of the first value to apply the operator to
+	 * @param end The index after the last value to apply the operator to
+	 */
+	void applyBinary(BinaryOperator operator, double[] a, double[] b, int start, int end) {
+		switch (operator) {
+			case ADD:
+				for (int i = start; i < end; i++) {
+					a[i] += b[i];
+				}
+				return;
+			case SUBTRACT:
+				for (int i = start; i < end; i++) {
+					a[i] -= b[i];
+				}
+				return;
+			case MULTIPLY:
+				for (int i = start; i < end; i++) {
+					a[i] *= b[i];
+				}
+				return;
+			case DIVIDE:
+				for (int i = start; i < end; i++) {
+					a[i] /= b[i];
+				}
+				return;
+			case MODULUS:
+				for (int i = start; i < end; i++) {
+					a[i] %= b[i];
+				}
+				return;
+			case EXPONENT:
+				for (int i = start; i < end; i++) {
+					a[i] = Math.pow(a[i], b[i]);
+				}
+				return;
+			case SCIENTIFIC_NOTATION:
+				for (int i = start; i < end; i++) {
+					a[i] = a[i] * Math.pow(10, b[i]);
+				}
+				return;
+			case GREATER_THAN:
+				for (int i = start; i < end; i++) {
+					a[i] = a[i] > b[i] ? 1d : 0d;
+				}
+				return;
+			case LESS_THAN:
+				for (int i = start; i < end; i++) {
+					a[i] = a[i] < b[i] ? 1d : 0d;
+				}
+				return;
+			case GREATER_THAN_OR_EQUAL_TO:
+				for (int i = start; i < end; i++) {
+					a[i] = a[i] >= b[i] ? 1d : 0d;
+				}
+				return;
+			case LESS_THAN_OR_EQUAL_TO:
+				for (int i = start; i < end; i++) {
+					a[i] = a[i] <= b[i] ? 1d : 0d;
+				}
+				return;
+			case EQUAL_TO:
+			case EQUAL_TO_ALT:
+				for (int i = start; i < end; i++) {
+					a[i] = a[i] == b[i] ? 1d : 0d;
+				}
+				return;
+			case NOT_EQUAL_TO:
+				for (int i = start; i < end; i++) {
+					a[i] = a[i] != b[i] ? 1d : 0d;
+				}
+				return;
+			case BOOLEAN_AND:
+			case BOOLEAN_AND_ALT:
+				for (int i = start; i < end; i++) {
+					a[i] = (a[i] == 1 && b[i] == 1) ? 1d : 0d;
+				}
+				return;
+			case BOOLEAN_OR:
+			case BOOLEAN_OR_ALT:
+				for (int i = start; i < end; i++) {
+					a[i] = (a[i] == 1 || b[i] == 1) ? 1d : 0d;
+				}
+				return;
+			default:
+				DoubleBinaryOperator operation = operator.getOperation();
+				for (int i = start; i < end; i++) {
+					a[i] = operation.applyAsDouble(a[i], b[i]);
+				}
+		}
+	}
+
+	/**
+	 * Applies a unary operator to a chunk of values in place
+	 * @param operator The operator to apply
+	 * @param a The operands, which are replaced by the results
+	 * @param start The index of the first value to apply the operator to
+	 * @param end The index after the last value to apply the operator to
+	 */
+	void applyUnary(UnaryOperator operator, double[] a, int start, int end) {
+		switch (operator) {
+			case NEGATE:
+				for (int i = start; i < end; i++) {
+					a[i] = -a[i];
+				}
+				return;
+			case NOT:
+				for (int i = start; i < end; i++) {
+					a[i] = a[i] == 1 ? 0d : 1d;
+				}
+				return;
+			case ABS:
+				for (int i = start; i < end; i++) {
+					a[i] = Math.abs(a[i]);
+				}
+				return;
+			case SQRT:
+				for (int i = start; i < end; i++) {
+					a[i] = Math.sqrt(a[i]);
+				}
+				return;
+			case FLOOR:
+				for (int i = start; i < end; i++) {
+					a[i] = Math.floor(a[i]);
+				}
+				return;
+			case CEIL:
+				for (int i = start; i < end; i++) {
+					a[i] = Math.ceil(a[i]);
+				}
+				return;
+			default:
+				DoubleUnaryOperator function = operator.getOperation();
+				for (int i = start; i < end; i++) {
+					a[i] = function.applyAsDouble(a[i]);
+				}
+		}
+	}
+
+}
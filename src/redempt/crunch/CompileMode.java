@@ -0,0 +1,25 @@
+package redempt.crunch;
+
+/**
+ * The backends which can be used to evaluate a compiled expression
+ * @author Redempt
+ */
+public enum CompileMode {
+	
+	/**
+	 * Evaluates the expression by walking its Value tree. This is the default, and the fastest to compile.
+	 */
+	TREE,
+	/**
+	 * Compiles the Value tree into a generated class with straight-line arithmetic. Compilation is much slower, but
+	 * evaluation avoids per-node dispatch entirely, which pays off for expressions evaluated many times.
+	 */
+	BYTECODE,
+	/**
+	 * Flattens the Value tree into a compact array of instructions and a pool of literals, evaluated by a single loop
+	 * without recursion. Programs use much less memory than trees and have better locality, and can evaluate
+	 * expressions too deep for the tree to evaluate recursively.
+	 */
+	PROGRAM
+	
+}
@@ -0,0 +1,112 @@
+package redempt.crunch;
+
+import redempt.crunch.functional.ExpressionEnv;
+
+/**
+ * Options controlling how an expression is compiled by {@link Crunch#compileExpression(String, ExpressionEnv, CompileOptions)}.
+ * Optimizations are applied to the Value tree in a fixed order before it is handed to the backend selected by the {@link CompileMode}.
+ * @author Redempt
+ */
+public class CompileOptions {
+	
+	private CompileMode mode = CompileMode.TREE;
+	private boolean eliminateCommonSubexpressions;
+	private boolean simplify;
+	private boolean fusedMultiplyAdd;
+	private boolean reassociate;
+	
+	/**
+	 * Sets the backend which will evaluate the expression, {@link CompileMode#TREE} by default
+	 * @param mode The compile mode
+	 * @return This CompileOptions
+	 */
+	public CompileOptions setMode(CompileMode mode) {
+		if (mode == null) {
+			throw new IllegalArgumentException("Mode cannot be null");
+		}
+		this.mode = mode;
+		return this;
+	}
+	
+	/**
+	 * Sets whether structurally identical pure subexpressions should be evaluated only once per evaluation,
+	 * off by default. This costs some compile time, and pays off for expressions which repeat expensive subexpressions.
+	 * @param eliminateCommonSubexpressions Whether to eliminate common subexpressions
+	 * @return This CompileOptions
+	 */
+	public CompileOptions setEliminateCommonSubexpressions(boolean eliminateCommonSubexpressions) {
+		this.eliminateCommonSubexpressions = eliminateCommonSubexpressions;
+		return this;
+	}
+	
+	/**
+	 * Sets whether the expression should be algebraically simplified and strength-reduced before it is compiled,
+	 * off by default. See {@link redempt.crunch.optimize.Simplifier} for the rewrites applied.
+	 * @param simplify Whether to simplify the expression
+	 * @return This CompileOptions
+	 */
+	public CompileOptions setSimplify(boolean simplify) {
+		this.simplify = simplify;
+		return this;
+	}
+	
+	/**
+	 * Sets whether the simplifier may fuse {@code a*b+c} into a single fused multiply-add, off by default.
+	 * Fused operations are rounded once instead of twice, so results may differ in the last bit.
+	 * Has no effect unless simplification is enabled.
+	 * @param fusedMultiplyAdd Whether to fuse multiply-add operations
+	 * @return This CompileOptions
+	 */
+	public CompileOptions setFusedMultiplyAdd(boolean fusedMultiplyAdd) {
+		this.fusedMultiplyAdd = fusedMultiplyAdd;
+		return this;
+	}
+	
+	/**
+	 * Sets whether the simplifier may regroup chains of additions and multiplications so that all of their constant
+	 * operands are folded together, turning {@code 2 * $1 * 3} into {@code $1 * 6}, off by default. Floating point
+	 * arithmetic is not associative, so results may differ slightly. Has no effect unless simplification is enabled.
+	 * @param reassociate Whether to reassociate additions and multiplications
+	 * @return This CompileOptions
+	 */
+	public CompileOptions setReassociate(boolean reassociate) {
+		this.reassociate = reassociate;
+		return this;
+	}
+	
+	/**
+	 * @return The backend which will evaluate the expression
+	 */
+	public CompileMode getMode() {
+		return mode;
+	}
+	
+	/**
+	 * @return Whether structurally identical pure subexpressions will be evaluated only once per evaluation
+	 */
+	public boolean isEliminateCommonSubexpressions() {
+		return eliminateCommonSubexpressions;
+	}
+	
+	/**
+	 * @return Whether the expression will be algebraically simplified
+	 */
+	public boolean isSimplify() {
+		return simplify;
+	}
+	
+	/**
+	 * @return Whether the simplifier may fuse multiply-add operations
+	 */
+	public boolean isFusedMultiplyAdd() {
+		return fusedMultiplyAdd;
+	}
+	
+	/**
+	 * @return Whether the simplifier may reassociate additions and multiplications
+	 */
+	public boolean isReassociate() {
+		return reassociate;
+	}
+	
+}
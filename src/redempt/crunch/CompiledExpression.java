@@ -5,14 +5,22 @@ import redempt.crunch.token.BinaryOperation;
 import redempt.crunch.token.TokenType;
 import redempt.crunch.token.Value;
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
 /**
- * An expression which has been compiled with {@link Crunch#compileExpression(String)} and can be evaluated with {@link CompiledExpression#evaluate(double...)}
+ * An expression which has been compiled with {@link Crunch#compileExpression(String)} and can be evaluated with {@link CompiledExpression#evaluate(double...)}.
+ * A CompiledExpression holds no evaluation state, so a single instance can be evaluated from any number of threads at once.
+ * Evaluating with variable values creates a new frame for each call when the expression stores intermediate results,
+ * while evaluating with an {@link EvaluationContext} uses the frame held by the context.
  * @author Redempt
  */
 public class CompiledExpression {
 	
-	protected double[] variableValues;
+	private static final double[] NO_VALUES = new double[0];
+	
 	private int variableCount;
+	private int frameSize;
 	private Value value;
 	
     protected CompiledExpression() {}
@@ -21,16 +29,23 @@ public class CompiledExpression {
         initialize(value, variableCount);
     }
 
+	/**
+	 * Creates a CompiledExpression whose Value stores intermediate results in the variable array, after the variables
+	 * @param value The Value to evaluate
+	 * @param variableCount The number of variables used in the expression
+	 * @param frameSize The length of the array the Value is evaluated with, including the variables
+	 */
+	public CompiledExpression(Value value, int variableCount, int frameSize) {
+		initialize(value, variableCount);
+		this.frameSize = Math.max(frameSize, variableCount);
+	}
+
     protected void initialize(Value value, int variableCount) {
         this.value = value;
 		this.variableCount = variableCount;
+		this.frameSize = variableCount;
     }
 	
-	protected void setVariableValues(double[] values) {
-		checkArgCount(values.length);
-		variableValues = values;
-	}
-	
     /**
      * Gets the internal Value representation of the expression. This is essentially reflection into the expression. Proceed at your own risk.
      * @return The Value this CompiledExpression wraps
@@ -49,22 +64,57 @@ public class CompiledExpression {
 	}
 	
 	/**
-	 * Evaluates this CompiledExpression and returns its value
+	 * Gets the length of the array the Value of this expression is evaluated with. This is the variable count, plus
+	 * the number of intermediate results stored by optimizations like common subexpression elimination.
+	 * @return The number of values needed to evaluate this expression
+	 */
+	public int getFrameSize() {
+		return frameSize;
+	}
+	
+	/**
+	 * Creates an EvaluationContext which can be used to evaluate this CompiledExpression repeatedly without allocating a
+	 * frame each time. Calls to functions taking their arguments as an array still create the array for each call.
+	 * @return A new EvaluationContext sized for this expression
+	 */
+	public EvaluationContext createContext() {
+		return new EvaluationContext(frameSize);
+	}
+	
+	/**
+	 * Evaluates this CompiledExpression and returns its value. The array is read but never stored, so it may be reused
+	 * by the caller between calls.
 	 * @param values The values for variables used in this expression, in order starting with 1
 	 * @return The resulting value
 	 */
 	public double evaluate(double... values) {
-		setVariableValues(values);
-		return value.getValue(this.variableValues);
+		checkArgCount(values.length);
+		if (frameSize > variableCount) {
+			values = Arrays.copyOf(values, Math.max(values.length, frameSize));
+		}
+		return value.getValue(values);
+	}
+	
+	/**
+	 * Evaluates this CompiledExpression with the variable values held by a context
+	 * @param context The context holding the values for variables used in this expression
+	 * @return The resulting value
+	 */
+	public double evaluate(EvaluationContext context) {
+		double[] values = context.getVariables();
+		if (values.length < frameSize) {
+			throw new ExpressionEvaluationException("Context holds too few values - expected " + frameSize + ", got " + values.length);
+		}
+		return value.getValue(values);
 	}
 	
 	/**
-	 * Evaluates this CompiledExpression and returns its value without modifying variable values
+	 * Evaluates this CompiledExpression, which must not use any variables, and returns its value
 	 * @return The resulting value
 	 */
 	public double evaluate() {
 		checkArgCount(0);
-		return value.getValue(this.variableValues);
+		return value.getValue(frameSize == 0 ? NO_VALUES : new double[frameSize]);
 	}
 	
 	/**
@@ -74,11 +124,9 @@ public class CompiledExpression {
 	 */
 	public double evaluate(double first) {
 		checkArgCount(1);
-		if (variableValues == null) {
-			variableValues = new double[1];
-		}
-		variableValues[0] = first;
-		return value.getValue(this.variableValues);
+		double[] values = new double[Math.max(1, frameSize)];
+		values[0] = first;
+		return value.getValue(values);
 	}
 	
 	/**
@@ -89,14 +137,107 @@ public class CompiledExpression {
 	 */
 	public double evaluate(double first, double second) {
 		checkArgCount(2);
-		if (variableValues == null) {
-			variableValues = new double[2];
-		}
-		variableValues[0] = first;
-		variableValues[1] = second;
-		return value.getValue(this.variableValues);
+		double[] values = new double[Math.max(2, frameSize)];
+		values[0] = first;
+		values[1] = second;
+		return value.getValue(values);
 	}
 	
+	/**
+	 * Evaluates this CompiledExpression once for every row of a set of variable columns. Rows are evaluated in chunks,
+	 * applying each operation to a whole chunk at a time, which is much faster than calling {@link CompiledExpression#evaluate(double...)}
+	 * once per row.
+	 * @param columns The values for variables used in this expression, one column per variable in order starting with 1
+	 * @param rowCount The number of rows to evaluate
+	 * @param out The array to write the result for each row to
+	 */
+	public void evaluateBatch(double[][] columns, int rowCount, double[] out) {
+		ColumnEvaluator.checkColumns(columns, variableCount, rowCount, out);
+		new ColumnEvaluator(ColumnEvaluator.columnRoot(value), variableCount, frameSize).evaluateColumns(columns, 0, rowCount, out);
+	}
+
+	/**
+	 * Evaluates this CompiledExpression for a range of rows of a set of variable columns, in the same way as
+	 * {@link CompiledExpression#evaluateBatch(double[][], int, double[])}
+	 * @param columns The values for variables used in this expression, one column per variable in order starting with 1
+	 * @param start The index of the first row to evaluate
+	 * @param end The index after the last row to evaluate
+	 * @param out The array to write the result for each row to, starting with the result for the first row at index 0
+	 */
+	public void evaluateBatch(double[][] columns, int start, int end, double[] out) {
+		if (start < 0 || start > end) {
+			throw new IllegalArgumentException("Invalid row range " + start + " to " + end);
+		}
+		ColumnEvaluator.checkColumns(columns, variableCount, end);
+		ColumnEvaluator.checkOutput(end - start, out);
+		new ColumnEvaluator(ColumnEvaluator.columnRoot(value), variableCount, frameSize).evaluateColumns(columns, start, end, out, 0);
+	}
+
+	/**
+	 * Evaluates this CompiledExpression once for every row of a row-major array of variable values. Rows are evaluated
+	 * in chunks, applying each operation to a whole chunk at a time.
+	 * @param rows The values for variables used in this expression, with the values for each row stored consecutively
+	 * @param stride The distance between the starts of two consecutive rows, at least {@link CompiledExpression#getVariableCount()}
+	 * @param rowCount The number of rows to evaluate
+	 * @param out The array to write the result for each row to
+	 */
+	public void evaluateBatch(double[] rows, int stride, int rowCount, double[] out) {
+		ColumnEvaluator.checkRows(rows, stride, variableCount, rowCount, out);
+		new ColumnEvaluator(ColumnEvaluator.columnRoot(value), variableCount, frameSize).evaluateRows(rows, stride, 0, rowCount, out);
+	}
+
+	/**
+	 * Evaluates this CompiledExpression once for every row of a set of variable columns, splitting the rows into tasks
+	 * run in parallel on the common {@link ForkJoinPool}. Each task evaluates with its own state, so no locking or
+	 * cloning is needed by the caller.
+	 * @param columns The values for variables used in this expression, one column per variable in order starting with 1
+	 * @param rowCount The number of rows to evaluate
+	 * @param out The array to write the result for each row to
+	 */
+	public void evaluateParallel(double[][] columns, int rowCount, double[] out) {
+		evaluateParallel(columns, rowCount, out, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Evaluates this CompiledExpression once for every row of a set of variable columns, splitting the rows into tasks
+	 * run in parallel on the given {@link ForkJoinPool}. Each task evaluates with its own state, so no locking or
+	 * cloning is needed by the caller.
+	 * @param columns The values for variables used in this expression, one column per variable in order starting with 1
+	 * @param rowCount The number of rows to evaluate
+	 * @param out The array to write the result for each row to
+	 * @param pool The pool to run the evaluation in
+	 */
+	public void evaluateParallel(double[][] columns, int rowCount, double[] out, ForkJoinPool pool) {
+		ColumnEvaluator.checkColumns(columns, variableCount, rowCount, out);
+		pool.invoke(ParallelEvaluationTask.forColumns(ColumnEvaluator.columnRoot(value), variableCount, frameSize, columns, rowCount, out, pool.getParallelism()));
+	}
+
+	/**
+	 * Evaluates this CompiledExpression once for every row of a row-major array of variable values, splitting the rows
+	 * into tasks run in parallel on the common {@link ForkJoinPool}
+	 * @param rows The values for variables used in this expression, with the values for each row stored consecutively
+	 * @param stride The distance between the starts of two consecutive rows, at least {@link CompiledExpression#getVariableCount()}
+	 * @param rowCount The number of rows to evaluate
+	 * @param out The array to write the result for each row to
+	 */
+	public void evaluateParallel(double[] rows, int stride, int rowCount, double[] out) {
+		evaluateParallel(rows, stride, rowCount, out, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Evaluates this CompiledExpression once for every row of a row-major array of variable values, splitting the rows
+	 * into tasks run in parallel on the given {@link ForkJoinPool}
+	 * @param rows The values for variables used in this expression, with the values for each row stored consecutively
+	 * @param stride The distance between the starts of two consecutive rows, at least {@link CompiledExpression#getVariableCount()}
+	 * @param rowCount The number of rows to evaluate
+	 * @param out The array to write the result for each row to
+	 * @param pool The pool to run the evaluation in
+	 */
+	public void evaluateParallel(double[] rows, int stride, int rowCount, double[] out, ForkJoinPool pool) {
+		ColumnEvaluator.checkRows(rows, stride, variableCount, rowCount, out);
+		pool.invoke(ParallelEvaluationTask.forRows(ColumnEvaluator.columnRoot(value), variableCount, frameSize, rows, stride, rowCount, out, pool.getParallelism()));
+	}
+
 	private void checkArgCount(int args) {
 		if (variableCount > args) {
 			throw new ExpressionEvaluationException("Too few variable values - expected " + variableCount + ", got " + args);
@@ -104,10 +245,11 @@ public class CompiledExpression {
 	}
 	
 	/**
+	 * Since a CompiledExpression holds no evaluation state, cloning is no longer needed to evaluate from multiple threads
 	 * @return A clone of this CompiledExpression
 	 */
 	public CompiledExpression clone() {
-		return new CompiledExpression(value, variableCount);
+		return new CompiledExpression(value, variableCount, frameSize);
 	}
 	
 	/**
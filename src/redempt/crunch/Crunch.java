@@ -1,8 +1,20 @@
 package redempt.crunch;
 
+import redempt.crunch.bytecode.BytecodeCompiler;
+import redempt.crunch.exceptions.ExpressionCompilationException;
 import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.metrics.MetricsListener;
+import redempt.crunch.optimize.CommonSubexpressionEliminator;
+import redempt.crunch.optimize.Simplifier;
+import redempt.crunch.program.FloatExpression;
+import redempt.crunch.program.IntegerOverflow;
+import redempt.crunch.program.LongExpression;
+import redempt.crunch.program.ProgramCompiler;
 import redempt.crunch.token.BinaryOperator;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
 /**
  * Public API methods for compiling expressions
  * @author Redempt
@@ -13,7 +25,9 @@ public final class Crunch {
 		// Prevent instantiation
 	}
 
-	private static final ExpressionEnv DEFAULT_EVALUATION_ENVIRONMENT = new ExpressionEnv();
+	static final ExpressionEnv DEFAULT_EVALUATION_ENVIRONMENT = new ExpressionEnv().freeze();
+	private static final ExpressionCache EVALUATION_CACHE = new ExpressionCache(256);
+	private static volatile MetricsListener metricsListener;
 	
 	/**
 	 * Compiles a mathematical expression into a CompiledExpression. Variables must be integers starting at 1 prefixed
@@ -35,18 +49,200 @@ public final class Crunch {
 	 * @return The compiled expression
 	 */
 	public static CompiledExpression compileExpression(String expression, ExpressionEnv env) {
-		return new ExpressionParser(expression, env).parse();
+		return Crunch.compile(expression, 0, expression == null ? 0 : expression.length(), env, null);
+	}
+	
+	/**
+	 * Compiles a mathematical expression into a CompiledExpression using the given backend. Variables must be integers
+	 * starting at 1 prefixed with $. Supported operations can be found in {@link BinaryOperator}, which lists the
+	 * operations and their symbols for use in expressions. Parenthesis are also supported.
+	 * @param expression The expression to compile
+	 * @param env The EvaluationEnvironment providing custom functions that can be used in the expression
+	 * @param mode The backend which will evaluate the expression
+	 * @return The compiled expression
+	 */
+	public static CompiledExpression compileExpression(String expression, ExpressionEnv env, CompileMode mode) {
+		if (mode == null) {
+			throw new ExpressionCompilationException(null, "Compile mode is null");
+		}
+		return Crunch.compileExpression(expression, env, new CompileOptions().setMode(mode));
+	}
+	
+	/**
+	 * Compiles a mathematical expression into a CompiledExpression, applying the optimizations and backend selected
+	 * by a set of options. Variables must be integers starting at 1 prefixed with $. Supported operations can be found
+	 * in {@link BinaryOperator}, which lists the operations and their symbols for use in expressions. Parenthesis are also supported.
+	 * @param expression The expression to compile
+	 * @param env The EvaluationEnvironment providing custom functions that can be used in the expression
+	 * @param options The options controlling optimization and the backend
+	 * @return The compiled expression
+	 */
+	public static CompiledExpression compileExpression(String expression, ExpressionEnv env, CompileOptions options) {
+		if (options == null) {
+			throw new ExpressionCompilationException(null, "Compile options are null");
+		}
+		return Crunch.compile(expression, 0, expression == null ? 0 : expression.length(), env, options);
+	}
+	
+	/**
+	 * Compiles a range of a CharSequence as a mathematical expression, reading the characters in place without copying
+	 * them. Variables must be integers starting at 1 prefixed with $. Supported operations can be found in
+	 * {@link BinaryOperator}, which lists the operations and their symbols for use in expressions.
+	 * @param expression The characters holding the expression to compile
+	 * @param start The index of the first character of the expression, inclusive
+	 * @param end The index of the last character of the expression, exclusive
+	 * @param env The EvaluationEnvironment providing custom functions that can be used in the expression
+	 * @param options The options controlling optimization and the backend
+	 * @return The compiled expression
+	 */
+	public static CompiledExpression compileExpression(CharSequence expression, int start, int end, ExpressionEnv env, CompileOptions options) {
+		if (options == null) {
+			throw new ExpressionCompilationException(null, "Compile options are null");
+		}
+		return Crunch.compile(expression, start, end, env, options);
+	}
+	
+	private static CompiledExpression compile(CharSequence expression, int start, int end, ExpressionEnv env, CompileOptions options) {
+		MetricsListener listener = metricsListener;
+		if (listener != null) {
+			return InstrumentedExpression.compile(expression, start, end, env, options, listener);
+		}
+		CompiledExpression compiled = new ExpressionParser(expression, start, end, env).parse();
+		return options == null ? compiled : Crunch.applyOptions(compiled, options);
+	}
+	
+	/**
+	 * Compiles a slice of a char array as a mathematical expression, reading the characters in place without copying them
+	 * @param expression The characters holding the expression to compile
+	 * @param offset The index of the first character of the expression
+	 * @param length The number of characters in the expression
+	 * @param env The EvaluationEnvironment providing custom functions that can be used in the expression
+	 * @param options The options controlling optimization and the backend
+	 * @return The compiled expression
+	 */
+	public static CompiledExpression compileExpression(char[] expression, int offset, int length, ExpressionEnv env, CompileOptions options) {
+		if (expression == null) {
+			throw new ExpressionCompilationException(null, "Expression is null");
+		}
+		return Crunch.compileExpression(CharBuffer.wrap(expression, offset, length), 0, length, env, options);
+	}
+	
+	/**
+	 * Compiles a slice of a UTF-8 encoded byte array as a mathematical expression. ASCII expressions are read in place
+	 * without decoding or copying them.
+	 * @param utf8 The bytes holding the expression to compile
+	 * @param offset The index of the first byte of the expression
+	 * @param length The number of bytes in the expression
+	 * @param env The EvaluationEnvironment providing custom functions that can be used in the expression
+	 * @param options The options controlling optimization and the backend
+	 * @return The compiled expression
+	 */
+	public static CompiledExpression compileExpression(byte[] utf8, int offset, int length, ExpressionEnv env, CompileOptions options) {
+		if (utf8 == null) {
+			throw new ExpressionCompilationException(null, "Expression is null");
+		}
+		CharSequence chars = Utf8CharSequence.of(ByteBuffer.wrap(utf8, offset, length), offset, length);
+		return Crunch.compileExpression(chars, 0, chars.length(), env, options);
+	}
+	
+	/**
+	 * Compiles the UTF-8 encoded bytes between the position and limit of a buffer as a mathematical expression. ASCII
+	 * expressions are read in place without decoding or copying them, so this works well with memory-mapped files.
+	 * The position of the buffer is not changed.
+	 * @param utf8 The buffer holding the expression to compile
+	 * @param env The EvaluationEnvironment providing custom functions that can be used in the expression
+	 * @param options The options controlling optimization and the backend
+	 * @return The compiled expression
+	 */
+	public static CompiledExpression compileExpression(ByteBuffer utf8, ExpressionEnv env, CompileOptions options) {
+		if (utf8 == null) {
+			throw new ExpressionCompilationException(null, "Expression is null");
+		}
+		CharSequence chars = Utf8CharSequence.of(utf8, utf8.position(), utf8.remaining());
+		return Crunch.compileExpression(chars, 0, chars.length(), env, options);
+	}
+	
+	/**
+	 * Applies the optimizations and backend selected by a set of options to an expression which has already been
+	 * compiled, such as one built from a Value tree
+	 * @param compiled The expression, which should be evaluated as a tree
+	 * @param options The options controlling optimization and the backend
+	 * @return The optimized expression
+	 */
+	public static CompiledExpression applyOptions(CompiledExpression compiled, CompileOptions options) {
+		if (options.isSimplify()) {
+			compiled = Simplifier.simplify(compiled, options);
+		}
+		if (options.isEliminateCommonSubexpressions()) {
+			compiled = CommonSubexpressionEliminator.eliminate(compiled);
+		}
+		switch (options.getMode()) {
+			case BYTECODE:
+				return BytecodeCompiler.compile(compiled);
+			case PROGRAM:
+				return ProgramCompiler.compile(compiled);
+			case TREE:
+			default:
+				return compiled;
+		}
+	}
+	
+	/**
+	 * Compiles an expression to be evaluated in single precision, with float variables. Operations on literals are
+	 * evaluated in single precision as well, rather than folded while parsing.
+	 * @param expression The expression to compile
+	 * @param env The EvaluationEnvironment providing custom functions that can be used in the expression
+	 * @return The compiled expression
+	 */
+	public static FloatExpression compileFloatExpression(String expression, ExpressionEnv env) {
+		return new FloatExpression(parseUnfolded(expression, env));
+	}
+	
+	/**
+	 * Compiles an expression to be evaluated in integer arithmetic, with long or int variables. Operations on literals
+	 * are evaluated in integer arithmetic as well, so {@code 7 / 2} is 3.
+	 * @param expression The expression to compile
+	 * @param env The EvaluationEnvironment providing custom functions that can be used in the expression
+	 * @param overflow What to do when an operation overflows
+	 * @return The compiled expression
+	 * @throws ExpressionCompilationException If the expression uses an operator or literal which has no integer meaning
+	 */
+	public static LongExpression compileLongExpression(String expression, ExpressionEnv env, IntegerOverflow overflow) {
+		return new LongExpression(parseUnfolded(expression, env), overflow);
+	}
+	
+	private static CompiledExpression parseUnfolded(String expression, ExpressionEnv env) {
+		return new ExpressionParser(expression, 0, expression == null ? 0 : expression.length(), env, null, false).parse();
+	}
+	
+	/**
+	 * Sets the listener which receives measurements of compilation, evaluation and cache lookups. Metrics are off until
+	 * a listener is set. Only expressions compiled while a listener is set are measured, and they report to whichever
+	 * listener is set when they are evaluated. Expressions compiled without a listener are evaluated exactly as before,
+	 * with no overhead at all.
+	 * @param listener The listener, or null to stop collecting metrics
+	 */
+	public static void setMetricsListener(MetricsListener listener) {
+		metricsListener = listener;
+	}
+	
+	/**
+	 * @return The listener receiving measurements, or null if metrics are not being collected
+	 */
+	public static MetricsListener getMetricsListener() {
+		return metricsListener;
 	}
 	
 	/**
 	 * Compiles and evaluates an expression once. This is only for if you need a one-off evaluation of an expression
-	 * which will not be evaluated again. If the expression will be evaluated multiple times, use {@link Crunch#compileExpression(String)}
+	 * which will not be evaluated again. If the expression will be evaluated multiple times, use {@link Crunch#compileExpression(String)}.
+	 * Recently evaluated expressions are kept in a small {@link ExpressionCache}, so repeating the same expression does not reparse it.
 	 * @param expression The expression to evaluate
 	 * @param varValues The variable values for the expression
 	 * @return The value of the expression
 	 */
 	public static double evaluateExpression(String expression, double... varValues) {
-		return Crunch.compileExpression(expression).evaluate(varValues);
+		return EVALUATION_CACHE.compile(expression).evaluate(varValues);
 	}
 	
 }
@@ -0,0 +1,55 @@
+package redempt.crunch;
+
+import java.util.Arrays;
+
+/**
+ * Holds the mutable state used to evaluate a {@link CompiledExpression}, so that the expression itself can stay
+ * immutable and be shared between threads. A context is owned by its caller and must not be used by two threads at once,
+ * but any number of contexts can evaluate the same expression concurrently. Create one with {@link CompiledExpression#createContext()}.
+ * @author Redempt
+ */
+public class EvaluationContext {
+	
+	private final double[] variables;
+	
+	EvaluationContext(int variableCount) {
+		variables = new double[variableCount];
+	}
+	
+	/**
+	 * Sets the value of a variable
+	 * @param index The index of the variable, starting with 1 as in {@code $1}
+	 * @param value The value to set
+	 * @return This EvaluationContext
+	 */
+	public EvaluationContext setVariable(int index, double value) {
+		variables[index - 1] = value;
+		return this;
+	}
+	
+	/**
+	 * Sets the values of the first variables, in order starting with 1
+	 * @param values The values to set
+	 * @return This EvaluationContext
+	 */
+	public EvaluationContext setVariables(double... values) {
+		System.arraycopy(values, 0, variables, 0, values.length);
+		return this;
+	}
+	
+	/**
+	 * Gets the array backing the variable values of this context. It can be written to directly, with {@code $1} at index 0.
+	 * @return The variable values
+	 */
+	public double[] getVariables() {
+		return variables;
+	}
+	
+	/**
+	 * Sets all variable values back to 0
+	 */
+	public void reset() {
+		Arrays.fill(variables, 0);
+	}
+	
+}
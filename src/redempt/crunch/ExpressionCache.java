@@ -0,0 +1,227 @@
+package redempt.crunch;
+
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.metrics.MetricsListener;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, thread-safe cache of compiled expressions, keyed by the expression text, the {@link ExpressionEnv} it was
+ * compiled with (by identity and {@link ExpressionEnv#getModificationCount() modification count}) and the
+ * {@link CompileMode}. Entries are split across independently locked segments so that concurrent lookups rarely
+ * contend, and each segment holds an equal share of the maximum size. Eviction is only least recently used within a
+ * segment, so a full segment may evict an expression which was used more recently than those held by other segments.
+ * <p>
+ * Modifying an environment makes lookups with it miss expressions compiled before the modification, which stay cached
+ * until they are evicted or {@link #invalidateAll()} is called. Modifying the trees returned by the getters of an
+ * environment directly is not detected.
+ * @author Redempt
+ */
+public class ExpressionCache {
+
+	private static final int MAX_SEGMENTS = 16;
+
+	private final Segment[] segments;
+	private final int maximumSize;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Creates an ExpressionCache
+	 * @param maximumSize The maximum number of compiled expressions to hold
+	 */
+	public ExpressionCache(int maximumSize) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("Maximum size must be at least 1");
+		}
+		this.maximumSize = maximumSize;
+		int segmentCount = 1;
+		while (segmentCount < MAX_SEGMENTS && segmentCount * 32 <= maximumSize) {
+			segmentCount <<= 1;
+		}
+		segments = new Segment[segmentCount];
+		int remaining = maximumSize;
+		for (int i = 0; i < segmentCount; i++) {
+			int capacity = remaining / (segmentCount - i);
+			segments[i] = new Segment(capacity);
+			remaining -= capacity;
+		}
+	}
+
+	/**
+	 * Gets a cached expression compiled with the default environment, compiling and caching it if it is not present
+	 * @param expression The expression to compile
+	 * @return The compiled expression
+	 */
+	public CompiledExpression compile(String expression) {
+		return compile(expression, Crunch.DEFAULT_EVALUATION_ENVIRONMENT, CompileMode.TREE);
+	}
+
+	/**
+	 * Gets a cached expression, compiling and caching it if it is not present
+	 * @param expression The expression to compile
+	 * @param env The EvaluationEnvironment providing custom functions that can be used in the expression
+	 * @return The compiled expression
+	 */
+	public CompiledExpression compile(String expression, ExpressionEnv env) {
+		return compile(expression, env, CompileMode.TREE);
+	}
+
+	/**
+	 * Gets a cached expression, compiling and caching it if it is not present. Compilation happens outside of any lock,
+	 * so two threads missing on the same expression at once may both compile it, but only one result is kept.
+	 * @param expression The expression to compile
+	 * @param env The EvaluationEnvironment providing custom functions that can be used in the expression
+	 * @param mode The backend which will evaluate the expression
+	 * @return The compiled expression
+	 */
+	public CompiledExpression compile(String expression, ExpressionEnv env, CompileMode mode) {
+		Key key = new Key(expression, env, mode);
+		Segment segment = segmentFor(key);
+		CompiledExpression compiled;
+		synchronized (segment) {
+			compiled = segment.get(key);
+		}
+		MetricsListener listener = Crunch.getMetricsListener();
+		if (listener != null) {
+			listener.onCacheLookup(compiled != null);
+		}
+		if (compiled != null) {
+			hits.increment();
+			return compiled;
+		}
+		misses.increment();
+		compiled = Crunch.compileExpression(expression, env, mode);
+		synchronized (segment) {
+			CompiledExpression existing = segment.putIfAbsent(key, compiled);
+			return existing == null ? compiled : existing;
+		}
+	}
+
+	/**
+	 * Removes all cached expressions
+	 */
+	public void invalidateAll() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of expressions currently cached
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return The maximum number of expressions this cache will hold
+	 */
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * @return The number of lookups which found a cached expression
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return The number of lookups which had to compile the expression
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return The number of expressions removed to make room for others
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return The fraction of lookups which found a cached expression, or 1 if there have been no lookups
+	 */
+	public double getHitRate() {
+		long hitCount = hits.sum();
+		long total = hitCount + misses.sum();
+		return total == 0 ? 1 : (double) hitCount / total;
+	}
+
+	private Segment segmentFor(Key key) {
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return segments[hash & (segments.length - 1)];
+	}
+
+	private final class Segment extends LinkedHashMap<Key, CompiledExpression> {
+
+		private final int capacity;
+
+		private Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, CompiledExpression> eldest) {
+			if (size() > capacity) {
+				evictions.increment();
+				return true;
+			}
+			return false;
+		}
+
+	}
+
+	private static final class Key {
+
+		private final String expression;
+		private final ExpressionEnv env;
+		private final int modificationCount;
+		private final CompileMode mode;
+		private final int hash;
+
+		private Key(String expression, ExpressionEnv env, CompileMode mode) {
+			this.expression = expression;
+			this.env = env;
+			modificationCount = env == null ? 0 : env.getModificationCount();
+			this.mode = mode;
+			int hash = expression == null ? 0 : expression.hashCode();
+			hash = hash * 31 + System.identityHashCode(env);
+			hash = hash * 31 + modificationCount;
+			this.hash = hash * 31 + (mode == null ? 0 : mode.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return env == other.env && modificationCount == other.modificationCount && mode == other.mode && hash == other.hash
+					&& (expression == null ? other.expression == null : expression.equals(other.expression));
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+	}
+
+}
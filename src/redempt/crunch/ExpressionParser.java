@@ -7,27 +7,79 @@ import redempt.crunch.token.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
+/**
+ * Parses an expression in a single pass directly from a range of a CharSequence, without copying the input.
+ * Whitespace is skipped as it is reached, and nested parenthesis and function calls are tracked on an explicit
+ * stack of frames rather than by recursion, so the nesting depth is not limited by the thread's stack size.
+ * @author Redempt
+ */
 public class ExpressionParser {
 
-    private final String input;
+    private static final double[] NO_VALUES = new double[0];
+
+    private static final int TOP = 0;
+    private static final int GROUP = 1;
+    private static final int FUNCTION = 2;
+    private static final int FACTORY = 3;
+
+    private final CharSequence input;
+    private final int start;
+    private final int end;
     private final ExpressionEnv environment;
     private final CompiledExpression expression = new CompiledExpression();
+    private final List<Frame> frames = new ArrayList<>();
+    private final Map<Value, int[]> spans;
+    private final boolean foldConstants;
 
+    private int depth;
     private int maxVarIndex;
-    private int cursor = 0;
+    private int cursor;
 
     ExpressionParser(String input, ExpressionEnv env) {
+        this(input, 0, input == null ? 0 : input.length(), env);
+    }
+
+    ExpressionParser(CharSequence input, int start, int end, ExpressionEnv env) {
+        this(input, start, end, env, null);
+    }
+
+    /**
+     * Creates a parser which also records where each node of the parsed expression came from
+     * @param spans The map to put the start and end of the source of each node in, relative to the start of the
+     *              expression. Each use of a lazy variable is given its own LazyVariable, so it has its own span.
+     */
+    ExpressionParser(CharSequence input, int start, int end, ExpressionEnv env, Map<Value, int[]> spans) {
+        this(input, start, end, env, spans, true);
+    }
+
+    /**
+     * Creates a parser, choosing whether operations on literals are evaluated while parsing
+     * @param foldConstants Whether operations and pure function calls whose operands are all literals should be
+     *                      replaced with their result. Folding is done in double precision, so backends with other
+     *                      arithmetic turn it off to evaluate literals the same way as everything else. Without
+     *                      folding, {@code E} is always parsed as the scientific notation operator.
+     */
+    ExpressionParser(CharSequence input, int start, int end, ExpressionEnv env, Map<Value, int[]> spans, boolean foldConstants) {
         if (input == null) {
             throw new ExpressionCompilationException(null, "Expression is null");
         }
         if (env == null) {
             throw new ExpressionCompilationException(null, "Environment is null");
         }
+        if (start < 0 || end > input.length() || start > end) {
+            throw new IllegalArgumentException("Invalid range " + start + " to " + end + " for input of length " + input.length());
+        }
         maxVarIndex = env.getVariableCount() - 1;
-        this.input = input.replace(" ", "");
+        this.input = input;
+        this.start = start;
+        this.end = end;
+        this.cursor = start;
         this.environment = env;
+        this.spans = spans;
+        this.foldConstants = foldConstants;
     }
 
     public char peek() {
@@ -43,19 +95,45 @@ public class ExpressionParser {
     }
 
     public boolean isAtEnd() {
-        return cursor >= input.length();
+        return cursor >= end;
     }
 
+    /**
+     * @return The position of the cursor, relative to the start of the expression
+     */
     public int getCursor() {
-        return cursor;
+        return cursor - start;
     }
 
+    /**
+     * @param cursor The new position of the cursor, relative to the start of the expression
+     */
     public void setCursor(int cursor) {
-        this.cursor = cursor;
+        this.cursor = start + cursor;
     }
 
+    /**
+     * Gets a character of the expression without moving the cursor
+     * @param index The index of the character, relative to the start of the expression
+     * @return The character at the index
+     */
+    public char charAt(int index) {
+        return input.charAt(start + index);
+    }
+
+    /**
+     * @return The length of the expression being parsed
+     */
+    public int getLength() {
+        return end - start;
+    }
+
+    /**
+     * Copies the expression being parsed into a String. This allocates, so it should only be used for error reporting.
+     * @return The expression being parsed
+     */
     public String getInput() {
-        return input;
+        return input.subSequence(start, end).toString();
     }
 
     public void expectChar(char c) {
@@ -68,58 +146,60 @@ public class ExpressionParser {
         throw new ExpressionCompilationException(this, msg);
     }
 
-    private boolean whitespace() {
-        while (!isAtEnd() && Character.isWhitespace(peek())) {
+    private void whitespace() {
+        while (cursor < end && Character.isWhitespace(input.charAt(cursor))) {
             cursor++;
         }
-        return true;
     }
 
-    private Value parseExpression() {
-        if (isAtEnd()) {
-            error("Expected expression");
-        }
-        Value first = parseTerm();
-        if (isAtEnd() || peek() == ')' || peek() == ',') {
-            return first;
-        }
-        ShuntingYard tokens = new ShuntingYard();
-        tokens.addValue(first);
-        while (whitespace() && !isAtEnd() && peek() != ')' && peek() != ',') {
-            BinaryOperator token = environment.getBinaryOperators().getWith(this);
-            if (token == null) {
+    public CompiledExpression parse() {
+        pushFrame(TOP, null, cursor);
+        boolean expectTerm = true;
+        while (true) {
+            whitespace();
+            Frame frame = frames.get(depth - 1);
+            if (expectTerm) {
+                expectTerm = parseTerm(frame);
+                continue;
+            }
+            if (isAtEnd()) {
+                break;
+            }
+            char c = peek();
+            if (c == ')') {
+                closeFrame(frame);
+                continue;
+            }
+            if (c == ',') {
+                nextArgument(frame);
+                expectTerm = true;
+                continue;
+            }
+            BinaryOperator operator = environment.getBinaryOperators().getWith(this);
+            if (operator == null) {
                 error("Expected binary operator");
             }
-            tokens.addOperator(token);
-            whitespace();
-            tokens.addValue(parseTerm());
+            frame.addOperator(operator);
+            expectTerm = true;
         }
-        return tokens.finish();
-    }
-
-    private Value parseNestedExpression() {
-        expectChar('(');
-        whitespace();
-        Value expression = parseExpression();
-        expectChar(')');
+        if (depth > 1) {
+            error("Expected ')'");
+        }
+        Value value = frames.get(0).finish();
+        expression.initialize(value, maxVarIndex + 1);
         return expression;
     }
 
-    private Value parseAnonymousVariable() {
-        expectChar('$');
-        double value = parseLiteral().getValue(new double[0]);
-        if (value % 1 != 0) {
-            error("Decimal variable indices are not allowed");
-        }
-        if (value < 1) {
-            error("Zero and negative variable indices are not allowed");
+    /**
+     * Parses the start of a term. Terms which open a new frame leave the parser expecting a term inside it.
+     * @param frame The innermost frame
+     * @return Whether a term is still expected
+     */
+    private boolean parseTerm(Frame frame) {
+        if (isAtEnd()) {
+            error("Expected expression");
         }
-        int index = (int) value - 1;
-        maxVarIndex = Math.max(index, maxVarIndex);
-        return new Variable(index);
-    }
-
-    private Value parseTerm() {
+        int termStart = cursor;
         switch (peek()) {
             case '0':
             case '1':
@@ -132,133 +212,363 @@ public class ExpressionParser {
             case '8':
             case '9':
             case '.':
-                return parseLiteral();
+                completeTerm(frame, parseLiteral(frame.unaryCount == 0 && !frame.followsExponent()), termStart);
+                return false;
             case '(':
-                return parseNestedExpression();
+                advanceCursor();
+                pushFrame(GROUP, null, termStart);
+                return true;
             case '$':
-                return parseAnonymousVariable();
+                completeTerm(frame, parseAnonymousVariable(), termStart);
+                return false;
             case '\'':
-                return parseString();
+                completeTerm(frame, parseString(), termStart);
+                return false;
+            case ')':
+            case ',':
+                error("Expected expression");
+                break;
             default:
                 break; // Ignore
         }
 
         Token leadingOperator = environment.getLeadingOperators().getWith(this);
+        if (leadingOperator == ConditionalOperation.FACTORY && cursor < end && isNameChar(input.charAt(cursor))) {
+            // A name continues past "if", so it refers to a value like "ifx" rather than the conditional
+            cursor = termStart;
+            leadingOperator = null;
+        }
         if (leadingOperator != null) {
-            return parseLeadingOperation(leadingOperator);
+            return parseLeadingOperation(frame, leadingOperator, termStart);
         }
         Value term = environment.getValues().getWith(this);
         if (term == null) {
             error("Expected value");
         }
-        return term;
+        if (spans != null && term instanceof LazyVariable) {
+            LazyVariable variable = (LazyVariable) term;
+            term = new LazyVariable(variable.getName(), () -> variable.getValue(NO_VALUES));
+        }
+        completeTerm(frame, term, termStart);
+        return false;
     }
 
-    private StringValue parseString() {
-        // skip \"
-        advanceCursor();
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
 
-        // parse everything till we find another "
-        int start = cursor;
+    private boolean parseLeadingOperation(Frame frame, Token token, int termStart) {
+        switch (token.getType()) {
+            case UNARY_OPERATOR:
+                frame.pushUnary((UnaryOperator) token, termStart);
+                return true;
+            case FUNCTION:
+            case FUNCTION_FACTORY:
+                whitespace();
+                expectChar('(');
+                Frame call = pushFrame(token.getType() == TokenType.FUNCTION ? FUNCTION : FACTORY, token, termStart);
+                int argCount = call.kind == FUNCTION ? ((Function) token).getArgCount() : -1;
+                whitespace();
+                if (!isAtEnd() && peek() == ')') {
+                    if (argCount > 0) {
+                        error("Expected expression");
+                    }
+                    closeFrame(call);
+                    return false;
+                }
+                if (argCount == 0) {
+                    error("Expected ')'");
+                }
+                return true;
+        }
+        error("Expected leading operation");
+        return false;
+    }
 
-        while ('\'' != peek()) {
-            advanceCursor();
-            if (isAtEnd()) {
-                break;
+    /**
+     * Adds a completed term to a frame, applying any unary operators which were waiting for it
+     * @param termStart The position the term started at, including an opening parenthesis or function name
+     */
+    private void completeTerm(Frame frame, Value term, int termStart) {
+        int termEnd = cursor;
+        recordSpan(term, termStart, termEnd);
+        while (frame.unaryCount > 0) {
+            UnaryOperator op = frame.unary[--frame.unaryCount];
+            frame.unary[frame.unaryCount] = null;
+            if (foldConstants && op.isPure() && term.getType() == TokenType.LITERAL_VALUE) {
+                term = new LiteralValue(op.getOperation().applyAsDouble(term.getValue(NO_VALUES)));
+            } else {
+                term = UnaryOperation.create(op, term);
             }
+            termStart = frame.unaryStarts[frame.unaryCount];
+            recordSpan(term, termStart, termEnd);
         }
-        expectChar('\'');
+        frame.addValue(term, termStart, termEnd);
+    }
 
-        return new StringValue(input.substring(start, cursor));
+    /**
+     * Records the source of a node if spans are being recorded. A parenthesized node keeps the span of its contents.
+     */
+    private void recordSpan(Value value, int spanStart, int spanEnd) {
+        if (spans != null) {
+            spans.putIfAbsent(value, new int[] {spanStart - start, spanEnd - start});
+        }
     }
 
-    private LiteralValue parseLiteral() {
-        int start = cursor;
-        char c;
-        while (Character.isDigit(c = peek()) || c == '.') {
-            advanceCursor();
-            if (isAtEnd()) {
+    private void closeFrame(Frame frame) {
+        Value value;
+        switch (frame.kind) {
+            case GROUP:
+                value = frame.finish();
                 break;
-            }
+            case FUNCTION:
+                Function function = (Function) frame.token;
+                if (frame.hasTerm()) {
+                    frame.arguments.add(frame.finish());
+                }
+                if (frame.arguments.size() < function.getArgCount()) {
+                    error("Expected ','");
+                }
+                value = createCall(function, frame.takeArguments());
+                break;
+            case FACTORY:
+                if (frame.hasTerm()) {
+                    frame.arguments.add(frame.finish());
+                }
+                value = createCall((FunctionFactory) frame.token, new ArgumentList(frame.takeArguments()));
+                break;
+            default:
+                error("Dangling term");
+                return;
         }
-        return new LiteralValue(FastNumberParsing.parseDouble(input, start, cursor));
+        advanceCursor();
+        depth--;
+        completeTerm(frames.get(depth - 1), value, frame.start);
     }
 
-    private Value parseLeadingOperation(Token token) {
-        whitespace();
-        switch (token.getType()) {
-            case UNARY_OPERATOR:
-                UnaryOperator op = (UnaryOperator) token;
-                Value term = parseTerm();
-                if (op.isPure() && term.getType() == TokenType.LITERAL_VALUE) {
-                    return new LiteralValue(op.getOperation().applyAsDouble(term.getValue(new double[0])));
-                }
-                return new UnaryOperation(op, term);
+    private void nextArgument(Frame frame) {
+        switch (frame.kind) {
             case FUNCTION:
-                Function function = (Function) token;
-                ArgumentList args = parseArgumentList(function.getArgCount());
-                return new FunctionCall(function, args.getArguments());
+                if (frame.arguments.size() + 1 >= ((Function) frame.token).getArgCount()) {
+                    error("Expected ')'");
+                }
+                break;
+            case FACTORY:
+                break;
+            case GROUP:
+                error("Expected ')'");
+                break;
+            default:
+                error("Dangling term");
+        }
+        frame.arguments.add(frame.finish());
+        advanceCursor();
+    }
 
-            case FUNCTION_FACTORY:
-                FunctionFactory factory = (FunctionFactory) token;
-                args = parseAllArguments();
+    private Value createCall(Function function, Value[] args) {
+        if (foldConstants && function.isPure() && isConstant(args)) {
+            double[] values = new double[args.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = args[i].getValue(NO_VALUES);
+            }
+            return new LiteralValue(function.call(values));
+        }
+        return FunctionCall.create(function, args);
+    }
 
-                return Objects.requireNonNull(factory.create(args), String.format("Factory %s returned null function", factory));
+    private Value createCall(FunctionFactory factory, ArgumentList args) {
+        Value created = Objects.requireNonNull(factory.create(args), String.format("Factory %s returned null function", factory));
+        if (foldConstants && factory.isPure() && isConstant(args.getArguments())) {
+            return new LiteralValue(created.getValue(NO_VALUES));
         }
-        error("Expected leading operation");
-        return null;
+        return created;
+    }
+
+    private static boolean isConstant(Value[] args) {
+        for (Value arg : args) {
+            if (arg.getType() != TokenType.LITERAL_VALUE && arg.getType() != TokenType.STRING) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Value parseAnonymousVariable() {
+        expectChar('$');
+        int digitsStart = cursor;
+        long value = 0;
+        char c;
+        while (cursor < end && (c = input.charAt(cursor)) >= '0' && c <= '9') {
+            value = Math.min(value * 10 + (c - '0'), Integer.MAX_VALUE);
+            cursor++;
+        }
+        if (cursor < end && input.charAt(cursor) == '.') {
+            error("Decimal variable indices are not allowed");
+        }
+        if (cursor == digitsStart) {
+            error("Expected variable index");
+        }
+        if (value < 1) {
+            error("Zero and negative variable indices are not allowed");
+        }
+        int index = (int) value - 1;
+        maxVarIndex = Math.max(index, maxVarIndex);
+        return new Variable(index);
     }
 
-    private ArgumentList parseAllArguments() {
-        expectChar('(');
-        whitespace();
+    private StringValue parseString() {
+        // skip '
+        advanceCursor();
 
-        final List<Value> arguments = new ArrayList<>(2);
+        // parse everything till we find another '
+        int stringStart = cursor;
+        while (cursor < end && input.charAt(cursor) != '\'') {
+            cursor++;
+        }
+        int stringEnd = cursor;
+        expectChar('\'');
 
-        // Till we reach end of function
-        while (peek() != ')') {
-            Value value = parseExpression();
-            arguments.add(value);
+        return new StringValue(input.subSequence(stringStart, stringEnd).toString());
+    }
 
-            if (!isAtEnd() && peek() != ')') {
-                expectChar(',');
+    /**
+     * Parses a number
+     * @param readExponent Whether an exponent may be read as part of the number. This is only allowed when nothing
+     *                     binds the number more tightly than the scientific notation operator would, since otherwise
+     *                     reading the exponent first would change the result.
+     * @return The number
+     */
+    private LiteralValue parseLiteral(boolean readExponent) {
+        int literalStart = cursor;
+        char c;
+        while (cursor < end && ((c = input.charAt(cursor)) >= '0' && c <= '9' || c == '.')) {
+            cursor++;
+        }
+        // An exponent is only part of the literal if it is a whole number ending the literal, otherwise E is the
+        // scientific notation operator. Without folding, E is always the operator, so it follows the backend's arithmetic.
+        if (readExponent && cursor < end && ((c = input.charAt(cursor)) == 'e' || c == 'E' && foldConstants)) {
+            int exponentStart = cursor;
+            int digit = cursor + 1;
+            if (digit < end && ((c = input.charAt(digit)) == '-' || c == '+')) {
+                digit++;
+            }
+            if (digit < end && (c = input.charAt(digit)) >= '0' && c <= '9') {
+                cursor = digit;
+                while (cursor < end && (c = input.charAt(cursor)) >= '0' && c <= '9') {
+                    cursor++;
+                }
+                if (cursor < end && input.charAt(cursor) == '.') {
+                    cursor = exponentStart;
+                }
             }
         }
-        expectChar(')');
+        try {
+            return new LiteralValue(FastNumberParsing.parseDouble(input, literalStart, cursor));
+        } catch (NumberFormatException e) {
+            error(e.getMessage());
+            return null;
+        }
+    }
 
-        return new ArgumentList(arguments.toArray(new Value[0]));
+    private Frame pushFrame(int kind, Token token, int frameStart) {
+        if (depth == frames.size()) {
+            frames.add(new Frame(new ShuntingYard(spans == null ? null : this::recordSpan, foldConstants)));
+        }
+        Frame frame = frames.get(depth++);
+        frame.kind = kind;
+        frame.token = token;
+        frame.start = frameStart;
+        return frame;
     }
 
-    private ArgumentList parseArgumentList(int args) {
-        expectChar('(');
-        whitespace();
-        Value[] values = new Value[args];
-        if (args == 0) {
-            expectChar(')');
-            return new ArgumentList(new Value[0]);
+    /**
+     * The state of one level of nesting - the whole expression, a parenthesized group, or the arguments of a call.
+     * Frames are reused when the parser returns to the same depth.
+     */
+    private static final class Frame {
+
+        private final ShuntingYard yard;
+        private final List<Value> arguments = new ArrayList<>(4);
+        private UnaryOperator[] unary = new UnaryOperator[4];
+        private int[] unaryStarts = new int[4];
+        private int unaryCount;
+        private int kind;
+        private int start;
+        private Token token;
+        private Value first;
+        private BinaryOperator lastOperator;
+        private int firstStart;
+        private int firstEnd;
+        private boolean usingYard;
+
+        private Frame(ShuntingYard yard) {
+            this.yard = yard;
         }
-        values[0] = parseExpression();
-        whitespace();
-        for (int i = 1; i < args; i++) {
-            expectChar(',');
-            whitespace();
-            values[i] = parseExpression();
-            whitespace();
+
+        private void pushUnary(UnaryOperator operator, int operatorStart) {
+            if (unaryCount == unary.length) {
+                UnaryOperator[] grown = new UnaryOperator[unaryCount * 2];
+                System.arraycopy(unary, 0, grown, 0, unaryCount);
+                unary = grown;
+                int[] grownStarts = new int[unaryCount * 2];
+                System.arraycopy(unaryStarts, 0, grownStarts, 0, unaryCount);
+                unaryStarts = grownStarts;
+            }
+            unaryStarts[unaryCount] = operatorStart;
+            unary[unaryCount++] = operator;
         }
 
-        expectChar(')');
-        return new ArgumentList(values);
-    }
+        private void addValue(Value value, int valueStart, int valueEnd) {
+            if (usingYard) {
+                yard.addValue(value, valueStart, valueEnd);
+            } else {
+                first = value;
+                firstStart = valueStart;
+                firstEnd = valueEnd;
+            }
+        }
 
-    public CompiledExpression parse() {
-        whitespace();
-        Value value = parseExpression();
-        whitespace();
-        if (!isAtEnd()) {
-            error("Dangling term");
+        private void addOperator(BinaryOperator operator) {
+            if (!usingYard) {
+                yard.addValue(first, firstStart, firstEnd);
+                first = null;
+                usingYard = true;
+            }
+            yard.addOperator(operator);
+            lastOperator = operator;
         }
-        expression.initialize(value, maxVarIndex + 1);
-        return expression;
+
+        /**
+         * @return Whether the next term is the right operand of an operator with the priority of exponentiation
+         */
+        private boolean followsExponent() {
+            return lastOperator != null && lastOperator.getPriority() >= BinaryOperator.SCIENTIFIC_NOTATION.getPriority();
+        }
+
+        private boolean hasTerm() {
+            return usingYard || first != null;
+        }
+
+        private Value finish() {
+            Value value;
+            lastOperator = null;
+            if (usingYard) {
+                value = yard.finish();
+                usingYard = false;
+            } else {
+                value = first;
+                first = null;
+            }
+            return value;
+        }
+
+        private Value[] takeArguments() {
+            Value[] values = arguments.toArray(new Value[0]);
+            arguments.clear();
+            token = null;
+            return values;
+        }
+
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,160 @@
+package redempt.crunch;
+
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.ConditionalOperation;
+import redempt.crunch.token.LazyVariable;
+import redempt.crunch.token.Token;
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds which parts of an expression its evaluation time is spent in. The expression is parsed without optimization,
+ * and each operation, function call and lazy variable in it is wrapped in a node which counts every time it is
+ * evaluated and times one evaluation in every {@code sampleInterval}. The measurements are mapped back to the part of
+ * the expression string each node was parsed from in a {@link ProfileReport}.
+ * <p>
+ * Profiled expressions are much slower than compiled ones, so profiling is meant for finding what to optimize rather
+ * than for production use. A profiler can be evaluated from several threads at once, though its sampling is only
+ * approximate when it is.
+ * @author Redempt
+ */
+public final class ExpressionProfiler {
+
+	/**
+	 * Parses an expression for profiling with the default environment, timing one in every 16 evaluations of each node
+	 * @param expression The expression to profile
+	 * @return The profiler
+	 */
+	public static ExpressionProfiler profile(String expression) {
+		return profile(expression, Crunch.DEFAULT_EVALUATION_ENVIRONMENT);
+	}
+
+	/**
+	 * Parses an expression for profiling, timing one in every 16 evaluations of each node
+	 * @param expression The expression to profile
+	 * @param env The environment providing custom functions that can be used in the expression
+	 * @return The profiler
+	 */
+	public static ExpressionProfiler profile(String expression, ExpressionEnv env) {
+		return profile(expression, env, 16);
+	}
+
+	/**
+	 * Parses an expression for profiling
+	 * @param expression The expression to profile
+	 * @param env The environment providing custom functions that can be used in the expression
+	 * @param sampleInterval How many evaluations of each node there are for every one that is timed, where 1 times
+	 *                       every evaluation. Timing costs more than the simplest nodes, so smaller intervals skew the results.
+	 * @return The profiler
+	 */
+	public static ExpressionProfiler profile(String expression, ExpressionEnv env, int sampleInterval) {
+		if (sampleInterval < 1) {
+			throw new IllegalArgumentException("Sample interval must be at least 1");
+		}
+		Map<Value, int[]> spans = new IdentityHashMap<>();
+		CompiledExpression parsed = new ExpressionParser(expression, 0, expression == null ? 0 : expression.length(), env, spans).parse();
+		ExpressionProfiler profiler = new ExpressionProfiler(expression, spans, sampleInterval);
+		Value root = profiler.wrap(parsed.getValue(), profiler.roots);
+		profiler.expression = new CompiledExpression(root, parsed.getVariableCount(), parsed.getFrameSize());
+		return profiler;
+	}
+
+	private final String source;
+	private final Map<Value, int[]> spans;
+	private final int sampleInterval;
+	private final List<ProfiledValue> roots = new ArrayList<>(1);
+	private CompiledExpression expression;
+
+	private ExpressionProfiler(String source, Map<Value, int[]> spans, int sampleInterval) {
+		this.source = source;
+		this.spans = spans;
+		this.sampleInterval = sampleInterval;
+	}
+
+	/**
+	 * Rebuilds a node with profiled children, and wraps it if it does any work of its own
+	 * @param parent The list to add the profiled node to, which is how each profiled node finds its nearest profiled children
+	 */
+	private Value wrap(Value value, List<ProfiledValue> parent) {
+		String label;
+		List<ProfiledValue> children = new ArrayList<>(2);
+		Value rebuilt;
+		if (value instanceof BinaryOperation) {
+			BinaryOperation operation = (BinaryOperation) value;
+			Value[] operands = operation.getValues();
+			rebuilt = operation.withValues(wrap(operands[0], children), wrap(operands[1], children));
+			label = operation.getOperator().getSymbol();
+		} else if (value instanceof UnaryOperation) {
+			UnaryOperation operation = (UnaryOperation) value;
+			rebuilt = operation.withChild(wrap(operation.getChild(), children));
+			label = operation.getOperator().getSymbol();
+		} else if (value instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) value;
+			Value[] arguments = call.getArguments();
+			Value[] wrapped = new Value[arguments.length];
+			for (int i = 0; i < arguments.length; i++) {
+				wrapped[i] = wrap(arguments[i], children);
+			}
+			rebuilt = FunctionCall.create(call.getFunction(), wrapped);
+			label = call.getFunction().getName();
+		} else if (value instanceof ConditionalOperation) {
+			ConditionalOperation conditional = (ConditionalOperation) value;
+			rebuilt = conditional.withValues(wrap(conditional.getCondition(), children),
+					wrap(conditional.getIfTrue(), children), wrap(conditional.getIfFalse(), children));
+			label = "if";
+		} else if (value instanceof LazyVariable) {
+			rebuilt = value;
+			label = ((LazyVariable) value).getName();
+		} else if (isLeaf(value)) {
+			return value;
+		} else {
+			// Values created by function factories can't be looked into, so they are timed as a whole
+			rebuilt = value;
+			label = value.toString();
+		}
+		int[] span = spans.get(value);
+		int start = span == null ? 0 : span[0];
+		int end = span == null ? source.length() : span[1];
+		ProfiledValue profiled = new ProfiledValue(rebuilt, label, start, end, children, sampleInterval);
+		parent.add(profiled);
+		return profiled;
+	}
+
+	private static boolean isLeaf(Token token) {
+		TokenType type = token.getType();
+		return type == TokenType.LITERAL_VALUE || type == TokenType.VARIABLE || type == TokenType.STRING;
+	}
+
+	/**
+	 * @return The profiled expression, which records measurements every time it is evaluated
+	 */
+	public CompiledExpression getExpression() {
+		return expression;
+	}
+
+	/**
+	 * Creates a report of the measurements recorded so far
+	 * @return The report
+	 */
+	public ProfileReport getReport() {
+		return new ProfileReport(source, roots.isEmpty() ? null : roots.get(0).snapshot(source));
+	}
+
+	/**
+	 * Removes all recorded measurements
+	 */
+	public void reset() {
+		for (ProfiledValue root : roots) {
+			root.reset();
+		}
+	}
+
+}
@@ -0,0 +1,256 @@
+package redempt.crunch;
+
+import redempt.crunch.exceptions.ExpressionCompilationException;
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.metrics.MetricsListener;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.ConditionalOperation;
+import redempt.crunch.token.FusedMultiplyAddOperation;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Wraps an expression compiled while a {@link MetricsListener} was set, measuring every evaluation and reporting it to
+ * the current listener. Expressions compiled without a listener are never wrapped, so they pay nothing for metrics.
+ * If the listener is removed later, a wrapped expression only checks for it before delegating.
+ * @author Redempt
+ */
+final class InstrumentedExpression extends CompiledExpression {
+
+	private static final Value[] NO_CHILDREN = new Value[0];
+
+	/**
+	 * Compiles an expression, reporting the time taken and the size of the parsed expression to a listener
+	 * @param expression The characters holding the expression to compile
+	 * @param start The index of the first character of the expression, inclusive
+	 * @param end The index of the last character of the expression, exclusive
+	 * @param env The EvaluationEnvironment providing custom functions that can be used in the expression
+	 * @param options The options controlling optimization and the backend, or null to evaluate the parsed tree
+	 * @param listener The listener to report to
+	 * @return The instrumented expression
+	 */
+	static CompiledExpression compile(CharSequence expression, int start, int end, ExpressionEnv env, CompileOptions options, MetricsListener listener) {
+		long startTime = System.nanoTime();
+		CompiledExpression compiled;
+		int[] size = new int[2];
+		try {
+			compiled = new ExpressionParser(expression, start, end, env).parse();
+			measure(compiled.getValue(), size);
+			if (options != null) {
+				compiled = Crunch.applyOptions(compiled, options);
+			}
+		} catch (ExpressionCompilationException e) {
+			listener.onCompileFailure(expression == null ? null : expression.subSequence(start, end).toString(), System.nanoTime() - startTime, e);
+			throw e;
+		}
+		long nanos = System.nanoTime() - startTime;
+		String source = expression.subSequence(start, end).toString();
+		listener.onCompile(source, nanos, size[0], size[1]);
+		return new InstrumentedExpression(compiled, source);
+	}
+
+	/**
+	 * Counts the nodes of a Value tree and finds its depth, without recursion so that deep trees can be measured
+	 * @param size The node count and depth, which are updated
+	 */
+	private static void measure(Value root, int[] size) {
+		Deque<Value> values = new ArrayDeque<>();
+		Deque<Integer> depths = new ArrayDeque<>();
+		values.push(root);
+		depths.push(1);
+		while (!values.isEmpty()) {
+			Value value = values.pop();
+			int depth = depths.pop();
+			size[0]++;
+			size[1] = Math.max(size[1], depth);
+			for (Value child : children(value)) {
+				values.push(child);
+				depths.push(depth + 1);
+			}
+		}
+	}
+
+	private static Value[] children(Value value) {
+		if (value instanceof FusedMultiplyAddOperation) {
+			return ((FusedMultiplyAddOperation) value).getOperands();
+		}
+		if (value instanceof BinaryOperation) {
+			return ((BinaryOperation) value).getValues();
+		}
+		if (value instanceof UnaryOperation) {
+			return new Value[] {((UnaryOperation) value).getChild()};
+		}
+		if (value instanceof FunctionCall) {
+			return ((FunctionCall) value).getArguments();
+		}
+		if (value instanceof ConditionalOperation) {
+			ConditionalOperation conditional = (ConditionalOperation) value;
+			return new Value[] {conditional.getCondition(), conditional.getIfTrue(), conditional.getIfFalse()};
+		}
+		if (value instanceof SharedValue) {
+			return new Value[] {((SharedValue) value).getChild()};
+		}
+		return NO_CHILDREN;
+	}
+
+	private final CompiledExpression delegate;
+	private final String source;
+
+	private InstrumentedExpression(CompiledExpression delegate, String source) {
+		super(delegate.getValue(), delegate.getVariableCount(), delegate.getFrameSize());
+		this.delegate = delegate;
+		this.source = source;
+	}
+
+	@Override
+	public double evaluate(double... values) {
+		MetricsListener listener = Crunch.getMetricsListener();
+		if (listener == null) {
+			return delegate.evaluate(values);
+		}
+		long start = System.nanoTime();
+		double result;
+		try {
+			result = delegate.evaluate(values);
+		} catch (RuntimeException e) {
+			throw failed(listener, start, e);
+		}
+		listener.onEvaluate(source, System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public double evaluate(EvaluationContext context) {
+		MetricsListener listener = Crunch.getMetricsListener();
+		if (listener == null) {
+			return delegate.evaluate(context);
+		}
+		long start = System.nanoTime();
+		double result;
+		try {
+			result = delegate.evaluate(context);
+		} catch (RuntimeException e) {
+			throw failed(listener, start, e);
+		}
+		listener.onEvaluate(source, System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public double evaluate() {
+		MetricsListener listener = Crunch.getMetricsListener();
+		if (listener == null) {
+			return delegate.evaluate();
+		}
+		long start = System.nanoTime();
+		double result;
+		try {
+			result = delegate.evaluate();
+		} catch (RuntimeException e) {
+			throw failed(listener, start, e);
+		}
+		listener.onEvaluate(source, System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public double evaluate(double first) {
+		MetricsListener listener = Crunch.getMetricsListener();
+		if (listener == null) {
+			return delegate.evaluate(first);
+		}
+		long start = System.nanoTime();
+		double result;
+		try {
+			result = delegate.evaluate(first);
+		} catch (RuntimeException e) {
+			throw failed(listener, start, e);
+		}
+		listener.onEvaluate(source, System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public double evaluate(double first, double second) {
+		MetricsListener listener = Crunch.getMetricsListener();
+		if (listener == null) {
+			return delegate.evaluate(first, second);
+		}
+		long start = System.nanoTime();
+		double result;
+		try {
+			result = delegate.evaluate(first, second);
+		} catch (RuntimeException e) {
+			throw failed(listener, start, e);
+		}
+		listener.onEvaluate(source, System.nanoTime() - start);
+		return result;
+	}
+
+	@Override
+	public void evaluateBatch(double[][] columns, int rowCount, double[] out) {
+		batch(rowCount, () -> delegate.evaluateBatch(columns, rowCount, out));
+	}
+
+	@Override
+	public void evaluateBatch(double[][] columns, int start, int end, double[] out) {
+		batch(end - start, () -> delegate.evaluateBatch(columns, start, end, out));
+	}
+
+	@Override
+	public void evaluateBatch(double[] rows, int stride, int rowCount, double[] out) {
+		batch(rowCount, () -> delegate.evaluateBatch(rows, stride, rowCount, out));
+	}
+
+	@Override
+	public void evaluateParallel(double[][] columns, int rowCount, double[] out, ForkJoinPool pool) {
+		batch(rowCount, () -> delegate.evaluateParallel(columns, rowCount, out, pool));
+	}
+
+	@Override
+	public void evaluateParallel(double[] rows, int stride, int rowCount, double[] out, ForkJoinPool pool) {
+		batch(rowCount, () -> delegate.evaluateParallel(rows, stride, rowCount, out, pool));
+	}
+
+	private void batch(int rowCount, Runnable evaluation) {
+		MetricsListener listener = Crunch.getMetricsListener();
+		if (listener == null) {
+			evaluation.run();
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			evaluation.run();
+		} catch (RuntimeException e) {
+			throw failed(listener, start, e);
+		}
+		listener.onBatchEvaluate(source, rowCount, System.nanoTime() - start);
+	}
+
+	private RuntimeException failed(MetricsListener listener, long start, RuntimeException exception) {
+		listener.onEvaluationFailure(source, System.nanoTime() - start, exception);
+		return exception;
+	}
+
+	@Override
+	public EvaluationContext createContext() {
+		return delegate.createContext();
+	}
+
+	@Override
+	public CompiledExpression clone() {
+		return new InstrumentedExpression(delegate.clone(), source);
+	}
+
+	@Override
+	public String toString() {
+		return delegate.toString();
+	}
+
+}
@@ -0,0 +1,75 @@
+package redempt.crunch;
+
+import redempt.crunch.token.Value;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates a range of rows by splitting it in half until each piece is small enough, then evaluating each piece
+ * with its own {@link ColumnEvaluator}, so no evaluation state is shared between workers. Results are written
+ * directly into the shared output array, at disjoint indices.
+ * @author Redempt
+ */
+final class ParallelEvaluationTask extends RecursiveAction {
+	
+	private final Value value;
+	private final int variableCount;
+	private final int frameSize;
+	private final double[][] columns;
+	private final double[] rows;
+	private final int stride;
+	private final double[] out;
+	private final int start;
+	private final int end;
+	private final int threshold;
+	
+	private ParallelEvaluationTask(Value value, int variableCount, int frameSize, double[][] columns, double[] rows, int stride,
+	                               double[] out, int start, int end, int threshold) {
+		this.value = value;
+		this.variableCount = variableCount;
+		this.frameSize = frameSize;
+		this.columns = columns;
+		this.rows = rows;
+		this.stride = stride;
+		this.out = out;
+		this.start = start;
+		this.end = end;
+		this.threshold = threshold;
+	}
+	
+	static ParallelEvaluationTask forColumns(Value value, int variableCount, int frameSize, double[][] columns, int rowCount, double[] out, int parallelism) {
+		return new ParallelEvaluationTask(value, variableCount, frameSize, columns, null, 0, out, 0, rowCount, threshold(rowCount, parallelism));
+	}
+	
+	static ParallelEvaluationTask forRows(Value value, int variableCount, int frameSize, double[] rows, int stride, int rowCount, double[] out, int parallelism) {
+		return new ParallelEvaluationTask(value, variableCount, frameSize, null, rows, stride, out, 0, rowCount, threshold(rowCount, parallelism));
+	}
+	
+	/**
+	 * Picks a task size giving each worker several tasks to balance load, without making tasks so small that
+	 * allocating the buffers for each one becomes significant
+	 */
+	private static int threshold(int rowCount, int parallelism) {
+		return Math.max(ColumnEvaluator.CHUNK_SIZE * 16, rowCount / (parallelism * 8));
+	}
+	
+	@Override
+	protected void compute() {
+		if (end - start <= threshold) {
+			ColumnEvaluator evaluator = new ColumnEvaluator(value, variableCount, frameSize);
+			if (columns != null) {
+				evaluator.evaluateColumns(columns, start, end, out);
+			} else {
+				evaluator.evaluateRows(rows, stride, start, end, out);
+			}
+			return;
+		}
+		// Split on a chunk boundary so that no chunk is cut short in the middle of the range
+		int middle = start + (end - start) / 2 / ColumnEvaluator.CHUNK_SIZE * ColumnEvaluator.CHUNK_SIZE;
+		invokeAll(
+				new ParallelEvaluationTask(value, variableCount, frameSize, columns, rows, stride, out, start, middle, threshold),
+				new ParallelEvaluationTask(value, variableCount, frameSize, columns, rows, stride, out, middle, end, threshold)
+		);
+	}
+	
+}
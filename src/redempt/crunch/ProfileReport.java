@@ -0,0 +1,234 @@
+package redempt.crunch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The measurements recorded by an {@link ExpressionProfiler}, as a tree of the profiled nodes of the expression. Times
+ * are estimated from the sampled evaluations of each node, scaled up to all of its evaluations. The self time of a node
+ * is its total time minus the total time of its profiled children, so for a function call it is the time spent in the
+ * function itself, and it includes the cost of evaluating any literals and variables directly beneath it.
+ * @author Redempt
+ */
+public final class ProfileReport {
+
+	private final String source;
+	private final Node root;
+
+	ProfileReport(String source, Node root) {
+		this.source = source;
+		this.root = root;
+	}
+
+	/**
+	 * @return The expression which was profiled
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * @return The node of the whole expression, or null if the expression has nothing to profile, such as a single variable
+	 */
+	public Node getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return Every profiled node, each before its children
+	 */
+	public List<Node> getNodes() {
+		List<Node> nodes = new ArrayList<>();
+		if (root == null) {
+			return nodes;
+		}
+		Deque<Node> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Node node = stack.pop();
+			nodes.add(node);
+			for (int i = node.children.size() - 1; i >= 0; i--) {
+				stack.push(node.children.get(i));
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * Gets the nodes which took the most time on their own, not counting their profiled children
+	 * @param limit The maximum number of nodes to return
+	 * @return The nodes, most self time first
+	 */
+	public List<Node> getHotSpots(int limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException("Limit cannot be negative");
+		}
+		List<Node> nodes = getNodes();
+		nodes.sort((a, b) -> Long.compare(b.selfNanos, a.selfNanos));
+		return Collections.unmodifiableList(new ArrayList<>(nodes.subList(0, Math.min(limit, nodes.size()))));
+	}
+
+	/**
+	 * Adds up the self time of the nodes with each label, such as every use of one function or operator
+	 * @return The self time in nanoseconds by label, most first
+	 */
+	public Map<String, Long> getSelfNanosByLabel() {
+		Map<String, Long> totals = new LinkedHashMap<>();
+		for (Node node : getNodes()) {
+			totals.merge(node.label, node.selfNanos, Long::sum);
+		}
+		List<Map.Entry<String, Long>> entries = new ArrayList<>(totals.entrySet());
+		entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+		Map<String, Long> sorted = new LinkedHashMap<>();
+		for (Map.Entry<String, Long> entry : entries) {
+			sorted.put(entry.getKey(), entry.getValue());
+		}
+		return Collections.unmodifiableMap(sorted);
+	}
+
+	/**
+	 * Writes the report in the folded stack format read by flame graph tools. Each line is the path of frames from the
+	 * root to a node separated by semicolons, followed by the self time of the node in nanoseconds. A frame is the source
+	 * of its node followed by its position in the expression.
+	 * @return The folded stacks
+	 */
+	public String toFoldedStacks() {
+		StringBuilder builder = new StringBuilder();
+		if (root != null) {
+			appendFolded(builder, root, new StringBuilder());
+		}
+		return builder.toString();
+	}
+
+	private static void appendFolded(StringBuilder builder, Node node, StringBuilder path) {
+		int length = path.length();
+		if (length != 0) {
+			path.append(';');
+		}
+		// Semicolons separate frames, so they can't appear in one
+		path.append(node.getSource().replace(';', ',')).append(" [").append(node.start).append('-').append(node.end).append(']');
+		if (node.selfNanos > 0) {
+			builder.append(path).append(' ').append(node.selfNanos).append('\n');
+		}
+		for (Node child : node.children) {
+			appendFolded(builder, child, path);
+		}
+		path.setLength(length);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("Profile of ").append(source).append('\n');
+		if (root != null) {
+			appendTree(builder, root, 0, Math.max(1, root.totalNanos));
+		}
+		return builder.toString();
+	}
+
+	private static void appendTree(StringBuilder builder, Node node, int depth, long rootNanos) {
+		for (int i = 0; i < depth; i++) {
+			builder.append("  ");
+		}
+		builder.append(node.getSource()).append(" [").append(node.start).append('-').append(node.end).append("] ")
+				.append(String.format("total=%.1f%% self=%.1f%% calls=%d", node.totalNanos * 100d / rootNanos,
+						node.selfNanos * 100d / rootNanos, node.invocations)).append('\n');
+		for (Node child : node.children) {
+			appendTree(builder, child, depth + 1, rootNanos);
+		}
+	}
+
+	/**
+	 * The measurements of one profiled node of an expression
+	 * @author Redempt
+	 */
+	public static final class Node {
+
+		private final String expression;
+		private final String label;
+		private final int start;
+		private final int end;
+		private final long invocations;
+		private final long totalNanos;
+		private final long selfNanos;
+		private final List<Node> children;
+
+		Node(String expression, String label, int start, int end, long invocations, long totalNanos, long selfNanos, List<Node> children) {
+			this.expression = expression;
+			this.label = label;
+			this.start = start;
+			this.end = end;
+			this.invocations = invocations;
+			this.totalNanos = totalNanos;
+			this.selfNanos = selfNanos;
+			this.children = Collections.unmodifiableList(children);
+		}
+
+		/**
+		 * @return The index of the first character of this node in the expression, inclusive
+		 */
+		public int getStart() {
+			return start;
+		}
+
+		/**
+		 * @return The index of the last character of this node in the expression, exclusive
+		 */
+		public int getEnd() {
+			return end;
+		}
+
+		/**
+		 * @return The part of the expression this node was parsed from
+		 */
+		public String getSource() {
+			return expression.substring(start, end);
+		}
+
+		/**
+		 * @return The operator symbol, function name or lazy variable name of this node
+		 */
+		public String getLabel() {
+			return label;
+		}
+
+		/**
+		 * @return The number of times this node was evaluated
+		 */
+		public long getInvocations() {
+			return invocations;
+		}
+
+		/**
+		 * @return The estimated time spent evaluating this node and everything beneath it, in nanoseconds
+		 */
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+
+		/**
+		 * @return The estimated time spent evaluating this node, not counting its profiled children, in nanoseconds
+		 */
+		public long getSelfNanos() {
+			return selfNanos;
+		}
+
+		/**
+		 * @return The profiled nodes directly beneath this one
+		 */
+		public List<Node> getChildren() {
+			return children;
+		}
+
+		@Override
+		public String toString() {
+			return label + " " + getSource() + " [" + start + "-" + end + "]";
+		}
+
+	}
+
+}
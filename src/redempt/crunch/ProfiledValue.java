@@ -0,0 +1,95 @@
+package redempt.crunch;
+
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wraps a node of an expression being profiled, counting its evaluations and timing one in every few of them
+ * @author Redempt
+ */
+final class ProfiledValue implements Value {
+
+	private final Value value;
+	private final String label;
+	private final int start;
+	private final int end;
+	private final List<ProfiledValue> children;
+	private final int interval;
+	private final LongAdder invocations = new LongAdder();
+	private final LongAdder sampledNanos = new LongAdder();
+	private final LongAdder samples = new LongAdder();
+	// Not atomic, since losing a tick to a race only moves the next sample
+	private int tick;
+
+	ProfiledValue(Value value, String label, int start, int end, List<ProfiledValue> children, int interval) {
+		this.value = value;
+		this.label = label;
+		this.start = start;
+		this.end = end;
+		this.children = children;
+		this.interval = interval;
+	}
+
+	@Override
+	public double getValue(double[] variableValues) {
+		invocations.increment();
+		if (++tick < interval) {
+			return value.getValue(variableValues);
+		}
+		tick = 0;
+		long startTime = System.nanoTime();
+		double result = value.getValue(variableValues);
+		sampledNanos.add(System.nanoTime() - startTime);
+		samples.increment();
+		return result;
+	}
+
+	@Override
+	public TokenType getType() {
+		return value.getType();
+	}
+
+	@Override
+	public Value getClone() {
+		return this;
+	}
+
+	/**
+	 * Creates a report node from the measurements recorded so far by this node and its children
+	 * @param source The source of the expression being profiled
+	 * @return The report node
+	 */
+	ProfileReport.Node snapshot(String source) {
+		List<ProfileReport.Node> childNodes = new ArrayList<>(children.size());
+		long childNanos = 0;
+		for (ProfiledValue child : children) {
+			ProfileReport.Node node = child.snapshot(source);
+			childNanos += node.getTotalNanos();
+			childNodes.add(node);
+		}
+		long count = invocations.sum();
+		long sampleCount = samples.sum();
+		long total = sampleCount == 0 ? 0 : (long) ((double) sampledNanos.sum() * count / sampleCount);
+		return new ProfileReport.Node(source, label, start, end, count, total, Math.max(0, total - childNanos), childNodes);
+	}
+
+	void reset() {
+		invocations.reset();
+		sampledNanos.reset();
+		samples.reset();
+		tick = 0;
+		for (ProfiledValue child : children) {
+			child.reset();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return value.toString();
+	}
+
+}
@@ -7,8 +7,32 @@ import java.util.Deque;
 
 public class ShuntingYard {
 
+    private static final double[] NO_VALUES = new double[0];
+
     private final Deque<BinaryOperator> operators = new ArrayDeque<>();
     private final Deque<Value> stack = new ArrayDeque<>();
+    private final SpanRecorder spans;
+    private final boolean foldConstants;
+    private int[] starts;
+    private int[] ends;
+
+    public ShuntingYard() {
+        this(null, true);
+    }
+
+    /**
+     * Creates a ShuntingYard which can keep track of where each value came from in the source
+     * @param spans The recorder to pass the span of each operation it creates to, or null to not track spans
+     * @param foldConstants Whether operations on two literals should be replaced with their result
+     */
+    ShuntingYard(SpanRecorder spans, boolean foldConstants) {
+        this.spans = spans;
+        this.foldConstants = foldConstants;
+        if (spans != null) {
+            starts = new int[8];
+            ends = new int[8];
+        }
+    }
 
     public void addOperator(BinaryOperator operator) {
         while (!operators.isEmpty() && operator.getPriority() <= operators.getLast().getPriority()) {
@@ -18,18 +42,46 @@ public class ShuntingYard {
     }
 
     public void addValue(Value value) {
+        addValue(value, 0, 0);
+    }
+
+    void addValue(Value value, int start, int end) {
+        if (spans != null) {
+            pushSpan(start, end);
+        }
         stack.add(value);
     }
 
+    private void pushSpan(int start, int end) {
+        int index = stack.size();
+        if (index == starts.length) {
+            int[] grownStarts = new int[index * 2];
+            int[] grownEnds = new int[index * 2];
+            System.arraycopy(starts, 0, grownStarts, 0, index);
+            System.arraycopy(ends, 0, grownEnds, 0, index);
+            starts = grownStarts;
+            ends = grownEnds;
+        }
+        starts[index] = start;
+        ends[index] = end;
+    }
+
     private void createOperation() {
         BinaryOperator op = operators.removeLast();
         Value right = stack.removeLast();
         Value left = stack.removeLast();
-        if (right.getType() == TokenType.LITERAL_VALUE && left.getType() == TokenType.LITERAL_VALUE) {
-            stack.add(new LiteralValue(op.getOperation().applyAsDouble(left.getValue(new double[0]), right.getValue(new double[0]))));
+        Value value;
+        if (foldConstants && right.getType() == TokenType.LITERAL_VALUE && left.getType() == TokenType.LITERAL_VALUE) {
+            value = new LiteralValue(op.getOperation().applyAsDouble(left.getValue(NO_VALUES), right.getValue(NO_VALUES)));
         } else {
-            stack.add(new BinaryOperation(op, left, right));
+            value = BinaryOperation.create(op, left, right);
         }
+        if (spans != null) {
+            int index = stack.size();
+            ends[index] = ends[index + 1];
+            spans.record(value, starts[index], ends[index]);
+        }
+        stack.add(value);
     }
 
     public Value finish() {
@@ -39,4 +91,13 @@ public class ShuntingYard {
         return stack.removeLast();
     }
 
+    /**
+     * Receives the source span of each value created from an operation
+     */
+    interface SpanRecorder {
+
+        void record(Value value, int start, int end);
+
+    }
+
 }
@@ -0,0 +1,74 @@
+package redempt.crunch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A CharSequence view of a range of UTF-8 bytes which contains only ASCII characters, so each byte is one char.
+ * The bytes are read in place with absolute gets, so neither the bytes nor the position of the buffer are touched.
+ * @author Redempt
+ */
+final class Utf8CharSequence implements CharSequence {
+
+	/**
+	 * Creates a CharSequence over a range of UTF-8 bytes. ASCII input is wrapped without copying, while input containing
+	 * any multi-byte characters is decoded into a String.
+	 * @param buffer The buffer holding the bytes
+	 * @param offset The absolute index of the first byte
+	 * @param length The number of bytes
+	 * @return A CharSequence of the decoded characters
+	 */
+	static CharSequence of(ByteBuffer buffer, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (buffer.get(i) < 0) {
+				byte[] bytes = new byte[length];
+				for (int j = 0; j < length; j++) {
+					bytes[j] = buffer.get(offset + j);
+				}
+				return new String(bytes, StandardCharsets.UTF_8);
+			}
+		}
+		return new Utf8CharSequence(buffer, offset, length);
+	}
+
+	private final ByteBuffer buffer;
+	private final int offset;
+	private final int length;
+
+	private Utf8CharSequence(ByteBuffer buffer, int offset, int length) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+		}
+		return (char) buffer.get(offset + index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > length || start > end) {
+			throw new IndexOutOfBoundsException("Range " + start + " to " + end + " out of bounds for length " + length);
+		}
+		return new Utf8CharSequence(buffer, offset + start, end - start);
+	}
+
+	@Override
+	public String toString() {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) buffer.get(offset + i);
+		}
+		return new String(chars);
+	}
+
+}
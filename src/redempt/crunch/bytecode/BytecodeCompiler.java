@@ -0,0 +1,466 @@
+package redempt.crunch.bytecode;
+
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Variable;
+import redempt.crunch.bytecode.CodeBuffer.CodeTooLargeException;
+import redempt.crunch.bytecode.CodeBuffer.Label;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.ConditionalOperation;
+import redempt.crunch.token.Constant;
+import redempt.crunch.token.FusedMultiplyAddOperation;
+import redempt.crunch.token.IntegerPowerOperation;
+import redempt.crunch.token.LazyVariable;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.SharedValueReference;
+import redempt.crunch.token.ShortCircuitOperation;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static redempt.crunch.bytecode.CodeBuffer.*;
+
+/**
+ * Compiles a Value tree into a generated class whose {@link Value#getValue(double[])} evaluates the whole expression
+ * as straight-line arithmetic, with constants inlined, variables loaded directly from the variable array and
+ * functions called directly. This removes the per-node interface dispatch of the tree interpreter.
+ * @author Redempt
+ */
+public final class BytecodeCompiler {
+
+	private static final String VALUE = "redempt/crunch/token/Value";
+	private static final String GENERATED_VALUE = "redempt/crunch/bytecode/GeneratedValue";
+	private static final String FUNCTION = "redempt/crunch/functional/Function";
+	private static final String LAZY_VARIABLE = "redempt/crunch/token/LazyVariable";
+	private static final String DOUBLE_UNARY_OPERATOR = "java/util/function/DoubleUnaryOperator";
+	private static final String DOUBLE_BINARY_OPERATOR = "java/util/function/DoubleBinaryOperator";
+	private static final String DOUBLE_TERNARY_OPERATOR = "redempt/crunch/functional/DoubleTernaryOperator";
+	private static final String DOUBLE_QUATERNARY_OPERATOR = "redempt/crunch/functional/DoubleQuaternaryOperator";
+	private static final String MATH = "java/lang/Math";
+	private static final String INTEGER_POWER_OPERATION = "redempt/crunch/token/IntegerPowerOperation";
+	private static final String CLASS_PREFIX = "redempt/crunch/bytecode/generated/Expression";
+	private static final double[] NO_VALUES = new double[0];
+
+	private static final AtomicInteger classCounter = new AtomicInteger();
+
+	/**
+	 * Compiles the Value of a CompiledExpression to bytecode
+	 * @param expression The expression to compile
+	 * @return A CompiledExpression evaluated by generated bytecode, or the same expression if it could not be compiled
+	 */
+	public static CompiledExpression compile(CompiledExpression expression) {
+		Value value = compile(expression.getValue());
+		if (value == expression.getValue()) {
+			return expression;
+		}
+		return new CompiledExpression(value, expression.getVariableCount());
+	}
+
+	/**
+	 * Compiles a Value tree to bytecode. Literals and plain variables are returned as-is, since there is nothing to gain,
+	 * as are trees too large to fit in a single method.
+	 * @param value The Value tree to compile
+	 * @return The generated Value, or the original Value if it was not compiled
+	 */
+	public static Value compile(Value value) {
+		if (value instanceof LiteralValue || value instanceof Constant || value instanceof Variable || value instanceof GeneratedValue) {
+			return value;
+		}
+		try {
+			return new BytecodeCompiler(value).generate();
+		} catch (CodeTooLargeException e) {
+			return value;
+		}
+	}
+
+	private final Value source;
+	private final String className;
+	private final ClassFileWriter writer;
+	private final CodeBuffer code = new CodeBuffer(2);
+	private final List<Object> references = new ArrayList<>();
+	private final List<String> referenceTypes = new ArrayList<>();
+	private final Map<Object, Integer> referenceIndices = new IdentityHashMap<>();
+	private final Map<Integer, Integer> sharedLocals = new HashMap<>();
+
+	private BytecodeCompiler(Value source) {
+		this.source = source;
+		className = CLASS_PREFIX + classCounter.incrementAndGet();
+		writer = new ClassFileWriter(className, GENERATED_VALUE);
+	}
+
+	private GeneratedValue generate() {
+		emit(source);
+		code.op(DRETURN, -2);
+		writer.addMethod(ClassFileWriter.ACC_PUBLIC, "getValue", "([D)D", code);
+
+		CodeBuffer init = new CodeBuffer(3);
+		init.loadReference(0);
+		init.loadReference(1);
+		init.op(INVOKESPECIAL, writer.methodConstant(GENERATED_VALUE, "<init>", "(L" + VALUE + ";)V"), -2);
+		for (int i = 0; i < references.size(); i++) {
+			String type = referenceTypes.get(i);
+			writer.addField(ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_FINAL, "r" + i, "L" + type + ";");
+			init.loadReference(0);
+			init.loadReference(2);
+			init.pushInt(writer, i);
+			init.op(AALOAD, -1);
+			init.op(CHECKCAST, writer.classConstant(type), 0);
+			init.op(PUTFIELD, writer.fieldConstant(className, "r" + i, "L" + type + ";"), -2);
+		}
+		init.op(RETURN, 0);
+		writer.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "(L" + VALUE + ";[Ljava/lang/Object;)V", init);
+
+		byte[] bytes = writer.toByteArray();
+		Class<?> type = new GeneratedClassLoader().define(className.replace('/', '.'), bytes);
+		try {
+			return (GeneratedValue) type.getConstructor(Value.class, Object[].class).newInstance(source, references.toArray());
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Failed to instantiate generated expression", e);
+		}
+	}
+
+	private void emit(Value value) {
+		if (value instanceof LiteralValue || value instanceof Constant) {
+			code.pushDouble(writer, value.getValue(NO_VALUES));
+		} else if (value instanceof Variable) {
+			code.loadReference(1);
+			code.pushInt(writer, ((Variable) value).getIndex());
+			code.op(DALOAD, 0);
+		} else if (value instanceof IntegerPowerOperation) {
+			emitIntegerPower((IntegerPowerOperation) value);
+		} else if (value instanceof FusedMultiplyAddOperation) {
+			emitFusedMultiplyAdd((FusedMultiplyAddOperation) value);
+		} else if (value instanceof ShortCircuitOperation) {
+			emitShortCircuit((ShortCircuitOperation) value);
+		} else if (value instanceof BinaryOperation) {
+			emitBinaryOperation((BinaryOperation) value);
+		} else if (value instanceof ConditionalOperation) {
+			emitConditional((ConditionalOperation) value);
+		} else if (value instanceof UnaryOperation) {
+			emitUnaryOperation((UnaryOperation) value);
+		} else if (value instanceof FunctionCall) {
+			emitFunctionCall((FunctionCall) value);
+		} else if (value instanceof SharedValue) {
+			SharedValue shared = (SharedValue) value;
+			emit(shared.getChild());
+			code.op(DUP2, 2);
+			code.storeDouble(localFor(shared.getSlot()));
+		} else if (value instanceof SharedValueReference) {
+			code.loadDouble(localFor(((SharedValueReference) value).getSlot()));
+		} else if (value instanceof LazyVariable) {
+			loadReference(value, LAZY_VARIABLE);
+			code.loadReference(1);
+			code.op(INVOKEVIRTUAL, writer.methodConstant(LAZY_VARIABLE, "getValue", "([D)D"), 0);
+		} else {
+			loadReference(value, VALUE);
+			code.loadReference(1);
+			code.invokeInterface(writer.interfaceMethodConstant(VALUE, "getValue", "([D)D"), 1, 0);
+		}
+	}
+
+	private void emitBinaryOperation(BinaryOperation operation) {
+		Value[] values = operation.getValues();
+		switch (operation.getOperator()) {
+			case ADD:
+				emitArithmetic(values, DADD);
+				break;
+			case SUBTRACT:
+				emitArithmetic(values, DSUB);
+				break;
+			case MULTIPLY:
+				emitArithmetic(values, DMUL);
+				break;
+			case DIVIDE:
+				emitArithmetic(values, DDIV);
+				break;
+			case MODULUS:
+				emitArithmetic(values, DREM);
+				break;
+			case EXPONENT:
+				emit(values[0]);
+				emit(values[1]);
+				emitMathCall("pow", "(DD)D", -2);
+				break;
+			case SCIENTIFIC_NOTATION:
+				emit(values[0]);
+				code.pushDouble(writer, 10);
+				emit(values[1]);
+				emitMathCall("pow", "(DD)D", -2);
+				code.op(DMUL, -2);
+				break;
+			case GREATER_THAN:
+				emitComparison(values, DCMPL, IFLE);
+				break;
+			case LESS_THAN:
+				emitComparison(values, DCMPG, IFGE);
+				break;
+			case GREATER_THAN_OR_EQUAL_TO:
+				emitComparison(values, DCMPL, IFLT);
+				break;
+			case LESS_THAN_OR_EQUAL_TO:
+				emitComparison(values, DCMPG, IFGT);
+				break;
+			case EQUAL_TO:
+			case EQUAL_TO_ALT:
+				emitComparison(values, DCMPL, IFNE);
+				break;
+			case NOT_EQUAL_TO:
+				emitComparison(values, DCMPL, IFEQ);
+				break;
+			case BOOLEAN_AND:
+			case BOOLEAN_AND_ALT:
+				// Each side compares to 1, leaving 0 when true; both are true only when neither is nonzero
+				emitCompareToOne(values[0]);
+				emitCompareToOne(values[1]);
+				code.op(IOR, -1);
+				emitCondition(IFNE);
+				break;
+			case BOOLEAN_OR:
+			case BOOLEAN_OR_ALT:
+				emitCompareToOne(values[0]);
+				emitCompareToOne(values[1]);
+				code.op(IMUL, -1);
+				emitCondition(IFNE);
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported operator " + operation.getOperator());
+		}
+	}
+
+	/**
+	 * Small powers are multiplied out inline, larger ones call the square-and-multiply loop
+	 */
+	private void emitIntegerPower(IntegerPowerOperation operation) {
+		emit(operation.getBase());
+		switch (operation.getExponent()) {
+			case 1:
+				return;
+			case 2:
+				code.op(DUP2, 2);
+				code.op(DMUL, -2);
+				return;
+			case 3:
+				code.op(DUP2, 2);
+				code.op(DUP2, 2);
+				code.op(DMUL, -2);
+				code.op(DMUL, -2);
+				return;
+			case 4:
+				code.op(DUP2, 2);
+				code.op(DMUL, -2);
+				code.op(DUP2, 2);
+				code.op(DMUL, -2);
+				return;
+			default:
+				code.pushInt(writer, operation.getExponent());
+				code.op(INVOKESTATIC, writer.methodConstant(INTEGER_POWER_OPERATION, "power", "(DI)D"), -1);
+		}
+	}
+
+	private void emitFusedMultiplyAdd(FusedMultiplyAddOperation operation) {
+		Value[] operands = operation.getOperands();
+		emit(operands[0]);
+		emit(operands[1]);
+		if (!FusedMultiplyAddOperation.isFused()) {
+			code.op(DMUL, -2);
+			emit(operands[2]);
+			code.op(DADD, -2);
+			return;
+		}
+		emit(operands[2]);
+		emitMathCall("fma", "(DDD)D", -4);
+	}
+
+	/**
+	 * Jumps straight to the result when the first operand decides it, so the second operand is only evaluated when needed
+	 */
+	private void emitShortCircuit(ShortCircuitOperation operation) {
+		Value[] values = operation.getValues();
+		Label decided = new Label();
+		Label end = new Label();
+		emitCompareToOne(values[0]);
+		code.jump(operation.isAnd() ? IFNE : IFEQ, decided, -1);
+		emitCompareToOne(values[1]);
+		emitCondition(IFNE);
+		code.jump(GOTO, end, 0);
+		code.mark(decided);
+		code.pushDouble(writer, operation.isAnd() ? 0 : 1);
+		code.mark(end);
+	}
+
+	private void emitConditional(ConditionalOperation conditional) {
+		Label ifFalse = new Label();
+		Label end = new Label();
+		emitCompareToOne(conditional.getCondition());
+		code.jump(IFNE, ifFalse, -1);
+		emit(conditional.getIfTrue());
+		code.jump(GOTO, end, 0);
+		code.mark(ifFalse);
+		emit(conditional.getIfFalse());
+		code.mark(end);
+	}
+
+	private void emitArithmetic(Value[] values, int opcode) {
+		emit(values[0]);
+		emit(values[1]);
+		code.op(opcode, -2);
+	}
+
+	private void emitComparison(Value[] values, int compare, int jumpIfFalse) {
+		emit(values[0]);
+		emit(values[1]);
+		code.op(compare, -3);
+		emitCondition(jumpIfFalse);
+	}
+
+	private void emitCompareToOne(Value value) {
+		emit(value);
+		code.pushDouble(writer, 1);
+		code.op(DCMPL, -3);
+	}
+
+	/**
+	 * Consumes an int on the stack and pushes 1 or 0 as a double
+	 * @param jumpIfFalse The branch opcode which is taken when the result should be 0
+	 */
+	private void emitCondition(int jumpIfFalse) {
+		Label isFalse = new Label();
+		Label end = new Label();
+		code.jump(jumpIfFalse, isFalse, -1);
+		code.pushDouble(writer, 1);
+		code.jump(GOTO, end, 0);
+		code.mark(isFalse);
+		code.pushDouble(writer, 0);
+		code.mark(end);
+	}
+
+	private void emitUnaryOperation(UnaryOperation operation) {
+		switch (operation.getOperator()) {
+			case NEGATE:
+				emit(operation.getChild());
+				code.op(DNEG, 0);
+				break;
+			case NOT:
+				emitCompareToOne(operation.getChild());
+				emitCondition(IFEQ);
+				break;
+			case ROUND:
+				emit(operation.getChild());
+				emitMathCall("round", "(D)J", 0);
+				code.op(L2D, 0);
+				break;
+			case SIN:
+			case COS:
+			case TAN:
+			case SINH:
+			case COSH:
+			case TANH:
+			case ASIN:
+			case ACOS:
+			case ATAN:
+			case ABS:
+			case FLOOR:
+			case CEIL:
+			case LOG:
+			case SQRT:
+			case CBRT:
+				// The symbols of these operators match the names of the Math methods implementing them
+				emit(operation.getChild());
+				emitMathCall(operation.getOperator().getSymbol(), "(D)D", 0);
+				break;
+			default:
+				loadReference(operation.getOperator().getOperation(), DOUBLE_UNARY_OPERATOR);
+				emit(operation.getChild());
+				code.invokeInterface(writer.interfaceMethodConstant(DOUBLE_UNARY_OPERATOR, "applyAsDouble", "(D)D"), 2, -1);
+				break;
+		}
+	}
+
+	private void emitFunctionCall(FunctionCall call) {
+		Value[] args = call.getArguments();
+		Function function = call.getFunction();
+		if (function.getUnaryOperator() != null) {
+			emitOperatorCall(function.getUnaryOperator(), DOUBLE_UNARY_OPERATOR, args);
+			return;
+		}
+		if (function.getBinaryOperator() != null) {
+			emitOperatorCall(function.getBinaryOperator(), DOUBLE_BINARY_OPERATOR, args);
+			return;
+		}
+		if (function.getTernaryOperator() != null) {
+			emitOperatorCall(function.getTernaryOperator(), DOUBLE_TERNARY_OPERATOR, args);
+			return;
+		}
+		if (function.getQuaternaryOperator() != null) {
+			emitOperatorCall(function.getQuaternaryOperator(), DOUBLE_QUATERNARY_OPERATOR, args);
+			return;
+		}
+		loadReference(call.getFunction(), FUNCTION);
+		code.pushInt(writer, args.length);
+		code.newDoubleArray();
+		for (int i = 0; i < args.length; i++) {
+			code.op(DUP, 1);
+			code.pushInt(writer, i);
+			emit(args[i]);
+			code.op(DASTORE, -4);
+		}
+		code.op(INVOKEVIRTUAL, writer.methodConstant(FUNCTION, "call", "([D)D"), 0);
+	}
+
+	/**
+	 * Calls a primitive functional interface with the arguments on the stack, skipping the argument array
+	 */
+	private void emitOperatorCall(Object operator, String type, Value[] args) {
+		loadReference(operator, type);
+		StringBuilder descriptor = new StringBuilder("(");
+		for (Value arg : args) {
+			emit(arg);
+			descriptor.append('D');
+		}
+		descriptor.append(")D");
+		int argSlots = args.length * 2;
+		code.invokeInterface(writer.interfaceMethodConstant(type, "applyAsDouble", descriptor.toString()), argSlots, 1 - argSlots);
+	}
+
+	/**
+	 * Shared values are kept in local variables rather than in the variable array, so the generated code needs no frame
+	 */
+	private int localFor(int slot) {
+		Integer local = sharedLocals.get(slot);
+		if (local == null) {
+			local = 2 + sharedLocals.size() * 2;
+			sharedLocals.put(slot, local);
+		}
+		return local;
+	}
+
+	private void emitMathCall(String name, String descriptor, int stackDelta) {
+		code.op(INVOKESTATIC, writer.methodConstant(MATH, name, descriptor), stackDelta);
+	}
+
+	/**
+	 * Pushes an object referenced by the expression, which is stored in a final field of the generated class
+	 * @param reference The object to load
+	 * @param type The internal name of the type the field will be declared as
+	 */
+	private void loadReference(Object reference, String type) {
+		Integer index = referenceIndices.get(reference);
+		if (index == null) {
+			index = references.size();
+			references.add(reference);
+			referenceTypes.add(type);
+			referenceIndices.put(reference, index);
+		}
+		code.loadReference(0);
+		code.op(GETFIELD, writer.fieldConstant(className, "r" + index, "L" + referenceTypes.get(index) + ";"), 0);
+	}
+
+}
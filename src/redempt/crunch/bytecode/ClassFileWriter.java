@@ -0,0 +1,241 @@
+package redempt.crunch.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for Java class files, supporting only what {@link BytecodeCompiler} needs: a constant pool,
+ * private final fields and methods with a Code attribute. Classes are written with major version 49, which is
+ * verified by type inference and so does not require stack map frames.
+ * @author Redempt
+ */
+final class ClassFileWriter {
+
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_PRIVATE = 0x0002;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_INTERFACE_METHODREF = 11;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+	private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(poolBytes);
+	private final Map<String, Integer> poolIndices = new HashMap<>();
+	private int poolSize = 1;
+
+	private final List<byte[]> fields = new ArrayList<>();
+	private final List<byte[]> methods = new ArrayList<>();
+	private final int thisClass;
+	private final int superClass;
+
+	/**
+	 * Creates a ClassFileWriter for a public final class
+	 * @param name The internal name of the class, like {@code a/b/C}
+	 * @param superName The internal name of the superclass
+	 */
+	ClassFileWriter(String name, String superName) {
+		thisClass = classConstant(name);
+		superClass = classConstant(superName);
+	}
+
+	int utf8Constant(String value) {
+		Integer index = poolIndices.get("U" + value);
+		if (index != null) {
+			return index;
+		}
+		try {
+			pool.writeByte(CONSTANT_UTF8);
+			pool.writeUTF(value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return register("U" + value, 1);
+	}
+
+	int classConstant(String name) {
+		Integer index = poolIndices.get("C" + name);
+		if (index != null) {
+			return index;
+		}
+		int nameIndex = utf8Constant(name);
+		write(CONSTANT_CLASS, nameIndex);
+		return register("C" + name, 1);
+	}
+
+	int intConstant(int value) {
+		Integer index = poolIndices.get("I" + value);
+		if (index != null) {
+			return index;
+		}
+		try {
+			pool.writeByte(CONSTANT_INTEGER);
+			pool.writeInt(value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return register("I" + value, 1);
+	}
+
+	int doubleConstant(double value) {
+		String key = "D" + Double.doubleToRawLongBits(value);
+		Integer index = poolIndices.get(key);
+		if (index != null) {
+			return index;
+		}
+		try {
+			pool.writeByte(CONSTANT_DOUBLE);
+			pool.writeDouble(value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return register(key, 2);
+	}
+
+	int fieldConstant(String owner, String name, String descriptor) {
+		return memberConstant(CONSTANT_FIELDREF, owner, name, descriptor);
+	}
+
+	int methodConstant(String owner, String name, String descriptor) {
+		return memberConstant(CONSTANT_METHODREF, owner, name, descriptor);
+	}
+
+	int interfaceMethodConstant(String owner, String name, String descriptor) {
+		return memberConstant(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+	}
+
+	private int memberConstant(int tag, String owner, String name, String descriptor) {
+		String key = "M" + tag + owner + "." + name + descriptor;
+		Integer index = poolIndices.get(key);
+		if (index != null) {
+			return index;
+		}
+		int ownerIndex = classConstant(owner);
+		int nameAndType = nameAndTypeConstant(name, descriptor);
+		write(tag, ownerIndex, nameAndType);
+		return register(key, 1);
+	}
+
+	private int nameAndTypeConstant(String name, String descriptor) {
+		String key = "N" + name + ":" + descriptor;
+		Integer index = poolIndices.get(key);
+		if (index != null) {
+			return index;
+		}
+		int nameIndex = utf8Constant(name);
+		int descriptorIndex = utf8Constant(descriptor);
+		write(CONSTANT_NAME_AND_TYPE, nameIndex, descriptorIndex);
+		return register(key, 1);
+	}
+
+	private void write(int tag, int... shorts) {
+		try {
+			pool.writeByte(tag);
+			for (int value : shorts) {
+				pool.writeShort(value);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private int register(String key, int slots) {
+		int index = poolSize;
+		poolSize += slots;
+		poolIndices.put(key, index);
+		return index;
+	}
+
+	/**
+	 * Adds a field to the class
+	 * @param access The access flags
+	 * @param name The field name
+	 * @param descriptor The field descriptor
+	 */
+	void addField(int access, String name, String descriptor) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8Constant(name));
+			out.writeShort(utf8Constant(descriptor));
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		fields.add(bytes.toByteArray());
+	}
+
+	/**
+	 * Adds a method to the class
+	 * @param access The access flags
+	 * @param name The method name
+	 * @param descriptor The method descriptor
+	 * @param code The finished code of the method
+	 */
+	void addMethod(int access, String name, String descriptor, CodeBuffer code) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		byte[] instructions = code.toByteArray();
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8Constant(name));
+			out.writeShort(utf8Constant(descriptor));
+			out.writeShort(1);
+			out.writeShort(utf8Constant("Code"));
+			out.writeInt(12 + instructions.length);
+			out.writeShort(code.getMaxStack());
+			out.writeShort(code.getMaxLocals());
+			out.writeInt(instructions.length);
+			out.write(instructions);
+			out.writeShort(0);
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		methods.add(bytes.toByteArray());
+	}
+
+	/**
+	 * @return The bytes of the finished class file
+	 */
+	byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(poolSize);
+			poolBytes.writeTo(out);
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0);
+			out.writeShort(fields.size());
+			for (byte[] field : fields) {
+				out.write(field);
+			}
+			out.writeShort(methods.size());
+			for (byte[] method : methods) {
+				out.write(method);
+			}
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+}
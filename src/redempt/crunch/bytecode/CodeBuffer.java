@@ -0,0 +1,271 @@
+package redempt.crunch.bytecode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A growable buffer of JVM instructions which tracks the operand stack depth and resolves branch labels
+ * @author Redempt
+ */
+final class CodeBuffer {
+
+	static final int ACONST_NULL = 0x01;
+	static final int DCONST_0 = 0x0e;
+	static final int DCONST_1 = 0x0f;
+	static final int DLOAD = 0x18;
+	static final int ALOAD = 0x19;
+	static final int DALOAD = 0x31;
+	static final int AALOAD = 0x32;
+	static final int DSTORE = 0x39;
+	static final int DASTORE = 0x52;
+	static final int POP2 = 0x58;
+	static final int DUP = 0x59;
+	static final int DUP2 = 0x5c;
+	static final int DADD = 0x63;
+	static final int DSUB = 0x67;
+	static final int IMUL = 0x68;
+	static final int DMUL = 0x6b;
+	static final int DDIV = 0x6f;
+	static final int DREM = 0x73;
+	static final int DNEG = 0x77;
+	static final int IAND = 0x7e;
+	static final int IOR = 0x80;
+	static final int I2D = 0x87;
+	static final int L2D = 0x8a;
+	static final int DCMPL = 0x97;
+	static final int DCMPG = 0x98;
+	static final int IFEQ = 0x99;
+	static final int IFNE = 0x9a;
+	static final int IFLT = 0x9b;
+	static final int IFGE = 0x9c;
+	static final int IFGT = 0x9d;
+	static final int IFLE = 0x9e;
+	static final int GOTO = 0xa7;
+	static final int DRETURN = 0xaf;
+	static final int RETURN = 0xb1;
+	static final int GETFIELD = 0xb4;
+	static final int PUTFIELD = 0xb5;
+	static final int INVOKEVIRTUAL = 0xb6;
+	static final int INVOKESPECIAL = 0xb7;
+	static final int INVOKESTATIC = 0xb8;
+	static final int INVOKEINTERFACE = 0xb9;
+	static final int NEWARRAY = 0xbc;
+	static final int CHECKCAST = 0xc0;
+
+	static final int T_DOUBLE = 7;
+
+	/**
+	 * The largest method body which will be emitted. Keeping it below 32K means every branch fits in a 16-bit offset.
+	 */
+	static final int MAX_CODE_LENGTH = Short.MAX_VALUE;
+
+	private byte[] code = new byte[64];
+	private int length;
+	private int stack;
+	private int maxStack;
+	private int maxLocals;
+
+	CodeBuffer(int maxLocals) {
+		this.maxLocals = maxLocals;
+	}
+
+	/**
+	 * Writes a single instruction with no operands
+	 * @param opcode The opcode
+	 * @param stackDelta The change in operand stack size, in slots, caused by this instruction
+	 */
+	void op(int opcode, int stackDelta) {
+		u1(opcode);
+		adjustStack(stackDelta);
+	}
+
+	/**
+	 * Writes an instruction with a two-byte operand
+	 * @param opcode The opcode
+	 * @param operand The operand, usually a constant pool index
+	 * @param stackDelta The change in operand stack size, in slots, caused by this instruction
+	 */
+	void op(int opcode, int operand, int stackDelta) {
+		u1(opcode);
+		u2(operand);
+		adjustStack(stackDelta);
+	}
+
+	void invokeInterface(int methodIndex, int argSlots, int stackDelta) {
+		u1(INVOKEINTERFACE);
+		u2(methodIndex);
+		u1(argSlots + 1);
+		u1(0);
+		adjustStack(stackDelta);
+	}
+
+	void newDoubleArray() {
+		u1(NEWARRAY);
+		u1(T_DOUBLE);
+	}
+
+	void pushInt(ClassFileWriter writer, int value) {
+		if (value >= -1 && value <= 5) {
+			u1(0x03 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			u1(0x10);
+			u1(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			u1(0x11);
+			u2(value);
+		} else {
+			u1(0x13);
+			u2(writer.intConstant(value));
+		}
+		adjustStack(1);
+	}
+
+	void pushDouble(ClassFileWriter writer, double value) {
+		if (Double.doubleToRawLongBits(value) == 0L) {
+			op(DCONST_0, 2);
+		} else if (value == 1d) {
+			op(DCONST_1, 2);
+		} else {
+			op(0x14, writer.doubleConstant(value), 2);
+		}
+	}
+
+	void loadReference(int local) {
+		if (local <= 3) {
+			u1(0x2a + local);
+		} else {
+			u1(ALOAD);
+			u1(local);
+		}
+		adjustStack(1);
+	}
+
+	void loadDouble(int local) {
+		localOp(DLOAD, local);
+		adjustStack(2);
+	}
+
+	void storeDouble(int local) {
+		localOp(DSTORE, local);
+		adjustStack(-2);
+		maxLocals = Math.max(maxLocals, local + 2);
+	}
+
+	private void localOp(int opcode, int local) {
+		if (local > 0xff) {
+			u1(0xc4);
+			u1(opcode);
+			u2(local);
+		} else {
+			u1(opcode);
+			u1(local);
+		}
+	}
+
+	/**
+	 * Writes a branch instruction to a label which may not have been marked yet
+	 * @param opcode The branch opcode
+	 * @param label The target label
+	 * @param stackDelta The change in operand stack size caused by the branch instruction itself
+	 */
+	void jump(int opcode, Label label, int stackDelta) {
+		int start = length;
+		u1(opcode);
+		u2(0);
+		adjustStack(stackDelta);
+		label.stack = stack;
+		if (label.position >= 0) {
+			patch(start, label.position);
+		} else {
+			label.fixups.add(start);
+		}
+	}
+
+	/**
+	 * Marks the current position as the target of a label. The tracked stack depth is restored to the depth
+	 * recorded when the label was jumped to, since code directly before a label may be unreachable.
+	 * @param label The label to mark
+	 */
+	void mark(Label label) {
+		label.position = length;
+		if (label.stack >= 0) {
+			stack = label.stack;
+		}
+		for (int fixup : label.fixups) {
+			patch(fixup, length);
+		}
+		label.fixups.clear();
+	}
+
+	private void patch(int instruction, int target) {
+		int offset = target - instruction;
+		if (offset > Short.MAX_VALUE || offset < Short.MIN_VALUE) {
+			throw new CodeTooLargeException();
+		}
+		code[instruction + 1] = (byte) (offset >> 8);
+		code[instruction + 2] = (byte) offset;
+	}
+
+	private void adjustStack(int delta) {
+		stack += delta;
+		maxStack = Math.max(maxStack, stack);
+	}
+
+	private void u1(int value) {
+		if (length == code.length) {
+			if (length > MAX_CODE_LENGTH) {
+				throw new CodeTooLargeException();
+			}
+			code = Arrays.copyOf(code, length * 2);
+		}
+		code[length++] = (byte) value;
+	}
+
+	private void u2(int value) {
+		u1(value >> 8);
+		u1(value);
+	}
+
+	int getMaxStack() {
+		return maxStack;
+	}
+
+	int getMaxLocals() {
+		return maxLocals;
+	}
+
+	int length() {
+		return length;
+	}
+
+	byte[] toByteArray() {
+		if (length > MAX_CODE_LENGTH) {
+			throw new CodeTooLargeException();
+		}
+		return Arrays.copyOf(code, length);
+	}
+
+	/**
+	 * A position in the code which can be jumped to
+	 */
+	static final class Label {
+
+		private final List<Integer> fixups = new ArrayList<>(1);
+		private int position = -1;
+		private int stack = -1;
+
+	}
+
+	/**
+	 * Thrown when an expression is too large to fit in a single method, in which case it is left as a tree
+	 */
+	static final class CodeTooLargeException extends RuntimeException {
+
+		CodeTooLargeException() {
+			super("Generated method is too large", null, false, false);
+		}
+
+	}
+
+}
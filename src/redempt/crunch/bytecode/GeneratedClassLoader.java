@@ -0,0 +1,18 @@
+package redempt.crunch.bytecode;
+
+/**
+ * Defines a single generated class. Every generated class gets its own loader so that it can be unloaded
+ * as soon as the expression using it is no longer reachable.
+ * @author Redempt
+ */
+final class GeneratedClassLoader extends ClassLoader {
+	
+	GeneratedClassLoader() {
+		super(GeneratedValue.class.getClassLoader());
+	}
+	
+	Class<?> define(String name, byte[] bytes) {
+		return defineClass(name, bytes, 0, bytes.length);
+	}
+	
+}
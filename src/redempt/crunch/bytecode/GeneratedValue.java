@@ -0,0 +1,42 @@
+package redempt.crunch.bytecode;
+
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.Value;
+
+/**
+ * Base class of the Values generated by {@link BytecodeCompiler}. Subclasses implement {@link Value#getValue(double[])}
+ * with straight-line bytecode, while the Value tree they were compiled from is kept for reflection and {@link #toString()}.
+ * Generated Values hold no mutable state, so a single instance may be shared freely.
+ * @author Redempt
+ */
+public abstract class GeneratedValue implements Value {
+	
+	private final Value source;
+	
+	protected GeneratedValue(Value source) {
+		this.source = source;
+	}
+	
+	/**
+	 * @return The Value tree this GeneratedValue was compiled from
+	 */
+	public Value getSource() {
+		return source;
+	}
+	
+	@Override
+	public TokenType getType() {
+		return source.getType();
+	}
+	
+	@Override
+	public Value getClone() {
+		return this;
+	}
+	
+	@Override
+	public String toString() {
+		return source.toString();
+	}
+	
+}
@@ -0,0 +1,474 @@
+package redempt.crunch.codegen;
+
+import redempt.crunch.CompileOptions;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.Variable;
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.ConditionalOperation;
+import redempt.crunch.token.Constant;
+import redempt.crunch.token.FusedMultiplyAddOperation;
+import redempt.crunch.token.IntegerPowerOperation;
+import redempt.crunch.token.LazyVariable;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.SharedValueReference;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.Value;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Generates plain Java source for expressions ahead of time, so they can be compiled along with the rest of a project
+ * and evaluated with no parsing, no runtime class generation and no dependency on Crunch. Each expression becomes a
+ * final class with a static {@code double evaluate(double... values)} method whose body is the expression written out
+ * as Java arithmetic.
+ * <p>
+ * Since the generated code cannot call lambdas, functions and lazy variables are described by the fully qualified
+ * name of a static method to call instead, like {@code com.example.Functions.mult}. Function methods take one double
+ * per argument, and lazy variable methods take no arguments, and both return a double.
+ * <p>
+ * The generator can also be run as a main class, for example from a Gradle {@code JavaExec} task, with an output
+ * directory followed by any number of descriptor files. Each descriptor is a properties file such as:
+ * <pre>
+ * package=com.example.formulas
+ * variables=x, y
+ * function.mult=2 com.example.Functions.mult
+ * lazy.time=com.example.Clock.seconds
+ * expression.Area=mult(x, y) + time
+ * </pre>
+ * @author Redempt
+ */
+public class JavaSourceGenerator {
+
+	/**
+	 * Generates the sources for a set of descriptor files
+	 * @param args The output directory, followed by the descriptor files
+	 * @throws IOException If a descriptor could not be read or a source file could not be written
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: JavaSourceGenerator <output directory> <descriptor.properties>...");
+			System.exit(1);
+		}
+		Path output = Paths.get(args[0]);
+		for (int i = 1; i < args.length; i++) {
+			Properties properties = new Properties();
+			try (InputStream in = Files.newInputStream(Paths.get(args[i]))) {
+				properties.load(in);
+			}
+			fromProperties(properties).writeTo(output);
+		}
+	}
+
+	/**
+	 * Creates a generator from a descriptor, in the format described in {@link JavaSourceGenerator}
+	 * @param properties The descriptor
+	 * @return A generator for the expressions in the descriptor
+	 */
+	public static JavaSourceGenerator fromProperties(Properties properties) {
+		JavaSourceGenerator generator = new JavaSourceGenerator(properties.getProperty("package", ""));
+		String variables = properties.getProperty("variables", "").trim();
+		if (!variables.isEmpty()) {
+			generator.setVariableNames(variables.split("\\s*,\\s*"));
+		}
+		for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+			String value = properties.getProperty(key).trim();
+			if (key.startsWith("function.")) {
+				String[] parts = value.split("\\s+");
+				if (parts.length != 2) {
+					throw new IllegalArgumentException("Function '" + key + "' must be an argument count followed by a method");
+				}
+				generator.addFunction(key.substring(9), Integer.parseInt(parts[0]), parts[1]);
+			} else if (key.startsWith("lazy.")) {
+				generator.addLazyVariable(key.substring(5), value);
+			}
+		}
+		for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+			if (key.startsWith("expression.")) {
+				generator.addExpression(key.substring(11), properties.getProperty(key));
+			}
+		}
+		return generator;
+	}
+
+	private final String packageName;
+	private final ExpressionEnv env = new ExpressionEnv();
+	private final Map<String, String> functionMethods = new LinkedHashMap<>();
+	private final Map<String, String> lazyMethods = new LinkedHashMap<>();
+	private final Map<String, String> expressions = new LinkedHashMap<>();
+	private CompileOptions options = new CompileOptions().setSimplify(true).setEliminateCommonSubexpressions(true);
+
+	/**
+	 * Creates a JavaSourceGenerator
+	 * @param packageName The package the generated classes are placed in, or an empty String for the default package
+	 */
+	public JavaSourceGenerator(String packageName) {
+		if (packageName == null) {
+			throw new IllegalArgumentException("Package name cannot be null");
+		}
+		if (!packageName.isEmpty()) {
+			for (String part : packageName.split("\\.", -1)) {
+				checkIdentifier(part);
+			}
+		}
+		this.packageName = packageName;
+	}
+
+	/**
+	 * Sets the names of the variables, which are passed to the generated evaluate methods in this order
+	 * @param names The variable names
+	 * @return This JavaSourceGenerator
+	 */
+	public JavaSourceGenerator setVariableNames(String... names) {
+		env.setVariableNames(names);
+		return this;
+	}
+
+	/**
+	 * Adds a function which is called by invoking a static method
+	 * @param name The function name
+	 * @param argCount The number of arguments the function takes
+	 * @param method The fully qualified name of a static method taking argCount doubles and returning a double
+	 * @return This JavaSourceGenerator
+	 */
+	public JavaSourceGenerator addFunction(String name, int argCount, String method) {
+		checkMethod(method);
+		// Functions are never folded, since they are only called when the generated code runs
+		env.addFunction(new Function(name, argCount, args -> 0, false));
+		functionMethods.put(name, method);
+		return this;
+	}
+
+	/**
+	 * Adds a lazy variable whose value is supplied by invoking a static method
+	 * @param name The name of the lazy variable
+	 * @param method The fully qualified name of a static method taking no arguments and returning a double
+	 * @return This JavaSourceGenerator
+	 */
+	public JavaSourceGenerator addLazyVariable(String name, String method) {
+		checkMethod(method);
+		env.addLazyVariable(name, () -> 0);
+		lazyMethods.put(name, method);
+		return this;
+	}
+
+	/**
+	 * Adds an expression to generate a class for
+	 * @param className The simple name of the class to generate
+	 * @param expression The expression
+	 * @return This JavaSourceGenerator
+	 */
+	public JavaSourceGenerator addExpression(String className, String expression) {
+		checkIdentifier(className);
+		if (expression == null) {
+			throw new IllegalArgumentException("Expression cannot be null");
+		}
+		expressions.put(className, expression);
+		return this;
+	}
+
+	/**
+	 * Sets the optimizations applied to expressions before their source is generated. By default, expressions are
+	 * simplified and common subexpressions are eliminated. The compile mode is ignored. If fused multiply-add is
+	 * enabled, the generated source calls {@code Math.fma} and must be compiled for Java 9 or later.
+	 * @param options The options to optimize expressions with
+	 * @return This JavaSourceGenerator
+	 */
+	public JavaSourceGenerator setOptions(CompileOptions options) {
+		if (options == null) {
+			throw new IllegalArgumentException("Options cannot be null");
+		}
+		this.options = options;
+		return this;
+	}
+
+	/**
+	 * Parses every expression and generates its class
+	 * @return The source of each generated class, keyed by simple class name
+	 */
+	public Map<String, String> generate() {
+		Map<String, String> sources = new LinkedHashMap<>();
+		for (Map.Entry<String, String> entry : expressions.entrySet()) {
+			sources.put(entry.getKey(), generate(entry.getKey(), entry.getValue()));
+		}
+		return sources;
+	}
+
+	/**
+	 * Generates every class and writes it to a source directory, in the subdirectory for its package
+	 * @param directory The root source directory
+	 * @throws IOException If a source file could not be written
+	 */
+	public void writeTo(Path directory) throws IOException {
+		Path packageDirectory = packageName.isEmpty() ? directory : directory.resolve(packageName.replace('.', '/'));
+		Files.createDirectories(packageDirectory);
+		for (Map.Entry<String, String> entry : generate().entrySet()) {
+			try (Writer writer = Files.newBufferedWriter(packageDirectory.resolve(entry.getKey() + ".java"), StandardCharsets.UTF_8)) {
+				writer.write(entry.getValue());
+			}
+		}
+	}
+
+	private String generate(String className, String expression) {
+		CompiledExpression compiled = Crunch.compileExpression(expression, env, options);
+		StringBuilder body = new StringBuilder();
+		Emitter emitter = new Emitter(compiled.getVariableCount());
+		emitter.emit(compiled.getValue(), body);
+
+		StringBuilder source = new StringBuilder();
+		if (!packageName.isEmpty()) {
+			source.append("package ").append(packageName).append(";\n\n");
+		}
+		source.append("/**\n")
+				.append(" * Generated by Crunch from the expression: ").append(expression.replace("*/", "*&#47;").replace("\n", " ")).append("\n")
+				.append(" */\n")
+				.append("public final class ").append(className).append(" {\n\n")
+				.append("\tpublic static final int VARIABLE_COUNT = ").append(compiled.getVariableCount()).append(";\n\n")
+				.append("\tprivate ").append(className).append("() {\n\t}\n\n")
+				.append("\tpublic static double evaluate(double... values) {\n")
+				.append("\t\tif (values.length < VARIABLE_COUNT) {\n")
+				.append("\t\t\tthrow new IllegalArgumentException(\"Too few variable values - expected \" + VARIABLE_COUNT + \", got \" + values.length);\n")
+				.append("\t\t}\n");
+		for (int slot : emitter.sharedSlots) {
+			source.append("\t\tdouble shared").append(slot).append(" = 0;\n");
+		}
+		source.append("\t\treturn ").append(body).append(";\n")
+				.append("\t}\n");
+		if (emitter.usesPower) {
+			source.append("\n")
+					.append("\tprivate static double power(double base, int exponent) {\n")
+					.append("\t\tdouble result = 1;\n")
+					.append("\t\twhile (true) {\n")
+					.append("\t\t\tif ((exponent & 1) != 0) {\n")
+					.append("\t\t\t\tresult *= base;\n")
+					.append("\t\t\t}\n")
+					.append("\t\t\texponent >>= 1;\n")
+					.append("\t\t\tif (exponent == 0) {\n")
+					.append("\t\t\t\treturn result;\n")
+					.append("\t\t\t}\n")
+					.append("\t\t\tbase *= base;\n")
+					.append("\t\t}\n")
+					.append("\t}\n");
+		}
+		source.append("\n}\n");
+		return source.toString();
+	}
+
+	/**
+	 * Writes a Value tree out as a single Java expression
+	 */
+	private class Emitter {
+
+		private final int variableCount;
+		private final TreeSet<Integer> sharedSlots = new TreeSet<>();
+		private boolean usesPower;
+
+		private Emitter(int variableCount) {
+			this.variableCount = variableCount;
+		}
+
+		private void emit(Value value, StringBuilder out) {
+			if (value instanceof LiteralValue || value instanceof Constant) {
+				emitLiteral(value, out);
+			} else if (value instanceof Variable) {
+				out.append("values[").append(((Variable) value).getIndex()).append(']');
+			} else if (value instanceof LazyVariable) {
+				out.append(lazyMethods.get(((LazyVariable) value).getName())).append("()");
+			} else if (value instanceof SharedValue) {
+				SharedValue shared = (SharedValue) value;
+				sharedSlots.add(shared.getSlot());
+				out.append("(shared").append(shared.getSlot()).append(" = ");
+				emit(shared.getChild(), out);
+				out.append(')');
+			} else if (value instanceof SharedValueReference) {
+				out.append("shared").append(((SharedValueReference) value).getSlot());
+			} else if (value instanceof IntegerPowerOperation) {
+				IntegerPowerOperation power = (IntegerPowerOperation) value;
+				usesPower = true;
+				out.append("power(");
+				emit(power.getBase(), out);
+				out.append(", ").append(power.getExponent()).append(')');
+			} else if (value instanceof FusedMultiplyAddOperation) {
+				emitCall("Math.fma", ((FusedMultiplyAddOperation) value).getOperands(), out);
+			} else if (value instanceof BinaryOperation) {
+				emitBinary((BinaryOperation) value, out);
+			} else if (value instanceof UnaryOperation) {
+				emitUnary((UnaryOperation) value, out);
+			} else if (value instanceof ConditionalOperation) {
+				ConditionalOperation conditional = (ConditionalOperation) value;
+				out.append("(");
+				emit(conditional.getCondition(), out);
+				out.append(" == 1 ? ");
+				emit(conditional.getIfTrue(), out);
+				out.append(" : ");
+				emit(conditional.getIfFalse(), out);
+				out.append(')');
+			} else if (value instanceof FunctionCall) {
+				FunctionCall call = (FunctionCall) value;
+				emitCall(functionMethods.get(call.getFunction().getName()), call.getArguments(), out);
+			} else {
+				throw new IllegalArgumentException("Cannot generate source for '" + value + "'");
+			}
+		}
+
+		private void emitLiteral(Value value, StringBuilder out) {
+			double literal = value.getValue(new double[variableCount]);
+			if (value == Constant.PI) {
+				out.append("Math.PI");
+			} else if (value == Constant.E) {
+				out.append("Math.E");
+			} else if (Double.isNaN(literal)) {
+				out.append("Double.NaN");
+			} else if (Double.isInfinite(literal)) {
+				out.append(literal > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY");
+			} else if (literal < 0 || (literal == 0 && 1 / literal < 0)) {
+				out.append('(').append(literal).append(')');
+			} else {
+				out.append(literal);
+			}
+		}
+
+		private void emitBinary(BinaryOperation operation, StringBuilder out) {
+			Value[] values = operation.getValues();
+			switch (operation.getOperator()) {
+				case ADD:
+				case SUBTRACT:
+				case MULTIPLY:
+				case DIVIDE:
+				case MODULUS:
+					emitInfix(operation.getOperator().getSymbol(), values, out);
+					return;
+				case EXPONENT:
+					emitCall("Math.pow", values, out);
+					return;
+				case SCIENTIFIC_NOTATION:
+					out.append('(');
+					emit(values[0], out);
+					out.append(" * Math.pow(10, ");
+					emit(values[1], out);
+					out.append("))");
+					return;
+				case BOOLEAN_AND:
+				case BOOLEAN_AND_ALT:
+					emitBoolean(" == 1 && ", " == 1", values, out);
+					return;
+				case BOOLEAN_OR:
+				case BOOLEAN_OR_ALT:
+					emitBoolean(" == 1 || ", " == 1", values, out);
+					return;
+				case GREATER_THAN:
+					emitBoolean(" > ", "", values, out);
+					return;
+				case LESS_THAN:
+					emitBoolean(" < ", "", values, out);
+					return;
+				case EQUAL_TO:
+				case EQUAL_TO_ALT:
+					emitBoolean(" == ", "", values, out);
+					return;
+				case NOT_EQUAL_TO:
+					emitBoolean(" != ", "", values, out);
+					return;
+				case GREATER_THAN_OR_EQUAL_TO:
+					emitBoolean(" >= ", "", values, out);
+					return;
+				case LESS_THAN_OR_EQUAL_TO:
+					emitBoolean(" <= ", "", values, out);
+					return;
+				default:
+					throw new IllegalArgumentException("Cannot generate source for '" + operation + "'");
+			}
+		}
+
+		private void emitUnary(UnaryOperation operation, StringBuilder out) {
+			Value child = operation.getChild();
+			switch (operation.getOperator()) {
+				case NEGATE:
+					out.append("(-");
+					emit(child, out);
+					out.append(')');
+					return;
+				case NOT:
+					out.append('(');
+					emit(child, out);
+					out.append(" == 1 ? 0d : 1d)");
+					return;
+				case ROUND:
+					out.append("((double) Math.round(");
+					emit(child, out);
+					out.append("))");
+					return;
+				case RAND:
+					out.append("(java.util.concurrent.ThreadLocalRandom.current().nextDouble() * ");
+					emit(child, out);
+					out.append(')');
+					return;
+				default:
+					// The rest are named after the Math methods which implement them
+					emitCall("Math." + operation.getOperator().getSymbol(), new Value[] {child}, out);
+			}
+		}
+
+		private void emitInfix(String operator, Value[] values, StringBuilder out) {
+			out.append('(');
+			emit(values[0], out);
+			out.append(' ').append(operator).append(' ');
+			emit(values[1], out);
+			out.append(')');
+		}
+
+		private void emitBoolean(String middle, String suffix, Value[] values, StringBuilder out) {
+			out.append('(');
+			emit(values[0], out);
+			out.append(middle);
+			emit(values[1], out);
+			out.append(suffix).append(" ? 1d : 0d)");
+		}
+
+		private void emitCall(String method, Value[] args, StringBuilder out) {
+			out.append(method).append('(');
+			for (int i = 0; i < args.length; i++) {
+				if (i > 0) {
+					out.append(", ");
+				}
+				emit(args[i], out);
+			}
+			out.append(')');
+		}
+
+	}
+
+	private static void checkMethod(String method) {
+		if (method == null || method.indexOf('.') < 0) {
+			throw new IllegalArgumentException("Method must be a fully qualified name like com.example.Functions.method");
+		}
+		for (String part : method.split("\\.", -1)) {
+			checkIdentifier(part);
+		}
+	}
+
+	private static void checkIdentifier(String identifier) {
+		boolean valid = identifier != null && !identifier.isEmpty() && Character.isJavaIdentifierStart(identifier.charAt(0));
+		for (int i = 1; valid && i < identifier.length(); i++) {
+			valid = Character.isJavaIdentifierPart(identifier.charAt(i));
+		}
+		if (!valid) {
+			throw new IllegalArgumentException("'" + identifier + "' is not a valid Java identifier");
+		}
+	}
+
+}
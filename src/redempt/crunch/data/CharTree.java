@@ -2,14 +2,57 @@ package redempt.crunch.data;
 
 import redempt.crunch.ExpressionParser;
 
+import java.util.Arrays;
+
 /**
- * A simple implementation of a prefix tree for better parsing
- * Only supports ASCII characters
+ * A compact prefix tree for better parsing. Each node stores only the edges it actually has, as a sorted array of
+ * characters searched with a binary search, so any char can be used in a key and sparse trees stay small.
+ * <p>
+ * Copies of a CharTree share their nodes with the original. A node is only copied when a key passing through it is set
+ * in a tree which does not own it, so a copy costs nothing up front and only the changed paths are ever duplicated.
  * @param <T> The type stored in this CharTree
  */
 public class CharTree<T> {
 	
-	private final Node root = new Node();
+	private Node root;
+	private Object owner = new Object();
+	private volatile boolean frozen;
+	
+	/**
+	 * Creates an empty CharTree
+	 */
+	public CharTree() {
+		root = new Node(owner);
+	}
+	
+	/**
+	 * Creates a CharTree holding the same keys and values as another. The copy shares all of its nodes with the
+	 * original, and either can be modified afterwards without affecting the other.
+	 * @param tree The CharTree to copy
+	 */
+	public CharTree(CharTree<? extends T> tree) {
+		root = tree.root;
+		if (!tree.frozen) {
+			// The original no longer owns the shared nodes, so it copies them before changing them too
+			tree.owner = new Object();
+		}
+	}
+	
+	/**
+	 * Makes this CharTree immutable. A frozen CharTree can be safely read from any number of threads.
+	 * @return This CharTree
+	 */
+	public CharTree<T> freeze() {
+		frozen = true;
+		return this;
+	}
+	
+	/**
+	 * @return Whether this CharTree has been frozen and can no longer be modified
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
 	
 	/**
 	 * Sets a String in this CharTree
@@ -17,9 +60,15 @@ public class CharTree<T> {
 	 * @param value The value to store
 	 */
 	public void set(String str, T value) {
+		if (frozen) {
+			throw new IllegalStateException("CharTree is frozen");
+		}
+		if (root.owner != owner) {
+			root = root.copy(owner);
+		}
 		Node node = root;
-		for (char c : str.toCharArray()) {
-			node = node.getOrCreateNode(c);
+		for (int i = 0; i < str.length(); i++) {
+			node = node.getOrCreateNode(str.charAt(i), owner);
 		}
 		node.setValue(value);
 	}
@@ -31,8 +80,8 @@ public class CharTree<T> {
 	 */
 	public T get(String str) {
 		Node node = root;
-		for (char c : str.toCharArray()) {
-			node = node.getNode(c);
+		for (int i = 0; i < str.length(); i++) {
+			node = node.getNode(str.charAt(i));
 			if (node == null) {
 				return null;
 			}
@@ -74,10 +123,10 @@ public class CharTree<T> {
 		Node node = root;
 		T val = null;
 		int lastParsed = parser.getCursor();
-		String input = parser.getInput();
+		int length = parser.getLength();
 
-		for (int i = lastParsed; i < input.length(); i++) {
-			node = node.getNode(input.charAt(i));
+		for (int i = lastParsed; i < length; i++) {
+			node = node.getNode(parser.charAt(i));
 			if (node == null) {
 				parser.setCursor(val == null ? parser.getCursor() : lastParsed + 1);
 				return val;
@@ -96,18 +145,72 @@ public class CharTree<T> {
 	
 	private static class Node {
 		
+		private static final char[] NO_KEYS = new char[0];
+		private static final Node[] NO_CHILDREN = new Node[0];
+		
+		private final Object owner;
 		private Object value;
-		private final Node[] children = new Node[256];
+		private char[] keys = NO_KEYS;
+		private Node[] children = NO_CHILDREN;
+		private int size;
+		
+		public Node(Object owner) {
+			this.owner = owner;
+		}
 		
 		public Node getNode(char c) {
-			return children[c];
+			int index = indexOf(c);
+			return index < 0 ? null : children[index];
+		}
+		
+		public Node getOrCreateNode(char c, Object owner) {
+			int index = indexOf(c);
+			if (index >= 0) {
+				Node child = children[index];
+				if (child.owner != owner) {
+					child = child.copy(owner);
+					children[index] = child;
+				}
+				return child;
+			}
+			index = -index - 1;
+			if (size == keys.length) {
+				int capacity = Math.max(2, size * 2);
+				keys = Arrays.copyOf(keys, capacity);
+				children = Arrays.copyOf(children, capacity);
+			}
+			System.arraycopy(keys, index, keys, index + 1, size - index);
+			System.arraycopy(children, index, children, index + 1, size - index);
+			Node node = new Node(owner);
+			keys[index] = c;
+			children[index] = node;
+			size++;
+			return node;
+		}
+		
+		private int indexOf(char c) {
+			if (size <= 4) {
+				// Linear scans are faster than a binary search for the few edges most nodes have
+				for (int i = 0; i < size; i++) {
+					char key = keys[i];
+					if (key >= c) {
+						return key == c ? i : -i - 1;
+					}
+				}
+				return -size - 1;
+			}
+			return Arrays.binarySearch(keys, 0, size, c);
 		}
 		
-		public Node getOrCreateNode(char c) {
-			if (children[c] == null) {
-				children[c] = new Node();
+		public Node copy(Object owner) {
+			Node copy = new Node(owner);
+			copy.value = value;
+			copy.size = size;
+			if (size > 0) {
+				copy.keys = Arrays.copyOf(keys, size);
+				copy.children = Arrays.copyOf(children, size);
 			}
-			return children[c];
+			return copy;
 		}
 		
 		public Object getValue() {
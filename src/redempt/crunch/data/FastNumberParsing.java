@@ -1,10 +1,55 @@
 package redempt.crunch.data;
 
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /**
- * Utility class with some methods for parsing base 10 numbers (only ints and doubles for now) that are faster than the standard Java implementation
+ * Utility class with some methods for parsing base 10 numbers (only ints and doubles for now) that are faster than the standard Java implementation.
+ * Doubles are correctly rounded: values with up to 19 significant digits are converted with the Eisel-Lemire algorithm,
+ * and the rare inputs it cannot decide, or which have more digits, fall back to {@link Double#parseDouble(String)}.
  */
 public class FastNumberParsing {
-	
+
+	private static final int SMALLEST_POWER_OF_TEN = -342;
+	private static final int LARGEST_POWER_OF_TEN = 308;
+	private static final int MAX_MANTISSA_DIGITS = 19;
+
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/**
+	 * 128-bit approximations of 5^q for q from -342 to 308, normalized so the highest bit is set. The high and low
+	 * halves of each are stored next to each other.
+	 */
+	private static final long[] POWERS_OF_FIVE = new long[2 * (LARGEST_POWER_OF_TEN - SMALLEST_POWER_OF_TEN + 1)];
+
+	static {
+		BigInteger five = BigInteger.valueOf(5);
+		for (int q = SMALLEST_POWER_OF_TEN; q <= LARGEST_POWER_OF_TEN; q++) {
+			BigInteger power;
+			if (q >= 0) {
+				BigInteger exact = five.pow(q);
+				int shift = 128 - exact.bitLength();
+				power = shift >= 0 ? exact.shiftLeft(shift) : exact.shiftRight(-shift);
+			} else {
+				// The reciprocal is rounded up, with enough extra precision that it can be truncated to 128 bits
+				BigInteger divisor = five.pow(-q);
+				int bits = divisor.bitLength();
+				int scale = q >= -27 ? bits + 127 : 2 * bits + 128;
+				power = BigInteger.ONE.shiftLeft(scale).divide(divisor).add(BigInteger.ONE);
+				if (power.bitLength() > 128) {
+					power = power.shiftRight(power.bitLength() - 128);
+				}
+			}
+			int index = 2 * (q - SMALLEST_POWER_OF_TEN);
+			POWERS_OF_FIVE[index] = power.shiftRight(64).longValue();
+			POWERS_OF_FIVE[index + 1] = power.longValue();
+		}
+	}
+
 	/**
 	 * Parse an integer from base 10 string input
 	 * @param input The base 10 string input
@@ -13,15 +58,15 @@ public class FastNumberParsing {
 	public static int parseInt(String input) {
 		return parseInt(input, 0, input.length());
 	}
-	
+
 	/**
-	 * Parse an integer from base 10 string input
-	 * @param input The base 10 string input
+	 * Parse an integer from a range of base 10 character input, without copying it
+	 * @param input The base 10 character input
 	 * @param start The starting index to parse from, inclusive
 	 * @param end The ending index to parse to, exclusive
 	 * @return The parsed integer
 	 */
-	public static int parseInt(String input, int start, int end) {
+	public static int parseInt(CharSequence input, int start, int end) {
 		if (start == end) {
 			throw new NumberFormatException("Zero-length input");
 		}
@@ -35,14 +80,14 @@ public class FastNumberParsing {
 		for (; i < end; i++) {
 			char c = input.charAt(i);
 			if (c > '9' || c < '0') {
-				throw new NumberFormatException("Non-numeric character in input '" + input.substring(start, end) + "'");
+				throw new NumberFormatException("Non-numeric character in input '" + input.subSequence(start, end) + "'");
 			}
 			output *= 10;
 			output += c - '0';
 		}
 		return negative ? -output: output;
 	}
-	
+
 	/**
 	 * Parse a double from base 10 string input, only real number values are supported (no NaN or Infinity)
 	 * @param input The base 10 string input
@@ -51,49 +96,387 @@ public class FastNumberParsing {
 	public static double parseDouble(String input) {
 		return parseDouble(input, 0, input.length());
 	}
-	
+
 	/**
-	 * Parse a double from base 10 string input, only real number values are supported (no NaN or Infinity)
-	 * @param input The base 10 string input
+	 * Parse a double from a range of base 10 character input, without copying it. Only real number values are supported
+	 * (no NaN or Infinity), optionally followed by an exponent like {@code 1.5e-3}.
+	 * @param input The base 10 character input
 	 * @param start The starting index to parse from, inclusive
 	 * @param end The ending index to parse to, exclusive
 	 * @return The parsed double
 	 */
-	public static double parseDouble(String input, int start, int end) {
+	public static double parseDouble(CharSequence input, int start, int end) {
 		if (start == end) {
 			throw new NumberFormatException("Zero-length input");
 		}
 		int i = start;
 		boolean negative = false;
-		if (input.charAt(start) == '-') {
-			negative = true;
+		char c = input.charAt(i);
+		if (c == '-' || c == '+') {
+			negative = c == '-';
 			i++;
 		}
-		double output = 0;
-		double after = 0;
-		int decimal = -1;
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean anyDigits = false;
+		boolean decimal = false;
+		boolean truncated = false;
 		for (; i < end; i++) {
-			char c = input.charAt(i);
+			c = input.charAt(i);
+			if (c >= '0' && c <= '9') {
+				anyDigits = true;
+				if (digits < MAX_MANTISSA_DIGITS) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa != 0) {
+						digits++;
+					}
+					if (decimal) {
+						exponent--;
+					}
+				} else {
+					truncated |= c != '0';
+					if (!decimal) {
+						exponent++;
+					}
+				}
+				continue;
+			}
 			if (c == '.') {
-				if (decimal != -1) {
-					throw new NumberFormatException("Second period in double for input '" + input + "'");
+				if (decimal) {
+					throw new NumberFormatException("Second period in double for input '" + input.subSequence(start, end) + "'");
 				}
-				decimal = i;
+				decimal = true;
 				continue;
 			}
-			if (c > '9' || c < '0') {
-				throw new NumberFormatException("Non-numeric character in input '" + input + "'");
+			if ((c == 'e' || c == 'E') && anyDigits) {
+				break;
 			}
-			if (decimal != -1) {
-				after *= 10;
-				after += c - '0';
-			} else {
-				output *= 10;
-				output += c - '0';
+			throw new NumberFormatException("Non-numeric character in input '" + input.subSequence(start, end) + "'");
+		}
+		if (!anyDigits) {
+			throw new NumberFormatException("No digits in input '" + input.subSequence(start, end) + "'");
+		}
+		if (i < end) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && ((c = input.charAt(i)) == '-' || c == '+')) {
+				negativeExponent = c == '-';
+				i++;
+			}
+			if (i == end) {
+				throw new NumberFormatException("Missing exponent in input '" + input.subSequence(start, end) + "'");
+			}
+			int explicit = 0;
+			for (; i < end; i++) {
+				c = input.charAt(i);
+				if (c > '9' || c < '0') {
+					throw new NumberFormatException("Non-numeric character in input '" + input.subSequence(start, end) + "'");
+				}
+				// Anything this large overflows or underflows regardless of the mantissa
+				explicit = Math.min(explicit * 10 + (c - '0'), 100000);
+			}
+			exponent += negativeExponent ? -explicit : explicit;
+		}
+		double value = truncated ? Double.NaN : toDouble(mantissa, exponent);
+		if (Double.isNaN(value)) {
+			return Double.parseDouble(input.subSequence(start, end).toString());
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parse a double from a range of ASCII encoded base 10 input. Only real number values are supported (no NaN or
+	 * Infinity), optionally followed by an exponent like {@code 1.5e-3}.
+	 * @param input The ASCII encoded input
+	 * @param start The starting index to parse from, inclusive
+	 * @param end The ending index to parse to, exclusive
+	 * @return The parsed double
+	 */
+	public static double parseDouble(byte[] input, int start, int end) {
+		return parseDouble(ByteBuffer.wrap(input), start, end);
+	}
+
+	/**
+	 * Parse a double from a range of ASCII encoded base 10 input in a buffer, reading it with absolute gets so the
+	 * position of the buffer is not changed. Only real number values are supported (no NaN or Infinity), optionally
+	 * followed by an exponent like {@code 1.5e-3}.
+	 * @param input The buffer holding the ASCII encoded input
+	 * @param start The absolute index to parse from, inclusive
+	 * @param end The absolute index to parse to, exclusive
+	 * @return The parsed double
+	 */
+	public static double parseDouble(ByteBuffer input, int start, int end) {
+		if (start == end) {
+			throw new NumberFormatException("Zero-length input");
+		}
+		int i = start;
+		boolean negative = false;
+		int c = input.get(i);
+		if (c == '-' || c == '+') {
+			negative = c == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean anyDigits = false;
+		boolean decimal = false;
+		boolean truncated = false;
+		for (; i < end; i++) {
+			c = input.get(i);
+			if (c >= '0' && c <= '9') {
+				anyDigits = true;
+				if (digits < MAX_MANTISSA_DIGITS) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa != 0) {
+						digits++;
+					}
+					if (decimal) {
+						exponent--;
+					}
+				} else {
+					truncated |= c != '0';
+					if (!decimal) {
+						exponent++;
+					}
+				}
+				continue;
+			}
+			if (c == '.') {
+				if (decimal) {
+					throw new NumberFormatException("Second period in double for input '" + ascii(input, start, end) + "'");
+				}
+				decimal = true;
+				continue;
+			}
+			if ((c == 'e' || c == 'E') && anyDigits) {
+				break;
+			}
+			throw new NumberFormatException("Non-numeric character in input '" + ascii(input, start, end) + "'");
+		}
+		if (!anyDigits) {
+			throw new NumberFormatException("No digits in input '" + ascii(input, start, end) + "'");
+		}
+		if (i < end) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && ((c = input.get(i)) == '-' || c == '+')) {
+				negativeExponent = c == '-';
+				i++;
+			}
+			if (i == end) {
+				throw new NumberFormatException("Missing exponent in input '" + ascii(input, start, end) + "'");
+			}
+			int explicit = 0;
+			for (; i < end; i++) {
+				c = input.get(i);
+				if (c > '9' || c < '0') {
+					throw new NumberFormatException("Non-numeric character in input '" + ascii(input, start, end) + "'");
+				}
+				explicit = Math.min(explicit * 10 + (c - '0'), 100000);
+			}
+			exponent += negativeExponent ? -explicit : explicit;
+		}
+		double value = truncated ? Double.NaN : toDouble(mantissa, exponent);
+		if (Double.isNaN(value)) {
+			return Double.parseDouble(ascii(input, start, end));
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parse delimited base 10 doubles directly into a column, for example one line of comma separated values or a file
+	 * with one value per line. Whitespace around each value is ignored, and a trailing delimiter is allowed.
+	 * @param input The base 10 character input
+	 * @param start The starting index to parse from, inclusive
+	 * @param end The ending index to parse to, exclusive
+	 * @param delimiter The character separating values
+	 * @param out The column to write the values to
+	 * @param offset The index in the column to write the first value to
+	 * @return The number of values parsed
+	 */
+	public static int parseColumn(CharSequence input, int start, int end, char delimiter, double[] out, int offset) {
+		int count = 0;
+		int i = start;
+		while (i < end) {
+			int valueEnd = i;
+			while (valueEnd < end && input.charAt(valueEnd) != delimiter) {
+				valueEnd++;
+			}
+			int next = valueEnd + 1;
+			while (i < valueEnd && isSpace(input.charAt(i))) {
+				i++;
+			}
+			while (valueEnd > i && isSpace(input.charAt(valueEnd - 1))) {
+				valueEnd--;
+			}
+			if (i == valueEnd) {
+				if (next >= end) {
+					break;
+				}
+				throw new NumberFormatException("Missing value at index " + (offset + count));
+			}
+			checkCapacity(out, offset + count);
+			out[offset + count++] = parseDouble(input, i, valueEnd);
+			i = next;
+		}
+		return count;
+	}
+
+	/**
+	 * Parse delimited ASCII encoded base 10 doubles directly into a column. Whitespace around each value is ignored,
+	 * and a trailing delimiter is allowed.
+	 * @param input The ASCII encoded input
+	 * @param start The starting index to parse from, inclusive
+	 * @param end The ending index to parse to, exclusive
+	 * @param delimiter The character separating values
+	 * @param out The column to write the values to
+	 * @param offset The index in the column to write the first value to
+	 * @return The number of values parsed
+	 */
+	public static int parseColumn(byte[] input, int start, int end, char delimiter, double[] out, int offset) {
+		return parseColumn(ByteBuffer.wrap(input), start, end, delimiter, out, offset);
+	}
+
+	/**
+	 * Parse the delimited ASCII encoded base 10 doubles between the position and limit of a buffer directly into a
+	 * column, such as one column of a memory-mapped file. Whitespace around each value is ignored, a trailing
+	 * delimiter is allowed, and the position of the buffer is not changed.
+	 * @param input The buffer holding the ASCII encoded input
+	 * @param delimiter The character separating values
+	 * @param out The column to write the values to
+	 * @param offset The index in the column to write the first value to
+	 * @return The number of values parsed
+	 */
+	public static int parseColumn(ByteBuffer input, char delimiter, double[] out, int offset) {
+		return parseColumn(input, input.position(), input.limit(), delimiter, out, offset);
+	}
+
+	private static int parseColumn(ByteBuffer input, int start, int end, char delimiter, double[] out, int offset) {
+		int count = 0;
+		int i = start;
+		while (i < end) {
+			int valueEnd = i;
+			while (valueEnd < end && input.get(valueEnd) != delimiter) {
+				valueEnd++;
 			}
+			int next = valueEnd + 1;
+			while (i < valueEnd && isSpace((char) input.get(i))) {
+				i++;
+			}
+			while (valueEnd > i && isSpace((char) input.get(valueEnd - 1))) {
+				valueEnd--;
+			}
+			if (i == valueEnd) {
+				if (next >= end) {
+					break;
+				}
+				throw new NumberFormatException("Missing value at index " + (offset + count));
+			}
+			checkCapacity(out, offset + count);
+			out[offset + count++] = parseDouble(input, i, valueEnd);
+			i = next;
+		}
+		return count;
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+
+	private static void checkCapacity(double[] out, int index) {
+		if (index >= out.length) {
+			throw new IllegalArgumentException("Column of length " + out.length + " is too small for the input");
 		}
-		after /= Math.pow(10, end - decimal - 1);
-		return negative ? (-output - after) : (output + after);
 	}
-	
+
+	private static String ascii(ByteBuffer input, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = input.get(start + i);
+		}
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Computes the correctly rounded double closest to mantissa * 10^exponent
+	 * @param mantissa The decimal digits, as an unsigned integer
+	 * @param exponent The power of ten to scale the mantissa by
+	 * @return The double, or NaN if it could not be computed exactly and a slower fallback is needed
+	 */
+	private static double toDouble(long mantissa, int exponent) {
+		if (mantissa == 0 || exponent < SMALLEST_POWER_OF_TEN) {
+			return 0;
+		}
+		if (exponent > LARGEST_POWER_OF_TEN) {
+			return Double.POSITIVE_INFINITY;
+		}
+		// Both operands are exact, so the single rounding of the multiplication or division is correct
+		if (exponent >= -22 && exponent <= 22 && mantissa >= 0 && mantissa <= 1L << 53) {
+			return exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+		}
+		return eiselLemire(mantissa, exponent);
+	}
+
+	private static double eiselLemire(long w, int q) {
+		int leadingZeros = Long.numberOfLeadingZeros(w);
+		w <<= leadingZeros;
+		int index = 2 * (q - SMALLEST_POWER_OF_TEN);
+		long high = multiplyHighUnsigned(w, POWERS_OF_FIVE[index]);
+		long low = w * POWERS_OF_FIVE[index];
+		// Only the top 55 bits are needed, so the low half of the power is only used if they might be affected
+		if ((high & 0x1FF) == 0x1FF) {
+			long secondHigh = multiplyHighUnsigned(w, POWERS_OF_FIVE[index + 1]);
+			low += secondHigh;
+			if (Long.compareUnsigned(secondHigh, low) > 0) {
+				high++;
+			}
+		}
+		if (low == -1L && (q < -27 || q > 55)) {
+			return Double.NaN;
+		}
+		int upperBit = (int) (high >>> 63);
+		long mantissa = high >>> (upperBit + 9);
+		int power2 = ((217706 * q) >> 16) + 63 + upperBit - leadingZeros + 1023;
+		if (power2 <= 0) {
+			// Subnormal
+			if (-power2 + 1 >= 64) {
+				return 0;
+			}
+			mantissa >>>= -power2 + 1;
+			mantissa += mantissa & 1;
+			mantissa >>>= 1;
+			power2 = mantissa < (1L << 52) ? 0 : 1;
+			return Double.longBitsToDouble(mantissa | ((long) power2 << 52));
+		}
+		// Values exactly halfway between two doubles round to even
+		if ((low == 0 || low == 1) && q >= -4 && q <= 23 && (mantissa & 3) == 1) {
+			if ((mantissa << (upperBit + 9)) == high) {
+				mantissa &= ~1L;
+			}
+		}
+		mantissa += mantissa & 1;
+		mantissa >>>= 1;
+		if (mantissa >= (2L << 52)) {
+			mantissa = 1L << 52;
+			power2++;
+		}
+		mantissa &= ~(1L << 52);
+		if (power2 >= 0x7FF) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return Double.longBitsToDouble(mantissa | ((long) power2 << 52));
+	}
+
+	private static long multiplyHighUnsigned(long x, long y) {
+		long x0 = x & 0xFFFFFFFFL;
+		long x1 = x >>> 32;
+		long y0 = y & 0xFFFFFFFFL;
+		long y1 = y >>> 32;
+		long p01 = x0 * y1;
+		long middle = x1 * y0 + ((x0 * y0) >>> 32) + (p01 & 0xFFFFFFFFL);
+		return x1 * y1 + (middle >>> 32) + (p01 >>> 32);
+	}
+
 }
@@ -0,0 +1,398 @@
+package redempt.crunch.derivative;
+
+import redempt.crunch.CompileOptions;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.Variable;
+import redempt.crunch.bytecode.GeneratedValue;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.program.Program;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.ConditionalOperation;
+import redempt.crunch.token.Constant;
+import redempt.crunch.token.FusedMultiplyAddOperation;
+import redempt.crunch.token.IntegerPowerOperation;
+import redempt.crunch.token.LazyVariable;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.SharedValueReference;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Differentiates compiled expressions with respect to their variables. {@link #derivative(CompiledExpression, int)}
+ * builds a new expression for the derivative by one variable, which can be compiled with any backend, and
+ * {@link #gradient(CompiledExpression)} creates a {@link GradientEvaluator} which computes the value of an expression and
+ * its derivatives by every variable in a single pass.
+ * <p>
+ * Every operator is supported except {@code rand}. Comparisons, boolean operators, {@code round}, {@code floor} and
+ * {@code ceil} have a derivative of 0, and conditionals take the derivative of the branch which is selected. Lazy
+ * variables are treated as constants. Calls to functions can only be differentiated if their derivatives are set with
+ * {@link #setFunctionDerivative(String, FunctionDerivative)}, unless none of their arguments depend on the variables.
+ * Function derivatives should be set before a Differentiator is shared between threads.
+ * @author Redempt
+ */
+public class Differentiator {
+
+	private static final CompileOptions DEFAULT_OPTIONS = new CompileOptions().setSimplify(true).setEliminateCommonSubexpressions(true);
+	private static final double LN_10 = Math.log(10);
+
+	private final Map<String, FunctionDerivative> functionDerivatives = new HashMap<>();
+
+	/**
+	 * Sets the derivative of a function, which is used for calls to any function with the given name
+	 * @param name The name of the function
+	 * @param derivative The partial derivatives of the function
+	 * @return This Differentiator
+	 */
+	public Differentiator setFunctionDerivative(String name, FunctionDerivative derivative) {
+		if (name == null || derivative == null) {
+			throw new IllegalArgumentException("Name and derivative cannot be null");
+		}
+		functionDerivatives.put(name, derivative);
+		return this;
+	}
+
+	/**
+	 * Builds the derivative of an expression with respect to one of its variables. The derivative is simplified and
+	 * common subexpressions are eliminated.
+	 * @param expression The expression to differentiate
+	 * @param variable The index of the variable to differentiate by, starting with 1 as in {@code $1}
+	 * @return An expression taking the same variables which evaluates to the derivative
+	 */
+	public CompiledExpression derivative(CompiledExpression expression, int variable) {
+		return derivative(expression, variable, DEFAULT_OPTIONS);
+	}
+
+	/**
+	 * Builds the derivative of an expression with respect to one of its variables
+	 * @param expression The expression to differentiate
+	 * @param variable The index of the variable to differentiate by, starting with 1 as in {@code $1}
+	 * @param options The options the derivative is optimized and compiled with
+	 * @return An expression taking the same variables which evaluates to the derivative
+	 */
+	public CompiledExpression derivative(CompiledExpression expression, int variable, CompileOptions options) {
+		if (variable < 1) {
+			throw new IllegalArgumentException("Variable index must be at least 1");
+		}
+		Value value = new Symbolic(variable - 1).differentiate(unwrap(expression));
+		return Crunch.applyOptions(new CompiledExpression(value, expression.getVariableCount()), options);
+	}
+
+	/**
+	 * Creates an evaluator which computes the value of an expression together with its derivatives by every variable
+	 * @param expression The expression to differentiate
+	 * @return The evaluator
+	 */
+	public GradientEvaluator gradient(CompiledExpression expression) {
+		return new GradientEvaluator(unwrap(expression), expression.getVariableCount(), functionDerivatives);
+	}
+
+	static Value unwrap(CompiledExpression expression) {
+		Value value = expression.getValue();
+		if (value instanceof GeneratedValue) {
+			value = ((GeneratedValue) value).getSource();
+		}
+		if (value instanceof Program) {
+			value = ((Program) value).toTree();
+		}
+		return value;
+	}
+
+	static IllegalArgumentException unsupported(Value value) {
+		return new IllegalArgumentException("Cannot differentiate '" + value + "'");
+	}
+
+	/**
+	 * Builds the derivative of a tree symbolically. Derivatives which are known to be 0 are represented by null, so that
+	 * terms multiplied by them are dropped instead of being built and evaluated.
+	 */
+	private class Symbolic {
+
+		private final int variable;
+		private final Map<Value, Value> derivatives = new IdentityHashMap<>();
+		private final Map<Integer, Value> sharedValues = new HashMap<>();
+		private final Map<Function, Function[]> partials = new IdentityHashMap<>();
+
+		private Symbolic(int variable) {
+			this.variable = variable;
+		}
+
+		private Value differentiate(Value root) {
+			Value derivative = derive(inline(root));
+			return derivative == null ? new LiteralValue(0) : derivative;
+		}
+
+		/**
+		 * Replaces the shared values of common subexpression elimination with copies of the values they share, since
+		 * the derivative reuses parts of the original tree in a different order
+		 */
+		private Value inline(Value value) {
+			if (value instanceof SharedValue) {
+				SharedValue shared = (SharedValue) value;
+				Value inlined = inline(shared.getChild());
+				sharedValues.put(shared.getSlot(), inlined);
+				return inlined;
+			}
+			if (value instanceof SharedValueReference) {
+				SharedValueReference reference = (SharedValueReference) value;
+				Value inlined = sharedValues.get(reference.getSlot());
+				return inlined != null ? inlined : inline(reference.getShared());
+			}
+			if (value instanceof FusedMultiplyAddOperation) {
+				Value[] operands = ((FusedMultiplyAddOperation) value).getOperands();
+				Value product = BinaryOperation.create(BinaryOperator.MULTIPLY, inline(operands[0]), inline(operands[1]));
+				return new FusedMultiplyAddOperation((BinaryOperation) product, inline(operands[2]));
+			}
+			if (value instanceof IntegerPowerOperation) {
+				IntegerPowerOperation power = (IntegerPowerOperation) value;
+				return new IntegerPowerOperation(inline(power.getBase()), power.getExponent());
+			}
+			if (value instanceof BinaryOperation) {
+				BinaryOperation operation = (BinaryOperation) value;
+				Value[] values = operation.getValues();
+				return operation.withValues(inline(values[0]), inline(values[1]));
+			}
+			if (value instanceof UnaryOperation) {
+				UnaryOperation operation = (UnaryOperation) value;
+				return operation.withChild(inline(operation.getChild()));
+			}
+			if (value instanceof ConditionalOperation) {
+				ConditionalOperation conditional = (ConditionalOperation) value;
+				return conditional.withValues(inline(conditional.getCondition()), inline(conditional.getIfTrue()), inline(conditional.getIfFalse()));
+			}
+			if (value instanceof FunctionCall) {
+				FunctionCall call = (FunctionCall) value;
+				Value[] args = call.getArguments();
+				Value[] inlined = new Value[args.length];
+				for (int i = 0; i < args.length; i++) {
+					inlined[i] = inline(args[i]);
+				}
+				return FunctionCall.create(call.getFunction(), inlined);
+			}
+			return value;
+		}
+
+		private Value derive(Value value) {
+			if (derivatives.containsKey(value)) {
+				return derivatives.get(value);
+			}
+			Value derivative = deriveNode(value);
+			derivatives.put(value, derivative);
+			return derivative;
+		}
+
+		private Value deriveNode(Value value) {
+			if (value instanceof LiteralValue || value instanceof Constant || value instanceof LazyVariable) {
+				return null;
+			}
+			if (value instanceof Variable) {
+				return ((Variable) value).getIndex() == variable ? new LiteralValue(1) : null;
+			}
+			if (value instanceof IntegerPowerOperation) {
+				IntegerPowerOperation power = (IntegerPowerOperation) value;
+				Value base = power.getBase();
+				int exponent = power.getExponent();
+				Value reduced = exponent == 1 ? new LiteralValue(1) : exponent == 2 ? base : new IntegerPowerOperation(base, exponent - 1);
+				return multiply(derive(base), multiply(new LiteralValue(exponent), reduced));
+			}
+			if (value instanceof FusedMultiplyAddOperation) {
+				Value[] operands = ((FusedMultiplyAddOperation) value).getOperands();
+				return add(productRule(operands[0], operands[1]), derive(operands[2]));
+			}
+			if (value instanceof BinaryOperation) {
+				BinaryOperation operation = (BinaryOperation) value;
+				Value[] values = operation.getValues();
+				return deriveBinary(operation, values[0], values[1]);
+			}
+			if (value instanceof UnaryOperation) {
+				UnaryOperation operation = (UnaryOperation) value;
+				return deriveUnary(operation, operation.getChild());
+			}
+			if (value instanceof ConditionalOperation) {
+				ConditionalOperation conditional = (ConditionalOperation) value;
+				Value ifTrue = derive(conditional.getIfTrue());
+				Value ifFalse = derive(conditional.getIfFalse());
+				if (ifTrue == null && ifFalse == null) {
+					return null;
+				}
+				return new ConditionalOperation(conditional.getCondition(), orZero(ifTrue), orZero(ifFalse));
+			}
+			if (value instanceof FunctionCall) {
+				return deriveCall((FunctionCall) value);
+			}
+			throw unsupported(value);
+		}
+
+		private Value deriveBinary(BinaryOperation operation, Value a, Value b) {
+			switch (operation.getOperator()) {
+				case ADD:
+					return add(derive(a), derive(b));
+				case SUBTRACT:
+					return subtract(derive(a), derive(b));
+				case MULTIPLY:
+					return productRule(a, b);
+				case DIVIDE:
+					return subtract(divide(derive(a), b), divide(multiply(a, derive(b)), multiply(b, b)));
+				case MODULUS: {
+					// a % b is a - b * trunc(a / b), where trunc(a / b) is (a - a % b) / b
+					Value quotient = BinaryOperation.create(BinaryOperator.DIVIDE, BinaryOperation.create(BinaryOperator.SUBTRACT, a, operation), b);
+					return subtract(derive(a), multiply(derive(b), quotient));
+				}
+				case EXPONENT: {
+					Value da = derive(a);
+					Value db = derive(b);
+					Value baseTerm = null;
+					if (da != null) {
+						Value reduced = b instanceof LiteralValue ? new LiteralValue(b.getValue(null) - 1) : BinaryOperation.create(BinaryOperator.SUBTRACT, b, new LiteralValue(1));
+						baseTerm = multiply(da, multiply(b, BinaryOperation.create(BinaryOperator.EXPONENT, a, reduced)));
+					}
+					Value exponentTerm = db == null ? null : multiply(db, multiply(operation, unary(UnaryOperator.LOG, a)));
+					return add(baseTerm, exponentTerm);
+				}
+				case SCIENTIFIC_NOTATION: {
+					Value scale = BinaryOperation.create(BinaryOperator.EXPONENT, new LiteralValue(10), b);
+					Value db = derive(b);
+					return add(multiply(derive(a), scale), db == null ? null : multiply(db, multiply(operation, new LiteralValue(LN_10))));
+				}
+				default:
+					// Comparisons and boolean operators are piecewise constant
+					return null;
+			}
+		}
+
+		private Value deriveUnary(UnaryOperation operation, Value x) {
+			Value dx = derive(x);
+			if (dx == null) {
+				return null;
+			}
+			switch (operation.getOperator()) {
+				case NEGATE:
+					return unary(UnaryOperator.NEGATE, dx);
+				case SIN:
+					return multiply(dx, unary(UnaryOperator.COS, x));
+				case COS:
+					return unary(UnaryOperator.NEGATE, multiply(dx, unary(UnaryOperator.SIN, x)));
+				case TAN: {
+					Value cos = unary(UnaryOperator.COS, x);
+					return divide(dx, multiply(cos, cos));
+				}
+				case SINH:
+					return multiply(dx, unary(UnaryOperator.COSH, x));
+				case COSH:
+					return multiply(dx, unary(UnaryOperator.SINH, x));
+				case TANH:
+					return multiply(dx, subtract(new LiteralValue(1), multiply(operation, operation)));
+				case ASIN:
+					return divide(dx, unary(UnaryOperator.SQRT, subtract(new LiteralValue(1), multiply(x, x))));
+				case ACOS:
+					return unary(UnaryOperator.NEGATE, divide(dx, unary(UnaryOperator.SQRT, subtract(new LiteralValue(1), multiply(x, x)))));
+				case ATAN:
+					return divide(dx, add(new LiteralValue(1), multiply(x, x)));
+				case ABS: {
+					// The sign of x, which is 0 at 0
+					Value zero = new LiteralValue(0);
+					Value sign = subtract(BinaryOperation.create(BinaryOperator.GREATER_THAN, x, zero), BinaryOperation.create(BinaryOperator.LESS_THAN, x, zero));
+					return multiply(dx, sign);
+				}
+				case LOG:
+					return divide(dx, x);
+				case SQRT:
+					return divide(dx, multiply(new LiteralValue(2), operation));
+				case CBRT:
+					return divide(dx, multiply(new LiteralValue(3), multiply(operation, operation)));
+				case RAND:
+					throw unsupported(operation);
+				default:
+					// not, round, floor and ceil are piecewise constant
+					return null;
+			}
+		}
+
+		private Value deriveCall(FunctionCall call) {
+			Value[] args = call.getArguments();
+			Value result = null;
+			for (int i = 0; i < args.length; i++) {
+				Value derivative = derive(args[i]);
+				if (derivative == null) {
+					continue;
+				}
+				Function partial = partials(call.getFunction())[i];
+				result = add(result, multiply(derivative, FunctionCall.create(partial, args)));
+			}
+			return result;
+		}
+
+		private Function[] partials(Function function) {
+			Function[] cached = partials.get(function);
+			if (cached != null) {
+				return cached;
+			}
+			FunctionDerivative derivative = functionDerivatives.get(function.getName());
+			if (derivative == null) {
+				throw new IllegalArgumentException("No derivative is set for function '" + function.getName() + "'");
+			}
+			Function[] created = new Function[function.getArgCount()];
+			for (int i = 0; i < created.length; i++) {
+				int argument = i;
+				created[i] = new Function(function.getName() + "_d" + (i + 1), function.getArgCount(),
+						args -> derivative.partial(args, argument), function.isPure());
+			}
+			partials.put(function, created);
+			return created;
+		}
+
+		private Value productRule(Value a, Value b) {
+			return add(multiply(derive(a), b), multiply(a, derive(b)));
+		}
+
+	}
+
+	private static Value orZero(Value value) {
+		return value == null ? new LiteralValue(0) : value;
+	}
+
+	private static Value unary(UnaryOperator operator, Value value) {
+		return UnaryOperation.create(operator, value);
+	}
+
+	private static Value add(Value a, Value b) {
+		if (a == null || b == null) {
+			return a == null ? b : a;
+		}
+		return BinaryOperation.create(BinaryOperator.ADD, a, b);
+	}
+
+	private static Value subtract(Value a, Value b) {
+		if (b == null) {
+			return a;
+		}
+		return a == null ? unary(UnaryOperator.NEGATE, b) : BinaryOperation.create(BinaryOperator.SUBTRACT, a, b);
+	}
+
+	private static Value multiply(Value a, Value b) {
+		if (a == null || b == null) {
+			return null;
+		}
+		if (isOne(a)) {
+			return b;
+		}
+		return isOne(b) ? a : BinaryOperation.create(BinaryOperator.MULTIPLY, a, b);
+	}
+
+	private static Value divide(Value a, Value b) {
+		return a == null ? null : BinaryOperation.create(BinaryOperator.DIVIDE, a, b);
+	}
+
+	private static boolean isOne(Value value) {
+		return value instanceof LiteralValue && value.getValue(null) == 1;
+	}
+
+}
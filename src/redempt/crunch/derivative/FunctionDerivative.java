@@ -0,0 +1,19 @@
+package redempt.crunch.derivative;
+
+/**
+ * Computes the partial derivatives of a {@link redempt.crunch.functional.Function}, so that expressions calling it can
+ * be differentiated by a {@link Differentiator}
+ * @author Redempt
+ */
+@FunctionalInterface
+public interface FunctionDerivative {
+
+	/**
+	 * Computes the partial derivative of the function with respect to one of its arguments
+	 * @param args The values of the arguments - Warning, this array must not be modified
+	 * @param argument The index of the argument to differentiate by, starting with 0
+	 * @return The partial derivative at the given arguments
+	 */
+	double partial(double[] args, int argument);
+
+}
@@ -0,0 +1,404 @@
+package redempt.crunch.derivative;
+
+import redempt.crunch.Variable;
+import redempt.crunch.exceptions.ExpressionEvaluationException;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.ConditionalOperation;
+import redempt.crunch.token.Constant;
+import redempt.crunch.token.FusedMultiplyAddOperation;
+import redempt.crunch.token.IntegerPowerOperation;
+import redempt.crunch.token.LazyVariable;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.SharedValueReference;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes the value of an expression together with its derivatives by every one of its variables using reverse-mode
+ * automatic differentiation. The expression is flattened into a list of operations when the evaluator is created. Each
+ * evaluation runs the operations forward to compute the value, then runs them backward once to accumulate the derivative
+ * of the result by every intermediate value, so the whole gradient costs only a small multiple of one evaluation
+ * regardless of the number of variables.
+ * <p>
+ * Both operands of boolean operators and both branches of conditionals are always evaluated. A GradientEvaluator holds
+ * no evaluation state, so it can be used from any number of threads at once. Create one with {@link Differentiator#gradient(redempt.crunch.CompiledExpression)}.
+ * @author Redempt
+ */
+public class GradientEvaluator {
+
+	private static final int CONSTANT = 0;
+	private static final int VARIABLE = 1;
+	private static final int VALUE = 2;
+	private static final int UNARY = 3;
+	private static final int BINARY = 4;
+	private static final int INTEGER_POWER = 5;
+	private static final int FUSED_MULTIPLY_ADD = 6;
+	private static final int CONDITIONAL = 7;
+	private static final int CALL = 8;
+
+	private static final double LN_10 = Math.log(10);
+
+	private final int variableCount;
+	private final Map<String, FunctionDerivative> functionDerivatives;
+	private final Map<Integer, Integer> sharedNodes = new HashMap<>();
+
+	private int size;
+	private int[] opcodes = new int[16];
+	private int[][] operands = new int[16][];
+	private double[] constants = new double[16];
+	private Object[] references = new Object[16];
+	// Whether each node depends on a variable with a nonzero derivative, since derivatives are only propagated to nodes
+	// which do. Piecewise constant operations like floor and comparisons are inactive, so the infinite or NaN partials
+	// of their operands add nothing.
+	private boolean[] active = new boolean[16];
+
+	GradientEvaluator(Value root, int variableCount, Map<String, FunctionDerivative> functionDerivatives) {
+		this.variableCount = variableCount;
+		this.functionDerivatives = functionDerivatives;
+		compile(root);
+		opcodes = Arrays.copyOf(opcodes, size);
+		operands = Arrays.copyOf(operands, size);
+		constants = Arrays.copyOf(constants, size);
+		references = Arrays.copyOf(references, size);
+		active = Arrays.copyOf(active, size);
+	}
+
+	/**
+	 * @return The number of variables used in the expression
+	 */
+	public int getVariableCount() {
+		return variableCount;
+	}
+
+	/**
+	 * Evaluates the expression and its derivative by every variable
+	 * @param values The values for variables used in the expression, in order starting with 1
+	 * @param gradient The array to write the derivative by each variable to, in the same order as the variables
+	 * @return The value of the expression
+	 */
+	public double evaluate(double[] values, double[] gradient) {
+		if (values.length < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable values - expected " + variableCount + ", got " + values.length);
+		}
+		if (gradient.length < variableCount) {
+			throw new IllegalArgumentException("Gradient array has fewer than " + variableCount + " elements");
+		}
+		double[] results = new double[size];
+		forward(values, results);
+		Arrays.fill(gradient, 0, variableCount, 0);
+		double[] adjoints = new double[size];
+		adjoints[size - 1] = 1;
+		backward(results, adjoints, gradient);
+		return results[size - 1];
+	}
+
+	private void forward(double[] values, double[] results) {
+		for (int i = 0; i < size; i++) {
+			int[] args = operands[i];
+			switch (opcodes[i]) {
+				case CONSTANT:
+					results[i] = constants[i];
+					break;
+				case VARIABLE:
+					results[i] = values[args[0]];
+					break;
+				case VALUE:
+					results[i] = ((Value) references[i]).getValue(values);
+					break;
+				case UNARY:
+					results[i] = ((UnaryOperator) references[i]).getOperation().applyAsDouble(results[args[0]]);
+					break;
+				case BINARY:
+					results[i] = ((BinaryOperator) references[i]).getOperation().applyAsDouble(results[args[0]], results[args[1]]);
+					break;
+				case INTEGER_POWER:
+					results[i] = IntegerPowerOperation.power(results[args[0]], (int) constants[i]);
+					break;
+				case FUSED_MULTIPLY_ADD:
+					results[i] = FusedMultiplyAddOperation.fma(results[args[0]], results[args[1]], results[args[2]]);
+					break;
+				case CONDITIONAL:
+					results[i] = results[args[0]] == 1 ? results[args[1]] : results[args[2]];
+					break;
+				case CALL: {
+					double[] callArgs = new double[args.length];
+					for (int j = 0; j < args.length; j++) {
+						callArgs[j] = results[args[j]];
+					}
+					results[i] = ((Function) references[i]).call(callArgs);
+					break;
+				}
+			}
+		}
+	}
+
+	private void backward(double[] results, double[] adjoints, double[] gradient) {
+		for (int i = size - 1; i >= 0; i--) {
+			double adjoint = adjoints[i];
+			// Nodes which do not affect the result are skipped, so infinite partials in unselected branches add nothing
+			if (adjoint == 0 || !active[i]) {
+				continue;
+			}
+			int[] args = operands[i];
+			switch (opcodes[i]) {
+				case VARIABLE:
+					gradient[args[0]] += adjoint;
+					break;
+				case UNARY:
+					propagate(adjoints, args[0], adjoint, unaryPartial((UnaryOperator) references[i], results[args[0]], results[i]));
+					break;
+				case BINARY:
+					backwardBinary((BinaryOperator) references[i], results, adjoints, args, adjoint, results[i]);
+					break;
+				case INTEGER_POWER: {
+					int exponent = (int) constants[i];
+					double reduced = exponent == 1 ? 1 : IntegerPowerOperation.power(results[args[0]], exponent - 1);
+					propagate(adjoints, args[0], adjoint, exponent * reduced);
+					break;
+				}
+				case FUSED_MULTIPLY_ADD:
+					propagate(adjoints, args[0], adjoint, results[args[1]]);
+					propagate(adjoints, args[1], adjoint, results[args[0]]);
+					propagate(adjoints, args[2], adjoint, 1);
+					break;
+				case CONDITIONAL:
+					propagate(adjoints, results[args[0]] == 1 ? args[1] : args[2], adjoint, 1);
+					break;
+				case CALL: {
+					FunctionDerivative derivative = functionDerivatives.get(((Function) references[i]).getName());
+					double[] callArgs = new double[args.length];
+					for (int j = 0; j < args.length; j++) {
+						callArgs[j] = results[args[j]];
+					}
+					for (int j = 0; j < args.length; j++) {
+						if (active[args[j]]) {
+							propagate(adjoints, args[j], adjoint, derivative.partial(callArgs, j));
+						}
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	private void backwardBinary(BinaryOperator operator, double[] results, double[] adjoints, int[] args, double adjoint, double result) {
+		double a = results[args[0]];
+		double b = results[args[1]];
+		switch (operator) {
+			case ADD:
+				propagate(adjoints, args[0], adjoint, 1);
+				propagate(adjoints, args[1], adjoint, 1);
+				break;
+			case SUBTRACT:
+				propagate(adjoints, args[0], adjoint, 1);
+				propagate(adjoints, args[1], adjoint, -1);
+				break;
+			case MULTIPLY:
+				propagate(adjoints, args[0], adjoint, b);
+				propagate(adjoints, args[1], adjoint, a);
+				break;
+			case DIVIDE:
+				propagate(adjoints, args[0], adjoint, 1 / b);
+				propagate(adjoints, args[1], adjoint, -result / b);
+				break;
+			case MODULUS:
+				propagate(adjoints, args[0], adjoint, 1);
+				propagate(adjoints, args[1], adjoint, -((a - result) / b));
+				break;
+			case EXPONENT:
+				propagate(adjoints, args[0], adjoint, b * Math.pow(a, b - 1));
+				propagate(adjoints, args[1], adjoint, result * Math.log(a));
+				break;
+			case SCIENTIFIC_NOTATION:
+				propagate(adjoints, args[0], adjoint, Math.pow(10, b));
+				propagate(adjoints, args[1], adjoint, result * LN_10);
+				break;
+			default:
+				// Comparisons and boolean operators are piecewise constant
+				break;
+		}
+	}
+
+	/**
+	 * Adds the derivative of the result by a node through one of its uses. A partial of exactly 0 adds nothing, even
+	 * when the adjoint is infinite or NaN, matching the symbolic derivative which drops terms multiplied by 0.
+	 * @param adjoint The derivative of the result by the node using this one
+	 * @param partial The derivative of the node using this one by this one
+	 */
+	private void propagate(double[] adjoints, int node, double adjoint, double partial) {
+		if (active[node] && partial != 0) {
+			adjoints[node] += adjoint * partial;
+		}
+	}
+
+	private static double unaryPartial(UnaryOperator operator, double x, double result) {
+		switch (operator) {
+			case NEGATE:
+				return -1;
+			case SIN:
+				return Math.cos(x);
+			case COS:
+				return -Math.sin(x);
+			case TAN: {
+				double cos = Math.cos(x);
+				return 1 / (cos * cos);
+			}
+			case SINH:
+				return Math.cosh(x);
+			case COSH:
+				return Math.sinh(x);
+			case TANH:
+				return 1 - result * result;
+			case ASIN:
+				return 1 / Math.sqrt(1 - x * x);
+			case ACOS:
+				return -1 / Math.sqrt(1 - x * x);
+			case ATAN:
+				return 1 / (1 + x * x);
+			case ABS:
+				return Math.signum(x);
+			case LOG:
+				return 1 / x;
+			case SQRT:
+				return 1 / (2 * result);
+			case CBRT:
+				return 1 / (3 * result * result);
+			default:
+				// not, round, floor and ceil are piecewise constant
+				return 0;
+		}
+	}
+
+	private static boolean isPiecewiseConstant(UnaryOperator operator) {
+		switch (operator) {
+			case NOT:
+			case ROUND:
+			case FLOOR:
+			case CEIL:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static boolean isPiecewiseConstant(BinaryOperator operator) {
+		switch (operator) {
+			case ADD:
+			case SUBTRACT:
+			case MULTIPLY:
+			case DIVIDE:
+			case MODULUS:
+			case EXPONENT:
+			case SCIENTIFIC_NOTATION:
+				return false;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Appends the operations computing a value after the operations computing its operands
+	 * @return The index of the node holding the value
+	 */
+	private int compile(Value value) {
+		if (value instanceof LiteralValue || value instanceof Constant) {
+			return add(CONSTANT, value.getValue(null), null, false);
+		}
+		if (value instanceof Variable) {
+			int index = ((Variable) value).getIndex();
+			return add(VARIABLE, 0, null, true, index);
+		}
+		if (value instanceof LazyVariable) {
+			return add(VALUE, 0, value, false);
+		}
+		if (value instanceof IntegerPowerOperation) {
+			IntegerPowerOperation power = (IntegerPowerOperation) value;
+			int base = compile(power.getBase());
+			return add(INTEGER_POWER, power.getExponent(), null, active[base], base);
+		}
+		if (value instanceof FusedMultiplyAddOperation) {
+			Value[] values = ((FusedMultiplyAddOperation) value).getOperands();
+			int a = compile(values[0]);
+			int b = compile(values[1]);
+			int c = compile(values[2]);
+			return add(FUSED_MULTIPLY_ADD, 0, null, active[a] || active[b] || active[c], a, b, c);
+		}
+		if (value instanceof BinaryOperation) {
+			BinaryOperation operation = (BinaryOperation) value;
+			Value[] values = operation.getValues();
+			int a = compile(values[0]);
+			int b = compile(values[1]);
+			BinaryOperator operator = operation.getOperator();
+			return add(BINARY, 0, operator, (active[a] || active[b]) && !isPiecewiseConstant(operator), a, b);
+		}
+		if (value instanceof UnaryOperation) {
+			UnaryOperation operation = (UnaryOperation) value;
+			int child = compile(operation.getChild());
+			if (operation.getOperator() == UnaryOperator.RAND && active[child]) {
+				throw Differentiator.unsupported(value);
+			}
+			return add(UNARY, 0, operation.getOperator(), active[child] && !isPiecewiseConstant(operation.getOperator()), child);
+		}
+		if (value instanceof ConditionalOperation) {
+			ConditionalOperation conditional = (ConditionalOperation) value;
+			int condition = compile(conditional.getCondition());
+			int ifTrue = compile(conditional.getIfTrue());
+			int ifFalse = compile(conditional.getIfFalse());
+			return add(CONDITIONAL, 0, null, active[ifTrue] || active[ifFalse], condition, ifTrue, ifFalse);
+		}
+		if (value instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) value;
+			Value[] values = call.getArguments();
+			int[] args = new int[values.length];
+			boolean depends = false;
+			for (int i = 0; i < args.length; i++) {
+				args[i] = compile(values[i]);
+				depends |= active[args[i]];
+			}
+			Function function = call.getFunction();
+			if (depends && !functionDerivatives.containsKey(function.getName())) {
+				throw new IllegalArgumentException("No derivative is set for function '" + function.getName() + "'");
+			}
+			return add(CALL, 0, function, depends, args);
+		}
+		if (value instanceof SharedValue) {
+			SharedValue shared = (SharedValue) value;
+			int node = compile(shared.getChild());
+			sharedNodes.put(shared.getSlot(), node);
+			return node;
+		}
+		if (value instanceof SharedValueReference) {
+			SharedValueReference reference = (SharedValueReference) value;
+			Integer node = sharedNodes.get(reference.getSlot());
+			return node != null ? node : compile(reference.getShared());
+		}
+		throw Differentiator.unsupported(value);
+	}
+
+	private int add(int opcode, double constant, Object reference, boolean active, int... args) {
+		if (size == opcodes.length) {
+			int capacity = size * 2;
+			opcodes = Arrays.copyOf(opcodes, capacity);
+			operands = Arrays.copyOf(operands, capacity);
+			constants = Arrays.copyOf(constants, capacity);
+			references = Arrays.copyOf(references, capacity);
+			this.active = Arrays.copyOf(this.active, capacity);
+		}
+		opcodes[size] = opcode;
+		operands[size] = args;
+		constants[size] = constant;
+		references[size] = reference;
+		this.active[size] = active;
+		return size++;
+	}
+
+}
@@ -0,0 +1,29 @@
+package redempt.crunch.functional;
+
+import redempt.crunch.token.Value;
+
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * Calls a function taking two arguments through its DoubleBinaryOperator, without packing the arguments into an array
+ * @author Redempt
+ */
+final class BinaryFunctionCall extends FunctionCall {
+	
+	private final DoubleBinaryOperator operator;
+	private final Value first;
+	private final Value second;
+	
+	BinaryFunctionCall(Function function, Value[] values) {
+		super(function, values);
+		this.operator = function.getBinaryOperator();
+		this.first = values[0];
+		this.second = values[1];
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		return operator.applyAsDouble(first.getValue(variableValues), second.getValue(variableValues));
+	}
+	
+}
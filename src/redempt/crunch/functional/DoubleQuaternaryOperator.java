@@ -0,0 +1,20 @@
+package redempt.crunch.functional;
+
+/**
+ * An operation on four double values producing a double, for functions called with four arguments
+ * @author Redempt
+ */
+@FunctionalInterface
+public interface DoubleQuaternaryOperator {
+	
+	/**
+	 * Applies this operator to its arguments
+	 * @param first The first argument
+	 * @param second The second argument
+	 * @param third The third argument
+	 * @param fourth The fourth argument
+	 * @return The result
+	 */
+	double applyAsDouble(double first, double second, double third, double fourth);
+	
+}
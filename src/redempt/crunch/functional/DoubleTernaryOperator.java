@@ -0,0 +1,19 @@
+package redempt.crunch.functional;
+
+/**
+ * An operation on three double values producing a double, for functions called with three arguments
+ * @author Redempt
+ */
+@FunctionalInterface
+public interface DoubleTernaryOperator {
+	
+	/**
+	 * Applies this operator to its arguments
+	 * @param first The first argument
+	 * @param second The second argument
+	 * @param third The third argument
+	 * @return The result
+	 */
+	double applyAsDouble(double first, double second, double third);
+	
+}
@@ -5,36 +5,101 @@ import redempt.crunch.data.CharTree;
 import redempt.crunch.token.*;
 
 import java.util.Locale;
+import java.util.function.DoubleBinaryOperator;
 import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.ToDoubleFunction;
 
 /**
  * Represents an environment containing functions that can be called in expressions
+ * <p>
+ * An environment can be frozen with {@link #freeze()}, after which it can no longer be modified and can be shared
+ * between threads. A frozen environment can be used as the parent of any number of child environments, which start
+ * with all of its names and can add their own. Children share the parent's symbol tables instead of copying them, and
+ * look names up exactly as fast as an environment built from scratch.
  *
  * @author Redempt
  */
 public class ExpressionEnv {
-    private final CharTree<BinaryOperator> binaryOperators = new CharTree<>();
-    private final CharTree<Token> leadingOperators = new CharTree<>();
-    private final CharTree<Value> values = new CharTree<>();
+    // The built in names are inserted once, and every environment starts from a copy of these trees
+    private static final CharTree<BinaryOperator> DEFAULT_BINARY_OPERATORS = new CharTree<>();
+    private static final CharTree<Token> DEFAULT_LEADING_OPERATORS = new CharTree<>();
+    private static final CharTree<Value> DEFAULT_VALUES = new CharTree<>();
+
+    static {
+        for (final BinaryOperator operator : BinaryOperator.values()) {
+            DEFAULT_BINARY_OPERATORS.set(operator.getSymbol(), operator);
+        }
+        for (final UnaryOperator operator : UnaryOperator.values()) {
+            DEFAULT_LEADING_OPERATORS.set(operator.getSymbol(), operator);
+        }
+        for (final Constant constant : Constant.values()) {
+            DEFAULT_VALUES.set(constant.toString().toLowerCase(Locale.ROOT), constant);
+        }
+        DEFAULT_LEADING_OPERATORS.set("if", ConditionalOperation.FACTORY);
+        DEFAULT_BINARY_OPERATORS.freeze();
+        DEFAULT_LEADING_OPERATORS.freeze();
+        DEFAULT_VALUES.freeze();
+    }
+
+    private final CharTree<BinaryOperator> binaryOperators;
+    private final CharTree<Token> leadingOperators;
+    private final CharTree<Value> values;
     private int varCount = 0;
+    private int modificationCount;
+    private volatile boolean frozen;
 
     /**
      * Creates a new EvaluationEnvironment
      */
     public ExpressionEnv() {
-        for (final BinaryOperator operator : BinaryOperator.values()) {
-            this.binaryOperators.set(operator.getSymbol(), operator);
-        }
-        for (final UnaryOperator operator : UnaryOperator.values()) {
-            this.leadingOperators.set(operator.getSymbol(), operator);
+        this.binaryOperators = new CharTree<>(DEFAULT_BINARY_OPERATORS);
+        this.leadingOperators = new CharTree<>(DEFAULT_LEADING_OPERATORS);
+        this.values = new CharTree<>(DEFAULT_VALUES);
+    }
+
+    /**
+     * Creates a new EvaluationEnvironment layered on a frozen parent. It starts with every function, variable and
+     * operator of the parent, and names added to it are not visible to the parent or to any other child.
+     *
+     * @param parent The frozen environment to build on
+     */
+    public ExpressionEnv(ExpressionEnv parent) {
+        if (parent == null) {
+            throw new IllegalArgumentException("Parent cannot be null");
         }
-        for (final Constant constant : Constant.values()) {
-            this.values.set(constant.toString().toLowerCase(Locale.ROOT), constant);
+        if (!parent.isFrozen()) {
+            throw new IllegalArgumentException("Parent environment must be frozen");
         }
+        this.binaryOperators = new CharTree<>(parent.binaryOperators);
+        this.leadingOperators = new CharTree<>(parent.leadingOperators);
+        this.values = new CharTree<>(parent.values);
+        this.varCount = parent.varCount;
+    }
+
+    /**
+     * Makes this environment immutable, so that it can be shared between threads and used as the parent of other
+     * environments. Any attempt to add to a frozen environment throws an {@link IllegalStateException}.
+     *
+     * @return This environment
+     */
+    public ExpressionEnv freeze() {
+        this.binaryOperators.freeze();
+        this.leadingOperators.freeze();
+        this.values.freeze();
+        this.frozen = true;
+        return this;
+    }
+
+    /**
+     * @return Whether this environment has been frozen and can no longer be modified
+     */
+    public boolean isFrozen() {
+        return this.frozen;
     }
 
     public void addFunctionFactory(String name, FunctionFactory factory) {
+        this.checkMutable();
         this.leadingOperators.set(name.toLowerCase(Locale.ROOT), factory);
     }
 
@@ -48,6 +113,7 @@ public class ExpressionEnv {
             throw new IllegalArgumentException("Function cannot be null");
         }
 
+        this.checkMutable();
         final String name = function.getName();
         this.checkName(name);
         this.leadingOperators.set(name, function);
@@ -81,6 +147,7 @@ public class ExpressionEnv {
             throw new IllegalArgumentException("Supply cannot be null");
         }
 
+        this.checkMutable();
         this.checkName(name);
         this.values.set(name, new LazyVariable(name, supply));
         return this;
@@ -90,6 +157,7 @@ public class ExpressionEnv {
         if (names == null) {
             throw new IllegalArgumentException("Names cannot be null");
         }
+        this.checkMutable();
 
         this.varCount = names.length;
         for (int i = 0; i < names.length; i++) {
@@ -111,6 +179,111 @@ public class ExpressionEnv {
         return this;
     }
 
+    /**
+     * Adds a Function that can be called from expressions with this environment
+     *
+     * @param name     The function name
+     * @param argCount The argument count for the function
+     * @param func     The lambda to accept the arguments as a double array and return a value
+     * @param pure     Whether the function always returns the same value for the same arguments and has no side effects
+     */
+    public ExpressionEnv addFunction(String name, int argCount, ToDoubleFunction<double[]> func, boolean pure) {
+        this.addFunction(new Function(name, argCount, func, pure));
+        return this;
+    }
+
+    /**
+     * Adds a Function taking one argument that can be called from expressions with this environment.
+     * The arguments are passed directly, without being packed into an array.
+     *
+     * @param name The function name
+     * @param func The lambda to accept the argument and return a value
+     */
+    public ExpressionEnv addFunction(String name, DoubleUnaryOperator func) {
+        return this.addFunction(name, func, false);
+    }
+
+    /**
+     * Adds a Function taking one argument that can be called from expressions with this environment.
+     * The arguments are passed directly, without being packed into an array.
+     *
+     * @param name The function name
+     * @param func The lambda to accept the argument and return a value
+     * @param pure Whether the function always returns the same value for the same argument and has no side effects
+     */
+    public ExpressionEnv addFunction(String name, DoubleUnaryOperator func, boolean pure) {
+        return this.addFunction(new Function(name, func, pure));
+    }
+
+    /**
+     * Adds a Function taking two arguments that can be called from expressions with this environment.
+     * The arguments are passed directly, without being packed into an array.
+     *
+     * @param name The function name
+     * @param func The lambda to accept the arguments and return a value
+     */
+    public ExpressionEnv addFunction(String name, DoubleBinaryOperator func) {
+        return this.addFunction(name, func, false);
+    }
+
+    /**
+     * Adds a Function taking two arguments that can be called from expressions with this environment.
+     * The arguments are passed directly, without being packed into an array.
+     *
+     * @param name The function name
+     * @param func The lambda to accept the arguments and return a value
+     * @param pure Whether the function always returns the same value for the same arguments and has no side effects
+     */
+    public ExpressionEnv addFunction(String name, DoubleBinaryOperator func, boolean pure) {
+        return this.addFunction(new Function(name, func, pure));
+    }
+
+    /**
+     * Adds a Function taking three arguments that can be called from expressions with this environment.
+     * The arguments are passed directly, without being packed into an array.
+     *
+     * @param name The function name
+     * @param func The lambda to accept the arguments and return a value
+     */
+    public ExpressionEnv addFunction(String name, DoubleTernaryOperator func) {
+        return this.addFunction(name, func, false);
+    }
+
+    /**
+     * Adds a Function taking three arguments that can be called from expressions with this environment.
+     * The arguments are passed directly, without being packed into an array.
+     *
+     * @param name The function name
+     * @param func The lambda to accept the arguments and return a value
+     * @param pure Whether the function always returns the same value for the same arguments and has no side effects
+     */
+    public ExpressionEnv addFunction(String name, DoubleTernaryOperator func, boolean pure) {
+        return this.addFunction(new Function(name, func, pure));
+    }
+
+    /**
+     * Adds a Function taking four arguments that can be called from expressions with this environment.
+     * The arguments are passed directly, without being packed into an array.
+     *
+     * @param name The function name
+     * @param func The lambda to accept the arguments and return a value
+     */
+    public ExpressionEnv addFunction(String name, DoubleQuaternaryOperator func) {
+        return this.addFunction(name, func, false);
+    }
+
+    /**
+     * Adds a Function taking four arguments that can be called from expressions with this environment.
+     * The arguments are passed directly, without being packed into an array.
+     *
+     * @param name The function name
+     * @param func The lambda to accept the arguments and return a value
+     * @param pure Whether the function always returns the same value for the same arguments and has no side effects
+     */
+    public ExpressionEnv addFunction(String name, DoubleQuaternaryOperator func, boolean pure) {
+        return this.addFunction(new Function(name, func, pure));
+    }
+
     /**
      * @return The prefix tree of all leading operators, including unary operators and functions
      */
@@ -139,6 +312,25 @@ public class ExpressionEnv {
         return this.varCount;
     }
 
+    /**
+     * Gets the number of times functions, variables or variable names have been added to this environment. Expressions
+     * compiled before a modification may not be the same as those compiled after it.
+     * @return The number of modifications made to this environment
+     */
+    public int getModificationCount() {
+        return this.modificationCount;
+    }
+
+    /**
+     * Checks that this environment can be modified, and counts the modification about to be made
+     */
+    private void checkMutable() {
+        if (this.frozen) {
+            throw new IllegalStateException("Environment is frozen");
+        }
+        this.modificationCount++;
+    }
+
     private void checkName(String name) {
         if (name == null || name.isEmpty()) {
             throw new IllegalArgumentException("Identifier cannot be empty or null");
@@ -3,6 +3,8 @@ package redempt.crunch.functional;
 import redempt.crunch.token.Token;
 import redempt.crunch.token.TokenType;
 
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.ToDoubleFunction;
 
 /**
@@ -14,6 +16,8 @@ public class Function implements Token {
 	private final String name;
 	private final int argCount;
 	private final ToDoubleFunction<double[]> function;
+	private final boolean pure;
+	private final Object operator;
 	
 	/**
 	 * Create a Function
@@ -22,9 +26,67 @@ public class Function implements Token {
 	 * @param function A lambda to take the arguments as a double array and return a value
 	 */
 	public Function(String name, int argCount, ToDoubleFunction<double[]> function) {
+		this(name, argCount, function, false);
+	}
+	
+	/**
+	 * Create a Function
+	 * @param name The function name
+	 * @param argCount The number of arguments this Function will take
+	 * @param function A lambda to take the arguments as a double array and return a value
+	 * @param pure Whether the function always returns the same value for the same arguments and has no side effects,
+	 *             which allows calls with constant arguments to be evaluated at compile time
+	 */
+	public Function(String name, int argCount, ToDoubleFunction<double[]> function, boolean pure) {
+		this(name, argCount, function, pure, null);
+	}
+	
+	/**
+	 * Create a Function taking one argument, which is called without packing its argument into an array
+	 * @param name The function name
+	 * @param function A lambda to take the argument and return a value
+	 * @param pure Whether the function always returns the same value for the same arguments and has no side effects
+	 */
+	public Function(String name, DoubleUnaryOperator function, boolean pure) {
+		this(name, 1, d -> function.applyAsDouble(d[0]), pure, function);
+	}
+	
+	/**
+	 * Create a Function taking two arguments, which is called without packing its arguments into an array
+	 * @param name The function name
+	 * @param function A lambda to take the arguments and return a value
+	 * @param pure Whether the function always returns the same value for the same arguments and has no side effects
+	 */
+	public Function(String name, DoubleBinaryOperator function, boolean pure) {
+		this(name, 2, d -> function.applyAsDouble(d[0], d[1]), pure, function);
+	}
+	
+	/**
+	 * Create a Function taking three arguments, which is called without packing its arguments into an array
+	 * @param name The function name
+	 * @param function A lambda to take the arguments and return a value
+	 * @param pure Whether the function always returns the same value for the same arguments and has no side effects
+	 */
+	public Function(String name, DoubleTernaryOperator function, boolean pure) {
+		this(name, 3, d -> function.applyAsDouble(d[0], d[1], d[2]), pure, function);
+	}
+	
+	/**
+	 * Create a Function taking four arguments, which is called without packing its arguments into an array
+	 * @param name The function name
+	 * @param function A lambda to take the arguments and return a value
+	 * @param pure Whether the function always returns the same value for the same arguments and has no side effects
+	 */
+	public Function(String name, DoubleQuaternaryOperator function, boolean pure) {
+		this(name, 4, d -> function.applyAsDouble(d[0], d[1], d[2], d[3]), pure, function);
+	}
+	
+	private Function(String name, int argCount, ToDoubleFunction<double[]> function, boolean pure, Object operator) {
 		this.function = function;
 		this.name = name;
 		this.argCount = argCount;
+		this.pure = pure;
+		this.operator = operator;
 	}
 	
 	/**
@@ -41,6 +103,41 @@ public class Function implements Token {
 		return argCount;
 	}
 	
+	/**
+	 * @return Whether this function always returns the same value for the same arguments and has no side effects
+	 */
+	public boolean isPure() {
+		return pure;
+	}
+	
+	/**
+	 * @return The operator this function was created with if it takes one argument without an array, otherwise null
+	 */
+	public DoubleUnaryOperator getUnaryOperator() {
+		return operator instanceof DoubleUnaryOperator ? (DoubleUnaryOperator) operator : null;
+	}
+	
+	/**
+	 * @return The operator this function was created with if it takes two arguments without an array, otherwise null
+	 */
+	public DoubleBinaryOperator getBinaryOperator() {
+		return operator instanceof DoubleBinaryOperator ? (DoubleBinaryOperator) operator : null;
+	}
+	
+	/**
+	 * @return The operator this function was created with if it takes three arguments without an array, otherwise null
+	 */
+	public DoubleTernaryOperator getTernaryOperator() {
+		return operator instanceof DoubleTernaryOperator ? (DoubleTernaryOperator) operator : null;
+	}
+	
+	/**
+	 * @return The operator this function was created with if it takes four arguments without an array, otherwise null
+	 */
+	public DoubleQuaternaryOperator getQuaternaryOperator() {
+		return operator instanceof DoubleQuaternaryOperator ? (DoubleQuaternaryOperator) operator : null;
+	}
+	
 	/**
 	 * Calls this function with a set of values - Warning, no validation is done on array size
 	 * @param values The input values
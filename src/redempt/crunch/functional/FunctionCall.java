@@ -4,21 +4,57 @@ import redempt.crunch.token.TokenType;
 import redempt.crunch.token.Value;
 
 /**
- * Represents a lazy function call with other lazy values as function arguments
+ * Represents a lazy function call with other lazy values as function arguments. The argument array passed to the
+ * function is created for each call, so a FunctionCall holds no mutable state and can be evaluated from many threads.
  * @author Redempt
  */
 public class FunctionCall implements Value {
 	
 	private final Value[] values;
 	private final Function function;
-	private final double[] numbers;
 	
 	public FunctionCall(Function function, Value[] values) {
 		this.function = function;
 		this.values = values;
-		numbers = new double[function.getArgCount()];
 	}
 	
+	/**
+	 * Creates a call to a function. Functions created from a primitive operator are called through it directly,
+	 * without packing their arguments into an array.
+	 * @param function The function to call
+	 * @param values The Values passed as arguments to the function
+	 * @return The function call
+	 */
+	public static FunctionCall create(Function function, Value[] values) {
+		if (function.getUnaryOperator() != null) {
+			return new UnaryFunctionCall(function, values);
+		}
+		if (function.getBinaryOperator() != null) {
+			return new BinaryFunctionCall(function, values);
+		}
+		if (function.getTernaryOperator() != null) {
+			return new TernaryFunctionCall(function, values);
+		}
+		if (function.getQuaternaryOperator() != null) {
+			return new QuaternaryFunctionCall(function, values);
+		}
+		return new FunctionCall(function, values);
+	}
+	
+	/**
+	 * @return The function being called
+	 */
+	public Function getFunction() {
+		return function;
+	}
+
+	/**
+	 * @return The Values passed as arguments to the function
+	 */
+	public Value[] getArguments() {
+		return values;
+	}
+
 	@Override
 	public TokenType getType() {
 		return TokenType.FUNCTION_CALL;
@@ -26,6 +62,7 @@ public class FunctionCall implements Value {
 	
 	@Override
 	public double getValue(double[] variableValues) {
+		double[] numbers = new double[values.length];
 		for (int i = 0; i < values.length; i++) {
 			numbers[i] = values[i].getValue(variableValues);
 		}
@@ -35,8 +72,10 @@ public class FunctionCall implements Value {
 	@Override
 	public Value getClone() {
 		Value[] clone = new Value[values.length];
-		System.arraycopy(values, 0, clone, 0, values.length);
-		return new FunctionCall(function, values);
+		for (int i = 0; i < values.length; i++) {
+			clone[i] = values[i].getClone();
+		}
+		return create(function, clone);
 	}
 	
 	public String toString() {
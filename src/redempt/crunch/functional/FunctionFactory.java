@@ -11,4 +11,13 @@ public interface FunctionFactory extends Token {
     }
 
     Value create(ArgumentList args);
+
+    /**
+     * Whether the Values this factory creates always evaluate to the same result for the same arguments and have no
+     * side effects. Calls to a pure factory whose arguments are all constant are evaluated at compile time.
+     * @return Whether this factory is pure, false by default
+     */
+    default boolean isPure() {
+        return false;
+    }
 }
@@ -0,0 +1,31 @@
+package redempt.crunch.functional;
+
+import redempt.crunch.token.Value;
+
+/**
+ * Calls a function taking four arguments through its DoubleQuaternaryOperator, without packing the arguments into an array
+ * @author Redempt
+ */
+final class QuaternaryFunctionCall extends FunctionCall {
+	
+	private final DoubleQuaternaryOperator operator;
+	private final Value first;
+	private final Value second;
+	private final Value third;
+	private final Value fourth;
+	
+	QuaternaryFunctionCall(Function function, Value[] values) {
+		super(function, values);
+		this.operator = function.getQuaternaryOperator();
+		this.first = values[0];
+		this.second = values[1];
+		this.third = values[2];
+		this.fourth = values[3];
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		return operator.applyAsDouble(first.getValue(variableValues), second.getValue(variableValues), third.getValue(variableValues), fourth.getValue(variableValues));
+	}
+	
+}
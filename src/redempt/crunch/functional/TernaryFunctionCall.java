@@ -0,0 +1,29 @@
+package redempt.crunch.functional;
+
+import redempt.crunch.token.Value;
+
+/**
+ * Calls a function taking three arguments through its DoubleTernaryOperator, without packing the arguments into an array
+ * @author Redempt
+ */
+final class TernaryFunctionCall extends FunctionCall {
+	
+	private final DoubleTernaryOperator operator;
+	private final Value first;
+	private final Value second;
+	private final Value third;
+	
+	TernaryFunctionCall(Function function, Value[] values) {
+		super(function, values);
+		this.operator = function.getTernaryOperator();
+		this.first = values[0];
+		this.second = values[1];
+		this.third = values[2];
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		return operator.applyAsDouble(first.getValue(variableValues), second.getValue(variableValues), third.getValue(variableValues));
+	}
+	
+}
@@ -0,0 +1,27 @@
+package redempt.crunch.functional;
+
+import redempt.crunch.token.Value;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Calls a function taking one argument through its DoubleUnaryOperator, without packing the argument into an array
+ * @author Redempt
+ */
+final class UnaryFunctionCall extends FunctionCall {
+	
+	private final DoubleUnaryOperator operator;
+	private final Value first;
+	
+	UnaryFunctionCall(Function function, Value[] values) {
+		super(function, values);
+		this.operator = function.getUnaryOperator();
+		this.first = values[0];
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		return operator.applyAsDouble(first.getValue(variableValues));
+	}
+	
+}
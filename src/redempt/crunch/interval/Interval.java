@@ -0,0 +1,301 @@
+package redempt.crunch.interval;
+
+/**
+ * An immutable range of doubles from a minimum to a maximum, both inclusive, which may also include NaN. Intervals
+ * bound every value an expression can take when its variables are only known to lie within ranges, and are computed
+ * by {@link IntervalEvaluator}. Bounds may be infinite. An interval containing only NaN has no minimum or maximum,
+ * and is reported as empty.
+ * @author Redempt
+ */
+public final class Interval {
+
+	/**
+	 * The interval containing every double, including NaN
+	 */
+	public static final Interval ENTIRE = new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true);
+	/**
+	 * The interval containing only NaN
+	 */
+	public static final Interval NAN = new Interval(Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, true);
+	/**
+	 * The interval containing only 1, the result of a comparison which is always true
+	 */
+	public static final Interval TRUE = new Interval(1, 1, false);
+	/**
+	 * The interval containing only 0, the result of a comparison which is always false
+	 */
+	public static final Interval FALSE = new Interval(0, 0, false);
+	/**
+	 * The interval from 0 to 1, the result of a comparison which may be either true or false
+	 */
+	public static final Interval BOOLEAN = new Interval(0, 1, false);
+
+	/**
+	 * Creates an interval containing a single value
+	 * @param value The value, which may be NaN
+	 * @return The interval
+	 */
+	public static Interval of(double value) {
+		return Double.isNaN(value) ? NAN : new Interval(value, value, false);
+	}
+
+	/**
+	 * Creates an interval which does not include NaN
+	 * @param min The minimum value
+	 * @param max The maximum value
+	 * @return The interval
+	 */
+	public static Interval of(double min, double max) {
+		return of(min, max, false);
+	}
+
+	/**
+	 * Creates an interval
+	 * @param min The minimum value
+	 * @param max The maximum value
+	 * @param nan Whether the interval also includes NaN
+	 * @return The interval
+	 */
+	public static Interval of(double min, double max, boolean nan) {
+		if (Double.isNaN(min) || Double.isNaN(max) || min > max) {
+			throw new IllegalArgumentException("Invalid interval bounds [" + min + ", " + max + "]");
+		}
+		return new Interval(min, max, nan);
+	}
+
+	/**
+	 * Creates the smallest interval containing a set of values
+	 * @param values The values, which may include NaN
+	 * @param start The index of the first value
+	 * @param end The index after the last value
+	 * @return The interval
+	 */
+	public static Interval covering(double[] values, int start, int end) {
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		boolean nan = false;
+		for (int i = start; i < end; i++) {
+			double value = values[i];
+			if (value < min) {
+				min = value;
+			}
+			if (value > max) {
+				max = value;
+			}
+			nan |= value != value;
+		}
+		if (min > max) {
+			if (!nan) {
+				throw new IllegalArgumentException("Cannot create an interval covering no values");
+			}
+			return NAN;
+		}
+		return new Interval(min, max, nan);
+	}
+
+	/**
+	 * Creates an interval from bounds which were computed separately, such as the smallest and largest results of an
+	 * operation applied to the ends of its operands. If the bounds are inverted because every candidate was NaN, the
+	 * result is {@link #NAN}.
+	 */
+	static Interval bounded(double min, double max, boolean nan) {
+		if (min > max || min != min || max != max) {
+			return NAN;
+		}
+		return new Interval(min, max, nan);
+	}
+
+	private final double min;
+	private final double max;
+	private final boolean nan;
+
+	private Interval(double min, double max, boolean nan) {
+		this.min = min;
+		this.max = max;
+		this.nan = nan;
+	}
+
+	/**
+	 * @return The minimum value in this interval, or positive infinity if it only contains NaN
+	 */
+	public double getMin() {
+		return min;
+	}
+
+	/**
+	 * @return The maximum value in this interval, or negative infinity if it only contains NaN
+	 */
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * @return Whether this interval includes NaN
+	 */
+	public boolean mayBeNaN() {
+		return nan;
+	}
+
+	/**
+	 * @return Whether this interval contains no values other than NaN
+	 */
+	public boolean isEmpty() {
+		return min > max;
+	}
+
+	/**
+	 * @param value The value to check
+	 * @return Whether this interval contains the value, which may be NaN
+	 */
+	public boolean contains(double value) {
+		return value != value ? nan : value >= min && value <= max;
+	}
+
+	/**
+	 * @param value The value to check
+	 * @return Whether every value in this interval equals the given value
+	 */
+	public boolean isAlways(double value) {
+		return !nan && min == value && max == value;
+	}
+
+	/**
+	 * @param value The value to check
+	 * @return Whether no value in this interval equals the given value
+	 */
+	public boolean isNever(double value) {
+		return !contains(value);
+	}
+
+	/**
+	 * @return Whether this interval contains a single value and not NaN, meaning its value is known exactly
+	 */
+	public boolean isPoint() {
+		return !nan && min == max;
+	}
+
+	/**
+	 * @param other The other interval
+	 * @return The smallest interval containing every value of this interval and the other one
+	 */
+	public Interval union(Interval other) {
+		if (isEmpty()) {
+			return other.nan || !nan ? other : other.withNaN();
+		}
+		if (other.isEmpty()) {
+			return nan || !other.nan ? this : withNaN();
+		}
+		return new Interval(Math.min(min, other.min), Math.max(max, other.max), nan || other.nan);
+	}
+
+	/**
+	 * @return This interval with NaN included
+	 */
+	public Interval withNaN() {
+		return nan ? this : new Interval(min, max, true);
+	}
+
+	/**
+	 * @return The interval of the negations of the values in this interval
+	 */
+	public Interval negate() {
+		return isEmpty() ? this : new Interval(-max, -min, nan);
+	}
+
+	/**
+	 * @param other The interval to add
+	 * @return The interval of the sums of values in this interval and the other one
+	 */
+	public Interval add(Interval other) {
+		return corners(this, other, min + other.min, min + other.max, max + other.min, max + other.max, false);
+	}
+
+	/**
+	 * @param other The interval to subtract
+	 * @return The interval of the differences of values in this interval and the other one
+	 */
+	public Interval subtract(Interval other) {
+		return corners(this, other, min - other.max, min - other.min, max - other.max, max - other.min, false);
+	}
+
+	/**
+	 * @param other The interval to multiply by
+	 * @return The interval of the products of values in this interval and the other one
+	 */
+	public Interval multiply(Interval other) {
+		// Zero times infinity is NaN, and either may be inside an interval rather than at its ends
+		boolean nan = (contains(0) && other.hasInfinity()) || (hasInfinity() && other.contains(0));
+		Interval result = corners(this, other, min * other.min, min * other.max, max * other.min, max * other.max, nan);
+		// A corner which is NaN hides the zeros from multiplying zero by the finite values next to it
+		return nan ? result.union(of(0)) : result;
+	}
+
+	/**
+	 * @param other The interval to divide by
+	 * @return The interval of the quotients of values in this interval and the other one
+	 */
+	public Interval divide(Interval other) {
+		if (!isEmpty() && other.contains(0)) {
+			// The divisor may be zero of either sign, so the quotient may be infinite of either sign
+			boolean nan = contains(0) || this.nan || other.nan || (hasInfinity() && other.hasInfinity());
+			return nan ? ENTIRE : new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, false);
+		}
+		// Infinity divided by infinity is NaN, which hides the zeros from dividing the finite values next to it
+		boolean nan = hasInfinity() && other.hasInfinity();
+		Interval result = corners(this, other, min / other.min, min / other.max, max / other.min, max / other.max, nan);
+		return nan ? result.union(of(0)) : result;
+	}
+
+	boolean hasInfinity() {
+		return min == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Bounds an operation which is monotonic in each operand by the results at the four corners of its operands, since
+	 * rounding is monotonic too. Corners which are NaN, like infinity minus infinity, are skipped and add NaN instead.
+	 */
+	private static Interval corners(Interval a, Interval b, double c1, double c2, double c3, double c4, boolean nan) {
+		if (a.isEmpty() || b.isEmpty()) {
+			return NAN;
+		}
+		nan |= a.nan || b.nan || c1 != c1 || c2 != c2 || c3 != c3 || c4 != c4;
+		return bounded(min(min(c1, c2), min(c3, c4)), max(max(c1, c2), max(c3, c4)), nan);
+	}
+
+	/**
+	 * The smaller of two values, ignoring NaN unless both are NaN
+	 */
+	static double min(double a, double b) {
+		return a <= b || b != b ? a : b;
+	}
+
+	/**
+	 * The larger of two values, ignoring NaN unless both are NaN
+	 */
+	static double max(double a, double b) {
+		return a >= b || b != b ? a : b;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Interval)) {
+			return false;
+		}
+		Interval other = (Interval) o;
+		return nan == other.nan && (isEmpty() ? other.isEmpty() : min == other.min && max == other.max);
+	}
+
+	@Override
+	public int hashCode() {
+		return isEmpty() ? 1 : (Double.hashCode(min) * 31 + Double.hashCode(max)) * 31 + (nan ? 1 : 0);
+	}
+
+	@Override
+	public String toString() {
+		if (isEmpty()) {
+			return "[NaN]";
+		}
+		return "[" + min + ", " + max + (nan ? ", NaN]" : "]");
+	}
+
+}
@@ -0,0 +1,563 @@
+package redempt.crunch.interval;
+
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Variable;
+import redempt.crunch.bytecode.GeneratedValue;
+import redempt.crunch.exceptions.ExpressionEvaluationException;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.program.Program;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.ConditionalOperation;
+import redempt.crunch.token.Constant;
+import redempt.crunch.token.FusedMultiplyAddOperation;
+import redempt.crunch.token.IntegerPowerOperation;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.SharedValueReference;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Evaluates a {@link CompiledExpression} over intervals instead of single values. Given an interval for each variable,
+ * it computes an interval guaranteed to contain the result for every combination of variable values within them,
+ * including results which are NaN. The interval may be wider than the exact range of results, but is never narrower.
+ * <p>
+ * This allows whole blocks of rows to be filtered by a predicate using only the smallest and largest value of each
+ * variable in the block, like a zone map. Blocks where the predicate can never be true are skipped, blocks where it is
+ * always true are accepted, and only the remaining blocks are evaluated row by row.
+ * <p>
+ * Calls to functions are bounded by the {@link IntervalFunction} set for them with {@link #setFunctionBounds(String, IntervalFunction)}.
+ * Calls to functions without bounds, lazy variables and values created by function factories may return any value.
+ * Function bounds should be set before an IntervalEvaluator is shared between threads.
+ * @author Redempt
+ */
+public class IntervalEvaluator {
+
+	private static final double TWO_PI = Math.PI * 2;
+	// Angles are reduced with rounding error, so extremes of periodic functions this close to an interval count as inside it
+	private static final double ANGLE_TOLERANCE = 1e-6;
+	// Beyond this magnitude the rounding error of reducing an angle approaches the tolerance
+	private static final double MAX_REDUCED_ANGLE = 1e8;
+	// Pure functions called with more arguments of zero than this are not called for every combination of their signs
+	private static final int MAX_SIGNED_ZEROS = 4;
+	// The most rows evaluated row by row at once when filtering, unless a single block is larger
+	private static final int MAX_RUN_LENGTH = 8192;
+
+	/**
+	 * Computes the interval of each variable in every block of rows of a set of columns. The result can be computed once
+	 * and reused for any number of calls to {@link #filter(double[][], int, int, Interval[][], int[])}.
+	 * @param columns The variable columns, one per variable in order starting with 1
+	 * @param rowCount The number of rows
+	 * @param blockSize The number of rows in each block
+	 * @return The intervals of the variables, indexed by block and then by variable
+	 */
+	public static Interval[][] computeBlockBounds(double[][] columns, int rowCount, int blockSize) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Block size must be at least 1");
+		}
+		Interval[][] bounds = new Interval[(rowCount + blockSize - 1) / blockSize][columns.length];
+		for (int block = 0; block < bounds.length; block++) {
+			int start = block * blockSize;
+			int end = Math.min(start + blockSize, rowCount);
+			for (int i = 0; i < columns.length; i++) {
+				bounds[block][i] = Interval.covering(columns[i], start, end);
+			}
+		}
+		return bounds;
+	}
+
+	private final CompiledExpression expression;
+	private final Value root;
+	private final Map<String, IntervalFunction> functionBounds = new HashMap<>();
+
+	/**
+	 * Creates an IntervalEvaluator
+	 * @param expression The expression to evaluate
+	 */
+	public IntervalEvaluator(CompiledExpression expression) {
+		if (expression == null) {
+			throw new IllegalArgumentException("Expression cannot be null");
+		}
+		this.expression = expression;
+		Value value = expression.getValue();
+		if (value instanceof GeneratedValue) {
+			value = ((GeneratedValue) value).getSource();
+		}
+		if (value instanceof Program) {
+			value = ((Program) value).toTree();
+		}
+		root = value;
+	}
+
+	/**
+	 * Sets the bounds of a function, which are used for calls to any function with the given name
+	 * @param name The name of the function
+	 * @param bounds The bounds of the function's results
+	 * @return This IntervalEvaluator
+	 */
+	public IntervalEvaluator setFunctionBounds(String name, IntervalFunction bounds) {
+		if (name == null || bounds == null) {
+			throw new IllegalArgumentException("Name and bounds cannot be null");
+		}
+		functionBounds.put(name, bounds);
+		return this;
+	}
+
+	/**
+	 * Evaluates the expression over intervals
+	 * @param variables The intervals of the variables used in the expression, in order starting with 1
+	 * @return An interval containing every result of the expression for variables within the given intervals
+	 */
+	public Interval evaluate(Interval... variables) {
+		int variableCount = expression.getVariableCount();
+		if (variables.length < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable intervals - expected " + variableCount + ", got " + variables.length);
+		}
+		Interval[] frame = new Interval[Math.max(variables.length, expression.getFrameSize())];
+		System.arraycopy(variables, 0, frame, 0, variables.length);
+		return evaluate(root, frame);
+	}
+
+	/**
+	 * Finds the rows of a set of columns for which the expression is true, meaning it evaluates to exactly 1. Each block
+	 * of rows is first evaluated over the intervals of its variables, and only blocks which may contain both matching and
+	 * non-matching rows are evaluated row by row.
+	 * @param columns The variable columns, one per variable in order starting with 1
+	 * @param rowCount The number of rows
+	 * @param blockSize The number of rows in each block
+	 * @param blockBounds The intervals of the variables in each block, as computed by {@link #computeBlockBounds(double[][], int, int)}
+	 * @param out The array to write the indices of matching rows to, in ascending order, at least rowCount long
+	 * @return The number of matching rows
+	 */
+	public int filter(double[][] columns, int rowCount, int blockSize, Interval[][] blockBounds, int[] out) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Block size must be at least 1");
+		}
+		if (blockBounds.length < (rowCount + blockSize - 1) / blockSize) {
+			throw new IllegalArgumentException("Too few block bounds for " + rowCount + " rows");
+		}
+		if (out.length < rowCount) {
+			throw new IllegalArgumentException("Output array has fewer than " + rowCount + " elements");
+		}
+		double[] results = new double[Math.min(rowCount, Math.max(blockSize, MAX_RUN_LENGTH))];
+		int count = 0;
+		// Consecutive blocks which must be evaluated row by row are evaluated together
+		int runStart = 0;
+		int runEnd = 0;
+		for (int start = 0; start < rowCount; start += blockSize) {
+			int end = Math.min(start + blockSize, rowCount);
+			Interval result = evaluate(blockBounds[start / blockSize]);
+			boolean decided = result.isNever(1) || result.isAlways(1);
+			if (runEnd > runStart && (decided || end - runStart > results.length)) {
+				count = evaluateRun(columns, runStart, runEnd, results, out, count);
+				runStart = runEnd;
+			}
+			if (!decided) {
+				if (runEnd == runStart) {
+					runStart = start;
+				}
+				runEnd = end;
+			} else if (result.isAlways(1)) {
+				for (int row = start; row < end; row++) {
+					out[count++] = row;
+				}
+			}
+		}
+		return runEnd > runStart ? evaluateRun(columns, runStart, runEnd, results, out, count) : count;
+	}
+
+	private int evaluateRun(double[][] columns, int start, int end, double[] results, int[] out, int count) {
+		expression.evaluateBatch(columns, start, end, results);
+		for (int row = start; row < end; row++) {
+			if (results[row - start] == 1) {
+				out[count++] = row;
+			}
+		}
+		return count;
+	}
+
+	private Interval evaluate(Value value, Interval[] frame) {
+		if (value instanceof LiteralValue || value instanceof Constant) {
+			return Interval.of(value.getValue(null));
+		}
+		if (value instanceof Variable) {
+			return frame[((Variable) value).getIndex()];
+		}
+		if (value instanceof IntegerPowerOperation) {
+			IntegerPowerOperation power = (IntegerPowerOperation) value;
+			return integerPower(evaluate(power.getBase(), frame), power.getExponent(), (base, exponent) -> IntegerPowerOperation.power(base, (int) exponent));
+		}
+		if (value instanceof FusedMultiplyAddOperation) {
+			Value[] operands = ((FusedMultiplyAddOperation) value).getOperands();
+			Interval product = evaluate(operands[0], frame).multiply(evaluate(operands[1], frame));
+			// The product is only rounded once together with the sum, so it may lie just outside the rounded product
+			return widen(product).add(evaluate(operands[2], frame));
+		}
+		if (value instanceof BinaryOperation) {
+			BinaryOperation operation = (BinaryOperation) value;
+			Value[] values = operation.getValues();
+			return binary(operation.getOperator(), evaluate(values[0], frame), evaluate(values[1], frame));
+		}
+		if (value instanceof UnaryOperation) {
+			UnaryOperation operation = (UnaryOperation) value;
+			return unary(operation.getOperator(), evaluate(operation.getChild(), frame));
+		}
+		if (value instanceof ConditionalOperation) {
+			ConditionalOperation conditional = (ConditionalOperation) value;
+			Interval condition = evaluate(conditional.getCondition(), frame);
+			// Both branches are evaluated so that any shared values in them are bounded
+			Interval ifTrue = evaluate(conditional.getIfTrue(), frame);
+			Interval ifFalse = evaluate(conditional.getIfFalse(), frame);
+			if (condition.isAlways(1)) {
+				return ifTrue;
+			}
+			return condition.isNever(1) ? ifFalse : ifTrue.union(ifFalse);
+		}
+		if (value instanceof FunctionCall) {
+			return call((FunctionCall) value, frame);
+		}
+		if (value instanceof SharedValue) {
+			SharedValue shared = (SharedValue) value;
+			Interval result = evaluate(shared.getChild(), frame);
+			frame[shared.getSlot()] = result;
+			return result;
+		}
+		if (value instanceof SharedValueReference) {
+			SharedValueReference reference = (SharedValueReference) value;
+			Interval result = frame[reference.getSlot()];
+			return result != null ? result : evaluate(reference.getShared(), frame);
+		}
+		return Interval.ENTIRE;
+	}
+
+	private Interval call(FunctionCall call, Interval[] frame) {
+		Value[] argValues = call.getArguments();
+		Interval[] args = new Interval[argValues.length];
+		boolean points = true;
+		for (int i = 0; i < args.length; i++) {
+			args[i] = evaluate(argValues[i], frame);
+			points &= args[i].isPoint();
+		}
+		Function function = call.getFunction();
+		IntervalFunction bounds = functionBounds.get(function.getName());
+		if (bounds != null) {
+			return bounds.apply(args);
+		}
+		if (!points || !function.isPure()) {
+			return Interval.ENTIRE;
+		}
+		// Arguments of zero may be zero of either sign, so the function is called with every combination of signs
+		int zeros = 0;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].getMin() == 0) {
+				if (i >= Integer.SIZE - 1) {
+					return Interval.ENTIRE;
+				}
+				zeros |= 1 << i;
+			}
+		}
+		if (Integer.bitCount(zeros) > MAX_SIGNED_ZEROS) {
+			return Interval.ENTIRE;
+		}
+		double[] values = new double[args.length];
+		Interval result = Interval.NAN;
+		int negative = zeros;
+		while (true) {
+			for (int i = 0; i < args.length; i++) {
+				values[i] = (negative & (1 << i)) != 0 ? -0d : args[i].getMin() + 0d;
+			}
+			Interval value = Interval.of(function.call(values));
+			result = negative == zeros ? value : result.union(value);
+			if (negative == 0) {
+				return result;
+			}
+			negative = (negative - 1) & zeros;
+		}
+	}
+
+	private static Interval binary(BinaryOperator operator, Interval a, Interval b) {
+		switch (operator) {
+			case ADD:
+				return a.add(b);
+			case SUBTRACT:
+				return a.subtract(b);
+			case MULTIPLY:
+				return a.multiply(b);
+			case DIVIDE:
+				return a.divide(b);
+			case MODULUS:
+				return modulus(a, b);
+			case EXPONENT:
+				return pow(a, b);
+			case SCIENTIFIC_NOTATION:
+				return a.multiply(pow(Interval.of(10), b));
+			case BOOLEAN_AND:
+			case BOOLEAN_AND_ALT:
+				return bool(a.isAlways(1) && b.isAlways(1), a.isNever(1) || b.isNever(1));
+			case BOOLEAN_OR:
+			case BOOLEAN_OR_ALT:
+				return bool(a.isAlways(1) || b.isAlways(1), a.isNever(1) && b.isNever(1));
+			case EQUAL_TO:
+			case EQUAL_TO_ALT:
+				return equal(a, b, false);
+			case NOT_EQUAL_TO:
+				return equal(a, b, true);
+			case GREATER_THAN:
+				return greater(a, b, false);
+			case LESS_THAN:
+				return greater(b, a, false);
+			case GREATER_THAN_OR_EQUAL_TO:
+				return greater(a, b, true);
+			case LESS_THAN_OR_EQUAL_TO:
+				return greater(b, a, true);
+			default:
+				return Interval.ENTIRE;
+		}
+	}
+
+	private static Interval bool(boolean alwaysTrue, boolean alwaysFalse) {
+		return alwaysTrue ? Interval.TRUE : alwaysFalse ? Interval.FALSE : Interval.BOOLEAN;
+	}
+
+	private static Interval greater(Interval a, Interval b, boolean orEqual) {
+		// Comparisons with NaN are always false
+		if (a.isEmpty() || b.isEmpty()) {
+			return Interval.FALSE;
+		}
+		boolean nan = a.mayBeNaN() || b.mayBeNaN();
+		if (orEqual) {
+			return bool(!nan && a.getMin() >= b.getMax(), a.getMax() < b.getMin());
+		}
+		return bool(!nan && a.getMin() > b.getMax(), a.getMax() <= b.getMin());
+	}
+
+	private static Interval equal(Interval a, Interval b, boolean negate) {
+		boolean alwaysEqual = a.isPoint() && b.isPoint() && a.getMin() == b.getMin();
+		boolean neverEqual = a.isEmpty() || b.isEmpty() || a.getMax() < b.getMin() || b.getMax() < a.getMin();
+		return negate ? bool(neverEqual, alwaysEqual) : bool(alwaysEqual, neverEqual);
+	}
+
+	private static Interval modulus(Interval a, Interval b) {
+		if (a.isEmpty() || b.isEmpty()) {
+			return Interval.NAN;
+		}
+		if (a.isPoint() && b.isPoint()) {
+			return Interval.of(a.getMin() % b.getMin());
+		}
+		boolean nan = a.mayBeNaN() || b.mayBeNaN() || b.contains(0) || a.hasInfinity();
+		double largestDivisor = Math.max(Math.abs(b.getMin()), Math.abs(b.getMax()));
+		double smallestDivisor = b.getMin() > 0 ? b.getMin() : b.getMax() < 0 ? -b.getMax() : 0;
+		if (Math.max(Math.abs(a.getMin()), Math.abs(a.getMax())) < smallestDivisor) {
+			// Every dividend is smaller than every divisor, so it is unchanged
+			return nan ? a.withNaN() : a;
+		}
+		// The remainder has the sign of the dividend, and is smaller than both the dividend and the divisor
+		double min = a.getMin() < 0 ? -Math.min(-a.getMin(), largestDivisor) : 0;
+		double max = a.getMax() > 0 ? Math.min(a.getMax(), largestDivisor) : 0;
+		return Interval.bounded(min, max, nan);
+	}
+
+	private static Interval pow(Interval base, Interval exponent) {
+		if (exponent.isAlways(0)) {
+			return Interval.TRUE;
+		}
+		if (base.isEmpty() || exponent.isEmpty()) {
+			// Anything raised to the power of 0 is 1, even NaN
+			return exponent.contains(0) ? Interval.of(1, 1, true) : Interval.NAN;
+		}
+		if (base.isPoint() && exponent.isPoint() && base.getMin() != 0) {
+			// A base of zero may be negative zero, which is handled with the other integer powers
+			return Interval.of(Math.pow(base.getMin(), exponent.getMin()));
+		}
+		boolean nan = base.mayBeNaN() || exponent.mayBeNaN();
+		Interval result;
+		if (base.getMin() > 0) {
+			// For positive bases, pow is monotonic in each operand on either side of a base of 1 and an exponent of 0
+			double c1 = Math.pow(base.getMin(), exponent.getMin());
+			double c2 = Math.pow(base.getMin(), exponent.getMax());
+			double c3 = Math.pow(base.getMax(), exponent.getMin());
+			double c4 = Math.pow(base.getMax(), exponent.getMax());
+			double min = Interval.min(Interval.min(c1, c2), Interval.min(c3, c4));
+			double max = Interval.max(Interval.max(c1, c2), Interval.max(c3, c4));
+			if (base.contains(1) || exponent.contains(0)) {
+				min = Interval.min(1, min);
+				max = Interval.max(1, max);
+			}
+			// One to the power of infinity is NaN
+			nan |= c1 != c1 || c2 != c2 || c3 != c3 || c4 != c4 || (base.contains(1) && exponent.hasInfinity());
+			result = Interval.bounded(Math.nextDown(min), Math.nextUp(max), nan);
+		} else if (exponent.isPoint() && exponent.getMin() == Math.rint(exponent.getMin()) && !exponent.hasInfinity()) {
+			result = integerPower(base, exponent.getMin(), Math::pow);
+		} else {
+			return Interval.ENTIRE;
+		}
+		return nan ? result.withNaN() : result;
+	}
+
+	/**
+	 * Bounds a base raised to a constant integer power, which is even or odd in the base and monotonic on either side of 0.
+	 * With the exponent fixed, Math.pow is semi-monotonic in the base, like repeated multiplication.
+	 */
+	private static Interval integerPower(Interval base, double exponent, DoubleBinaryOperator power) {
+		if (base.isEmpty()) {
+			return Interval.NAN;
+		}
+		if (exponent < 0 && base.contains(0)) {
+			// Zero of either sign raised to a negative power is infinite of either sign
+			return Interval.of(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, base.mayBeNaN());
+		}
+		double first = power.applyAsDouble(base.getMin(), exponent);
+		double last = power.applyAsDouble(base.getMax(), exponent);
+		double min = Math.min(first, last);
+		double max = Math.max(first, last);
+		if (exponent % 2 == 0 && base.contains(0)) {
+			min = 0;
+		}
+		return Interval.bounded(min, max, base.mayBeNaN());
+	}
+
+	private static Interval unary(UnaryOperator operator, Interval a) {
+		switch (operator) {
+			case NEGATE:
+				return a.negate();
+			case NOT:
+				return bool(a.isNever(1), a.isAlways(1));
+			case SIN:
+				return periodic(a, Math::sin, Math.PI / 2);
+			case COS:
+				return periodic(a, Math::cos, 0);
+			case TAN:
+				return tan(a);
+			case SINH:
+			case TANH:
+			case ATAN:
+			case CBRT:
+			case FLOOR:
+			case CEIL:
+				return monotonic(a, operator.getOperation(), Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true);
+			case ASIN:
+				return monotonic(a, Math::asin, -1, 1, true);
+			case ACOS:
+				return monotonic(a, Math::acos, -1, 1, false);
+			case LOG:
+				return monotonic(a, Math::log, 0, Double.POSITIVE_INFINITY, true);
+			case SQRT:
+				return monotonic(a, Math::sqrt, 0, Double.POSITIVE_INFINITY, true);
+			case ROUND: {
+				// Math.round returns 0 for NaN
+				Interval result = monotonic(a, operator.getOperation(), Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true);
+				if (!a.mayBeNaN()) {
+					return result;
+				}
+				return result.isEmpty() ? Interval.FALSE : Interval.of(Math.min(result.getMin(), 0), Math.max(result.getMax(), 0));
+			}
+			case ABS:
+				return even(a, Math::abs);
+			case COSH:
+				return even(a, Math::cosh);
+			case RAND:
+				if (a.isEmpty()) {
+					return Interval.NAN;
+				}
+				// A random value from 0 inclusive to 1 exclusive, times the operand
+				return Interval.of(Math.min(a.getMin(), 0), Math.max(a.getMax(), 0), a.mayBeNaN() || a.hasInfinity());
+			default:
+				return Interval.ENTIRE;
+		}
+	}
+
+	/**
+	 * Bounds a function which is monotonic within its domain and NaN outside of it. Math functions are semi-monotonic,
+	 * so the results at the ends of the interval bound the results inside it exactly.
+	 */
+	private static Interval monotonic(Interval a, DoubleUnaryOperator function, double lowest, double highest, boolean increasing) {
+		if (a.isEmpty() || a.getMax() < lowest || a.getMin() > highest) {
+			return Interval.NAN;
+		}
+		boolean nan = a.mayBeNaN() || a.getMin() < lowest || a.getMax() > highest;
+		double first = function.applyAsDouble(Math.max(a.getMin(), lowest));
+		double last = function.applyAsDouble(Math.min(a.getMax(), highest));
+		return increasing ? Interval.bounded(first, last, nan) : Interval.bounded(last, first, nan);
+	}
+
+	/**
+	 * Bounds a function which is symmetric around 0 and increases away from it
+	 */
+	private static Interval even(Interval a, DoubleUnaryOperator function) {
+		if (a.isEmpty()) {
+			return Interval.NAN;
+		}
+		double first = function.applyAsDouble(a.getMin());
+		double last = function.applyAsDouble(a.getMax());
+		double min = a.contains(0) ? function.applyAsDouble(0) : Math.min(first, last);
+		return Interval.bounded(min, Math.max(first, last), a.mayBeNaN());
+	}
+
+	/**
+	 * Bounds sin or cos, given an angle where the function is at its peak of 1. It is at its trough of -1 half a turn later.
+	 */
+	private static Interval periodic(Interval a, DoubleUnaryOperator function, double peak) {
+		if (a.isEmpty()) {
+			return Interval.NAN;
+		}
+		if (a.isPoint()) {
+			return Interval.of(function.applyAsDouble(a.getMin()));
+		}
+		// Infinite angles are NaN
+		boolean nan = a.mayBeNaN() || a.hasInfinity();
+		if (!isReducible(a) || a.getMax() - a.getMin() >= TWO_PI) {
+			return Interval.of(-1, 1, nan);
+		}
+		double first = function.applyAsDouble(a.getMin());
+		double last = function.applyAsDouble(a.getMax());
+		double min = containsAngle(a, peak + Math.PI, TWO_PI) ? -1 : Math.min(first, last);
+		double max = containsAngle(a, peak, TWO_PI) ? 1 : Math.max(first, last);
+		return Interval.bounded(min, max, nan);
+	}
+
+	private static Interval tan(Interval a) {
+		if (a.isEmpty()) {
+			return Interval.NAN;
+		}
+		if (a.isPoint()) {
+			return Interval.of(Math.tan(a.getMin()));
+		}
+		boolean nan = a.mayBeNaN() || a.hasInfinity();
+		if (!isReducible(a) || a.getMax() - a.getMin() >= Math.PI || containsAngle(a, Math.PI / 2, Math.PI)) {
+			return Interval.of(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, nan);
+		}
+		// Between two asymptotes, tan is increasing
+		return Interval.bounded(Math.tan(a.getMin()), Math.tan(a.getMax()), nan);
+	}
+
+	private static boolean isReducible(Interval a) {
+		return a.getMin() >= -MAX_REDUCED_ANGLE && a.getMax() <= MAX_REDUCED_ANGLE;
+	}
+
+	/**
+	 * Checks whether an interval contains an angle plus any multiple of a period, erring towards true near its ends
+	 */
+	private static boolean containsAngle(Interval a, double angle, double period) {
+		double turns = Math.ceil((a.getMin() - ANGLE_TOLERANCE - angle) / period);
+		return angle + turns * period <= a.getMax() + ANGLE_TOLERANCE;
+	}
+
+	/**
+	 * Widens an interval by one unit in the last place at each end
+	 */
+	private static Interval widen(Interval a) {
+		if (a.isEmpty()) {
+			return a;
+		}
+		return Interval.of(Math.nextDown(a.getMin()), Math.nextUp(a.getMax()), a.mayBeNaN());
+	}
+
+}
@@ -0,0 +1,19 @@
+package redempt.crunch.interval;
+
+/**
+ * Bounds the results of a {@link redempt.crunch.functional.Function} given the intervals of its arguments, so that
+ * calls to it can be evaluated by an {@link IntervalEvaluator}
+ * @author Redempt
+ */
+@FunctionalInterface
+public interface IntervalFunction {
+
+	/**
+	 * Computes an interval containing every value the function can return for arguments within the given intervals.
+	 * The interval may be wider than the exact range, but must never be narrower.
+	 * @param args The intervals of the arguments
+	 * @return The interval of the results
+	 */
+	Interval apply(Interval[] args);
+
+}
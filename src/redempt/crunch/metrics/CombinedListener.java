@@ -0,0 +1,59 @@
+package redempt.crunch.metrics;
+
+import redempt.crunch.exceptions.ExpressionCompilationException;
+
+/**
+ * Passes every measurement to several listeners in order
+ * @author Redempt
+ */
+final class CombinedListener implements MetricsListener {
+
+	private final MetricsListener[] listeners;
+
+	CombinedListener(MetricsListener[] listeners) {
+		this.listeners = listeners;
+	}
+
+	@Override
+	public void onCompile(String expression, long nanos, int nodeCount, int depth) {
+		for (MetricsListener listener : listeners) {
+			listener.onCompile(expression, nanos, nodeCount, depth);
+		}
+	}
+
+	@Override
+	public void onCompileFailure(String expression, long nanos, ExpressionCompilationException exception) {
+		for (MetricsListener listener : listeners) {
+			listener.onCompileFailure(expression, nanos, exception);
+		}
+	}
+
+	@Override
+	public void onEvaluate(String expression, long nanos) {
+		for (MetricsListener listener : listeners) {
+			listener.onEvaluate(expression, nanos);
+		}
+	}
+
+	@Override
+	public void onBatchEvaluate(String expression, int rowCount, long nanos) {
+		for (MetricsListener listener : listeners) {
+			listener.onBatchEvaluate(expression, rowCount, nanos);
+		}
+	}
+
+	@Override
+	public void onEvaluationFailure(String expression, long nanos, RuntimeException exception) {
+		for (MetricsListener listener : listeners) {
+			listener.onEvaluationFailure(expression, nanos, exception);
+		}
+	}
+
+	@Override
+	public void onCacheLookup(boolean hit) {
+		for (MetricsListener listener : listeners) {
+			listener.onCacheLookup(hit);
+		}
+	}
+
+}
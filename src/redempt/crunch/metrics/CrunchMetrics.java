@@ -0,0 +1,236 @@
+package redempt.crunch.metrics;
+
+import redempt.crunch.exceptions.ExpressionCompilationException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link MetricsListener} which keeps counters and histograms of everything it is told about, to be read and
+ * exported by the application. Evaluation times are also kept for each expression separately, up to a maximum number
+ * of distinct expressions, to find which are the most expensive.
+ * @author Redempt
+ */
+public class CrunchMetrics implements MetricsListener {
+
+	private final int maximumTrackedExpressions;
+	private final Map<String, Histogram> expressionTimes = new ConcurrentHashMap<>();
+
+	private final LongAdder compileFailures = new LongAdder();
+	private final LongAdder evaluationFailures = new LongAdder();
+	private final LongAdder batchRows = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	private final Histogram compileTimes = new Histogram();
+	private final Histogram nodeCounts = new Histogram();
+	private final Histogram depths = new Histogram();
+	private final Histogram evaluateTimes = new Histogram();
+	private final Histogram batchTimes = new Histogram();
+
+	/**
+	 * Creates a CrunchMetrics which keeps evaluation times for up to 256 distinct expressions
+	 */
+	public CrunchMetrics() {
+		this(256);
+	}
+
+	/**
+	 * Creates a CrunchMetrics
+	 * @param maximumTrackedExpressions The maximum number of distinct expressions to keep evaluation times for
+	 */
+	public CrunchMetrics(int maximumTrackedExpressions) {
+		if (maximumTrackedExpressions < 0) {
+			throw new IllegalArgumentException("Maximum tracked expressions cannot be negative");
+		}
+		this.maximumTrackedExpressions = maximumTrackedExpressions;
+	}
+
+	@Override
+	public void onCompile(String expression, long nanos, int nodeCount, int depth) {
+		compileTimes.record(nanos);
+		nodeCounts.record(nodeCount);
+		depths.record(depth);
+	}
+
+	@Override
+	public void onCompileFailure(String expression, long nanos, ExpressionCompilationException exception) {
+		compileFailures.increment();
+	}
+
+	@Override
+	public void onEvaluate(String expression, long nanos) {
+		evaluateTimes.record(nanos);
+		Histogram times = timesFor(expression);
+		if (times != null) {
+			times.record(nanos);
+		}
+	}
+
+	@Override
+	public void onBatchEvaluate(String expression, int rowCount, long nanos) {
+		batchTimes.record(nanos);
+		batchRows.add(rowCount);
+		Histogram times = timesFor(expression);
+		if (times != null && rowCount > 0) {
+			times.record(nanos / rowCount, rowCount);
+		}
+	}
+
+	@Override
+	public void onEvaluationFailure(String expression, long nanos, RuntimeException exception) {
+		evaluationFailures.increment();
+	}
+
+	@Override
+	public void onCacheLookup(boolean hit) {
+		(hit ? cacheHits : cacheMisses).increment();
+	}
+
+	private Histogram timesFor(String expression) {
+		Histogram times = expressionTimes.get(expression);
+		if (times != null || expressionTimes.size() >= maximumTrackedExpressions) {
+			return times;
+		}
+		return expressionTimes.computeIfAbsent(expression, k -> new Histogram());
+	}
+
+	/**
+	 * @return The number of expressions compiled successfully
+	 */
+	public long getCompileCount() {
+		return compileTimes.getCount();
+	}
+
+	/**
+	 * @return The number of expressions which failed to compile
+	 */
+	public long getCompileFailureCount() {
+		return compileFailures.sum();
+	}
+
+	/**
+	 * @return The times taken to compile expressions, in nanoseconds
+	 */
+	public Histogram getCompileTimes() {
+		return compileTimes;
+	}
+
+	/**
+	 * @return The number of nodes in compiled expressions
+	 */
+	public Histogram getNodeCounts() {
+		return nodeCounts;
+	}
+
+	/**
+	 * @return The nesting depths of compiled expressions
+	 */
+	public Histogram getDepths() {
+		return depths;
+	}
+
+	/**
+	 * @return The number of single evaluations
+	 */
+	public long getEvaluationCount() {
+		return evaluateTimes.getCount();
+	}
+
+	/**
+	 * @return The number of rows evaluated, counting each single evaluation as one row
+	 */
+	public long getEvaluatedRowCount() {
+		return evaluateTimes.getCount() + batchRows.sum();
+	}
+
+	/**
+	 * @return The number of evaluations which threw an exception
+	 */
+	public long getEvaluationFailureCount() {
+		return evaluationFailures.sum();
+	}
+
+	/**
+	 * @return The times taken by single evaluations, in nanoseconds
+	 */
+	public Histogram getEvaluateTimes() {
+		return evaluateTimes;
+	}
+
+	/**
+	 * @return The times taken by batch and parallel evaluations, in nanoseconds
+	 */
+	public Histogram getBatchTimes() {
+		return batchTimes;
+	}
+
+	/**
+	 * @return The number of cache lookups which found a cached expression
+	 */
+	public long getCacheHitCount() {
+		return cacheHits.sum();
+	}
+
+	/**
+	 * @return The number of cache lookups which had to compile the expression
+	 */
+	public long getCacheMissCount() {
+		return cacheMisses.sum();
+	}
+
+	/**
+	 * @return The fraction of cache lookups which found a cached expression, or 1 if there have been no lookups
+	 */
+	public double getCacheHitRate() {
+		long hits = cacheHits.sum();
+		long total = hits + cacheMisses.sum();
+		return total == 0 ? 1 : (double) hits / total;
+	}
+
+	/**
+	 * Gets the time taken to evaluate one row of an expression. Rows evaluated in batches are recorded at the average
+	 * time per row of their batch.
+	 * @param expression The source of the expression
+	 * @return The evaluation times of the expression in nanoseconds, or null if it has not been evaluated or is not tracked
+	 */
+	public Histogram getExpressionTimes(String expression) {
+		return expressionTimes.get(expression);
+	}
+
+	/**
+	 * Gets the expressions which have taken the most total time to evaluate
+	 * @param limit The maximum number of expressions to return
+	 * @return The sources of the expressions, most expensive first
+	 */
+	public List<String> getMostExpensiveExpressions(int limit) {
+		List<Map.Entry<String, Histogram>> entries = new ArrayList<>(expressionTimes.entrySet());
+		entries.sort((a, b) -> Long.compare(b.getValue().getSum(), a.getValue().getSum()));
+		List<String> expressions = new ArrayList<>();
+		for (int i = 0; i < Math.min(limit, entries.size()); i++) {
+			expressions.add(entries.get(i).getKey());
+		}
+		return Collections.unmodifiableList(expressions);
+	}
+
+	/**
+	 * Removes all recorded measurements
+	 */
+	public void reset() {
+		expressionTimes.clear();
+		compileFailures.reset();
+		evaluationFailures.reset();
+		batchRows.reset();
+		cacheHits.reset();
+		cacheMisses.reset();
+		compileTimes.reset();
+		nodeCounts.reset();
+		depths.reset();
+		evaluateTimes.reset();
+		batchTimes.reset();
+	}
+
+}
@@ -0,0 +1,93 @@
+package redempt.crunch.metrics;
+
+import redempt.crunch.Crunch;
+import redempt.crunch.exceptions.ExpressionCompilationException;
+
+/**
+ * Receives measurements of compilation and evaluation, once set with {@link Crunch#setMetricsListener(MetricsListener)}.
+ * Expressions are identified by their source text. Every method does nothing by default, so implementations only need
+ * to override the ones they are interested in. Methods may be called from any number of threads at once, and are
+ * called on the hot path of evaluation, so they should be fast and must be thread-safe.
+ * @author Redempt
+ */
+public interface MetricsListener {
+
+	/**
+	 * Called when an expression has been compiled
+	 * @param expression The source of the expression
+	 * @param nanos The time taken to parse and optimize the expression, in nanoseconds
+	 * @param nodeCount The number of operations, values and function calls in the parsed expression
+	 * @param depth The number of levels of nesting in the parsed expression
+	 */
+	default void onCompile(String expression, long nanos, int nodeCount, int depth) {}
+
+	/**
+	 * Called when compiling an expression fails
+	 * @param expression The source of the expression
+	 * @param nanos The time taken before the failure, in nanoseconds
+	 * @param exception The exception thrown
+	 */
+	default void onCompileFailure(String expression, long nanos, ExpressionCompilationException exception) {}
+
+	/**
+	 * Called when an expression has been evaluated once
+	 * @param expression The source of the expression
+	 * @param nanos The time taken to evaluate the expression, in nanoseconds
+	 */
+	default void onEvaluate(String expression, long nanos) {}
+
+	/**
+	 * Called when an expression has been evaluated for a batch of rows, either on one thread or in parallel
+	 * @param expression The source of the expression
+	 * @param rowCount The number of rows evaluated
+	 * @param nanos The time taken to evaluate all of the rows, in nanoseconds
+	 */
+	default void onBatchEvaluate(String expression, int rowCount, long nanos) {}
+
+	/**
+	 * Called when evaluating an expression throws an exception
+	 * @param expression The source of the expression
+	 * @param nanos The time taken before the failure, in nanoseconds
+	 * @param exception The exception thrown
+	 */
+	default void onEvaluationFailure(String expression, long nanos, RuntimeException exception) {}
+
+	/**
+	 * Called when an {@link redempt.crunch.ExpressionCache} is asked for an expression
+	 * @param hit Whether the expression was already cached
+	 */
+	default void onCacheLookup(boolean hit) {}
+
+	/**
+	 * Creates a listener which passes every measurement to several listeners in order
+	 * @param listeners The listeners to pass measurements to
+	 * @return The combined listener
+	 */
+	static MetricsListener combine(MetricsListener... listeners) {
+		MetricsListener[] copy = listeners.clone();
+		for (MetricsListener listener : copy) {
+			if (listener == null) {
+				throw new IllegalArgumentException("Listener is null");
+			}
+		}
+		return new CombinedListener(copy);
+	}
+
+	/**
+	 * Creates a listener which records measurements as Java Flight Recorder events. Compilations are recorded as
+	 * {@code redempt.crunch.Compile} events, which are enabled by default. Evaluations and cache lookups happen far more
+	 * often, so their {@code redempt.crunch.Evaluate} and {@code redempt.crunch.CacheLookup} events must be enabled
+	 * in the recording settings. Only available on Java 17 and later.
+	 * @return The listener
+	 * @throws UnsupportedOperationException If Flight Recorder events are not supported by the running JVM
+	 */
+	static MetricsListener flightRecorder() {
+		try {
+			return Class.forName("redempt.crunch.metrics.FlightRecorderListener").asSubclass(MetricsListener.class)
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			throw new UnsupportedOperationException("Flight Recorder events require Java 17 or later", e);
+		}
+	}
+
+}
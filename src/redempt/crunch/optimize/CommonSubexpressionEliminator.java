@@ -0,0 +1,294 @@
+package redempt.crunch.optimize;
+
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Variable;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.ConditionalOperation;
+import redempt.crunch.token.Constant;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.SharedValueReference;
+import redempt.crunch.token.ShortCircuitOperation;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds structurally identical pure subexpressions and rewrites the tree so that each is evaluated only once per
+ * evaluation. The first occurrence in evaluation order becomes a {@link SharedValue} which stores its result in a
+ * slot after the variables, and the others become {@link SharedValueReference}s reading it back.
+ * Impure operations, like {@code rand}, calls to functions not marked pure and lazy variables, are never merged.
+ * Operands which are only evaluated conditionally, like the branches of {@code if} and the second operand of a boolean
+ * operator, are left untouched, since a value stored there might not have been computed when it is read elsewhere.
+ * @author Redempt
+ */
+public final class CommonSubexpressionEliminator {
+
+	private static final double[] NO_VALUES = new double[0];
+
+	/**
+	 * Eliminates common subexpressions from a CompiledExpression
+	 * @param expression The expression to optimize
+	 * @return An equivalent expression which evaluates each repeated pure subexpression once, or the same expression if there were none
+	 */
+	public static CompiledExpression eliminate(CompiledExpression expression) {
+		CommonSubexpressionEliminator eliminator = new CommonSubexpressionEliminator(expression.getFrameSize());
+		Value value = expression.getValue();
+		eliminator.number(value);
+		if (!eliminator.hasRepeats) {
+			return expression;
+		}
+		Value rewritten = eliminator.finish(eliminator.rewrite(value));
+		if (eliminator.finalSlots.isEmpty()) {
+			return expression;
+		}
+		return new CompiledExpression(rewritten, expression.getVariableCount(), eliminator.firstSlot + eliminator.finalSlots.size());
+	}
+
+	private final int firstSlot;
+	private final Map<Value, Integer> ids = new IdentityHashMap<>();
+	private final Map<NodeKey, Integer> table = new HashMap<>();
+	private final Map<Function, Integer> functionIds = new IdentityHashMap<>();
+	private final List<Boolean> pure = new ArrayList<>();
+	private final List<Integer> counts = new ArrayList<>();
+	private final Map<Integer, Integer> slotsById = new HashMap<>();
+	private final Map<Integer, Integer> referenceCounts = new HashMap<>();
+	private final Map<Integer, Integer> finalSlots = new HashMap<>();
+	private boolean hasRepeats;
+	private int slotCount;
+
+	private CommonSubexpressionEliminator(int firstSlot) {
+		this.firstSlot = firstSlot;
+	}
+
+	/**
+	 * Assigns every node an id, such that two nodes get the same id exactly when they are pure and structurally identical
+	 */
+	private int number(Value value) {
+		Integer existing = ids.get(value);
+		if (existing != null) {
+			increment(existing);
+			return existing;
+		}
+		NodeKey key = null;
+		boolean isPure = false;
+		if (value instanceof LiteralValue || value instanceof Constant) {
+			key = new NodeKey(0, Double.doubleToLongBits(value.getValue(NO_VALUES)));
+			isPure = true;
+		} else if (value instanceof Variable) {
+			key = new NodeKey(1, ((Variable) value).getIndex());
+			isPure = true;
+		} else if (value instanceof ShortCircuitOperation) {
+			// The second operand is not always evaluated, so nothing inside it may be shared with the rest of the tree
+			number(((ShortCircuitOperation) value).getValues()[0]);
+		} else if (value instanceof ConditionalOperation) {
+			number(((ConditionalOperation) value).getCondition());
+		} else if (value instanceof BinaryOperation) {
+			BinaryOperation operation = (BinaryOperation) value;
+			Value[] values = operation.getValues();
+			int first = number(values[0]);
+			int second = number(values[1]);
+			isPure = pure.get(first) && pure.get(second);
+			key = new NodeKey(2, operation.getOperator().ordinal(), first, second);
+		} else if (value instanceof UnaryOperation) {
+			UnaryOperation operation = (UnaryOperation) value;
+			int child = number(operation.getChild());
+			isPure = operation.getOperator().isPure() && pure.get(child);
+			key = new NodeKey(3, operation.getOperator().ordinal(), child);
+		} else if (value instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) value;
+			Value[] args = call.getArguments();
+			int[] children = new int[args.length];
+			isPure = call.getFunction().isPure();
+			for (int i = 0; i < args.length; i++) {
+				children[i] = number(args[i]);
+				isPure &= pure.get(children[i]);
+			}
+			Integer function = functionIds.computeIfAbsent(call.getFunction(), f -> functionIds.size());
+			key = new NodeKey(5, function, children);
+		}
+		int id;
+		if (isPure) {
+			Integer shared = table.get(key);
+			if (shared != null) {
+				ids.put(value, shared);
+				increment(shared);
+				return shared;
+			}
+			id = newId(true);
+			table.put(key, id);
+		} else {
+			id = newId(false);
+		}
+		ids.put(value, id);
+		return id;
+	}
+
+	private int newId(boolean isPure) {
+		pure.add(isPure);
+		counts.add(1);
+		return pure.size() - 1;
+	}
+
+	private void increment(int id) {
+		counts.set(id, counts.get(id) + 1);
+		if (isShareable(id)) {
+			hasRepeats = true;
+		}
+	}
+
+	/**
+	 * Literals and variables are already as cheap as reading a slot, so only repeated pure operations are shared
+	 */
+	private boolean isShareable(int id) {
+		return pure.get(id) && counts.get(id) > 1;
+	}
+
+	private Value rewrite(Value value) {
+		int id = ids.get(value);
+		if (isShareable(id) && (value instanceof BinaryOperation || value instanceof UnaryOperation || value instanceof FunctionCall)) {
+			Integer slot = slotsById.get(id);
+			if (slot != null) {
+				referenceCounts.merge(slot, 1, Integer::sum);
+				return new SharedValueReference(slot, value);
+			}
+			slot = slotCount++;
+			slotsById.put(id, slot);
+			return new SharedValue(slot, rebuild(value));
+		}
+		return rebuild(value);
+	}
+
+	private Value rebuild(Value value) {
+		if (value instanceof ShortCircuitOperation) {
+			ShortCircuitOperation operation = (ShortCircuitOperation) value;
+			Value[] values = operation.getValues();
+			Value first = rewrite(values[0]);
+			return first == values[0] ? value : operation.withValues(first, values[1]);
+		}
+		if (value instanceof ConditionalOperation) {
+			ConditionalOperation conditional = (ConditionalOperation) value;
+			Value condition = rewrite(conditional.getCondition());
+			return condition == conditional.getCondition() ? value : conditional.withValues(condition, conditional.getIfTrue(), conditional.getIfFalse());
+		}
+		if (value instanceof BinaryOperation) {
+			BinaryOperation operation = (BinaryOperation) value;
+			Value[] values = operation.getValues();
+			Value first = rewrite(values[0]);
+			Value second = rewrite(values[1]);
+			if (first == values[0] && second == values[1]) {
+				return value;
+			}
+			return operation.withValues(first, second);
+		}
+		if (value instanceof UnaryOperation) {
+			UnaryOperation operation = (UnaryOperation) value;
+			Value child = rewrite(operation.getChild());
+			return child == operation.getChild() ? value : operation.withChild(child);
+		}
+		if (value instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) value;
+			Value[] args = call.getArguments();
+			Value[] rewritten = new Value[args.length];
+			boolean changed = false;
+			for (int i = 0; i < args.length; i++) {
+				rewritten[i] = rewrite(args[i]);
+				changed |= rewritten[i] != args[i];
+			}
+			return changed ? FunctionCall.create(call.getFunction(), rewritten) : value;
+		}
+		return value;
+	}
+
+	/**
+	 * Unwraps shared values which ended up never being referenced, which happens to subexpressions repeated only
+	 * inside another repeated subexpression, and assigns the remaining ones their final slots
+	 */
+	private Value finish(Value value) {
+		if (value instanceof SharedValue) {
+			SharedValue shared = (SharedValue) value;
+			Value child = finish(shared.getChild());
+			if (!referenceCounts.containsKey(shared.getSlot())) {
+				return child;
+			}
+			int slot = firstSlot + finalSlots.size();
+			finalSlots.put(shared.getSlot(), slot);
+			return new SharedValue(slot, child);
+		}
+		if (value instanceof SharedValueReference) {
+			SharedValueReference reference = (SharedValueReference) value;
+			return new SharedValueReference(finalSlots.get(reference.getSlot()), reference.getShared());
+		}
+		if (value instanceof ConditionalOperation) {
+			ConditionalOperation conditional = (ConditionalOperation) value;
+			Value condition = finish(conditional.getCondition());
+			return condition == conditional.getCondition() ? value : conditional.withValues(condition, conditional.getIfTrue(), conditional.getIfFalse());
+		}
+		if (value instanceof BinaryOperation) {
+			BinaryOperation operation = (BinaryOperation) value;
+			Value[] values = operation.getValues();
+			Value first = finish(values[0]);
+			Value second = finish(values[1]);
+			if (first == values[0] && second == values[1]) {
+				return value;
+			}
+			return operation.withValues(first, second);
+		}
+		if (value instanceof UnaryOperation) {
+			UnaryOperation operation = (UnaryOperation) value;
+			Value child = finish(operation.getChild());
+			return child == operation.getChild() ? value : operation.withChild(child);
+		}
+		if (value instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) value;
+			Value[] args = call.getArguments();
+			Value[] finished = new Value[args.length];
+			boolean changed = false;
+			for (int i = 0; i < args.length; i++) {
+				finished[i] = finish(args[i]);
+				changed |= finished[i] != args[i];
+			}
+			return changed ? FunctionCall.create(call.getFunction(), finished) : value;
+		}
+		return value;
+	}
+
+	private static final class NodeKey {
+
+		private final int kind;
+		private final long data;
+		private final int[] children;
+		private final int hash;
+
+		private NodeKey(int kind, long data, int... children) {
+			this.kind = kind;
+			this.data = data;
+			this.children = children;
+			this.hash = (kind * 31 + Long.hashCode(data)) * 31 + Arrays.hashCode(children);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof NodeKey)) {
+				return false;
+			}
+			NodeKey other = (NodeKey) o;
+			return kind == other.kind && data == other.data && Arrays.equals(children, other.children);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+	}
+
+}
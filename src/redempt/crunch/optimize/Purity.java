@@ -0,0 +1,73 @@
+package redempt.crunch.optimize;
+
+import redempt.crunch.Variable;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.ConditionalOperation;
+import redempt.crunch.token.Constant;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.SharedValueReference;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.Value;
+
+/**
+ * Determines whether Values are pure, meaning they always evaluate to the same result for the same variable values
+ * and have no side effects, so that they can be merged, reordered or dropped by optimizations
+ * @author Redempt
+ */
+public final class Purity {
+	
+	private Purity() {
+		// Prevent instantiation
+	}
+	
+	/**
+	 * Checks whether a Value and all of its children are pure. Calls to functions not marked pure, lazy variables and
+	 * values created by function factories are considered impure, since their behavior is not known.
+	 * @param value The Value to check
+	 * @return Whether the Value is pure
+	 */
+	public static boolean isPure(Value value) {
+		if (value instanceof LiteralValue || value instanceof Constant || value instanceof Variable || value instanceof SharedValueReference) {
+			return true;
+		}
+		if (value instanceof BinaryOperation) {
+			Value[] values = ((BinaryOperation) value).getValues();
+			return isPure(values[0]) && isPure(values[1]);
+		}
+		if (value instanceof UnaryOperation) {
+			UnaryOperation operation = (UnaryOperation) value;
+			return operation.getOperator().isPure() && isPure(operation.getChild());
+		}
+		if (value instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) value;
+			if (!call.getFunction().isPure()) {
+				return false;
+			}
+			for (Value arg : call.getArguments()) {
+				if (!isPure(arg)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (value instanceof ConditionalOperation) {
+			ConditionalOperation conditional = (ConditionalOperation) value;
+			return isPure(conditional.getCondition()) && isPure(conditional.getIfTrue()) && isPure(conditional.getIfFalse());
+		}
+		if (value instanceof SharedValue) {
+			return isPure(((SharedValue) value).getChild());
+		}
+		return false;
+	}
+	
+	/**
+	 * @param value The Value to check
+	 * @return Whether the Value is a literal or constant, whose value is known at compile time
+	 */
+	public static boolean isLiteral(Value value) {
+		return value instanceof LiteralValue || value instanceof Constant;
+	}
+	
+}
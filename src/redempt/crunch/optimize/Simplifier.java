@@ -0,0 +1,293 @@
+package redempt.crunch.optimize;
+
+import redempt.crunch.CompileOptions;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.ConditionalOperation;
+import redempt.crunch.token.FusedMultiplyAddOperation;
+import redempt.crunch.token.IntegerPowerOperation;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.ShortCircuitOperation;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites a Value tree into a cheaper equivalent. The rewrites are:
+ * <ul>
+ *     <li>Identities are removed: {@code x*1}, {@code 1*x}, {@code x/1}, {@code x+0}, {@code 0+x}, {@code x-0} and {@code x^1} become {@code x}</li>
+ *     <li>{@code x^0} becomes 1 when x is pure</li>
+ *     <li>{@code x^n} for a small positive integer n becomes repeated multiplication</li>
+ *     <li>Scientific notation with a literal exponent becomes a multiplication by a literal</li>
+ *     <li>Division by a power of two becomes multiplication by its reciprocal, which gives identical results</li>
+ *     <li>Double negation is removed</li>
+ *     <li>Conditionals and boolean operators whose result is decided by a constant are replaced by the result</li>
+ *     <li>Calls to pure functions whose arguments are all constant are evaluated</li>
+ *     <li>Optionally, chains of additions or multiplications are regrouped so that all their constants are folded together</li>
+ *     <li>Optionally, {@code a*b+c} is fused into a single {@link FusedMultiplyAddOperation}</li>
+ * </ul>
+ * All rewrites give the same results as the original tree, except that removing {@code +0} turns a result of -0 into 0,
+ * fused multiply-add is rounded only once, and regrouping changes the order in which constants are rounded. Raising to
+ * an integer power n by squaring rounds after every multiplication, giving a relative error of at most about
+ * {@code (n - 1) * 2^-53}, or around 31 units in the last place for {@link #MAX_EXPANDED_POWER}, where Math.pow is
+ * within one.
+ * @author Redempt
+ */
+public final class Simplifier {
+	
+	/**
+	 * The highest integer power which is expanded into multiplications
+	 */
+	public static final int MAX_EXPANDED_POWER = 32;
+	
+	private static final double[] NO_VALUES = new double[0];
+	
+	/**
+	 * Simplifies a CompiledExpression
+	 * @param expression The expression to simplify
+	 * @param options The options controlling which optional rewrites are applied
+	 * @return The simplified expression, or the same expression if nothing changed
+	 */
+	public static CompiledExpression simplify(CompiledExpression expression, CompileOptions options) {
+		Value value = new Simplifier(options.isFusedMultiplyAdd(), options.isReassociate()).simplify(expression.getValue());
+		if (value == expression.getValue()) {
+			return expression;
+		}
+		return new CompiledExpression(value, expression.getVariableCount(), expression.getFrameSize());
+	}
+	
+	private final boolean fuseMultiplyAdd;
+	private final boolean reassociate;
+	
+	private Simplifier(boolean fuseMultiplyAdd, boolean reassociate) {
+		this.fuseMultiplyAdd = fuseMultiplyAdd;
+		this.reassociate = reassociate;
+	}
+	
+	private Value simplify(Value value) {
+		if (reassociate && (isChain(value, BinaryOperator.ADD) || isChain(value, BinaryOperator.MULTIPLY))) {
+			return simplifyChain((BinaryOperation) value);
+		}
+		if (value instanceof BinaryOperation) {
+			BinaryOperation operation = (BinaryOperation) value;
+			Value[] values = operation.getValues();
+			Value first = simplify(values[0]);
+			Value second = simplify(values[1]);
+			Value simplified = simplifyBinary(operation, first, second);
+			if (simplified != null) {
+				return simplified;
+			}
+			if (first == values[0] && second == values[1]) {
+				return value;
+			}
+			return operation.withValues(first, second);
+		}
+		if (value instanceof UnaryOperation) {
+			UnaryOperation operation = (UnaryOperation) value;
+			Value child = simplify(operation.getChild());
+			if (operation.getOperator() == UnaryOperator.NEGATE && child instanceof UnaryOperation
+					&& ((UnaryOperation) child).getOperator() == UnaryOperator.NEGATE) {
+				return ((UnaryOperation) child).getChild();
+			}
+			if (operation.getOperator().isPure() && Purity.isLiteral(child)) {
+				return new LiteralValue(operation.getOperator().getOperation().applyAsDouble(child.getValue(NO_VALUES)));
+			}
+			return child == operation.getChild() ? value : operation.withChild(child);
+		}
+		if (value instanceof ConditionalOperation) {
+			ConditionalOperation conditional = (ConditionalOperation) value;
+			Value condition = simplify(conditional.getCondition());
+			if (Purity.isLiteral(condition)) {
+				return simplify(condition.getValue(NO_VALUES) == 1 ? conditional.getIfTrue() : conditional.getIfFalse());
+			}
+			Value ifTrue = simplify(conditional.getIfTrue());
+			Value ifFalse = simplify(conditional.getIfFalse());
+			if (condition == conditional.getCondition() && ifTrue == conditional.getIfTrue() && ifFalse == conditional.getIfFalse()) {
+				return value;
+			}
+			return conditional.withValues(condition, ifTrue, ifFalse);
+		}
+		if (value instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) value;
+			Value[] args = call.getArguments();
+			Value[] simplified = new Value[args.length];
+			boolean changed = false;
+			boolean constant = true;
+			for (int i = 0; i < args.length; i++) {
+				simplified[i] = simplify(args[i]);
+				changed |= simplified[i] != args[i];
+				constant &= Purity.isLiteral(simplified[i]);
+			}
+			if (constant && call.getFunction().isPure()) {
+				return new LiteralValue(FunctionCall.create(call.getFunction(), simplified).getValue(NO_VALUES));
+			}
+			return changed ? FunctionCall.create(call.getFunction(), simplified) : value;
+		}
+		return value;
+	}
+	
+	/**
+	 * Flattens a chain of additions or multiplications, folds all of its constant operands into one and rebuilds it
+	 * with the constant last. The other operands keep their order, so their evaluation order does not change.
+	 */
+	private Value simplifyChain(BinaryOperation chain) {
+		BinaryOperator operator = chain.getOperator();
+		List<Value> operands = new ArrayList<>();
+		collect(operator, chain, operands);
+		List<Value> terms = new ArrayList<>();
+		Double constant = null;
+		for (Value operand : operands) {
+			if (Purity.isLiteral(operand)) {
+				double literal = operand.getValue(NO_VALUES);
+				constant = constant == null ? literal : operator.getOperation().applyAsDouble(constant, literal);
+			} else {
+				terms.add(operand);
+			}
+		}
+		if (constant != null) {
+			terms.add(new LiteralValue(constant));
+		}
+		Value result = terms.get(0);
+		for (int i = 1; i < terms.size(); i++) {
+			Value next = terms.get(i);
+			BinaryOperation operation = BinaryOperation.create(operator, result, next);
+			Value simplified = simplifyBinary(operation, result, next);
+			result = simplified == null ? operation : simplified;
+		}
+		return result;
+	}
+	
+	private void collect(BinaryOperator operator, Value value, List<Value> operands) {
+		if (isChain(value, operator)) {
+			Value[] values = ((BinaryOperation) value).getValues();
+			collect(operator, values[0], operands);
+			collect(operator, values[1], operands);
+			return;
+		}
+		Value simplified = simplify(value);
+		if (simplified != value && isChain(simplified, operator)) {
+			// Simplifying an operand can expose another chain, whose operands are already simplified
+			flatten(operator, simplified, operands);
+			return;
+		}
+		operands.add(simplified);
+	}
+	
+	private static void flatten(BinaryOperator operator, Value value, List<Value> operands) {
+		if (isChain(value, operator)) {
+			Value[] values = ((BinaryOperation) value).getValues();
+			flatten(operator, values[0], operands);
+			flatten(operator, values[1], operands);
+			return;
+		}
+		operands.add(value);
+	}
+	
+	private static boolean isChain(Value value, BinaryOperator operator) {
+		return value instanceof BinaryOperation && !(value instanceof FusedMultiplyAddOperation)
+				&& ((BinaryOperation) value).getOperator() == operator;
+	}
+	
+	/**
+	 * @return The simplified operation, or null if no rewrite applies
+	 */
+	private Value simplifyBinary(BinaryOperation operation, Value first, Value second) {
+		BinaryOperator operator = operation.getOperator();
+		if (operation instanceof IntegerPowerOperation || operation instanceof FusedMultiplyAddOperation) {
+			return null;
+		}
+		if (Purity.isLiteral(first) && Purity.isLiteral(second)) {
+			return new LiteralValue(operator.getOperation().applyAsDouble(first.getValue(NO_VALUES), second.getValue(NO_VALUES)));
+		}
+		if (operation instanceof ShortCircuitOperation && Purity.isLiteral(first)) {
+			// The second operand would never be evaluated if the first decides the result
+			boolean decided = first.getValue(NO_VALUES) == 1;
+			if (decided != ((ShortCircuitOperation) operation).isAnd()) {
+				return new LiteralValue(decided ? 1 : 0);
+			}
+			return null;
+		}
+		switch (operator) {
+			case ADD:
+				if (isLiteral(second, 0)) {
+					return first;
+				}
+				if (isLiteral(first, 0)) {
+					return second;
+				}
+				if (fuseMultiplyAdd) {
+					if (isPlainMultiplication(first)) {
+						return new FusedMultiplyAddOperation((BinaryOperation) first, second);
+					}
+					// The addend moves after the product, so it must not matter when it is evaluated
+					if (isPlainMultiplication(second) && Purity.isPure(first)) {
+						return new FusedMultiplyAddOperation((BinaryOperation) second, first);
+					}
+				}
+				return null;
+			case SUBTRACT:
+				return isLiteral(second, 0) ? first : null;
+			case MULTIPLY:
+				if (isLiteral(second, 1)) {
+					return first;
+				}
+				return isLiteral(first, 1) ? second : null;
+			case DIVIDE:
+				if (isLiteral(second, 1)) {
+					return first;
+				}
+				if (Purity.isLiteral(second) && hasExactReciprocal(second.getValue(NO_VALUES))) {
+					return BinaryOperation.create(BinaryOperator.MULTIPLY, first, new LiteralValue(1 / second.getValue(NO_VALUES)));
+				}
+				return null;
+			case EXPONENT:
+				if (!Purity.isLiteral(second)) {
+					return null;
+				}
+				double exponent = second.getValue(NO_VALUES);
+				if (exponent == 1) {
+					return first;
+				}
+				if (exponent == 0 && Purity.isPure(first)) {
+					return new LiteralValue(1);
+				}
+				if (exponent >= 2 && exponent <= MAX_EXPANDED_POWER && exponent % 1 == 0) {
+					return new IntegerPowerOperation(first, (int) exponent);
+				}
+				return null;
+			case SCIENTIFIC_NOTATION:
+				if (Purity.isLiteral(second)) {
+					return BinaryOperation.create(BinaryOperator.MULTIPLY, first, new LiteralValue(Math.pow(10, second.getValue(NO_VALUES))));
+				}
+				return null;
+			default:
+				return null;
+		}
+	}
+	
+	private static boolean isLiteral(Value value, double literal) {
+		return Purity.isLiteral(value) && value.getValue(NO_VALUES) == literal;
+	}
+	
+	private static boolean isPlainMultiplication(Value value) {
+		return isChain(value, BinaryOperator.MULTIPLY);
+	}
+	
+	/**
+	 * Checks whether the reciprocal of a number can be represented exactly, so that dividing by it and multiplying by its
+	 * reciprocal always give the same result. This is the case for powers of two whose reciprocal is also a normal number.
+	 */
+	private static boolean hasExactReciprocal(double value) {
+		if (value == 0 || Double.isNaN(value) || Double.isInfinite(value)) {
+			return false;
+		}
+		int exponent = Math.getExponent(value);
+		return Math.abs(value) == Math.scalb(1d, exponent) && exponent >= Double.MIN_EXPONENT && exponent < Double.MAX_EXPONENT;
+	}
+	
+}
@@ -0,0 +1,344 @@
+package redempt.crunch.program;
+
+import redempt.crunch.CompileMode;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.bytecode.BytecodeCompiler;
+import redempt.crunch.exceptions.ExpressionCompilationException;
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.functional.Function;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.LazyVariable;
+import redempt.crunch.token.Token;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static redempt.crunch.program.Program.*;
+
+/**
+ * Reads the expressions in a snapshot written by {@link ExpressionWriter}, one at a time, directly from a buffer such
+ * as a memory-mapped file. Loading an expression reads its instructions in bulk and binds its functions and lazy
+ * variables by name, which is much faster than parsing it. Snapshots written by an incompatible version of Crunch,
+ * and records which are malformed, are rejected with an {@link ExpressionCompilationException}.
+ * <p>
+ * The reader keeps its own position, so the position of the buffer it was created with is not changed. Snapshots should
+ * only be read from trusted sources.
+ * @author Redempt
+ */
+public class ExpressionReader {
+
+	private static final int BINARY_OPERATOR_COUNT = BinaryOperator.values().length;
+	private static final int UNARY_OPERATOR_COUNT = UnaryOperator.values().length;
+
+	private final ByteBuffer buffer;
+	private final ExpressionEnv env;
+	private final CompileMode mode;
+
+	/**
+	 * Creates an ExpressionReader and checks the snapshot header
+	 * @param buffer The buffer holding the snapshot, positioned at its start
+	 * @param env The environment whose functions and lazy variables are bound to the ones named in the snapshot
+	 * @param mode The backend the loaded expressions will be evaluated with
+	 */
+	public ExpressionReader(ByteBuffer buffer, ExpressionEnv env, CompileMode mode) {
+		if (buffer == null || env == null || mode == null) {
+			throw new IllegalArgumentException("Buffer, environment and mode cannot be null");
+		}
+		this.buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		this.env = env;
+		this.mode = mode;
+		if (this.buffer.remaining() < 6 || this.buffer.getInt() != ExpressionWriter.MAGIC) {
+			throw new ExpressionCompilationException(null, "Not a compiled expression snapshot");
+		}
+		int version = this.buffer.getShort();
+		if (version != ExpressionWriter.VERSION) {
+			throw new ExpressionCompilationException(null, "Unsupported snapshot version " + version + ", expected " + ExpressionWriter.VERSION);
+		}
+	}
+
+	/**
+	 * @return Whether there are more expressions to read
+	 */
+	public boolean hasNext() {
+		return buffer.hasRemaining();
+	}
+
+	/**
+	 * Reads the next expression
+	 * @return The expression, compiled with the mode this reader was created with
+	 */
+	public CompiledExpression next() {
+		Program program;
+		try {
+			program = readProgram();
+		} catch (BufferUnderflowException e) {
+			throw new ExpressionCompilationException(null, "Snapshot is truncated");
+		}
+		int variableCount = program.getVariableCount();
+		if (mode == CompileMode.PROGRAM) {
+			return new CompiledExpression(program, variableCount, program.getFrameSize());
+		}
+		try {
+			CompiledExpression tree = new CompiledExpression(program.toTree(), variableCount, program.getStackBase());
+			return mode == CompileMode.BYTECODE ? BytecodeCompiler.compile(tree) : tree;
+		} catch (RuntimeException | LinkageError e) {
+			// The instructions are safe to run, but are not in the shape the compiler produces for any tree
+			throw new ExpressionCompilationException(null, "Malformed expression record: " + e);
+		}
+	}
+
+	private Program readProgram() {
+		int variableCount = buffer.getInt();
+		int stackBase = buffer.getInt();
+		int maxStack = buffer.getInt();
+		if (variableCount < 0 || variableCount > MAX_OPERAND + 1 || stackBase < variableCount || maxStack < 1) {
+			error("Invalid frame layout");
+		}
+		int[] code = new int[readLength(4)];
+		buffer.asIntBuffer().get(code);
+		buffer.position(buffer.position() + code.length * 4);
+		// Every shared slot is written by a store and every stack entry by a push, so neither can outnumber the instructions
+		if (stackBase - variableCount > code.length || maxStack > code.length) {
+			error("Invalid frame layout");
+		}
+		double[] constants = new double[readLength(8)];
+		buffer.asDoubleBuffer().get(constants);
+		buffer.position(buffer.position() + constants.length * 8);
+		Object[] references = new Object[readLength(1)];
+		for (int i = 0; i < references.length; i++) {
+			references[i] = readReference(references, i);
+		}
+		verify(code, constants.length, references, variableCount, stackBase, maxStack);
+		return new Program(code, constants, references, variableCount, stackBase, maxStack);
+	}
+
+	private int readLength(int elementSize) {
+		int length = buffer.getInt();
+		if (length < 0 || (long) length * elementSize > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		return length;
+	}
+
+	private Object readReference(Object[] references, int index) {
+		int tag = buffer.get();
+		switch (tag) {
+			case ExpressionWriter.FUNCTION: {
+				String name = readString();
+				int argCount = buffer.getInt();
+				Token token = env.getLeadingOperators().get(name);
+				if (!(token instanceof Function) || ((Function) token).getArgCount() != argCount) {
+					error("No function '" + name + "' taking " + argCount + " arguments in the environment");
+				}
+				return token;
+			}
+			case ExpressionWriter.FUNCTION_OPERATOR: {
+				Object previous = index > 0 ? references[index - 1] : null;
+				if (!(previous instanceof Function)) {
+					error("Function operator without a function");
+				}
+				Function function = (Function) previous;
+				Object operator = function.getUnaryOperator() != null ? function.getUnaryOperator()
+						: function.getBinaryOperator() != null ? function.getBinaryOperator()
+						: function.getTernaryOperator() != null ? function.getTernaryOperator()
+						: function.getQuaternaryOperator();
+				if (operator == null) {
+					// Bound to a function taking an argument array, so calls to it must not use the operator opcodes
+					error("Function '" + function.getName() + "' in the environment does not take its arguments directly");
+				}
+				return operator;
+			}
+			case ExpressionWriter.LAZY_VARIABLE: {
+				String name = readString();
+				Value value = env.getValues().get(name);
+				if (!(value instanceof LazyVariable)) {
+					error("No lazy variable '" + name + "' in the environment");
+				}
+				return value;
+			}
+			default:
+				error("Unknown reference type " + tag);
+				return null;
+		}
+	}
+
+	private String readString() {
+		byte[] bytes = new byte[readLength(1)];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Checks that every instruction only refers to constants, references, slots and jump targets which exist, and that
+	 * the operand stack never underflows or grows past the maximum in the header and ends with exactly one value, so
+	 * that a malformed record is rejected when it is loaded rather than when it is evaluated. Jumps only go forward, so
+	 * the stack height before every instruction is known after a single pass.
+	 */
+	private static void verify(int[] code, int constantCount, Object[] references, int variableCount, int stackBase, int maxStack) {
+		// The stack height expected by jumps to each position, or -1 if nothing jumps there yet
+		int[] targetHeights = new int[code.length + 1];
+		Arrays.fill(targetHeights, -1);
+		// Whether each shared slot has been stored to, since it must be before it is read
+		boolean[] stored = new boolean[stackBase - variableCount];
+		int height = 0;
+		boolean reachable = true;
+		for (int pc = 0; pc < code.length; pc++) {
+			height = merge(targetHeights[pc], height, reachable, pc);
+			reachable = true;
+			int operand = code[pc] >>> 8;
+			int opcode = code[pc] & 0xFF;
+			boolean valid;
+			int pops = 1;
+			int pushes = 1;
+			if (opcode >= BINARY) {
+				valid = opcode - BINARY < BINARY_OPERATOR_COUNT;
+				pops = 2;
+			} else {
+				switch (opcode) {
+					case CONSTANT:
+						valid = operand < constantCount;
+						pops = 0;
+						break;
+					case ADD_CONSTANT:
+					case SUBTRACT_CONSTANT:
+					case MULTIPLY_CONSTANT:
+					case DIVIDE_CONSTANT:
+						valid = operand < constantCount;
+						break;
+					case VARIABLE:
+						valid = operand < variableCount || operand < stackBase && stored[operand - variableCount];
+						pops = 0;
+						break;
+					case STORE:
+						valid = operand >= variableCount && operand < stackBase;
+						if (valid) {
+							stored[operand - variableCount] = true;
+						}
+						break;
+					case UNARY:
+						valid = operand < UNARY_OPERATOR_COUNT;
+						break;
+					case TO_BOOLEAN:
+						valid = operand < BINARY_OPERATOR_COUNT;
+						break;
+					case INTEGER_POWER:
+						valid = operand >= 1;
+						break;
+					case CALL:
+						valid = operand < references.length && references[operand] instanceof Function;
+						pops = valid ? ((Function) references[operand]).getArgCount() : 0;
+						break;
+					case CALL_1:
+					case CALL_2:
+					case CALL_3:
+					case CALL_4:
+						pops = opcode - CALL_1 + 1;
+						valid = operand + 1 < references.length && references[operand] instanceof Function
+								&& ((Function) references[operand]).getArgCount() == pops
+								&& references[operand + 1] == operator((Function) references[operand], pops);
+						break;
+					case VALUE:
+						valid = operand < references.length && references[operand] instanceof Value;
+						pops = 0;
+						break;
+					case JUMP:
+					case JUMP_IF_FALSE:
+					case AND_CHECK:
+					case OR_CHECK:
+						valid = operand > pc && operand <= code.length;
+						pops = opcode == JUMP ? 0 : 1;
+						pushes = 0;
+						break;
+					case NEGATE:
+						valid = true;
+						break;
+					case FUSED_MULTIPLY_ADD:
+						valid = true;
+						pops = 3;
+						break;
+					default:
+						valid = false;
+						break;
+				}
+			}
+			if (!valid) {
+				error("Invalid instruction at " + pc);
+			}
+			if (height < pops) {
+				error("Operand stack underflow at " + pc);
+			}
+			switch (opcode) {
+				case JUMP:
+					targetHeights[operand] = merge(targetHeights[operand], height, true, operand);
+					// The next instruction can only be reached by a jump
+					reachable = false;
+					break;
+				case JUMP_IF_FALSE:
+					targetHeights[operand] = merge(targetHeights[operand], height - 1, true, operand);
+					break;
+				case AND_CHECK:
+				case OR_CHECK:
+					// Jumping leaves the checked value on the stack as the result
+					targetHeights[operand] = merge(targetHeights[operand], height, true, operand);
+					break;
+			}
+			height += pushes - pops;
+			if (height > maxStack) {
+				error("Operand stack exceeds its maximum size of " + maxStack + " at " + pc);
+			}
+		}
+		height = merge(targetHeights[code.length], height, reachable, code.length);
+		if (height != 1) {
+			error("Program leaves " + height + " values on the operand stack");
+		}
+	}
+
+	/**
+	 * @return The operator a function is called through with the given number of arguments, or null if it has none
+	 */
+	private static Object operator(Function function, int argCount) {
+		switch (argCount) {
+			case 1:
+				return function.getUnaryOperator();
+			case 2:
+				return function.getBinaryOperator();
+			case 3:
+				return function.getTernaryOperator();
+			case 4:
+				return function.getQuaternaryOperator();
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Combines the stack height expected at a position by earlier jumps with the height reached by falling through to it
+	 * @param target The height expected by jumps, or -1 if nothing jumps to the position
+	 * @param height The height after the previous instruction
+	 * @param reachable Whether the previous instruction can fall through to the position
+	 * @param pc The position
+	 * @return The stack height at the position
+	 */
+	private static int merge(int target, int height, boolean reachable, int pc) {
+		if (target == -1) {
+			if (!reachable) {
+				error("Unreachable instruction at " + pc);
+			}
+			return height;
+		}
+		if (reachable && target != height) {
+			error("Inconsistent operand stack height at " + pc);
+		}
+		return target;
+	}
+
+	private static void error(String message) {
+		throw new ExpressionCompilationException(null, message);
+	}
+
+}
@@ -0,0 +1,141 @@
+package redempt.crunch.program;
+
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.bytecode.GeneratedValue;
+import redempt.crunch.functional.Function;
+import redempt.crunch.token.LazyVariable;
+import redempt.crunch.token.Value;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes compiled expressions to a compact, versioned binary snapshot which {@link ExpressionReader} can load much
+ * faster than the expressions could be parsed again. Expressions are stored as {@link Program} instructions, so any
+ * optimizations applied when they were compiled are kept. Functions and lazy variables are stored by name, and are
+ * bound to the ones with the same names in the environment the snapshot is read with.
+ * <p>
+ * The snapshot starts with a header identifying the format and its version, followed by one record per expression.
+ * Expressions which use values created by custom {@link redempt.crunch.functional.FunctionFactory FunctionFactories}
+ * cannot be written.
+ * @author Redempt
+ */
+public class ExpressionWriter implements Closeable, Flushable {
+
+	static final int MAGIC = 0x43524E43;
+	static final int VERSION = 1;
+
+	static final int FUNCTION = 0;
+	static final int FUNCTION_OPERATOR = 1;
+	static final int LAZY_VARIABLE = 2;
+
+	/**
+	 * Writes expressions to a snapshot held in memory
+	 * @param expressions The expressions to write
+	 * @return The snapshot
+	 */
+	public static byte[] toBytes(CompiledExpression... expressions) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ExpressionWriter writer = new ExpressionWriter(bytes)) {
+			for (CompiledExpression expression : expressions) {
+				writer.write(expression);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private final DataOutputStream out;
+
+	/**
+	 * Creates an ExpressionWriter and writes the snapshot header
+	 * @param out The stream to write the snapshot to
+	 * @throws IOException If the header could not be written
+	 */
+	public ExpressionWriter(OutputStream out) throws IOException {
+		if (out == null) {
+			throw new IllegalArgumentException("Output stream cannot be null");
+		}
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		this.out.writeInt(MAGIC);
+		this.out.writeShort(VERSION);
+	}
+
+	/**
+	 * Writes a compiled expression, which may have been compiled with any {@link redempt.crunch.CompileMode}
+	 * @param expression The expression to write
+	 * @throws IOException If the expression could not be written
+	 */
+	public void write(CompiledExpression expression) throws IOException {
+		if (expression == null) {
+			throw new IllegalArgumentException("Expression cannot be null");
+		}
+		Value value = expression.getValue();
+		if (value instanceof GeneratedValue) {
+			value = ((GeneratedValue) value).getSource();
+		}
+		Program program = value instanceof Program ? (Program) value
+				: ProgramCompiler.compile(value, expression.getVariableCount(), expression.getFrameSize());
+		int[] code = program.getCode();
+		double[] constants = program.getConstants();
+		Object[] references = program.getReferences();
+		out.writeInt(program.getVariableCount());
+		out.writeInt(program.getStackBase());
+		out.writeInt(program.getFrameSize() - program.getStackBase());
+		out.writeInt(code.length);
+		for (int instruction : code) {
+			out.writeInt(instruction);
+		}
+		out.writeInt(constants.length);
+		for (double constant : constants) {
+			out.writeLong(Double.doubleToRawLongBits(constant));
+		}
+		out.writeInt(references.length);
+		for (int i = 0; i < references.length; i++) {
+			Object reference = references[i];
+			if (reference instanceof Function) {
+				Function function = (Function) reference;
+				out.writeByte(FUNCTION);
+				writeString(function.getName());
+				out.writeInt(function.getArgCount());
+			} else if (i > 0 && references[i - 1] instanceof Function && isOperator((Function) references[i - 1], reference)) {
+				out.writeByte(FUNCTION_OPERATOR);
+			} else if (reference instanceof LazyVariable) {
+				out.writeByte(LAZY_VARIABLE);
+				writeString(((LazyVariable) reference).getName());
+			} else {
+				throw new IllegalArgumentException("Cannot write expression containing '" + reference + "'");
+			}
+		}
+	}
+
+	private static boolean isOperator(Function function, Object reference) {
+		return reference == function.getUnaryOperator() || reference == function.getBinaryOperator()
+				|| reference == function.getTernaryOperator() || reference == function.getQuaternaryOperator();
+	}
+
+	private void writeString(String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+}
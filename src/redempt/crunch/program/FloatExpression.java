@@ -0,0 +1,577 @@
+package redempt.crunch.program;
+
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.bytecode.GeneratedValue;
+import redempt.crunch.exceptions.ExpressionEvaluationException;
+import redempt.crunch.functional.DoubleQuaternaryOperator;
+import redempt.crunch.functional.DoubleTernaryOperator;
+import redempt.crunch.functional.Function;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.FusedMultiplyAddOperation;
+import redempt.crunch.token.IntegerPowerOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.util.Arrays;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+import static redempt.crunch.program.Program.*;
+
+/**
+ * Evaluates an expression in single precision, taking float variables and returning a float. Addition, subtraction,
+ * multiplication, division and remainder are done in float arithmetic, while every other operation is computed in
+ * double precision and rounded to the nearest float. Batches of float columns are read directly, without widening
+ * them into double arrays first, which halves the memory read by batch evaluation.
+ * <p>
+ * The expression is evaluated from the instructions of a {@link Program}. Batches of expressions without conditionals
+ * or boolean operators are evaluated a chunk of rows at a time, applying each instruction to the whole chunk, and other
+ * expressions are evaluated row by row. A FloatExpression holds no evaluation state, so it can be used from any number
+ * of threads at once. Expressions compiled with {@link redempt.crunch.Crunch#compileFloatExpression(String, redempt.crunch.functional.ExpressionEnv)}
+ * evaluate operations on literals in single precision too, while those created from a CompiledExpression have already
+ * folded them in double precision.
+ * @author Redempt
+ */
+public final class FloatExpression {
+
+	private static final int CHUNK_SIZE = 256;
+	private static final BinaryOperator[] BINARY_OPERATORS = BinaryOperator.values();
+	private static final UnaryOperator[] UNARY_OPERATORS = UnaryOperator.values();
+
+	private final Program program;
+	private final int[] code;
+	private final float[] constants;
+	private final Object[] references;
+	private final int variableCount;
+	private final int stackBase;
+	private final int frameSize;
+	private final boolean branching;
+	private final boolean readsValues;
+
+	/**
+	 * Creates a FloatExpression evaluating the same expression as a CompiledExpression
+	 * @param expression The expression to evaluate
+	 */
+	public FloatExpression(CompiledExpression expression) {
+		if (expression == null) {
+			throw new IllegalArgumentException("Expression cannot be null");
+		}
+		program = toProgram(expression);
+		code = program.getCode();
+		double[] pool = program.getConstants();
+		constants = new float[pool.length];
+		for (int i = 0; i < pool.length; i++) {
+			constants[i] = (float) pool[i];
+		}
+		references = program.getReferences();
+		variableCount = program.getVariableCount();
+		stackBase = program.getStackBase();
+		frameSize = program.getFrameSize();
+		boolean branching = false;
+		boolean readsValues = false;
+		for (int instruction : code) {
+			int opcode = instruction & 0xFF;
+			branching |= opcode == JUMP || opcode == JUMP_IF_FALSE || opcode == AND_CHECK || opcode == OR_CHECK;
+			readsValues |= opcode == VALUE;
+		}
+		this.branching = branching;
+		this.readsValues = readsValues;
+	}
+
+	/**
+	 * Gets the Program evaluating a CompiledExpression, compiling one if it is not already evaluated by a Program
+	 */
+	static Program toProgram(CompiledExpression expression) {
+		Value value = expression.getValue();
+		if (value instanceof GeneratedValue) {
+			value = ((GeneratedValue) value).getSource();
+		}
+		if (value instanceof Program) {
+			return (Program) value;
+		}
+		return ProgramCompiler.compile(value, expression.getVariableCount(), expression.getFrameSize());
+	}
+
+	/**
+	 * @return The number of variables used in the expression
+	 */
+	public int getVariableCount() {
+		return variableCount;
+	}
+
+	/**
+	 * Evaluates the expression
+	 * @param values The values for the variables used in the expression, in order starting with 1
+	 * @return The value of the expression
+	 */
+	public float evaluate(float... values) {
+		if (values.length < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable values - expected " + variableCount + ", got " + values.length);
+		}
+		float[] frame = new float[frameSize];
+		System.arraycopy(values, 0, frame, 0, variableCount);
+		return run(frame, readsValues ? widen(frame) : null);
+	}
+
+	/**
+	 * Evaluates the expression once for every row of a set of float columns
+	 * @param columns The values for variables used in the expression, one column per variable in order starting with 1
+	 * @param rowCount The number of rows to evaluate
+	 * @param out The array to write the result for each row to
+	 */
+	public void evaluateBatch(float[][] columns, int rowCount, float[] out) {
+		checkOutput(rowCount, out);
+		if (columns.length < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable columns - expected " + variableCount + ", got " + columns.length);
+		}
+		for (int i = 0; i < variableCount; i++) {
+			if (columns[i].length < rowCount) {
+				throw new ExpressionEvaluationException("Column " + (i + 1) + " has fewer than " + rowCount + " rows");
+			}
+		}
+		new Batch(columns, null, 0).evaluate(rowCount, out);
+	}
+
+	/**
+	 * Evaluates the expression once for every row of a row-major array of float variable values
+	 * @param rows The values for variables used in the expression, with the values for each row stored consecutively
+	 * @param stride The distance between the starts of two consecutive rows, at least {@link #getVariableCount()}
+	 * @param rowCount The number of rows to evaluate
+	 * @param out The array to write the result for each row to
+	 */
+	public void evaluateBatch(float[] rows, int stride, int rowCount, float[] out) {
+		checkOutput(rowCount, out);
+		if (stride < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable values per row - expected " + variableCount + ", got " + stride);
+		}
+		if (rowCount > 0 && (long) (rowCount - 1) * stride + variableCount > rows.length) {
+			throw new ExpressionEvaluationException("Row array has fewer than " + rowCount + " rows");
+		}
+		new Batch(null, rows, stride).evaluate(rowCount, out);
+	}
+
+	private static void checkOutput(int rowCount, float[] out) {
+		if (rowCount < 0) {
+			throw new IllegalArgumentException("Row count cannot be negative");
+		}
+		if (out.length < rowCount) {
+			throw new IllegalArgumentException("Output array has fewer than " + rowCount + " elements");
+		}
+	}
+
+	/**
+	 * Widens the variables of a frame for the values which are evaluated in double precision, like lazy variables
+	 */
+	private double[] widen(float[] frame) {
+		double[] variables = new double[variableCount];
+		for (int i = 0; i < variableCount; i++) {
+			variables[i] = frame[i];
+		}
+		return variables;
+	}
+
+	private float run(float[] frame, double[] variables) {
+		int[] code = this.code;
+		float[] constants = this.constants;
+		int sp = stackBase - 1;
+		int pc = 0;
+		while (pc < code.length) {
+			int instruction = code[pc++];
+			int operand = instruction >>> 8;
+			int opcode = instruction & 0xFF;
+			if (opcode >= BINARY) {
+				sp--;
+				frame[sp] = binary(opcode, frame[sp], frame[sp + 1]);
+				continue;
+			}
+			switch (opcode) {
+				case CONSTANT:
+					frame[++sp] = constants[operand];
+					break;
+				case VARIABLE:
+					frame[++sp] = frame[operand];
+					break;
+				case STORE:
+					frame[operand] = frame[sp];
+					break;
+				case NEGATE:
+					frame[sp] = -frame[sp];
+					break;
+				case UNARY:
+					frame[sp] = unary(UNARY_OPERATORS[operand], frame[sp]);
+					break;
+				case INTEGER_POWER:
+					frame[sp] = (float) IntegerPowerOperation.power(frame[sp], operand);
+					break;
+				case FUSED_MULTIPLY_ADD:
+					sp -= 2;
+					frame[sp] = (float) FusedMultiplyAddOperation.fma(frame[sp], frame[sp + 1], frame[sp + 2]);
+					break;
+				case ADD_CONSTANT:
+					frame[sp] += constants[operand];
+					break;
+				case SUBTRACT_CONSTANT:
+					frame[sp] -= constants[operand];
+					break;
+				case MULTIPLY_CONSTANT:
+					frame[sp] *= constants[operand];
+					break;
+				case DIVIDE_CONSTANT:
+					frame[sp] /= constants[operand];
+					break;
+				case CALL:
+				case CALL_1:
+				case CALL_2:
+				case CALL_3:
+				case CALL_4: {
+					int argCount = ((Function) references[operand]).getArgCount();
+					sp -= argCount - 1;
+					double[] args = new double[argCount];
+					for (int i = 0; i < argCount; i++) {
+						args[i] = frame[sp + i];
+					}
+					frame[sp] = (float) call(opcode, operand, args);
+					break;
+				}
+				case VALUE:
+					frame[++sp] = (float) ((Value) references[operand]).getValue(variables);
+					break;
+				case JUMP:
+					pc = operand;
+					break;
+				case JUMP_IF_FALSE:
+					if (frame[sp--] != 1) {
+						pc = operand;
+					}
+					break;
+				case AND_CHECK:
+					if (frame[sp] != 1) {
+						frame[sp] = 0;
+						pc = operand;
+					} else {
+						sp--;
+					}
+					break;
+				case OR_CHECK:
+					if (frame[sp] == 1) {
+						pc = operand;
+					} else {
+						sp--;
+					}
+					break;
+				case TO_BOOLEAN:
+					frame[sp] = frame[sp] == 1 ? 1f : 0f;
+					break;
+				default:
+					throw new IllegalStateException("Invalid opcode " + opcode);
+			}
+		}
+		return frame[sp];
+	}
+
+	private double call(int opcode, int operand, double[] args) {
+		switch (opcode) {
+			case CALL_1:
+				return ((DoubleUnaryOperator) references[operand + 1]).applyAsDouble(args[0]);
+			case CALL_2:
+				return ((DoubleBinaryOperator) references[operand + 1]).applyAsDouble(args[0], args[1]);
+			case CALL_3:
+				return ((DoubleTernaryOperator) references[operand + 1]).applyAsDouble(args[0], args[1], args[2]);
+			case CALL_4:
+				return ((DoubleQuaternaryOperator) references[operand + 1]).applyAsDouble(args[0], args[1], args[2], args[3]);
+			default:
+				return ((Function) references[operand]).call(args);
+		}
+	}
+
+	private static float binary(int opcode, float a, float b) {
+		switch (BINARY_OPERATORS[opcode - BINARY]) {
+			case ADD:
+				return a + b;
+			case SUBTRACT:
+				return a - b;
+			case MULTIPLY:
+				return a * b;
+			case DIVIDE:
+				return a / b;
+			case MODULUS:
+				return a % b;
+			case EXPONENT:
+				return (float) Math.pow(a, b);
+			case SCIENTIFIC_NOTATION:
+				return (float) (a * Math.pow(10, b));
+			case GREATER_THAN:
+				return a > b ? 1f : 0f;
+			case LESS_THAN:
+				return a < b ? 1f : 0f;
+			case GREATER_THAN_OR_EQUAL_TO:
+				return a >= b ? 1f : 0f;
+			case LESS_THAN_OR_EQUAL_TO:
+				return a <= b ? 1f : 0f;
+			case EQUAL_TO:
+			case EQUAL_TO_ALT:
+				return a == b ? 1f : 0f;
+			case NOT_EQUAL_TO:
+				return a != b ? 1f : 0f;
+			case BOOLEAN_AND:
+			case BOOLEAN_AND_ALT:
+				return a == 1 && b == 1 ? 1f : 0f;
+			case BOOLEAN_OR:
+			case BOOLEAN_OR_ALT:
+				return a == 1 || b == 1 ? 1f : 0f;
+			default:
+				return (float) BINARY_OPERATORS[opcode - BINARY].getOperation().applyAsDouble(a, b);
+		}
+	}
+
+	private static float unary(UnaryOperator operator, float a) {
+		switch (operator) {
+			case NOT:
+				return a == 1 ? 0f : 1f;
+			case ABS:
+				return Math.abs(a);
+			case SQRT:
+				return (float) Math.sqrt(a);
+			case FLOOR:
+				return (float) Math.floor(a);
+			case CEIL:
+				return (float) Math.ceil(a);
+			default:
+				return (float) operator.getOperation().applyAsDouble(a);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return program.toString();
+	}
+
+	/**
+	 * The state of one batch evaluation
+	 */
+	private final class Batch {
+
+		private final float[][] columns;
+		private final float[] rows;
+		private final int stride;
+		private float[][] stack;
+		private float[][] slots;
+		private int offset;
+
+		private Batch(float[][] columns, float[] rows, int stride) {
+			this.columns = columns;
+			this.rows = rows;
+			this.stride = stride;
+		}
+
+		private void evaluate(int rowCount, float[] out) {
+			if (branching) {
+				float[] frame = new float[frameSize];
+				double[] variables = readsValues ? new double[variableCount] : null;
+				for (int row = 0; row < rowCount; row++) {
+					loadRow(row, frame, variables);
+					out[row] = run(frame, variables);
+				}
+				return;
+			}
+			stack = new float[frameSize - stackBase][CHUNK_SIZE];
+			slots = new float[stackBase][];
+			for (offset = 0; offset < rowCount; offset += CHUNK_SIZE) {
+				int length = Math.min(CHUNK_SIZE, rowCount - offset);
+				System.arraycopy(runChunk(length), 0, out, offset, length);
+			}
+		}
+
+		private float variableAt(int variable, int row) {
+			return columns != null ? columns[variable][row] : rows[row * stride + variable];
+		}
+
+		private void loadRow(int row, float[] frame, double[] variables) {
+			for (int i = 0; i < variableCount; i++) {
+				frame[i] = variableAt(i, row);
+				if (variables != null) {
+					variables[i] = frame[i];
+				}
+			}
+		}
+
+		/**
+		 * Applies each instruction to a whole chunk of rows, which is only possible for code without jumps
+		 * @return The buffer holding the results of the chunk
+		 */
+		private float[] runChunk(int length) {
+			int[] code = FloatExpression.this.code;
+			int sp = -1;
+			for (int instruction : code) {
+				int operand = instruction >>> 8;
+				int opcode = instruction & 0xFF;
+				if (opcode >= BINARY) {
+					sp--;
+					binaryChunk(opcode, stack[sp], stack[sp + 1], length);
+					continue;
+				}
+				switch (opcode) {
+					case CONSTANT:
+						Arrays.fill(stack[++sp], 0, length, constants[operand]);
+						break;
+					case VARIABLE:
+						loadVariable(operand, stack[++sp], length);
+						break;
+					case STORE:
+						if (slots[operand] == null) {
+							slots[operand] = new float[CHUNK_SIZE];
+						}
+						System.arraycopy(stack[sp], 0, slots[operand], 0, length);
+						break;
+					case NEGATE: {
+						float[] a = stack[sp];
+						for (int i = 0; i < length; i++) {
+							a[i] = -a[i];
+						}
+						break;
+					}
+					case UNARY: {
+						UnaryOperator operator = UNARY_OPERATORS[operand];
+						float[] a = stack[sp];
+						for (int i = 0; i < length; i++) {
+							a[i] = unary(operator, a[i]);
+						}
+						break;
+					}
+					case INTEGER_POWER: {
+						float[] a = stack[sp];
+						for (int i = 0; i < length; i++) {
+							a[i] = (float) IntegerPowerOperation.power(a[i], operand);
+						}
+						break;
+					}
+					case FUSED_MULTIPLY_ADD: {
+						sp -= 2;
+						float[] a = stack[sp];
+						float[] b = stack[sp + 1];
+						float[] c = stack[sp + 2];
+						for (int i = 0; i < length; i++) {
+							a[i] = (float) FusedMultiplyAddOperation.fma(a[i], b[i], c[i]);
+						}
+						break;
+					}
+					case ADD_CONSTANT:
+					case SUBTRACT_CONSTANT:
+					case MULTIPLY_CONSTANT:
+					case DIVIDE_CONSTANT:
+						constantChunk(opcode, stack[sp], constants[operand], length);
+						break;
+					case CALL:
+					case CALL_1:
+					case CALL_2:
+					case CALL_3:
+					case CALL_4: {
+						int argCount = ((Function) references[operand]).getArgCount();
+						sp -= argCount - 1;
+						double[] args = new double[argCount];
+						float[] result = stack[sp];
+						for (int i = 0; i < length; i++) {
+							for (int j = 0; j < argCount; j++) {
+								args[j] = stack[sp + j][i];
+							}
+							result[i] = (float) call(opcode, operand, args);
+						}
+						break;
+					}
+					case VALUE: {
+						Value value = (Value) references[operand];
+						float[] result = stack[++sp];
+						double[] variables = new double[variableCount];
+						for (int i = 0; i < length; i++) {
+							for (int j = 0; j < variableCount; j++) {
+								variables[j] = variableAt(j, offset + i);
+							}
+							result[i] = (float) value.getValue(variables);
+						}
+						break;
+					}
+					case TO_BOOLEAN: {
+						float[] a = stack[sp];
+						for (int i = 0; i < length; i++) {
+							a[i] = a[i] == 1 ? 1f : 0f;
+						}
+						break;
+					}
+					default:
+						throw new IllegalStateException("Invalid opcode " + opcode);
+				}
+			}
+			return stack[sp];
+		}
+
+		private void loadVariable(int variable, float[] buffer, int length) {
+			if (variable >= variableCount) {
+				System.arraycopy(slots[variable], 0, buffer, 0, length);
+			} else if (columns != null) {
+				System.arraycopy(columns[variable], offset, buffer, 0, length);
+			} else {
+				int position = offset * stride + variable;
+				for (int i = 0; i < length; i++, position += stride) {
+					buffer[i] = rows[position];
+				}
+			}
+		}
+
+	}
+
+	private static void binaryChunk(int opcode, float[] a, float[] b, int length) {
+		switch (BINARY_OPERATORS[opcode - BINARY]) {
+			case ADD:
+				for (int i = 0; i < length; i++) {
+					a[i] += b[i];
+				}
+				break;
+			case SUBTRACT:
+				for (int i = 0; i < length; i++) {
+					a[i] -= b[i];
+				}
+				break;
+			case MULTIPLY:
+				for (int i = 0; i < length; i++) {
+					a[i] *= b[i];
+				}
+				break;
+			case DIVIDE:
+				for (int i = 0; i < length; i++) {
+					a[i] /= b[i];
+				}
+				break;
+			default:
+				for (int i = 0; i < length; i++) {
+					a[i] = binary(opcode, a[i], b[i]);
+				}
+				break;
+		}
+	}
+
+	private static void constantChunk(int opcode, float[] a, float constant, int length) {
+		switch (opcode) {
+			case ADD_CONSTANT:
+				for (int i = 0; i < length; i++) {
+					a[i] += constant;
+				}
+				break;
+			case SUBTRACT_CONSTANT:
+				for (int i = 0; i < length; i++) {
+					a[i] -= constant;
+				}
+				break;
+			case MULTIPLY_CONSTANT:
+				for (int i = 0; i < length; i++) {
+					a[i] *= constant;
+				}
+				break;
+			default:
+				for (int i = 0; i < length; i++) {
+					a[i] /= constant;
+				}
+				break;
+		}
+	}
+
+}
@@ -0,0 +1,18 @@
+package redempt.crunch.program;
+
+/**
+ * What a {@link LongExpression} does when the result of an operation does not fit in a long
+ * @author Redempt
+ */
+public enum IntegerOverflow {
+	
+	/**
+	 * Results wrap around in two's complement, like Java's long arithmetic. This is the fastest.
+	 */
+	WRAP,
+	/**
+	 * Evaluation throws an {@link redempt.crunch.exceptions.ExpressionEvaluationException}
+	 */
+	CHECKED
+	
+}
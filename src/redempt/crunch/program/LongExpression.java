@@ -0,0 +1,625 @@
+package redempt.crunch.program;
+
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.exceptions.ExpressionCompilationException;
+import redempt.crunch.exceptions.ExpressionEvaluationException;
+import redempt.crunch.functional.Function;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.util.Arrays;
+
+import static redempt.crunch.program.Program.*;
+
+/**
+ * Evaluates an expression in integer arithmetic, taking long or int variables and returning a long, so that results are
+ * exact and the same on every platform. Operators have the following meanings for integers:
+ * <ul>
+ *     <li>{@code +}, {@code -}, {@code *} and negation overflow as chosen by the {@link IntegerOverflow}</li>
+ *     <li>{@code /} divides rounding toward zero and {@code %} is the remainder of that division, with the sign of the
+ *     dividend. Dividing by zero throws an {@link ExpressionEvaluationException}.</li>
+ *     <li>{@code ^} raises to a power, where negative exponents give the power of the reciprocal rounded toward zero,
+ *     and {@code E} multiplies by a power of 10, dividing for negative exponents, so {@code 25E-1} is 2. An exponent
+ *     written with a lowercase {@code e} is part of its literal instead.</li>
+ *     <li>Comparisons and boolean operators give 1 or 0, and treat exactly 1 as true, as they do for doubles</li>
+ *     <li>{@code abs} is exact, and {@code round}, {@code floor} and {@code ceil} leave integers unchanged</li>
+ * </ul>
+ * Other operators, like {@code sqrt} and {@code sin}, and literals which are not integers, such as {@code pi}, are
+ * rejected when the LongExpression is created. Functions and lazy variables are evaluated in double precision and
+ * their results rounded toward zero. Literals are read as doubles, so they are only exact up to 2^53.
+ * <p>
+ * The expression is evaluated from the instructions of a {@link Program}. Batches of expressions without conditionals
+ * or boolean operators are evaluated a chunk of rows at a time, and other expressions row by row, so that errors are
+ * only thrown for branches which are taken. A LongExpression holds no evaluation state, so it can be used from any
+ * number of threads at once. Expressions compiled with {@link redempt.crunch.Crunch#compileLongExpression(String, redempt.crunch.functional.ExpressionEnv, IntegerOverflow)}
+ * evaluate operations on literals with integer arithmetic too, while those created from a CompiledExpression have
+ * already folded them in double precision, including {@code E} with a literal exponent. A CompiledExpression must not
+ * have been simplified, since simplification rewrites division by a literal as multiplication by its reciprocal.
+ * @author Redempt
+ */
+public final class LongExpression {
+
+	private static final int CHUNK_SIZE = 256;
+	private static final BinaryOperator[] BINARY_OPERATORS = BinaryOperator.values();
+	private static final UnaryOperator[] UNARY_OPERATORS = UnaryOperator.values();
+	// 2^63, the first double too large for a long
+	private static final double LONG_LIMIT = 0x1p63;
+
+	private final Program program;
+	private final boolean checked;
+	private final int[] code;
+	private final long[] constants;
+	private final Object[] references;
+	private final int variableCount;
+	private final int stackBase;
+	private final int frameSize;
+	private final boolean branching;
+
+	/**
+	 * Creates a LongExpression evaluating the same expression as a CompiledExpression
+	 * @param expression The expression to evaluate, which must not have been simplified
+	 * @param overflow What to do when an operation overflows
+	 * @throws ExpressionCompilationException If the expression uses an operator or literal which has no integer meaning
+	 */
+	public LongExpression(CompiledExpression expression, IntegerOverflow overflow) {
+		if (expression == null || overflow == null) {
+			throw new IllegalArgumentException("Expression and overflow cannot be null");
+		}
+		program = FloatExpression.toProgram(expression);
+		checked = overflow == IntegerOverflow.CHECKED;
+		code = program.getCode();
+		double[] pool = program.getConstants();
+		constants = new long[pool.length];
+		for (int i = 0; i < pool.length; i++) {
+			if (pool[i] != Math.rint(pool[i]) || Math.abs(pool[i]) >= LONG_LIMIT) {
+				throw new ExpressionCompilationException(null, "Literal " + pool[i] + " is not an integer. Expressions evaluated "
+						+ "with integers must not be simplified, since simplification turns division into multiplication by a fraction.");
+			}
+			constants[i] = (long) pool[i];
+		}
+		references = program.getReferences();
+		variableCount = program.getVariableCount();
+		stackBase = program.getStackBase();
+		frameSize = program.getFrameSize();
+		boolean branching = false;
+		for (int instruction : code) {
+			int opcode = instruction & 0xFF;
+			branching |= opcode == JUMP || opcode == JUMP_IF_FALSE || opcode == AND_CHECK || opcode == OR_CHECK;
+			if (opcode == UNARY) {
+				UnaryOperator operator = UNARY_OPERATORS[instruction >>> 8];
+				if (!isIntegerOperator(operator)) {
+					throw new ExpressionCompilationException(null, "Operator " + operator.getSymbol() + " is not supported for integers");
+				}
+			}
+		}
+		this.branching = branching;
+	}
+
+	private static boolean isIntegerOperator(UnaryOperator operator) {
+		switch (operator) {
+			case NEGATE:
+			case NOT:
+			case ABS:
+			case ROUND:
+			case FLOOR:
+			case CEIL:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * @return The number of variables used in the expression
+	 */
+	public int getVariableCount() {
+		return variableCount;
+	}
+
+	/**
+	 * Evaluates the expression
+	 * @param values The values for the variables used in the expression, in order starting with 1
+	 * @return The value of the expression
+	 */
+	public long evaluate(long... values) {
+		if (values.length < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable values - expected " + variableCount + ", got " + values.length);
+		}
+		long[] frame = new long[frameSize];
+		System.arraycopy(values, 0, frame, 0, variableCount);
+		try {
+			return run(frame);
+		} catch (ArithmeticException e) {
+			throw new ExpressionEvaluationException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Evaluates the expression once for every row of a set of long columns
+	 * @param columns The values for variables used in the expression, one column per variable in order starting with 1
+	 * @param rowCount The number of rows to evaluate
+	 * @param out The array to write the result for each row to
+	 */
+	public void evaluateBatch(long[][] columns, int rowCount, long[] out) {
+		checkColumns(columns.length, rowCount, out);
+		for (int i = 0; i < variableCount; i++) {
+			checkColumn(i, columns[i].length, rowCount);
+		}
+		new Batch(columns, null).evaluate(rowCount, out);
+	}
+
+	/**
+	 * Evaluates the expression once for every row of a set of int columns, which are widened to longs as they are read
+	 * @param columns The values for variables used in the expression, one column per variable in order starting with 1
+	 * @param rowCount The number of rows to evaluate
+	 * @param out The array to write the result for each row to
+	 */
+	public void evaluateBatch(int[][] columns, int rowCount, long[] out) {
+		checkColumns(columns.length, rowCount, out);
+		for (int i = 0; i < variableCount; i++) {
+			checkColumn(i, columns[i].length, rowCount);
+		}
+		new Batch(null, columns).evaluate(rowCount, out);
+	}
+
+	private void checkColumns(int columnCount, int rowCount, long[] out) {
+		if (rowCount < 0) {
+			throw new IllegalArgumentException("Row count cannot be negative");
+		}
+		if (out.length < rowCount) {
+			throw new IllegalArgumentException("Output array has fewer than " + rowCount + " elements");
+		}
+		if (columnCount < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable columns - expected " + variableCount + ", got " + columnCount);
+		}
+	}
+
+	private static void checkColumn(int column, int length, int rowCount) {
+		if (length < rowCount) {
+			throw new ExpressionEvaluationException("Column " + (column + 1) + " has fewer than " + rowCount + " rows");
+		}
+	}
+
+	private long run(long[] frame) {
+		int[] code = this.code;
+		long[] constants = this.constants;
+		int sp = stackBase - 1;
+		int pc = 0;
+		while (pc < code.length) {
+			int instruction = code[pc++];
+			int operand = instruction >>> 8;
+			int opcode = instruction & 0xFF;
+			if (opcode >= BINARY) {
+				sp--;
+				frame[sp] = binary(opcode, frame[sp], frame[sp + 1]);
+				continue;
+			}
+			switch (opcode) {
+				case CONSTANT:
+					frame[++sp] = constants[operand];
+					break;
+				case VARIABLE:
+					frame[++sp] = frame[operand];
+					break;
+				case STORE:
+					frame[operand] = frame[sp];
+					break;
+				case NEGATE:
+					frame[sp] = negate(frame[sp]);
+					break;
+				case UNARY:
+					frame[sp] = unary(UNARY_OPERATORS[operand], frame[sp]);
+					break;
+				case INTEGER_POWER:
+					frame[sp] = power(frame[sp], operand);
+					break;
+				case FUSED_MULTIPLY_ADD:
+					sp -= 2;
+					frame[sp] = add(multiply(frame[sp], frame[sp + 1]), frame[sp + 2]);
+					break;
+				case ADD_CONSTANT:
+				case SUBTRACT_CONSTANT:
+				case MULTIPLY_CONSTANT:
+				case DIVIDE_CONSTANT:
+					frame[sp] = binary(constantOperator(opcode), frame[sp], constants[operand]);
+					break;
+				case CALL:
+				case CALL_1:
+				case CALL_2:
+				case CALL_3:
+				case CALL_4: {
+					Function function = (Function) references[operand];
+					int argCount = function.getArgCount();
+					sp -= argCount - 1;
+					double[] args = new double[argCount];
+					for (int i = 0; i < argCount; i++) {
+						args[i] = frame[sp + i];
+					}
+					frame[sp] = toLong(function.call(args));
+					break;
+				}
+				case VALUE: {
+					double[] variables = new double[variableCount];
+					for (int i = 0; i < variableCount; i++) {
+						variables[i] = frame[i];
+					}
+					frame[++sp] = toLong(((Value) references[operand]).getValue(variables));
+					break;
+				}
+				case JUMP:
+					pc = operand;
+					break;
+				case JUMP_IF_FALSE:
+					if (frame[sp--] != 1) {
+						pc = operand;
+					}
+					break;
+				case AND_CHECK:
+					if (frame[sp] != 1) {
+						frame[sp] = 0;
+						pc = operand;
+					} else {
+						sp--;
+					}
+					break;
+				case OR_CHECK:
+					if (frame[sp] == 1) {
+						pc = operand;
+					} else {
+						sp--;
+					}
+					break;
+				case TO_BOOLEAN:
+					frame[sp] = frame[sp] == 1 ? 1 : 0;
+					break;
+				default:
+					throw new IllegalStateException("Invalid opcode " + opcode);
+			}
+		}
+		return frame[sp];
+	}
+
+	private static int constantOperator(int opcode) {
+		switch (opcode) {
+			case ADD_CONSTANT:
+				return BINARY + BinaryOperator.ADD.ordinal();
+			case SUBTRACT_CONSTANT:
+				return BINARY + BinaryOperator.SUBTRACT.ordinal();
+			case MULTIPLY_CONSTANT:
+				return BINARY + BinaryOperator.MULTIPLY.ordinal();
+			default:
+				return BINARY + BinaryOperator.DIVIDE.ordinal();
+		}
+	}
+
+	private long binary(int opcode, long a, long b) {
+		switch (BINARY_OPERATORS[opcode - BINARY]) {
+			case ADD:
+				return add(a, b);
+			case SUBTRACT:
+				return checked ? Math.subtractExact(a, b) : a - b;
+			case MULTIPLY:
+				return multiply(a, b);
+			case DIVIDE:
+				return divide(a, b);
+			case MODULUS:
+				if (b == 0) {
+					throw new ArithmeticException("Division by zero");
+				}
+				return a % b;
+			case EXPONENT:
+				return power(a, b);
+			case SCIENTIFIC_NOTATION:
+				return b < 0 ? divide(a, power(10, -b)) : multiply(a, power(10, b));
+			case GREATER_THAN:
+				return a > b ? 1 : 0;
+			case LESS_THAN:
+				return a < b ? 1 : 0;
+			case GREATER_THAN_OR_EQUAL_TO:
+				return a >= b ? 1 : 0;
+			case LESS_THAN_OR_EQUAL_TO:
+				return a <= b ? 1 : 0;
+			case EQUAL_TO:
+			case EQUAL_TO_ALT:
+				return a == b ? 1 : 0;
+			case NOT_EQUAL_TO:
+				return a != b ? 1 : 0;
+			case BOOLEAN_AND:
+			case BOOLEAN_AND_ALT:
+				return a == 1 && b == 1 ? 1 : 0;
+			case BOOLEAN_OR:
+			case BOOLEAN_OR_ALT:
+				return a == 1 || b == 1 ? 1 : 0;
+			default:
+				throw new IllegalStateException("Invalid operator " + BINARY_OPERATORS[opcode - BINARY]);
+		}
+	}
+
+	private long unary(UnaryOperator operator, long a) {
+		switch (operator) {
+			case NOT:
+				return a == 1 ? 0 : 1;
+			case ABS:
+				return a < 0 ? negate(a) : a;
+			default:
+				return a;
+		}
+	}
+
+	private long add(long a, long b) {
+		return checked ? Math.addExact(a, b) : a + b;
+	}
+
+	private long multiply(long a, long b) {
+		return checked ? Math.multiplyExact(a, b) : a * b;
+	}
+
+	private long negate(long a) {
+		return checked ? Math.negateExact(a) : -a;
+	}
+
+	private long divide(long a, long b) {
+		if (b == 0) {
+			throw new ArithmeticException("Division by zero");
+		}
+		if (checked && a == Long.MIN_VALUE && b == -1) {
+			throw new ArithmeticException("long overflow");
+		}
+		return a / b;
+	}
+
+	private long power(long base, long exponent) {
+		if (exponent < 0) {
+			if (base == 0) {
+				throw new ArithmeticException("Division by zero");
+			}
+			if (base == 1 || base == -1) {
+				return (exponent & 1) == 0 ? 1 : base;
+			}
+			return 0;
+		}
+		long result = 1;
+		while (exponent != 0) {
+			if ((exponent & 1) != 0) {
+				result = multiply(result, base);
+			}
+			exponent >>= 1;
+			if (exponent != 0) {
+				base = multiply(base, base);
+			}
+		}
+		return result;
+	}
+
+	private long toLong(double value) {
+		if (checked && !(Math.abs(value) < LONG_LIMIT)) {
+			throw new ArithmeticException("Result " + value + " does not fit in a long");
+		}
+		return (long) value;
+	}
+
+	@Override
+	public String toString() {
+		return program.toString();
+	}
+
+	/**
+	 * The state of one batch evaluation
+	 */
+	private final class Batch {
+
+		private final long[][] longColumns;
+		private final int[][] intColumns;
+		private long[][] stack;
+		private long[][] slots;
+		private int offset;
+
+		private Batch(long[][] longColumns, int[][] intColumns) {
+			this.longColumns = longColumns;
+			this.intColumns = intColumns;
+		}
+
+		private void evaluate(int rowCount, long[] out) {
+			try {
+				if (branching) {
+					long[] frame = new long[frameSize];
+					for (int row = 0; row < rowCount; row++) {
+						for (int i = 0; i < variableCount; i++) {
+							frame[i] = variableAt(i, row);
+						}
+						out[row] = run(frame);
+					}
+					return;
+				}
+				stack = new long[frameSize - stackBase][CHUNK_SIZE];
+				slots = new long[stackBase][];
+				for (offset = 0; offset < rowCount; offset += CHUNK_SIZE) {
+					int length = Math.min(CHUNK_SIZE, rowCount - offset);
+					System.arraycopy(runChunk(length), 0, out, offset, length);
+				}
+			} catch (ArithmeticException e) {
+				throw new ExpressionEvaluationException(e.getMessage());
+			}
+		}
+
+		private long variableAt(int variable, int row) {
+			return longColumns != null ? longColumns[variable][row] : intColumns[variable][row];
+		}
+
+		/**
+		 * Applies each instruction to a whole chunk of rows, which is only possible for code without jumps
+		 * @return The buffer holding the results of the chunk
+		 */
+		private long[] runChunk(int length) {
+			int[] code = LongExpression.this.code;
+			int sp = -1;
+			for (int instruction : code) {
+				int operand = instruction >>> 8;
+				int opcode = instruction & 0xFF;
+				if (opcode >= BINARY) {
+					sp--;
+					binaryChunk(opcode, stack[sp], stack[sp + 1], length);
+					continue;
+				}
+				switch (opcode) {
+					case CONSTANT:
+						Arrays.fill(stack[++sp], 0, length, constants[operand]);
+						break;
+					case VARIABLE:
+						loadVariable(operand, stack[++sp], length);
+						break;
+					case STORE:
+						if (slots[operand] == null) {
+							slots[operand] = new long[CHUNK_SIZE];
+						}
+						System.arraycopy(stack[sp], 0, slots[operand], 0, length);
+						break;
+					case NEGATE: {
+						long[] a = stack[sp];
+						for (int i = 0; i < length; i++) {
+							a[i] = negate(a[i]);
+						}
+						break;
+					}
+					case UNARY: {
+						UnaryOperator operator = UNARY_OPERATORS[operand];
+						long[] a = stack[sp];
+						for (int i = 0; i < length; i++) {
+							a[i] = unary(operator, a[i]);
+						}
+						break;
+					}
+					case INTEGER_POWER: {
+						long[] a = stack[sp];
+						for (int i = 0; i < length; i++) {
+							a[i] = power(a[i], operand);
+						}
+						break;
+					}
+					case FUSED_MULTIPLY_ADD: {
+						sp -= 2;
+						long[] a = stack[sp];
+						long[] b = stack[sp + 1];
+						long[] c = stack[sp + 2];
+						for (int i = 0; i < length; i++) {
+							a[i] = add(multiply(a[i], b[i]), c[i]);
+						}
+						break;
+					}
+					case ADD_CONSTANT:
+					case SUBTRACT_CONSTANT:
+					case MULTIPLY_CONSTANT:
+					case DIVIDE_CONSTANT:
+						constantChunk(opcode, stack[sp], constants[operand], length);
+						break;
+					case CALL:
+					case CALL_1:
+					case CALL_2:
+					case CALL_3:
+					case CALL_4: {
+						Function function = (Function) references[operand];
+						int argCount = function.getArgCount();
+						sp -= argCount - 1;
+						double[] args = new double[argCount];
+						long[] result = stack[sp];
+						for (int i = 0; i < length; i++) {
+							for (int j = 0; j < argCount; j++) {
+								args[j] = stack[sp + j][i];
+							}
+							result[i] = toLong(function.call(args));
+						}
+						break;
+					}
+					case VALUE: {
+						Value value = (Value) references[operand];
+						long[] result = stack[++sp];
+						double[] variables = new double[variableCount];
+						for (int i = 0; i < length; i++) {
+							for (int j = 0; j < variableCount; j++) {
+								variables[j] = variableAt(j, offset + i);
+							}
+							result[i] = toLong(value.getValue(variables));
+						}
+						break;
+					}
+					case TO_BOOLEAN: {
+						long[] a = stack[sp];
+						for (int i = 0; i < length; i++) {
+							a[i] = a[i] == 1 ? 1 : 0;
+						}
+						break;
+					}
+					default:
+						throw new IllegalStateException("Invalid opcode " + opcode);
+				}
+			}
+			return stack[sp];
+		}
+
+		private void loadVariable(int variable, long[] buffer, int length) {
+			if (variable >= variableCount) {
+				System.arraycopy(slots[variable], 0, buffer, 0, length);
+			} else if (longColumns != null) {
+				System.arraycopy(longColumns[variable], offset, buffer, 0, length);
+			} else {
+				int[] column = intColumns[variable];
+				for (int i = 0; i < length; i++) {
+					buffer[i] = column[offset + i];
+				}
+			}
+		}
+
+		private void binaryChunk(int opcode, long[] a, long[] b, int length) {
+			BinaryOperator operator = BINARY_OPERATORS[opcode - BINARY];
+			if (operator == BinaryOperator.ADD && !checked) {
+				for (int i = 0; i < length; i++) {
+					a[i] += b[i];
+				}
+			} else if (operator == BinaryOperator.SUBTRACT && !checked) {
+				for (int i = 0; i < length; i++) {
+					a[i] -= b[i];
+				}
+			} else if (operator == BinaryOperator.MULTIPLY && !checked) {
+				for (int i = 0; i < length; i++) {
+					a[i] *= b[i];
+				}
+			} else if (operator == BinaryOperator.DIVIDE) {
+				for (int i = 0; i < length; i++) {
+					a[i] = divide(a[i], b[i]);
+				}
+			} else {
+				for (int i = 0; i < length; i++) {
+					a[i] = binary(opcode, a[i], b[i]);
+				}
+			}
+		}
+
+		private void constantChunk(int opcode, long[] a, long constant, int length) {
+			if (opcode == ADD_CONSTANT && !checked) {
+				for (int i = 0; i < length; i++) {
+					a[i] += constant;
+				}
+			} else if (opcode == SUBTRACT_CONSTANT && !checked) {
+				for (int i = 0; i < length; i++) {
+					a[i] -= constant;
+				}
+			} else if (opcode == MULTIPLY_CONSTANT && !checked) {
+				for (int i = 0; i < length; i++) {
+					a[i] *= constant;
+				}
+			} else if (opcode == DIVIDE_CONSTANT && constant != 0 && constant != -1) {
+				for (int i = 0; i < length; i++) {
+					a[i] /= constant;
+				}
+			} else {
+				int operator = constantOperator(opcode);
+				for (int i = 0; i < length; i++) {
+					a[i] = binary(operator, a[i], constant);
+				}
+			}
+		}
+
+	}
+
+}
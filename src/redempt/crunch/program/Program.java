@@ -0,0 +1,515 @@
+package redempt.crunch.program;
+
+import redempt.crunch.Variable;
+import redempt.crunch.functional.DoubleQuaternaryOperator;
+import redempt.crunch.functional.DoubleTernaryOperator;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.ConditionalOperation;
+import redempt.crunch.token.FusedMultiplyAddOperation;
+import redempt.crunch.token.IntegerPowerOperation;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.SharedValueReference;
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A Value tree flattened into postfix order by {@link ProgramCompiler}. Each instruction is a single int holding an
+ * opcode in its low 8 bits and an operand in the rest, and literals are kept in a separate constant pool. Evaluation
+ * is a single loop over the instructions with the operand stack kept in the evaluation frame after the variables and
+ * shared values, so it needs no recursion. It allocates nothing when given a frame at least {@link #getFrameSize()}
+ * long, except for an argument array for each call to a function which takes its arguments as an array.
+ * <p>
+ * A Program does not keep the tree it was compiled from, and its {@link #toString()} is reconstructed from the
+ * instructions, with named constants like {@code pi} shown as their values.
+ * @author Redempt
+ */
+public final class Program implements Value {
+	
+	static final int CONSTANT = 0;
+	static final int VARIABLE = 1;
+	static final int STORE = 2;
+	static final int NEGATE = 3;
+	static final int UNARY = 4;
+	static final int INTEGER_POWER = 5;
+	static final int FUSED_MULTIPLY_ADD = 6;
+	static final int CALL = 7;
+	static final int CALL_1 = 8;
+	static final int CALL_2 = 9;
+	static final int CALL_3 = 10;
+	static final int CALL_4 = 11;
+	static final int VALUE = 12;
+	static final int JUMP = 13;
+	static final int JUMP_IF_FALSE = 14;
+	static final int AND_CHECK = 15;
+	static final int OR_CHECK = 16;
+	static final int TO_BOOLEAN = 17;
+	static final int ADD_CONSTANT = 18;
+	static final int SUBTRACT_CONSTANT = 19;
+	static final int MULTIPLY_CONSTANT = 20;
+	static final int DIVIDE_CONSTANT = 21;
+	/**
+	 * Binary operators are encoded as this plus the ordinal of the {@link BinaryOperator}
+	 */
+	static final int BINARY = 32;
+	
+	static final int MAX_OPERAND = 0x7FFFFF;
+	
+	private static final BinaryOperator[] BINARY_OPERATORS = BinaryOperator.values();
+	private static final UnaryOperator[] UNARY_OPERATORS = UnaryOperator.values();
+	private static final int ADD = BINARY + BinaryOperator.ADD.ordinal();
+	private static final int SUBTRACT = BINARY + BinaryOperator.SUBTRACT.ordinal();
+	private static final int MULTIPLY = BINARY + BinaryOperator.MULTIPLY.ordinal();
+	private static final int DIVIDE = BINARY + BinaryOperator.DIVIDE.ordinal();
+	
+	private final int[] code;
+	private final double[] constants;
+	private final Object[] references;
+	private final int variableCount;
+	private final int stackBase;
+	private final int frameSize;
+	
+	Program(int[] code, double[] constants, Object[] references, int variableCount, int stackBase, int maxStack) {
+		this.code = code;
+		this.constants = constants;
+		this.references = references;
+		this.variableCount = variableCount;
+		this.stackBase = stackBase;
+		this.frameSize = stackBase + maxStack;
+	}
+	
+	/**
+	 * @return The number of instructions in this Program
+	 */
+	public int getInstructionCount() {
+		return code.length;
+	}
+	
+	/**
+	 * @return The number of distinct literals in the constant pool of this Program
+	 */
+	public int getConstantCount() {
+		return constants.length;
+	}
+	
+	/**
+	 * @return The length of the frame this Program evaluates in, including the variables, shared values and operand stack
+	 */
+	public int getFrameSize() {
+		return frameSize;
+	}
+	
+	int[] getCode() {
+		return code;
+	}
+	
+	double[] getConstants() {
+		return constants;
+	}
+	
+	Object[] getReferences() {
+		return references;
+	}
+	
+	int getVariableCount() {
+		return variableCount;
+	}
+	
+	int getStackBase() {
+		return stackBase;
+	}
+	
+	@Override
+	public TokenType getType() {
+		return TokenType.PROGRAM;
+	}
+	
+	@Override
+	public double getValue(double[] frame) {
+		if (frame.length < frameSize) {
+			frame = Arrays.copyOf(frame, frameSize);
+		}
+		int[] code = this.code;
+		double[] constants = this.constants;
+		int sp = stackBase - 1;
+		int pc = 0;
+		while (pc < code.length) {
+			int instruction = code[pc++];
+			int operand = instruction >>> 8;
+			int opcode = instruction & 0xFF;
+			if (opcode >= BINARY) {
+				sp--;
+				frame[sp] = binary(opcode, frame[sp], frame[sp + 1]);
+				continue;
+			}
+			switch (opcode) {
+				case CONSTANT:
+					frame[++sp] = constants[operand];
+					break;
+				case VARIABLE:
+					frame[++sp] = frame[operand];
+					break;
+				case STORE:
+					frame[operand] = frame[sp];
+					break;
+				case NEGATE:
+					frame[sp] = -frame[sp];
+					break;
+				case UNARY:
+					frame[sp] = unary(UNARY_OPERATORS[operand], frame[sp]);
+					break;
+				case INTEGER_POWER:
+					frame[sp] = IntegerPowerOperation.power(frame[sp], operand);
+					break;
+				case FUSED_MULTIPLY_ADD:
+					sp -= 2;
+					frame[sp] = FusedMultiplyAddOperation.fma(frame[sp], frame[sp + 1], frame[sp + 2]);
+					break;
+				case ADD_CONSTANT:
+					frame[sp] += constants[operand];
+					break;
+				case SUBTRACT_CONSTANT:
+					frame[sp] -= constants[operand];
+					break;
+				case MULTIPLY_CONSTANT:
+					frame[sp] *= constants[operand];
+					break;
+				case DIVIDE_CONSTANT:
+					frame[sp] /= constants[operand];
+					break;
+				case CALL: {
+					Function function = (Function) references[operand];
+					int argCount = function.getArgCount();
+					sp -= argCount - 1;
+					frame[sp] = function.call(Arrays.copyOfRange(frame, sp, sp + argCount));
+					break;
+				}
+				case CALL_1:
+					frame[sp] = ((DoubleUnaryOperator) references[operand + 1]).applyAsDouble(frame[sp]);
+					break;
+				case CALL_2:
+					sp--;
+					frame[sp] = ((DoubleBinaryOperator) references[operand + 1]).applyAsDouble(frame[sp], frame[sp + 1]);
+					break;
+				case CALL_3:
+					sp -= 2;
+					frame[sp] = ((DoubleTernaryOperator) references[operand + 1]).applyAsDouble(frame[sp], frame[sp + 1], frame[sp + 2]);
+					break;
+				case CALL_4:
+					sp -= 3;
+					frame[sp] = ((DoubleQuaternaryOperator) references[operand + 1]).applyAsDouble(frame[sp], frame[sp + 1], frame[sp + 2], frame[sp + 3]);
+					break;
+				case VALUE:
+					frame[++sp] = ((Value) references[operand]).getValue(frame);
+					break;
+				case JUMP:
+					pc = operand;
+					break;
+				case JUMP_IF_FALSE:
+					if (frame[sp--] != 1) {
+						pc = operand;
+					}
+					break;
+				case AND_CHECK:
+					if (frame[sp] != 1) {
+						frame[sp] = 0;
+						pc = operand;
+					} else {
+						sp--;
+					}
+					break;
+				case OR_CHECK:
+					if (frame[sp] == 1) {
+						pc = operand;
+					} else {
+						sp--;
+					}
+					break;
+				case TO_BOOLEAN:
+					frame[sp] = frame[sp] == 1 ? 1d : 0d;
+					break;
+				default:
+					throw new IllegalStateException("Invalid opcode " + opcode);
+			}
+		}
+		return frame[sp];
+	}
+	
+	private static double binary(int opcode, double a, double b) {
+		switch (BINARY_OPERATORS[opcode - BINARY]) {
+			case ADD:
+				return a + b;
+			case SUBTRACT:
+				return a - b;
+			case MULTIPLY:
+				return a * b;
+			case DIVIDE:
+				return a / b;
+			case MODULUS:
+				return a % b;
+			case EXPONENT:
+				return Math.pow(a, b);
+			case SCIENTIFIC_NOTATION:
+				return a * Math.pow(10, b);
+			case GREATER_THAN:
+				return a > b ? 1d : 0d;
+			case LESS_THAN:
+				return a < b ? 1d : 0d;
+			case GREATER_THAN_OR_EQUAL_TO:
+				return a >= b ? 1d : 0d;
+			case LESS_THAN_OR_EQUAL_TO:
+				return a <= b ? 1d : 0d;
+			case EQUAL_TO:
+			case EQUAL_TO_ALT:
+				return a == b ? 1d : 0d;
+			case NOT_EQUAL_TO:
+				return a != b ? 1d : 0d;
+			case BOOLEAN_AND:
+			case BOOLEAN_AND_ALT:
+				return a == 1 && b == 1 ? 1d : 0d;
+			case BOOLEAN_OR:
+			case BOOLEAN_OR_ALT:
+				return a == 1 || b == 1 ? 1d : 0d;
+			default:
+				return BINARY_OPERATORS[opcode - BINARY].getOperation().applyAsDouble(a, b);
+		}
+	}
+	
+	private static double unary(UnaryOperator operator, double a) {
+		switch (operator) {
+			case NOT:
+				return a == 1 ? 0d : 1d;
+			case SIN:
+				return Math.sin(a);
+			case COS:
+				return Math.cos(a);
+			case TAN:
+				return Math.tan(a);
+			case ABS:
+				return Math.abs(a);
+			case ROUND:
+				return Math.round(a);
+			case FLOOR:
+				return Math.floor(a);
+			case CEIL:
+				return Math.ceil(a);
+			case LOG:
+				return Math.log(a);
+			case SQRT:
+				return Math.sqrt(a);
+			default:
+				return operator.getOperation().applyAsDouble(a);
+		}
+	}
+	
+	@Override
+	public Value getClone() {
+		return this;
+	}
+	
+	/**
+	 * Reconstructs the expression from the instructions, in the same format as the Value tree would print it
+	 */
+	@Override
+	public String toString() {
+		Deque<String> stack = new ArrayDeque<>();
+		Map<Integer, String> shared = new HashMap<>();
+		int[] conditionalEnds = new int[code.length + 1];
+		for (int pc = 0; pc <= code.length; pc++) {
+			for (; conditionalEnds[pc] > 0; conditionalEnds[pc]--) {
+				String ifFalse = stack.pop();
+				String ifTrue = stack.pop();
+				stack.push("if(" + stack.pop() + ", " + ifTrue + ", " + ifFalse + ")");
+			}
+			if (pc == code.length) {
+				break;
+			}
+			int operand = code[pc] >>> 8;
+			int opcode = code[pc] & 0xFF;
+			if (opcode >= BINARY) {
+				String second = stack.pop();
+				stack.push("(" + stack.pop() + BINARY_OPERATORS[opcode - BINARY].getSymbol() + second + ")");
+				continue;
+			}
+			switch (opcode) {
+				case CONSTANT:
+					stack.push(constants[operand] + "");
+					break;
+				case VARIABLE:
+					stack.push(operand < variableCount ? "$" + (operand + 1) : shared.get(operand));
+					break;
+				case STORE:
+					shared.put(operand, stack.peek());
+					break;
+				case NEGATE:
+					stack.push("(" + UnaryOperator.NEGATE.getSymbol() + stack.pop() + ")");
+					break;
+				case UNARY:
+					stack.push("(" + UNARY_OPERATORS[operand].getSymbol() + stack.pop() + ")");
+					break;
+				case INTEGER_POWER:
+					stack.push("(" + stack.pop() + BinaryOperator.EXPONENT.getSymbol() + (double) operand + ")");
+					break;
+				case FUSED_MULTIPLY_ADD: {
+					String addend = stack.pop();
+					String factor = stack.pop();
+					stack.push("((" + stack.pop() + BinaryOperator.MULTIPLY.getSymbol() + factor + ")" + BinaryOperator.ADD.getSymbol() + addend + ")");
+					break;
+				}
+				case ADD_CONSTANT:
+				case SUBTRACT_CONSTANT:
+				case MULTIPLY_CONSTANT:
+				case DIVIDE_CONSTANT: {
+					BinaryOperator operator = BINARY_OPERATORS[constantOperator(opcode) - BINARY];
+					stack.push("(" + stack.pop() + operator.getSymbol() + constants[operand] + ")");
+					break;
+				}
+				case CALL:
+				case CALL_1:
+				case CALL_2:
+				case CALL_3:
+				case CALL_4: {
+					Function function = (Function) references[operand];
+					String[] args = new String[function.getArgCount()];
+					for (int i = args.length - 1; i >= 0; i--) {
+						args[i] = stack.pop();
+					}
+					stack.push(function.getName() + "(" + String.join(", ", args) + ")");
+					break;
+				}
+				case VALUE:
+					stack.push(references[operand].toString());
+					break;
+				case JUMP:
+					conditionalEnds[operand]++;
+					break;
+				case TO_BOOLEAN: {
+					String second = stack.pop();
+					stack.push("(" + stack.pop() + BINARY_OPERATORS[operand].getSymbol() + second + ")");
+					break;
+				}
+				default:
+					break;
+			}
+		}
+		return stack.pop();
+	}
+	
+	/**
+	 * Rebuilds a Value tree equivalent to this Program, reconstructed from the instructions the same way as {@link #toString()}
+	 * @return The reconstructed Value tree
+	 */
+	public Value toTree() {
+		Deque<Value> stack = new ArrayDeque<>();
+		Map<Integer, SharedValue> shared = new HashMap<>();
+		int[] conditionalEnds = new int[code.length + 1];
+		for (int pc = 0; pc <= code.length; pc++) {
+			for (; conditionalEnds[pc] > 0; conditionalEnds[pc]--) {
+				Value ifFalse = stack.pop();
+				Value ifTrue = stack.pop();
+				stack.push(new ConditionalOperation(stack.pop(), ifTrue, ifFalse));
+			}
+			if (pc == code.length) {
+				break;
+			}
+			int operand = code[pc] >>> 8;
+			int opcode = code[pc] & 0xFF;
+			if (opcode >= BINARY) {
+				Value second = stack.pop();
+				stack.push(BinaryOperation.create(BINARY_OPERATORS[opcode - BINARY], stack.pop(), second));
+				continue;
+			}
+			switch (opcode) {
+				case CONSTANT:
+					stack.push(new LiteralValue(constants[operand]));
+					break;
+				case VARIABLE:
+					stack.push(operand < variableCount ? new Variable(operand) : new SharedValueReference(operand, shared.get(operand)));
+					break;
+				case STORE: {
+					SharedValue value = new SharedValue(operand, stack.pop());
+					shared.put(operand, value);
+					stack.push(value);
+					break;
+				}
+				case NEGATE:
+					stack.push(UnaryOperation.create(UnaryOperator.NEGATE, stack.pop()));
+					break;
+				case UNARY:
+					stack.push(UnaryOperation.create(UNARY_OPERATORS[operand], stack.pop()));
+					break;
+				case INTEGER_POWER:
+					stack.push(new IntegerPowerOperation(stack.pop(), operand));
+					break;
+				case FUSED_MULTIPLY_ADD: {
+					Value addend = stack.pop();
+					Value factor = stack.pop();
+					stack.push(new FusedMultiplyAddOperation(BinaryOperation.create(BinaryOperator.MULTIPLY, stack.pop(), factor), addend));
+					break;
+				}
+				case ADD_CONSTANT:
+				case SUBTRACT_CONSTANT:
+				case MULTIPLY_CONSTANT:
+				case DIVIDE_CONSTANT: {
+					BinaryOperator operator = BINARY_OPERATORS[constantOperator(opcode) - BINARY];
+					stack.push(BinaryOperation.create(operator, stack.pop(), new LiteralValue(constants[operand])));
+					break;
+				}
+				case CALL:
+				case CALL_1:
+				case CALL_2:
+				case CALL_3:
+				case CALL_4: {
+					Function function = (Function) references[operand];
+					Value[] args = new Value[function.getArgCount()];
+					for (int i = args.length - 1; i >= 0; i--) {
+						args[i] = stack.pop();
+					}
+					stack.push(FunctionCall.create(function, args));
+					break;
+				}
+				case VALUE:
+					stack.push((Value) references[operand]);
+					break;
+				case JUMP:
+					conditionalEnds[operand]++;
+					break;
+				case TO_BOOLEAN: {
+					Value second = stack.pop();
+					stack.push(BinaryOperation.create(BINARY_OPERATORS[operand], stack.pop(), second));
+					break;
+				}
+				default:
+					break;
+			}
+		}
+		return stack.pop();
+	}
+	
+	private static int constantOperator(int opcode) {
+		switch (opcode) {
+			case ADD_CONSTANT:
+				return ADD;
+			case SUBTRACT_CONSTANT:
+				return SUBTRACT;
+			case MULTIPLY_CONSTANT:
+				return MULTIPLY;
+			default:
+				return DIVIDE;
+		}
+	}
+	
+}
@@ -0,0 +1,294 @@
+package redempt.crunch.program;
+
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Variable;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.ConditionalOperation;
+import redempt.crunch.token.Constant;
+import redempt.crunch.token.FusedMultiplyAddOperation;
+import redempt.crunch.token.IntegerPowerOperation;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.SharedValueReference;
+import redempt.crunch.token.ShortCircuitOperation;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static redempt.crunch.program.Program.*;
+
+/**
+ * Flattens a Value tree into a {@link Program}. The tree is walked with an explicit work stack rather than recursion,
+ * so arbitrarily deep expressions can be compiled.
+ * @author Redempt
+ */
+public final class ProgramCompiler {
+	
+	private static final double[] NO_VALUES = new double[0];
+	
+	/**
+	 * Compiles a CompiledExpression into a Program
+	 * @param expression The expression to compile
+	 * @return An equivalent expression evaluated by a Program
+	 */
+	public static CompiledExpression compile(CompiledExpression expression) {
+		Program program = compile(expression.getValue(), expression.getVariableCount(), expression.getFrameSize());
+		return new CompiledExpression(program, expression.getVariableCount(), program.getFrameSize());
+	}
+	
+	static Program compile(Value value, int variableCount, int frameSize) {
+		return new ProgramCompiler(variableCount, frameSize).compile(value);
+	}
+	
+	private final int variableCount;
+	private final int stackBase;
+	private int[] code = new int[16];
+	private int length;
+	private final List<Double> constants = new ArrayList<>();
+	private final Map<Long, Integer> constantIndices = new HashMap<>();
+	private final List<Object> references = new ArrayList<>();
+	private final Map<Object, Integer> referenceIndices = new IdentityHashMap<>();
+	private final Deque<Object> work = new ArrayDeque<>();
+	private int depth;
+	private int maxDepth;
+	private int maxSlot = -1;
+	
+	private ProgramCompiler(int variableCount, int stackBase) {
+		this.variableCount = variableCount;
+		this.stackBase = stackBase;
+	}
+	
+	private Program compile(Value root) {
+		work.push(root);
+		while (!work.isEmpty()) {
+			Object next = work.pop();
+			if (next instanceof Runnable) {
+				((Runnable) next).run();
+			} else {
+				visit((Value) next);
+			}
+		}
+		double[] pool = new double[constants.size()];
+		for (int i = 0; i < pool.length; i++) {
+			pool[i] = constants.get(i);
+		}
+		// Shared values must lie below the operand stack, even if the frame size they were given did not account for them
+		int base = Math.max(stackBase, maxSlot + 1);
+		return new Program(Arrays.copyOf(code, length), pool, references.toArray(), variableCount, base, maxDepth);
+	}
+	
+	/**
+	 * Schedules the steps needed to emit a Value. Steps are pushed in reverse, so they run in the order written.
+	 */
+	private void visit(Value value) {
+		if (value instanceof LiteralValue || value instanceof Constant) {
+			emit(CONSTANT, constant(value.getValue(NO_VALUES)), 1);
+		} else if (value instanceof Variable) {
+			emit(VARIABLE, ((Variable) value).getIndex(), 1);
+		} else if (value instanceof SharedValueReference) {
+			int slot = ((SharedValueReference) value).getSlot();
+			maxSlot = Math.max(maxSlot, slot);
+			emit(VARIABLE, slot, 1);
+		} else if (value instanceof SharedValue) {
+			SharedValue shared = (SharedValue) value;
+			maxSlot = Math.max(maxSlot, shared.getSlot());
+			then(shared.getChild(), () -> emit(STORE, shared.getSlot(), 0));
+		} else if (value instanceof IntegerPowerOperation) {
+			IntegerPowerOperation power = (IntegerPowerOperation) value;
+			then(power.getBase(), () -> emit(INTEGER_POWER, power.getExponent(), 0));
+		} else if (value instanceof FusedMultiplyAddOperation) {
+			Value[] operands = ((FusedMultiplyAddOperation) value).getOperands();
+			work.push((Runnable) () -> emit(FUSED_MULTIPLY_ADD, 0, -2));
+			pushAll(operands);
+		} else if (value instanceof ShortCircuitOperation) {
+			visitShortCircuit((ShortCircuitOperation) value);
+		} else if (value instanceof BinaryOperation) {
+			visitBinary((BinaryOperation) value);
+		} else if (value instanceof UnaryOperation) {
+			UnaryOperation operation = (UnaryOperation) value;
+			UnaryOperator operator = operation.getOperator();
+			then(operation.getChild(), () -> {
+				if (operator == UnaryOperator.NEGATE) {
+					emit(NEGATE, 0, 0);
+				} else {
+					emit(UNARY, operator.ordinal(), 0);
+				}
+			});
+		} else if (value instanceof ConditionalOperation) {
+			visitConditional((ConditionalOperation) value);
+		} else if (value instanceof FunctionCall) {
+			visitFunctionCall((FunctionCall) value);
+		} else {
+			emit(VALUE, reference(value), 1);
+		}
+	}
+	
+	private void visitBinary(BinaryOperation operation) {
+		Value[] values = operation.getValues();
+		int constantOpcode = constantOpcode(operation.getOperator());
+		if (constantOpcode >= 0 && (values[1] instanceof LiteralValue || values[1] instanceof Constant)) {
+			int index = constant(values[1].getValue(NO_VALUES));
+			then(values[0], () -> emit(constantOpcode, index, 0));
+			return;
+		}
+		work.push((Runnable) () -> emit(BINARY + operation.getOperator().ordinal(), 0, -1));
+		pushAll(values);
+	}
+	
+	/**
+	 * The first operand is checked before the second is evaluated, jumping past the second if it decides the result
+	 */
+	private void visitShortCircuit(ShortCircuitOperation operation) {
+		Value[] values = operation.getValues();
+		int[] check = new int[1];
+		pushAll(
+				values[0],
+				(Runnable) () -> check[0] = emit(operation.isAnd() ? AND_CHECK : OR_CHECK, 0, -1),
+				values[1],
+				(Runnable) () -> {
+					emit(TO_BOOLEAN, operation.getOperator().ordinal(), 0);
+					patch(check[0], length);
+				}
+		);
+	}
+	
+	private void visitConditional(ConditionalOperation conditional) {
+		int[] jumps = new int[2];
+		pushAll(
+				conditional.getCondition(),
+				(Runnable) () -> jumps[0] = emit(JUMP_IF_FALSE, 0, -1),
+				conditional.getIfTrue(),
+				(Runnable) () -> {
+					jumps[1] = emit(JUMP, 0, 0);
+					// Only one branch runs, so the false branch starts from the depth the true branch started from
+					depth--;
+					patch(jumps[0], length);
+				},
+				conditional.getIfFalse(),
+				(Runnable) () -> patch(jumps[1], length)
+		);
+	}
+	
+	private void visitFunctionCall(FunctionCall call) {
+		Function function = call.getFunction();
+		Value[] args = call.getArguments();
+		Object operator = operator(function);
+		int opcode = operator == null ? CALL : CALL_1 + args.length - 1;
+		work.push((Runnable) () -> emit(opcode, functionReference(function, operator), 1 - args.length));
+		pushAll(args);
+	}
+	
+	private static Object operator(Function function) {
+		if (function.getUnaryOperator() != null) {
+			return function.getUnaryOperator();
+		}
+		if (function.getBinaryOperator() != null) {
+			return function.getBinaryOperator();
+		}
+		if (function.getTernaryOperator() != null) {
+			return function.getTernaryOperator();
+		}
+		return function.getQuaternaryOperator();
+	}
+	
+	private static int constantOpcode(BinaryOperator operator) {
+		switch (operator) {
+			case ADD:
+				return ADD_CONSTANT;
+			case SUBTRACT:
+				return SUBTRACT_CONSTANT;
+			case MULTIPLY:
+				return MULTIPLY_CONSTANT;
+			case DIVIDE:
+				return DIVIDE_CONSTANT;
+			default:
+				return -1;
+		}
+	}
+	
+	private void then(Value value, Runnable action) {
+		work.push(action);
+		work.push(value);
+	}
+	
+	private void pushAll(Value[] values) {
+		pushAll((Object[]) values);
+	}
+	
+	private void pushAll(Object... steps) {
+		for (int i = steps.length - 1; i >= 0; i--) {
+			work.push(steps[i]);
+		}
+	}
+	
+	/**
+	 * Appends an instruction
+	 * @return The position of the instruction
+	 */
+	private int emit(int opcode, int operand, int stackDelta) {
+		if (operand > MAX_OPERAND) {
+			throw new IllegalStateException("Expression is too large to compile into a program");
+		}
+		if (length == code.length) {
+			code = Arrays.copyOf(code, length * 2);
+		}
+		code[length] = opcode | operand << 8;
+		depth += stackDelta;
+		maxDepth = Math.max(maxDepth, depth);
+		return length++;
+	}
+	
+	private void patch(int position, int target) {
+		if (target > MAX_OPERAND) {
+			throw new IllegalStateException("Expression is too large to compile into a program");
+		}
+		code[position] = (code[position] & 0xFF) | target << 8;
+	}
+	
+	private int constant(double value) {
+		return constantIndices.computeIfAbsent(Double.doubleToLongBits(value), bits -> {
+			constants.add(value);
+			return constants.size() - 1;
+		});
+	}
+	
+	private int reference(Object reference) {
+		Integer index = referenceIndices.get(reference);
+		if (index == null) {
+			index = references.size();
+			references.add(reference);
+			referenceIndices.put(reference, index);
+		}
+		return index;
+	}
+	
+	/**
+	 * Functions with a primitive operator have it stored right after them, so that calls can use the operator
+	 * while the function is kept for its name
+	 */
+	private int functionReference(Function function, Object operator) {
+		Integer index = referenceIndices.get(function);
+		if (index == null) {
+			index = references.size();
+			references.add(function);
+			if (operator != null) {
+				references.add(operator);
+			}
+			referenceIndices.put(function, index);
+		}
+		return index;
+	}
+	
+}
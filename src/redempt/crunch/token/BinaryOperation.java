@@ -3,8 +3,8 @@ package redempt.crunch.token;
 public class BinaryOperation implements Value {
 	
 	private final BinaryOperator operator;
-	private final Value first;
-	private final Value second;
+	protected final Value first;
+	protected final Value second;
 	
 	public BinaryOperation(BinaryOperator operator, Value first, Value second) {
 		this.operator = operator;
@@ -35,7 +35,33 @@ public class BinaryOperation implements Value {
 	}
 	
 	public BinaryOperation getClone() {
-		return new BinaryOperation(operator, first.getClone(), second.getClone());
+		return withValues(first.getClone(), second.getClone());
+	}
+	
+	/**
+	 * Creates an operation of the same kind as this one with different operands. Specialized subclasses override this
+	 * to keep their specialization when an optimization pass rebuilds the tree around them.
+	 * @param first The first operand
+	 * @param second The second operand
+	 * @return The new operation
+	 */
+	public BinaryOperation withValues(Value first, Value second) {
+		return create(operator, first, second);
+	}
+	
+	/**
+	 * Creates an operation, choosing a dedicated implementation for the operator and the kinds of its operands
+	 * @param operator The operator
+	 * @param first The first operand
+	 * @param second The second operand
+	 * @return The operation
+	 */
+	public static BinaryOperation create(BinaryOperator operator, Value first, Value second) {
+		if (ShortCircuitOperation.isShortCircuit(operator)) {
+			return new ShortCircuitOperation(operator, first, second);
+		}
+		BinaryOperation operation = BinaryOperations.create(operator, first, second);
+		return operation == null ? new BinaryOperation(operator, first, second) : operation;
 	}
 	
 }
@@ -0,0 +1,663 @@
+package redempt.crunch.token;
+
+import redempt.crunch.Variable;
+
+/**
+ * Dedicated BinaryOperation implementations for each operator, with the arithmetic written inline rather than called
+ * through the operator's lambda. Each operator also has variants for a literal second operand, and for a variable
+ * first operand with a literal second operand, which skip evaluating the operands through {@link Value#getValue(double[])}.
+ * Giving every kind of node its own class keeps the call sites in the tree interpreter from becoming megamorphic.
+ * @author Redempt
+ */
+final class BinaryOperations {
+	
+	private static final double[] NO_VALUES = new double[0];
+	
+	private BinaryOperations() {
+		// Prevent instantiation
+	}
+	
+	/**
+	 * Creates the dedicated node for an operation
+	 * @param operator The operator
+	 * @param first The first operand
+	 * @param second The second operand
+	 * @return The node, or null if the operator has no dedicated node
+	 */
+	static BinaryOperation create(BinaryOperator operator, Value first, Value second) {
+		switch (operator) {
+			case ADD:
+				if (isLiteral(second)) {
+					return first instanceof Variable ? new AddVariableLiteral(operator, (Variable) first, second) : new AddLiteral(operator, first, second);
+				}
+				return new Add(operator, first, second);
+			case SUBTRACT:
+				if (isLiteral(second)) {
+					return first instanceof Variable ? new SubtractVariableLiteral(operator, (Variable) first, second) : new SubtractLiteral(operator, first, second);
+				}
+				return new Subtract(operator, first, second);
+			case MULTIPLY:
+				if (isLiteral(second)) {
+					return first instanceof Variable ? new MultiplyVariableLiteral(operator, (Variable) first, second) : new MultiplyLiteral(operator, first, second);
+				}
+				return new Multiply(operator, first, second);
+			case DIVIDE:
+				if (isLiteral(second)) {
+					return first instanceof Variable ? new DivideVariableLiteral(operator, (Variable) first, second) : new DivideLiteral(operator, first, second);
+				}
+				return new Divide(operator, first, second);
+			case MODULUS:
+				if (isLiteral(second)) {
+					return first instanceof Variable ? new ModulusVariableLiteral(operator, (Variable) first, second) : new ModulusLiteral(operator, first, second);
+				}
+				return new Modulus(operator, first, second);
+			case EXPONENT:
+				if (isLiteral(second)) {
+					return first instanceof Variable ? new PowerVariableLiteral(operator, (Variable) first, second) : new PowerLiteral(operator, first, second);
+				}
+				return new Power(operator, first, second);
+			case GREATER_THAN:
+				if (isLiteral(second)) {
+					return first instanceof Variable ? new GreaterThanVariableLiteral(operator, (Variable) first, second) : new GreaterThanLiteral(operator, first, second);
+				}
+				return new GreaterThan(operator, first, second);
+			case LESS_THAN:
+				if (isLiteral(second)) {
+					return first instanceof Variable ? new LessThanVariableLiteral(operator, (Variable) first, second) : new LessThanLiteral(operator, first, second);
+				}
+				return new LessThan(operator, first, second);
+			case GREATER_THAN_OR_EQUAL_TO:
+				if (isLiteral(second)) {
+					return first instanceof Variable ? new GreaterThanOrEqualToVariableLiteral(operator, (Variable) first, second) : new GreaterThanOrEqualToLiteral(operator, first, second);
+				}
+				return new GreaterThanOrEqualTo(operator, first, second);
+			case LESS_THAN_OR_EQUAL_TO:
+				if (isLiteral(second)) {
+					return first instanceof Variable ? new LessThanOrEqualToVariableLiteral(operator, (Variable) first, second) : new LessThanOrEqualToLiteral(operator, first, second);
+				}
+				return new LessThanOrEqualTo(operator, first, second);
+			case EQUAL_TO:
+			case EQUAL_TO_ALT:
+				if (isLiteral(second)) {
+					return first instanceof Variable ? new EqualToVariableLiteral(operator, (Variable) first, second) : new EqualToLiteral(operator, first, second);
+				}
+				return new EqualTo(operator, first, second);
+			case NOT_EQUAL_TO:
+				if (isLiteral(second)) {
+					return first instanceof Variable ? new NotEqualToVariableLiteral(operator, (Variable) first, second) : new NotEqualToLiteral(operator, first, second);
+				}
+				return new NotEqualTo(operator, first, second);
+			default:
+				return null;
+		}
+	}
+	
+	private static boolean isLiteral(Value value) {
+		return value instanceof LiteralValue || value instanceof Constant;
+	}
+	
+	private static final class Add extends BinaryOperation {
+		
+		private Add(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) + second.getValue(variableValues);
+		}
+		
+	}
+	
+	private static final class AddLiteral extends BinaryOperation {
+		
+		private final double literal;
+		
+		private AddLiteral(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) + literal;
+		}
+		
+	}
+	
+	private static final class AddVariableLiteral extends BinaryOperation {
+		
+		private final int index;
+		private final double literal;
+		
+		private AddVariableLiteral(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			this.index = first.getIndex();
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] + literal;
+		}
+		
+	}
+	
+	private static final class Subtract extends BinaryOperation {
+		
+		private Subtract(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) - second.getValue(variableValues);
+		}
+		
+	}
+	
+	private static final class SubtractLiteral extends BinaryOperation {
+		
+		private final double literal;
+		
+		private SubtractLiteral(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) - literal;
+		}
+		
+	}
+	
+	private static final class SubtractVariableLiteral extends BinaryOperation {
+		
+		private final int index;
+		private final double literal;
+		
+		private SubtractVariableLiteral(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			this.index = first.getIndex();
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] - literal;
+		}
+		
+	}
+	
+	private static final class Multiply extends BinaryOperation {
+		
+		private Multiply(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) * second.getValue(variableValues);
+		}
+		
+	}
+	
+	private static final class MultiplyLiteral extends BinaryOperation {
+		
+		private final double literal;
+		
+		private MultiplyLiteral(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) * literal;
+		}
+		
+	}
+	
+	private static final class MultiplyVariableLiteral extends BinaryOperation {
+		
+		private final int index;
+		private final double literal;
+		
+		private MultiplyVariableLiteral(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			this.index = first.getIndex();
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] * literal;
+		}
+		
+	}
+	
+	private static final class Divide extends BinaryOperation {
+		
+		private Divide(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) / second.getValue(variableValues);
+		}
+		
+	}
+	
+	private static final class DivideLiteral extends BinaryOperation {
+		
+		private final double literal;
+		
+		private DivideLiteral(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) / literal;
+		}
+		
+	}
+	
+	private static final class DivideVariableLiteral extends BinaryOperation {
+		
+		private final int index;
+		private final double literal;
+		
+		private DivideVariableLiteral(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			this.index = first.getIndex();
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] / literal;
+		}
+		
+	}
+	
+	private static final class Modulus extends BinaryOperation {
+		
+		private Modulus(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) % second.getValue(variableValues);
+		}
+		
+	}
+	
+	private static final class ModulusLiteral extends BinaryOperation {
+		
+		private final double literal;
+		
+		private ModulusLiteral(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) % literal;
+		}
+		
+	}
+	
+	private static final class ModulusVariableLiteral extends BinaryOperation {
+		
+		private final int index;
+		private final double literal;
+		
+		private ModulusVariableLiteral(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			this.index = first.getIndex();
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] % literal;
+		}
+		
+	}
+	
+	private static final class Power extends BinaryOperation {
+		
+		private Power(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.pow(first.getValue(variableValues), second.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class PowerLiteral extends BinaryOperation {
+		
+		private final double literal;
+		
+		private PowerLiteral(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.pow(first.getValue(variableValues), literal);
+		}
+		
+	}
+	
+	private static final class PowerVariableLiteral extends BinaryOperation {
+		
+		private final int index;
+		private final double literal;
+		
+		private PowerVariableLiteral(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			this.index = first.getIndex();
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.pow(variableValues[index], literal);
+		}
+		
+	}
+	
+	private static final class GreaterThan extends BinaryOperation {
+		
+		private GreaterThan(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) > second.getValue(variableValues) ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class GreaterThanLiteral extends BinaryOperation {
+		
+		private final double literal;
+		
+		private GreaterThanLiteral(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) > literal ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class GreaterThanVariableLiteral extends BinaryOperation {
+		
+		private final int index;
+		private final double literal;
+		
+		private GreaterThanVariableLiteral(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			this.index = first.getIndex();
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] > literal ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class LessThan extends BinaryOperation {
+		
+		private LessThan(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) < second.getValue(variableValues) ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class LessThanLiteral extends BinaryOperation {
+		
+		private final double literal;
+		
+		private LessThanLiteral(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) < literal ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class LessThanVariableLiteral extends BinaryOperation {
+		
+		private final int index;
+		private final double literal;
+		
+		private LessThanVariableLiteral(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			this.index = first.getIndex();
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] < literal ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class GreaterThanOrEqualTo extends BinaryOperation {
+		
+		private GreaterThanOrEqualTo(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) >= second.getValue(variableValues) ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class GreaterThanOrEqualToLiteral extends BinaryOperation {
+		
+		private final double literal;
+		
+		private GreaterThanOrEqualToLiteral(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) >= literal ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class GreaterThanOrEqualToVariableLiteral extends BinaryOperation {
+		
+		private final int index;
+		private final double literal;
+		
+		private GreaterThanOrEqualToVariableLiteral(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			this.index = first.getIndex();
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] >= literal ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class LessThanOrEqualTo extends BinaryOperation {
+		
+		private LessThanOrEqualTo(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) <= second.getValue(variableValues) ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class LessThanOrEqualToLiteral extends BinaryOperation {
+		
+		private final double literal;
+		
+		private LessThanOrEqualToLiteral(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) <= literal ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class LessThanOrEqualToVariableLiteral extends BinaryOperation {
+		
+		private final int index;
+		private final double literal;
+		
+		private LessThanOrEqualToVariableLiteral(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			this.index = first.getIndex();
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] <= literal ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class EqualTo extends BinaryOperation {
+		
+		private EqualTo(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) == second.getValue(variableValues) ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class EqualToLiteral extends BinaryOperation {
+		
+		private final double literal;
+		
+		private EqualToLiteral(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) == literal ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class EqualToVariableLiteral extends BinaryOperation {
+		
+		private final int index;
+		private final double literal;
+		
+		private EqualToVariableLiteral(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			this.index = first.getIndex();
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] == literal ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class NotEqualTo extends BinaryOperation {
+		
+		private NotEqualTo(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) != second.getValue(variableValues) ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class NotEqualToLiteral extends BinaryOperation {
+		
+		private final double literal;
+		
+		private NotEqualToLiteral(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) != literal ? 1d : 0d;
+		}
+		
+	}
+	
+	private static final class NotEqualToVariableLiteral extends BinaryOperation {
+		
+		private final int index;
+		private final double literal;
+		
+		private NotEqualToVariableLiteral(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			this.index = first.getIndex();
+			this.literal = second.getValue(NO_VALUES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] != literal ? 1d : 0d;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,97 @@
+package redempt.crunch.token;
+
+import redempt.crunch.exceptions.ExpressionCompilationException;
+import redempt.crunch.functional.ArgumentList;
+import redempt.crunch.functional.FunctionFactory;
+
+/**
+ * Represents {@code if(condition, ifTrue, ifFalse)}, which evaluates only the branch selected by its condition.
+ * Like the boolean operators, the condition is true when it is exactly 1.
+ * @author Redempt
+ */
+public class ConditionalOperation implements Value {
+	
+	/**
+	 * The factory which creates conditionals from {@code if} calls in expressions
+	 */
+	public static final FunctionFactory FACTORY = new FunctionFactory() {
+		
+		@Override
+		public Value create(ArgumentList args) {
+			Value[] values = args.getArguments();
+			if (values.length != 3) {
+				throw new ExpressionCompilationException(null, "Function 'if' takes 3 arguments, got " + values.length);
+			}
+			return new ConditionalOperation(values[0], values[1], values[2]);
+		}
+		
+		@Override
+		public boolean isPure() {
+			return true;
+		}
+		
+	};
+	
+	private final Value condition;
+	private final Value ifTrue;
+	private final Value ifFalse;
+	
+	public ConditionalOperation(Value condition, Value ifTrue, Value ifFalse) {
+		this.condition = condition;
+		this.ifTrue = ifTrue;
+		this.ifFalse = ifFalse;
+	}
+	
+	/**
+	 * @return The condition selecting the branch
+	 */
+	public Value getCondition() {
+		return condition;
+	}
+	
+	/**
+	 * @return The branch evaluated when the condition is true
+	 */
+	public Value getIfTrue() {
+		return ifTrue;
+	}
+	
+	/**
+	 * @return The branch evaluated when the condition is false
+	 */
+	public Value getIfFalse() {
+		return ifFalse;
+	}
+	
+	@Override
+	public TokenType getType() {
+		return TokenType.CONDITIONAL;
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		return condition.getValue(variableValues) == 1 ? ifTrue.getValue(variableValues) : ifFalse.getValue(variableValues);
+	}
+	
+	@Override
+	public Value getClone() {
+		return withValues(condition.getClone(), ifTrue.getClone(), ifFalse.getClone());
+	}
+	
+	/**
+	 * Creates a conditional with different operands
+	 * @param condition The condition
+	 * @param ifTrue The branch evaluated when the condition is true
+	 * @param ifFalse The branch evaluated when the condition is false
+	 * @return The new conditional
+	 */
+	public ConditionalOperation withValues(Value condition, Value ifTrue, Value ifFalse) {
+		return new ConditionalOperation(condition, ifTrue, ifFalse);
+	}
+	
+	@Override
+	public String toString() {
+		return "if(" + condition + ", " + ifTrue + ", " + ifFalse + ")";
+	}
+	
+}
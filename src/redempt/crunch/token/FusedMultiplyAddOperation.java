@@ -0,0 +1,90 @@
+package redempt.crunch.token;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Computes {@code a * b + c} with a single rounding using {@code Math.fma}. Math.fma only exists on Java 9 and later,
+ * so it is looked up reflectively; on Java 8 the operation is computed unfused, exactly like the ADD it replaces.
+ * @author Redempt
+ */
+public class FusedMultiplyAddOperation extends BinaryOperation {
+	
+	private static final MethodHandle FMA = findFma();
+	
+	private final Value first;
+	private final Value second;
+	private final Value addend;
+	
+	/**
+	 * Creates a FusedMultiplyAddOperation
+	 * @param product A multiplication of the first two operands
+	 * @param addend The value added to the product
+	 */
+	public FusedMultiplyAddOperation(BinaryOperation product, Value addend) {
+		super(BinaryOperator.ADD, product, addend);
+		if (product.getOperator() != BinaryOperator.MULTIPLY) {
+			throw new IllegalArgumentException("Product must be a multiplication");
+		}
+		Value[] factors = product.getValues();
+		this.first = factors[0];
+		this.second = factors[1];
+		this.addend = addend;
+	}
+	
+	/**
+	 * @return The two values being multiplied and the value added to their product, in evaluation order
+	 */
+	public Value[] getOperands() {
+		return new Value[] {first, second, addend};
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		return fma(first.getValue(variableValues), second.getValue(variableValues), addend.getValue(variableValues));
+	}
+	
+	@Override
+	public BinaryOperation withValues(Value first, Value second) {
+		if (first instanceof BinaryOperation && ((BinaryOperation) first).getOperator() == BinaryOperator.MULTIPLY) {
+			return new FusedMultiplyAddOperation((BinaryOperation) first, second);
+		}
+		return super.withValues(first, second);
+	}
+	
+	/**
+	 * @return Whether Math.fma is available, so that operations are really computed with a single rounding
+	 */
+	public static boolean isFused() {
+		return FMA != null;
+	}
+	
+	/**
+	 * Computes a * b + c, with a single rounding if {@link #isFused()}
+	 * @param a The first factor
+	 * @param b The second factor
+	 * @param c The addend
+	 * @return The result
+	 */
+	public static double fma(double a, double b, double c) {
+		if (FMA == null) {
+			return a * b + c;
+		}
+		try {
+			return (double) FMA.invokeExact(a, b, c);
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+	
+	private static MethodHandle findFma() {
+		try {
+			return MethodHandles.publicLookup().findStatic(Math.class, "fma",
+					MethodType.methodType(double.class, double.class, double.class, double.class));
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+	
+}
@@ -0,0 +1,66 @@
+package redempt.crunch.token;
+
+/**
+ * Raises a value to a constant positive integer power by repeated multiplication instead of {@link Math#pow(double, double)}
+ * @author Redempt
+ */
+public class IntegerPowerOperation extends BinaryOperation {
+	
+	private final int exponent;
+	
+	public IntegerPowerOperation(Value base, int exponent) {
+		super(BinaryOperator.EXPONENT, base, new LiteralValue(exponent));
+		if (exponent < 1) {
+			throw new IllegalArgumentException("Exponent must be positive");
+		}
+		this.exponent = exponent;
+	}
+	
+	/**
+	 * @return The value being raised to a power
+	 */
+	public Value getBase() {
+		return first;
+	}
+	
+	/**
+	 * @return The power the base is raised to
+	 */
+	public int getExponent() {
+		return exponent;
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		return power(first.getValue(variableValues), exponent);
+	}
+	
+	@Override
+	public BinaryOperation withValues(Value first, Value second) {
+		if (second.getType() == TokenType.LITERAL_VALUE && second.getValue(null) == exponent) {
+			return new IntegerPowerOperation(first, exponent);
+		}
+		return super.withValues(first, second);
+	}
+	
+	/**
+	 * Raises a value to a positive integer power by squaring
+	 * @param base The base
+	 * @param exponent The exponent, at least 1
+	 * @return The base raised to the exponent
+	 */
+	public static double power(double base, int exponent) {
+		double result = 1;
+		while (true) {
+			if ((exponent & 1) != 0) {
+				result *= base;
+			}
+			exponent >>= 1;
+			if (exponent == 0) {
+				return result;
+			}
+			base *= base;
+		}
+	}
+	
+}
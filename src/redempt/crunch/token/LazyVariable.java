@@ -12,6 +12,13 @@ public class LazyVariable implements Value {
 		this.supplier = supplier;
 	}
 	
+	/**
+	 * @return The name of this lazy variable
+	 */
+	public String getName() {
+		return name;
+	}
+	
 	@Override
 	public TokenType getType() {
 		return TokenType.LAZY_VARIABLE;
@@ -0,0 +1,55 @@
+package redempt.crunch.token;
+
+/**
+ * A subexpression which occurs more than once in an expression. The first occurrence to be evaluated computes the value
+ * and stores it in a slot of the variable array, past the variables themselves; later occurrences are
+ * {@link SharedValueReference}s which read the stored value back.
+ * @author Redempt
+ */
+public class SharedValue implements Value {
+	
+	private final int slot;
+	private final Value child;
+	
+	public SharedValue(int slot, Value child) {
+		this.slot = slot;
+		this.child = child;
+	}
+	
+	/**
+	 * @return The index in the variable array the value is stored at
+	 */
+	public int getSlot() {
+		return slot;
+	}
+	
+	/**
+	 * @return The subexpression whose value is shared
+	 */
+	public Value getChild() {
+		return child;
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		double value = child.getValue(variableValues);
+		variableValues[slot] = value;
+		return value;
+	}
+	
+	@Override
+	public TokenType getType() {
+		return TokenType.SHARED_VALUE;
+	}
+	
+	@Override
+	public String toString() {
+		return child.toString();
+	}
+	
+	@Override
+	public SharedValue getClone() {
+		return new SharedValue(slot, child.getClone());
+	}
+	
+}
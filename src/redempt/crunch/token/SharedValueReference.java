@@ -0,0 +1,56 @@
+package redempt.crunch.token;
+
+/**
+ * A repeated occurrence of a {@link SharedValue}, which reads the value already computed in the same evaluation
+ * @author Redempt
+ */
+public class SharedValueReference implements Value {
+	
+	private final int slot;
+	private final Value shared;
+	
+	/**
+	 * Creates a SharedValueReference
+	 * @param slot The index in the variable array the shared value is stored at
+	 * @param shared The subexpression whose value is shared, used only for its string representation
+	 */
+	public SharedValueReference(int slot, Value shared) {
+		this.slot = slot;
+		this.shared = shared;
+	}
+	
+	/**
+	 * @return The index in the variable array the value is read from
+	 */
+	public int getSlot() {
+		return slot;
+	}
+	
+	/**
+	 * @return The subexpression whose value is shared
+	 */
+	public Value getShared() {
+		return shared;
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		return variableValues[slot];
+	}
+	
+	@Override
+	public TokenType getType() {
+		return TokenType.SHARED_VALUE;
+	}
+	
+	@Override
+	public String toString() {
+		return shared.toString();
+	}
+	
+	@Override
+	public SharedValueReference getClone() {
+		return this;
+	}
+	
+}
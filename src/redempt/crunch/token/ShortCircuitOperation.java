@@ -0,0 +1,57 @@
+package redempt.crunch.token;
+
+/**
+ * A boolean AND or OR which only evaluates its second operand when the first does not already decide the result
+ * @author Redempt
+ */
+public class ShortCircuitOperation extends BinaryOperation {
+	
+	private final boolean and;
+	
+	public ShortCircuitOperation(BinaryOperator operator, Value first, Value second) {
+		super(operator, first, second);
+		if (!isShortCircuit(operator)) {
+			throw new IllegalArgumentException("Operator " + operator + " is not a boolean AND or OR");
+		}
+		this.and = operator == BinaryOperator.BOOLEAN_AND || operator == BinaryOperator.BOOLEAN_AND_ALT;
+	}
+	
+	/**
+	 * @return Whether this is an AND, which skips its second operand when the first is false, rather than an OR,
+	 * which skips its second operand when the first is true
+	 */
+	public boolean isAnd() {
+		return and;
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		boolean decided = first.getValue(variableValues) == 1;
+		if (decided != and) {
+			return decided ? 1d : 0d;
+		}
+		return second.getValue(variableValues) == 1 ? 1d : 0d;
+	}
+	
+	@Override
+	public BinaryOperation withValues(Value first, Value second) {
+		return new ShortCircuitOperation(getOperator(), first, second);
+	}
+	
+	/**
+	 * @param operator The operator to check
+	 * @return Whether the operator is a boolean AND or OR
+	 */
+	public static boolean isShortCircuit(BinaryOperator operator) {
+		switch (operator) {
+			case BOOLEAN_AND:
+			case BOOLEAN_AND_ALT:
+			case BOOLEAN_OR:
+			case BOOLEAN_OR_ALT:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+}
@@ -16,6 +16,9 @@ public enum TokenType {
 	FUNCTION_CALL,
 	LAZY_VARIABLE,
 	STRING,
-	FUNCTION_FACTORY
+	FUNCTION_FACTORY,
+	SHARED_VALUE,
+	CONDITIONAL,
+	PROGRAM
 	
 }
@@ -32,6 +32,26 @@ public class UnaryOperation implements Value {
     }
 
     public UnaryOperation getClone() {
-        return new UnaryOperation(operator, first.getClone());
+        return withChild(first.getClone());
+    }
+
+    /**
+     * Creates an operation of the same kind as this one with a different operand
+     * @param child The operand
+     * @return The new operation
+     */
+    public UnaryOperation withChild(Value child) {
+        return create(operator, child);
+    }
+
+    /**
+     * Creates an operation, choosing a dedicated implementation for the operator
+     * @param operator The operator
+     * @param child The operand
+     * @return The operation
+     */
+    public static UnaryOperation create(UnaryOperator operator, Value child) {
+        UnaryOperation operation = UnaryOperations.create(operator, child);
+        return operation == null ? new UnaryOperation(operator, child) : operation;
     }
 }
\ No newline at end of file
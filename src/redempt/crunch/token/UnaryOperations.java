@@ -0,0 +1,351 @@
+package redempt.crunch.token;
+
+/**
+ * Dedicated UnaryOperation implementations for each pure operator, with the operation written inline rather than
+ * called through the operator's lambda, so that the call sites in the tree interpreter do not become megamorphic
+ * @author Redempt
+ */
+final class UnaryOperations {
+	
+	private UnaryOperations() {
+		// Prevent instantiation
+	}
+	
+	/**
+	 * Creates the dedicated node for an operation
+	 * @param operator The operator
+	 * @param child The operand
+	 * @return The node, or null if the operator has no dedicated node
+	 */
+	static UnaryOperation create(UnaryOperator operator, Value child) {
+		switch (operator) {
+			case NEGATE:
+				return new Negate(operator, child);
+			case NOT:
+				return new Not(operator, child);
+			case SIN:
+				return new Sin(operator, child);
+			case COS:
+				return new Cos(operator, child);
+			case TAN:
+				return new Tan(operator, child);
+			case SINH:
+				return new Sinh(operator, child);
+			case COSH:
+				return new Cosh(operator, child);
+			case TANH:
+				return new Tanh(operator, child);
+			case ASIN:
+				return new Asin(operator, child);
+			case ACOS:
+				return new Acos(operator, child);
+			case ATAN:
+				return new Atan(operator, child);
+			case ABS:
+				return new Abs(operator, child);
+			case ROUND:
+				return new Round(operator, child);
+			case FLOOR:
+				return new Floor(operator, child);
+			case CEIL:
+				return new Ceil(operator, child);
+			case LOG:
+				return new Log(operator, child);
+			case SQRT:
+				return new Sqrt(operator, child);
+			case CBRT:
+				return new Cbrt(operator, child);
+			default:
+				return null;
+		}
+	}
+	
+	private static final class Negate extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Negate(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return -child.getValue(variableValues);
+		}
+		
+	}
+	
+	private static final class Not extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Not(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return child.getValue(variableValues) == 1 ? 0d : 1d;
+		}
+		
+	}
+	
+	private static final class Sin extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Sin(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.sin(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Cos extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Cos(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.cos(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Tan extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Tan(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.tan(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Sinh extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Sinh(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.sinh(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Cosh extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Cosh(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.cosh(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Tanh extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Tanh(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.tanh(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Asin extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Asin(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.asin(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Acos extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Acos(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.acos(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Atan extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Atan(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.atan(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Abs extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Abs(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.abs(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Round extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Round(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.round(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Floor extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Floor(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.floor(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Ceil extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Ceil(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.ceil(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Log extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Log(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.log(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Sqrt extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Sqrt(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.sqrt(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class Cbrt extends UnaryOperation {
+		
+		private final Value child;
+		
+		private Cbrt(UnaryOperator operator, Value child) {
+			super(operator, child);
+			this.child = child;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.cbrt(child.getValue(variableValues));
+		}
+		
+	}
+	
+}
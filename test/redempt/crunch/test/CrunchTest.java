@@ -1,17 +1,61 @@
 package redempt.crunch.test;
 
 import org.junit.jupiter.api.Test;
+import redempt.crunch.CompileMode;
+import redempt.crunch.CompileOptions;
 import redempt.crunch.CompiledExpression;
 import redempt.crunch.Crunch;
+import redempt.crunch.EvaluationContext;
+import redempt.crunch.ExpressionCache;
+import redempt.crunch.ExpressionProfiler;
+import redempt.crunch.ProfileReport;
+import redempt.crunch.Variable;
+import redempt.crunch.codegen.JavaSourceGenerator;
+import redempt.crunch.data.CharTree;
+import redempt.crunch.data.FastNumberParsing;
+import redempt.crunch.derivative.Differentiator;
+import redempt.crunch.derivative.GradientEvaluator;
 import redempt.crunch.exceptions.ExpressionCompilationException;
 import redempt.crunch.exceptions.ExpressionEvaluationException;
 import redempt.crunch.functional.ArgumentList;
 import redempt.crunch.functional.ExpressionEnv;
 import redempt.crunch.functional.FunctionFactory;
+import redempt.crunch.interval.Interval;
+import redempt.crunch.interval.IntervalEvaluator;
+import redempt.crunch.metrics.CrunchMetrics;
+import redempt.crunch.metrics.Histogram;
+import redempt.crunch.program.ExpressionReader;
+import redempt.crunch.program.ExpressionWriter;
+import redempt.crunch.program.FloatExpression;
+import redempt.crunch.program.IntegerOverflow;
+import redempt.crunch.program.LongExpression;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.FusedMultiplyAddOperation;
+import redempt.crunch.token.IntegerPowerOperation;
 import redempt.crunch.token.LazyVariable;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
 import redempt.crunch.token.Value;
 import redempt.crunch.token.ValueDoubleSupplier;
 
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class CrunchTest {
@@ -162,4 +206,814 @@ class CrunchTest {
         final double evaluate = compiledExpression.evaluate();
         assertEquals(2, evaluate);
     }
+
+    @Test
+    void bytecodeTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        env.addFunction("mult", 2, d -> d[0] * d[1]);
+        env.addLazyVariable("x", () -> 3);
+        final String[] expressions = {
+                "1 + $1 * 2", "$1 / $2 - $1 % 3", "$1 ^ 2 + 2E$2", "-$1 + abs(-$2) + round($1 / 3)",
+                "$1 > $2 | $1 < 0", "$1 >= 4 & $2 <= 3", "$1 = $2", "$1 != $2", "!($1 > 2)",
+                "sin($1) * cos($2) + sqrt(floor($1)) + log(ceil($2))", "mult($1, x) + mult(2, mult($2, $2))"
+        };
+        final double[][] inputs = {{1, 2}, {5, 3}, {-2.5, 0}, {4, 4}, {Double.NaN, 1}};
+        for (String expression : expressions) {
+            CompiledExpression tree = Crunch.compileExpression(expression, env);
+            CompiledExpression bytecode = Crunch.compileExpression(expression, env, CompileMode.BYTECODE);
+            assertEquals(tree.toString(), bytecode.toString(), "String representation");
+            for (double[] input : inputs) {
+                assertEquals(tree.evaluate(input), bytecode.evaluate(input), expression);
+            }
+        }
+        assertEquals(2, Crunch.compileExpression("1 + 1", env, CompileMode.BYTECODE).evaluate(), "Constant expression");
+        final CompiledExpression random = Crunch.compileExpression("rand1000000", env, CompileMode.BYTECODE);
+        assertNotEquals(random.evaluate(), random.evaluate());
+    }
+
+    @Test
+    void batchTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        env.addFunction("mult", 2, d -> d[0] * d[1]);
+        env.addLazyVariable("x", () -> 3);
+        final String[] expressions = {
+                "$1 * 2 + $2", "($1 > $2 | $1 = 7) & !($2 < 0)", "mult($1, x) - abs($2) ^ 0.5", "sin($1) + floor($2 / 3) % 2", "4"
+        };
+        final int rowCount = 1000;
+        final double[][] columns = new double[2][rowCount];
+        final double[] rows = new double[rowCount * 3];
+        for (int i = 0; i < rowCount; i++) {
+            columns[0][i] = rows[i * 3] = i % 17 - 5;
+            columns[1][i] = rows[i * 3 + 1] = i * 0.37 - 100;
+        }
+        for (String expression : expressions) {
+            for (final CompileMode mode : CompileMode.values()) {
+                final CompiledExpression compiled = Crunch.compileExpression(expression, env, mode);
+                final double[] expected = new double[rowCount];
+                for (int i = 0; i < rowCount; i++) {
+                    expected[i] = compiled.evaluate(columns[0][i], columns[1][i]);
+                }
+                final double[] out = new double[rowCount];
+                compiled.evaluateBatch(columns, rowCount, out);
+                assertArrayEquals(expected, out, "Columnar " + mode + " " + expression);
+                final double[] strided = new double[rowCount];
+                compiled.evaluateBatch(rows, 3, rowCount, strided);
+                assertArrayEquals(expected, strided, "Row-major " + mode + " " + expression);
+            }
+        }
+        final CompiledExpression twoVariables = Crunch.compileExpression("$1 + $2");
+        assertThrows(ExpressionEvaluationException.class, () -> twoVariables.evaluateBatch(new double[1][rowCount], rowCount, new double[rowCount]), "Too few columns");
+    }
+
+    @Test
+    void parallelTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        env.addFunction("mult", 2, d -> d[0] * d[1]);
+        final CompiledExpression expr = Crunch.compileExpression("mult($1, $2 + 1) - mult($2, 2)", env);
+        final int rowCount = 200_000;
+        final double[][] columns = new double[2][rowCount];
+        final double[] rows = new double[rowCount * 2];
+        final double[] expected = new double[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            columns[0][i] = rows[i * 2] = i % 101;
+            columns[1][i] = rows[i * 2 + 1] = i / 7.0;
+            expected[i] = expr.evaluate(columns[0][i], columns[1][i]);
+        }
+        final double[] out = new double[rowCount];
+        expr.evaluateParallel(columns, rowCount, out);
+        assertArrayEquals(expected, out, "Columnar");
+        final double[] strided = new double[rowCount];
+        expr.evaluateParallel(rows, 2, rowCount, strided);
+        assertArrayEquals(expected, strided, "Row-major");
+    }
+
+    @Test
+    void threadSafetyTest() throws InterruptedException {
+        final ExpressionEnv env = new ExpressionEnv();
+        env.addFunction("mult", 2, d -> d[0] * d[1]);
+        final CompiledExpression expr = Crunch.compileExpression("mult(mult($1, 2), mult($2, $1)) + $2", env);
+        final Thread[] threads = new Thread[8];
+        final boolean[] failed = new boolean[threads.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                final EvaluationContext context = expr.createContext();
+                for (int i = 0; i < 20_000; i++) {
+                    final double x = id * 1000 + i % 100;
+                    context.setVariable(1, x).setVariable(2, id);
+                    if (expr.evaluate(x, id) != x * 2 * id * x + id || expr.evaluate(context) != x * 2 * id * x + id) {
+                        failed[id] = true;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            assertFalse(failed[t], "Concurrent evaluation on thread " + t);
+        }
+    }
+
+    @Test
+    void cacheTest() {
+        final ExpressionCache cache = new ExpressionCache(64);
+        final ExpressionEnv env = new ExpressionEnv();
+        env.setVariableNames("x");
+        final CompiledExpression first = cache.compile("x * 2", env);
+        assertSame(first, cache.compile("x * 2", env), "Same expression and environment");
+        assertNotSame(first, cache.compile("x * 2", new ExpressionEnv().setVariableNames("x")), "Different environment");
+        assertNotSame(first, cache.compile("x * 2", env, CompileMode.BYTECODE), "Different compile mode");
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        env.addLazyVariable("y", () -> 3);
+        final CompiledExpression modified = cache.compile("x * y", env);
+        assertNotSame(first, cache.compile("x * 2", env), "Modified environment");
+        assertEquals(6, modified.evaluate(2), "Expression using the modification");
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i + 1, cache.compile(i + " + 1").evaluate());
+        }
+        assertTrue(cache.size() <= 64, "Bounded size");
+        assertEquals(cache.getMissCount() - cache.size(), cache.getEvictionCount(), "Evictions counted");
+        assertThrows(ExpressionCompilationException.class, () -> cache.compile("(1"), "Errors are not cached");
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void commonSubexpressionTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        final CompileOptions options = new CompileOptions().setEliminateCommonSubexpressions(true);
+        final String expression = "sin($1 * 2) + sin($1 * 2) * cos($2) - (sin($1 * 2) + cos($2)) ^ 2";
+        final CompiledExpression plain = Crunch.compileExpression(expression, env);
+        final CompiledExpression eliminated = Crunch.compileExpression(expression, env, options);
+        assertTrue(eliminated.getFrameSize() > eliminated.getVariableCount(), "Shared values need slots");
+        assertEquals(plain.toString(), eliminated.toString(), "String representation");
+        assertEquals(plain.evaluate(0.3, 1.7), eliminated.evaluate(0.3, 1.7), "Evaluation with variables");
+        assertEquals(plain.evaluate(0.3, 1.7), eliminated.evaluate(eliminated.createContext().setVariables(0.3, 1.7)), "Evaluation with context");
+        final CompiledExpression bytecode = Crunch.compileExpression(expression, env, new CompileOptions().setEliminateCommonSubexpressions(true).setMode(CompileMode.BYTECODE));
+        assertEquals(plain.evaluate(0.3, 1.7), bytecode.evaluate(0.3, 1.7), "Bytecode evaluation");
+        final double[][] columns = {{0.1, 0.2, 0.3}, {1, 2, 3}};
+        final double[] expected = new double[3];
+        final double[] out = new double[3];
+        plain.evaluateBatch(columns, 3, expected);
+        eliminated.evaluateBatch(columns, 3, out);
+        assertArrayEquals(expected, out, "Batch evaluation");
+
+        assertSame(Crunch.compileExpression("rand(5) + rand(5)", env).getValue().getClass(),
+                Crunch.compileExpression("rand(5) + rand(5)", env, options).getValue().getClass(), "Impure operations are not merged");
+        assertEquals(Crunch.compileExpression("$1 + $1", env, options).getFrameSize(), 1, "Variables are not shared");
+        assertFalse(Crunch.compileExpression("($1 + 1) * 2", env, options).getValue() instanceof SharedValue, "No repeats");
+    }
+
+    @Test
+    void simplifyTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        final CompileOptions options = new CompileOptions().setSimplify(true);
+        assertEquals("$1", Crunch.compileExpression("($1 + 0) * 1 / 1 - 0", env, options).toString(), "Identities removed");
+        assertEquals("$1", Crunch.compileExpression("--$1", env, options).toString(), "Double negation removed");
+        assertEquals(1, Crunch.compileExpression("$1 ^ 0", env, options).evaluate(5), "Zero power");
+        assertTrue(Crunch.compileExpression("$1 ^ 3", env, options).getValue() instanceof IntegerPowerOperation, "Integer power");
+        final String expression = "$1 ^ 2 + $1 ^ 7 - $2 / 4 + 3E2 * $2 - $1 * $2 + 1.5";
+        final CompiledExpression plain = Crunch.compileExpression(expression, env);
+        final CompiledExpression simplified = Crunch.compileExpression(expression, env, options);
+        final CompiledExpression bytecode = Crunch.compileExpression(expression, env, new CompileOptions().setSimplify(true).setMode(CompileMode.BYTECODE));
+        for (double x = -3; x <= 3; x += 0.5) {
+            assertEquals(plain.evaluate(x, x * 2), simplified.evaluate(x, x * 2), 1e-9, "Tree evaluation");
+            assertEquals(plain.evaluate(x, x * 2), bytecode.evaluate(x, x * 2), 1e-9, "Bytecode evaluation");
+        }
+        final CompiledExpression fused = Crunch.compileExpression("$1 * $2 + $3", env, new CompileOptions().setSimplify(true).setFusedMultiplyAdd(true));
+        assertTrue(fused.getValue() instanceof FusedMultiplyAddOperation, "Multiply-add fused");
+        assertEquals(7, fused.evaluate(2, 3, 1));
+        final double[] out = new double[2];
+        fused.evaluateBatch(new double[][] {{2, 4}, {3, 5}, {1, 2}}, 2, out);
+        assertArrayEquals(new double[] {7, 22}, out, "Batch evaluation");
+        assertFalse(Crunch.compileExpression("rand(1) ^ 0", env, options).getValue() instanceof LiteralValue, "Impure base is kept");
+    }
+
+    @Test
+    void constantFoldingTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        env.addFunction("hyp", 2, d -> Math.sqrt(d[0] * d[0] + d[1] * d[1]), true);
+        env.addFunction("impure", 1, d -> d[0]);
+        assertTrue(Crunch.compileExpression("hyp(3, 4)", env).getValue() instanceof LiteralValue, "Pure call folded");
+        assertFalse(Crunch.compileExpression("impure(3)", env).getValue() instanceof LiteralValue, "Impure call kept");
+        final CompileOptions options = new CompileOptions().setSimplify(true).setReassociate(true);
+        assertEquals("($1*6.0)", Crunch.compileExpression("2 * $1 * 3", env, options).toString(), "Multiplication reassociated");
+        assertEquals("(($1+$2)+6.0)", Crunch.compileExpression("1 + $1 + 2 + ($2 + 3)", env, options).toString(), "Addition reassociated");
+        assertEquals(12, Crunch.compileExpression("hyp(3, 2 + $1 * 0 + 2) + 7", env, options).evaluate(1), "Call folded after simplification");
+        assertTrue(Crunch.compileExpression("hyp(3, $1 ^ 0 * 4)", env, options).getValue() instanceof LiteralValue, "Arguments folded first");
+        assertEquals(2.5, Crunch.compileExpression("$1 * 2 + 1 + $1 * 2", env, options.setEliminateCommonSubexpressions(true)).evaluate(0.375));
+        final CompileOptions shared = new CompileOptions().setEliminateCommonSubexpressions(true);
+        assertTrue(Crunch.compileExpression("hyp($1, 2) + hyp($1, 2)", env, shared).getFrameSize() > 1, "Pure calls shared");
+        assertEquals(1, Crunch.compileExpression("impure($1) + impure($1)", env, shared).getFrameSize(), "Impure calls not shared");
+    }
+
+    @Test
+    void shortCircuitTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        final AtomicInteger calls = new AtomicInteger();
+        env.addFunction("count", 1, d -> {
+            calls.incrementAndGet();
+            return d[0];
+        });
+        final CompiledExpression and = Crunch.compileExpression("$1 > 0 && count($1) > 2", env);
+        assertEquals(0, and.evaluate(-1));
+        assertEquals(0, calls.get(), "Second operand of AND skipped");
+        assertEquals(1, and.evaluate(3));
+        assertEquals(1, calls.get(), "Second operand of AND evaluated");
+        final CompiledExpression or = Crunch.compileExpression("$1 > 0 | count($1) < -2", env);
+        assertEquals(1, or.evaluate(1));
+        assertEquals(1, calls.get(), "Second operand of OR skipped");
+        final CompiledExpression conditional = Crunch.compileExpression("if($1 < 0, count(-$1), $1 * 2) + 1", env);
+        assertEquals(4, conditional.evaluate(-3));
+        assertEquals(7, conditional.evaluate(3));
+        assertEquals(2, calls.get(), "Only the taken branch is evaluated");
+        assertEquals(5, Crunch.evaluateExpression("if(1, 5, 1 / 0)"), "Constant condition");
+        assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("if(1, 2)"), "Argument count");
+        final ExpressionEnv names = new ExpressionEnv();
+        names.setVariableNames("ifx");
+        assertEquals(3, Crunch.compileExpression("ifx + 1", names).evaluate(2), "Variable name starting with if");
+        assertEquals(2, Crunch.compileExpression("if (ifx > 1, ifx, 0)", names).evaluate(2), "Conditional with a space");
+
+        final String expression = "if($1 > 2 & count($1) < 6, $1 ^ 2, 0 - count($1)) + ($1 = 1 || count($1) = 4)";
+        final CompiledExpression tree = Crunch.compileExpression(expression, env);
+        final CompiledExpression bytecode = Crunch.compileExpression(expression, env, CompileMode.BYTECODE);
+        final CompiledExpression eliminated = Crunch.compileExpression(expression, env, new CompileOptions().setEliminateCommonSubexpressions(true).setSimplify(true));
+        final double[] column = new double[600];
+        final double[] expected = new double[column.length];
+        calls.set(0);
+        for (int i = 0; i < column.length; i++) {
+            column[i] = i % 8;
+            expected[i] = tree.evaluate(column[i]);
+        }
+        final int scalarCalls = calls.get();
+        for (int i = 0; i < column.length; i++) {
+            assertEquals(expected[i], bytecode.evaluate(column[i]), "Bytecode evaluation");
+            assertEquals(expected[i], eliminated.evaluate(column[i]), "Optimized evaluation");
+        }
+        calls.set(0);
+        final double[] out = new double[column.length];
+        tree.evaluateBatch(new double[][] {column}, column.length, out);
+        assertArrayEquals(expected, out, "Batch evaluation");
+        assertEquals(scalarCalls, calls.get(), "Batch evaluation skips the same operands");
+    }
+
+    @Test
+    void primitiveFunctionTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        env.addFunction("twice", x -> x * 2);
+        env.addFunction("sub", (a, b) -> a - b, true);
+        env.addFunction("mad", (a, b, c) -> a * b + c);
+        env.addFunction("sum4", (a, b, c, d) -> a + b + c + d);
+        final String expression = "twice($1) + sub($2, $1) * mad($1, $2, 1) - sum4($1, $2, 3, twice(2))";
+        final CompiledExpression tree = Crunch.compileExpression(expression, env);
+        final CompiledExpression bytecode = Crunch.compileExpression(expression, env, CompileMode.BYTECODE);
+        final double expected = 3 * 2 + (5 - 3) * (3 * 5 + 1) - (3 + 5 + 3 + 4);
+        assertEquals(expected, tree.evaluate(3, 5), "Tree evaluation");
+        assertEquals(expected, bytecode.evaluate(3, 5), "Bytecode evaluation");
+        assertEquals(expected, tree.clone().evaluate(3, 5), "Cloned evaluation");
+        final double[] out = new double[2];
+        tree.evaluateBatch(new double[][] {{3, 0}, {5, 0}}, 2, out);
+        assertArrayEquals(new double[] {expected, -7}, out, "Batch evaluation");
+        assertTrue(Crunch.compileExpression("sub(5, 2)", env).getValue() instanceof LiteralValue, "Pure function folded");
+        assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("mad(1, 2)", env), "Argument count");
+    }
+
+    @Test
+    void dedicatedNodeTest() {
+        final double[][] operands = {{3, 2}, {-1.5, 4}, {2, 2}, {0, -0.0}, {7, 0}};
+        for (final BinaryOperator operator : BinaryOperator.values()) {
+            for (final double[] pair : operands) {
+                final double expected = operator.getOperation().applyAsDouble(pair[0], pair[1]);
+                final Value[] firsts = {new Variable(0), new UnaryOperation(UnaryOperator.NEGATE, new Variable(2))};
+                final Value[] seconds = {new LiteralValue(pair[1]), new Variable(1)};
+                final double[] values = {pair[0], pair[1], -pair[0]};
+                for (final Value first : firsts) {
+                    for (final Value second : seconds) {
+                        final BinaryOperation operation = BinaryOperation.create(operator, first, second);
+                        assertEquals(operator, operation.getOperator());
+                        assertEquals(expected, operation.getValue(values), 0, operator + " with " + operation);
+                    }
+                }
+            }
+        }
+        for (final UnaryOperator operator : UnaryOperator.values()) {
+            if (operator.isPure()) {
+                final UnaryOperation operation = UnaryOperation.create(operator, new Variable(0));
+                assertNotSame(UnaryOperation.class, operation.getClass(), operator + " has a dedicated node");
+                assertEquals(operator.getOperation().applyAsDouble(0.4), operation.getValue(new double[] {0.4}), 0, operator.toString());
+            }
+        }
+        assertNotSame(BinaryOperation.class, Crunch.compileExpression("$1 * 2 + $2").getValue().getClass(), "Parser creates dedicated nodes");
+    }
+
+    @Test
+    void programTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        env.addFunction("mult", 2, d -> d[0] * d[1]);
+        env.addFunction("sub", (a, b) -> a - b);
+        env.addLazyVariable("lazy", () -> 4);
+        final String[] expressions = {
+                "1 + 2 * $1 - $2 / 4 % 3",
+                "sin($1) ^ 2 + cos($2) ^ 2.5 - abs(-$1) * 3E2",
+                "mult($1, sub($2, 1)) + lazy",
+                "if($1 > 1 && $2 < 3, $1, if($2 = 2 | $1 != 0, $2, -1)) + !($1 >= 2)",
+                "sqrt($1 ^ 2 + $2 ^ 2) + sqrt($1 ^ 2 + $2 ^ 2) * ($1 * $2 + 1)"
+        };
+        final CompileOptions options = new CompileOptions().setMode(CompileMode.PROGRAM);
+        final CompileOptions optimized = new CompileOptions().setMode(CompileMode.PROGRAM).setSimplify(true).setEliminateCommonSubexpressions(true);
+        for (final String expression : expressions) {
+            final CompiledExpression tree = Crunch.compileExpression(expression, env);
+            final CompiledExpression program = Crunch.compileExpression(expression, env, options);
+            final CompiledExpression optimizedProgram = Crunch.compileExpression(expression, env, optimized);
+            assertEquals(tree.toString(), program.toString(), "String representation");
+            for (double x = -1; x <= 3; x += 0.5) {
+                assertEquals(tree.evaluate(x, 2), program.evaluate(x, 2), expression);
+                assertEquals(tree.evaluate(x, 2), optimizedProgram.evaluate(x, 2), DELTA, expression);
+                assertEquals(tree.evaluate(x, 2), program.evaluate(program.createContext().setVariables(x, 2)), expression);
+            }
+        }
+        final StringBuilder builder = new StringBuilder("$1");
+        for (int i = 1; i < 100000; i++) {
+            builder.append(" + $1");
+        }
+        final CompiledExpression deep = Crunch.compileExpression(builder.toString(), env, CompileMode.PROGRAM);
+        assertEquals(100000, deep.evaluate(1), "Deep expressions evaluate without recursion");
+    }
+
+    @Test
+    void parserInputTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        final CompileOptions options = new CompileOptions();
+        final String text = "xx 1 +\t$1 * ( 2 ) yy";
+        assertEquals(7, Crunch.compileExpression(text, 3, 17, env, options).evaluate(3), "CharSequence range");
+        assertEquals(7, Crunch.compileExpression(text.toCharArray(), 3, 14, env, options).evaluate(3), "char[] slice");
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        assertEquals(7, Crunch.compileExpression(bytes, 3, 14, env, options).evaluate(3), "byte[] slice");
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).position(3).limit(17);
+        assertEquals(7, Crunch.compileExpression(buffer, env, options).evaluate(3), "ByteBuffer range");
+        assertEquals(3, buffer.position(), "Buffer position is unchanged");
+        env.addLazyVariable("\u00e9", () -> 2);
+        final byte[] unicode = "\u00e9 * 3".getBytes(StandardCharsets.UTF_8);
+        assertEquals(6, Crunch.compileExpression(unicode, 0, unicode.length, env, options).evaluate(), "Non-ASCII bytes are decoded");
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            builder.append("(");
+        }
+        builder.append("$1");
+        for (int i = 0; i < 10000; i++) {
+            builder.append(" + 1)");
+        }
+        final CompiledExpression deep = Crunch.compileExpression(builder.toString(), env, CompileMode.PROGRAM);
+        assertEquals(10001, deep.evaluate(1), "Deep nesting is parsed without recursion");
+        assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("1 +"), "Missing operand");
+        assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("(1 + 2"), "Unclosed parenthesis");
+        assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("1.2.3"), "Malformed literal");
+    }
+
+    @Test
+    void charTreeTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        env.setVariableNames("a", "ab", "\u03b1\u03b2");
+        env.addFunction("\u03c3", x -> x * 2);
+        assertEquals(2, Crunch.compileExpression("ab", env).evaluate(1, 2, 3), "Longest match");
+        assertEquals(1, Crunch.compileExpression("a", env).evaluate(1, 2, 3), "Prefix of another name");
+        assertEquals(6, Crunch.compileExpression("\u03c3(\u03b1\u03b2)", env).evaluate(1, 2, 3), "Non-ASCII names");
+        assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("\u03b1", env), "Incomplete non-ASCII name");
+        final CharTree<Integer> tree = new CharTree<>();
+        for (int i = 0; i < 1000; i++) {
+            tree.set("name" + i, i);
+        }
+        final CharTree<Integer> copy = new CharTree<>(tree);
+        copy.set("name0", -1);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.valueOf(i), tree.get("name" + i), "Lookup in a wide tree");
+        }
+        assertEquals(Integer.valueOf(-1), copy.get("name0"), "Copies are independent");
+        tree.set("name1", -1);
+        assertEquals(Integer.valueOf(1), copy.get("name1"), "Originals are independent of their copies");
+        assertNull(tree.get("name1000"), "Missing key");
+        assertEquals(BinaryOperator.LESS_THAN_OR_EQUAL_TO, new ExpressionEnv().getBinaryOperators().get("<="), "Default operators");
+    }
+
+    @Test
+    void layeredEnvTest() {
+        final ExpressionEnv base = new ExpressionEnv();
+        base.addFunction("double", x -> x * 2);
+        assertThrows(IllegalArgumentException.class, () -> new ExpressionEnv(base), "Parent must be frozen");
+        base.freeze();
+        assertThrows(IllegalStateException.class, () -> base.addFunction("triple", x -> x * 3), "Frozen environments are immutable");
+        assertThrows(IllegalStateException.class, () -> base.getValues().set("x", new LiteralValue(1)), "Frozen trees are immutable");
+        final ExpressionEnv first = new ExpressionEnv(base).setVariableNames("x");
+        final ExpressionEnv second = new ExpressionEnv(base).addFunction("triple", x -> x * 3);
+        first.addFunction("dec", x -> x - 1);
+        assertEquals(8, Crunch.compileExpression("double(x) + dec(x)", first).evaluate(3), "Child sees parent functions");
+        assertEquals(12, Crunch.compileExpression("triple(double(2))", second).evaluate(), "Sibling functions");
+        assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("dec(1)", second), "Siblings are independent");
+        assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("triple(1)", base), "Parent is unaffected");
+        final ExpressionEnv grandchild = new ExpressionEnv(first.freeze());
+        assertEquals(1, grandchild.getVariableCount(), "Variable names are inherited");
+        assertEquals(5, Crunch.compileExpression("dec(double(x))", grandchild).evaluate(3), "Nested layers");
+    }
+
+    @Test
+    void numberParsingTest() {
+        final String[] inputs = {"0.1", "0.3", "123.456", "1.7976931348623157e308", "4.9e-324", "2.2250738585072012e-308",
+                "9007199254740993", "1e23", "123456789012345678901234567890", "7.2057594037927933E16", "-2.5e-3", "1e400", "1e-400"};
+        for (final String input : inputs) {
+            assertEquals(Double.parseDouble(input), FastNumberParsing.parseDouble(input), 0, input);
+            assertEquals(Double.parseDouble(input), FastNumberParsing.parseDouble(input.getBytes(StandardCharsets.US_ASCII), 0, input.length()), 0, input);
+        }
+        assertThrows(NumberFormatException.class, () -> FastNumberParsing.parseDouble("1e"), "Missing exponent");
+        assertThrows(NumberFormatException.class, () -> FastNumberParsing.parseDouble("."), "No digits");
+        assertEquals(1e-5, Crunch.evaluateExpression("1e-5"), 0, "Exponent literal");
+        assertEquals(0.3, Crunch.evaluateExpression("3E-1"), 0, "Exponent literal is rounded once");
+        assertEquals(200, Crunch.evaluateExpression("2E$1", 2), DELTA, "Scientific notation operator");
+        assertEquals(3 * Math.pow(10, 2.5), Crunch.evaluateExpression("3E2.5"), DELTA, "Fractional exponent operator");
+        assertEquals(0.2, Crunch.evaluateExpression("2E-1"), DELTA, "Negative exponent");
+        assertEquals(800, Crunch.evaluateExpression("2^3E2"), DELTA, "Exponent after a power");
+        assertEquals(Math.sin(2) * 100, Crunch.evaluateExpression("sin2E2"), DELTA, "Exponent after a unary operator");
+        assertEquals(200, Crunch.evaluateExpression("sqrt4E2"), DELTA, "Exponent after sqrt");
+        assertEquals(600, Crunch.evaluateExpression("2*3E2"), DELTA, "Exponent after a lower priority operator");
+        final double[] column = new double[5];
+        final String text = " 1.5, 2e3 ,-4,\n";
+        assertEquals(3, FastNumberParsing.parseColumn(text, 0, text.length(), ',', column, 1), "Column values");
+        assertArrayEquals(new double[] {0, 1.5, 2000, -4, 0}, column, "Parsed column");
+        final ByteBuffer lines = ByteBuffer.wrap("7\r\n8\r\n9\r\n".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(3, FastNumberParsing.parseColumn(lines, '\n', column, 0), "Line separated values");
+        assertArrayEquals(new double[] {7, 8, 9, -4, 0}, column, "Parsed lines");
+        assertThrows(NumberFormatException.class, () -> FastNumberParsing.parseColumn("1,,2", 0, 4, ',', column, 0), "Missing value");
+    }
+
+    @Test
+    void serializationTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        env.setVariableNames("x", "y");
+        env.addFunction("mult", 2, d -> d[0] * d[1]);
+        env.addFunction("sub", (a, b) -> a - b);
+        env.addLazyVariable("lazy", () -> 4);
+        final CompileOptions optimized = new CompileOptions().setSimplify(true).setEliminateCommonSubexpressions(true);
+        final CompiledExpression[] expressions = {
+                Crunch.compileExpression("mult(x, sub(y, 1)) + lazy ^ 3", env),
+                Crunch.compileExpression("if(x > 1 && y < 3, x, -y) + !(x >= 2) + sin(x)", env, CompileMode.BYTECODE),
+                Crunch.compileExpression("sqrt(x ^ 2 + y ^ 2) + sqrt(x ^ 2 + y ^ 2) * (x * y + 1)", env, optimized),
+                Crunch.compileExpression("x * 2 + y / 4", env, CompileMode.PROGRAM)
+        };
+        final byte[] snapshot = ExpressionWriter.toBytes(expressions);
+        final ExpressionEnv loadEnv = new ExpressionEnv();
+        loadEnv.setVariableNames("x", "y");
+        loadEnv.addFunction("mult", 2, d -> d[0] * d[1]);
+        loadEnv.addFunction("sub", (a, b) -> a - b);
+        loadEnv.addLazyVariable("lazy", () -> 4);
+        for (final CompileMode mode : CompileMode.values()) {
+            final ExpressionReader reader = new ExpressionReader(ByteBuffer.wrap(snapshot), loadEnv, mode);
+            for (final CompiledExpression expression : expressions) {
+                assertTrue(reader.hasNext(), "More expressions");
+                final CompiledExpression loaded = reader.next();
+                for (double x = -1; x <= 3; x += 0.5) {
+                    assertEquals(expression.evaluate(x, 2), loaded.evaluate(x, 2), DELTA, mode + " " + expression);
+                }
+            }
+            assertFalse(reader.hasNext(), "All expressions read");
+        }
+        final byte[] newer = snapshot.clone();
+        newer[5]++;
+        assertThrows(ExpressionCompilationException.class, () -> new ExpressionReader(ByteBuffer.wrap(newer), loadEnv, CompileMode.TREE), "Version mismatch");
+        assertThrows(ExpressionCompilationException.class, () -> new ExpressionReader(ByteBuffer.wrap(snapshot), new ExpressionEnv().setVariableNames("x", "y"), CompileMode.TREE).next(), "Missing function");
+        assertThrows(ExpressionCompilationException.class, () -> new ExpressionReader(ByteBuffer.wrap(snapshot, 0, 20), loadEnv, CompileMode.TREE).next(), "Truncated snapshot");
+        final byte[] single = ExpressionWriter.toBytes(Crunch.compileExpression("x * y + y * x", env, CompileMode.PROGRAM));
+        assertEquals(6, new ExpressionReader(ByteBuffer.wrap(single), loadEnv, CompileMode.PROGRAM).next().evaluate(1, 3), DELTA, "Unmodified record");
+        final byte[] smallStack = single.clone();
+        ByteBuffer.wrap(smallStack).putInt(14, 1);
+        assertThrows(ExpressionCompilationException.class, () -> new ExpressionReader(ByteBuffer.wrap(smallStack), loadEnv, CompileMode.PROGRAM).next(), "Corrupted maximum stack size");
+        final byte[] underflow = single.clone();
+        ByteBuffer.wrap(underflow).putInt(22, 3);
+        assertThrows(ExpressionCompilationException.class, () -> new ExpressionReader(ByteBuffer.wrap(underflow), loadEnv, CompileMode.PROGRAM).next(), "Operand stack underflow");
+        final byte[] hugeFrame = single.clone();
+        ByteBuffer.wrap(hugeFrame).putInt(10, Integer.MAX_VALUE);
+        assertThrows(ExpressionCompilationException.class, () -> new ExpressionReader(ByteBuffer.wrap(hugeFrame), loadEnv, CompileMode.PROGRAM).next(), "Frame larger than the code can use");
+        final byte[] unstored = single.clone();
+        ByteBuffer.wrap(unstored).putInt(10, 3).putInt(22, 1 | 2 << 8);
+        assertThrows(ExpressionCompilationException.class, () -> new ExpressionReader(ByteBuffer.wrap(unstored), loadEnv, CompileMode.PROGRAM).next(), "Shared value read before it is stored");
+        final byte[] calls = ExpressionWriter.toBytes(Crunch.compileExpression("mult(x, y) + sub(x, y)", env, CompileMode.PROGRAM));
+        assertEquals(5, new ExpressionReader(ByteBuffer.wrap(calls), loadEnv, CompileMode.PROGRAM).next().evaluate(3, 1), DELTA, "Unmodified calls");
+        final byte[] wrongOperator = calls.clone();
+        ByteBuffer.wrap(wrongOperator).putInt(30, 9);
+        for (final CompileMode mode : CompileMode.values()) {
+            assertThrows(ExpressionCompilationException.class, () -> new ExpressionReader(ByteBuffer.wrap(wrongOperator), loadEnv, mode).next(), "Call through another function's reference");
+        }
+    }
+
+    @Test
+    void sourceGenerationTest() throws Exception {
+        final String[] expressions = {
+                "max(x, y) * 2 + y % 3 - x / 4",
+                "if(x > 1 && y < 3, x, -y) + !(x >= 2) + (x = 2) + (x != y)",
+                "sqrt(x ^ 2 + y ^ 2) + sqrt(x ^ 2 + y ^ 2) * (x * y + 1) + x ^ 0.5 + round(x) + 2E-1 + pi * e"
+        };
+        final JavaSourceGenerator generator = new JavaSourceGenerator("generated.formulas")
+                .setVariableNames("x", "y")
+                .addFunction("max", 2, "java.lang.Math.max")
+                .addLazyVariable("time", "com.example.Clock.seconds");
+        for (int i = 0; i < expressions.length; i++) {
+            generator.addExpression("Formula" + i, expressions[i]);
+        }
+        final Path directory = Files.createTempDirectory("crunch");
+        generator.writeTo(directory);
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertNotNull(compiler, "System compiler");
+        for (int i = 0; i < expressions.length; i++) {
+            final Path source = directory.resolve("generated/formulas/Formula" + i + ".java");
+            assertEquals(0, compiler.run(null, null, null, "-d", directory.toString(), source.toString()), "Generated source compiles");
+        }
+        final ExpressionEnv env = new ExpressionEnv();
+        env.setVariableNames("x", "y");
+        env.addFunction("max", Math::max);
+        try (URLClassLoader loader = new URLClassLoader(new URL[] {directory.toUri().toURL()})) {
+            for (int i = 0; i < expressions.length; i++) {
+                final Method evaluate = loader.loadClass("generated.formulas.Formula" + i).getMethod("evaluate", double[].class);
+                final CompiledExpression expected = Crunch.compileExpression(expressions[i], env);
+                for (double x = -1; x <= 3; x += 0.5) {
+                    assertEquals(expected.evaluate(x, 2), (double) evaluate.invoke(null, (Object) new double[] {x, 2}), DELTA, expressions[i]);
+                }
+            }
+        }
+        final Map<String, String> sources = new JavaSourceGenerator("")
+                .addLazyVariable("time", "com.example.Clock.seconds")
+                .addExpression("Timed", "time * 2")
+                .generate();
+        assertTrue(sources.get("Timed").contains("com.example.Clock.seconds() * 2.0"), "Lazy variable method call");
+        assertThrows(IllegalArgumentException.class, () -> new JavaSourceGenerator("bad package"), "Invalid package");
+        assertThrows(IllegalArgumentException.class, () -> generator.addFunction("min", 2, "min"), "Unqualified method");
+    }
+
+    @Test
+    void intervalTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        env.setVariableNames("x", "y");
+        env.addFunction("twice", d -> d * 2);
+        final IntervalEvaluator evaluator = new IntervalEvaluator(Crunch.compileExpression("twice(x) + y ^ 2", env))
+                .setFunctionBounds("twice", args -> args[0].add(args[0]));
+        assertEquals(Interval.of(2, 13), evaluator.evaluate(Interval.of(1, 2), Interval.of(0, 3)), "Function bounds");
+        assertEquals(Interval.of(-1, 1), new IntervalEvaluator(Crunch.compileExpression("sin($1)")).evaluate(Interval.of(0, 5)), "Periodic function");
+        assertEquals(Interval.of(0, 0, true), new IntervalEvaluator(Crunch.compileExpression("sqrt($1)")).evaluate(Interval.of(-1, 0)), "Outside domain");
+        final IntervalEvaluator predicate = new IntervalEvaluator(Crunch.compileExpression("$1 > 100 & $2 < 3"));
+        assertEquals(Interval.FALSE, predicate.evaluate(Interval.of(0, 100), Interval.of(0, 5)), "Never true");
+        assertEquals(Interval.TRUE, predicate.evaluate(Interval.of(101, 200), Interval.of(0, 2)), "Always true");
+        assertEquals(Interval.BOOLEAN, predicate.evaluate(Interval.of(101, 200), Interval.of(0, 2, true)), "NaN compares false");
+        assertThrows(ExpressionEvaluationException.class, () -> predicate.evaluate(Interval.of(0)), "Too few intervals");
+
+        final int rows = 10000;
+        final double[][] columns = new double[2][rows];
+        for (int i = 0; i < rows; i++) {
+            columns[0][i] = i / 25d;
+            columns[1][i] = (i * 7919) % 5;
+        }
+        columns[1][4321] = Double.NaN;
+        final double[] results = new double[rows];
+        final CompiledExpression filter = Crunch.compileExpression("$1 > 100 & $2 < 3 | $1 > 390");
+        filter.evaluateBatch(columns, rows, results);
+        final int[] expected = new int[rows];
+        int expectedCount = 0;
+        for (int i = 0; i < rows; i++) {
+            if (results[i] == 1) {
+                expected[expectedCount++] = i;
+            }
+        }
+        final int[] selected = new int[rows];
+        for (final int blockSize : new int[] {1, 100, 333, rows * 2}) {
+            final Interval[][] bounds = IntervalEvaluator.computeBlockBounds(columns, rows, blockSize);
+            final int count = new IntervalEvaluator(filter).filter(columns, rows, blockSize, bounds, selected);
+            assertEquals(expectedCount, count, "Matching rows with block size " + blockSize);
+            for (int i = 0; i < count; i++) {
+                assertEquals(expected[i], selected[i], "Matching row with block size " + blockSize);
+            }
+        }
+    }
+
+    @Test
+    void derivativeTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        env.setVariableNames("x", "y");
+        env.addFunction("mult", (a, b) -> a * b);
+        final CompiledExpression expr = Crunch.compileExpression("mult(x, y) + sin(x)^2 + y / x + if(x > 1, x^3, 0) + sqrt(x*y) + 2^y", env);
+        final Differentiator differentiator = new Differentiator()
+                .setFunctionDerivative("mult", (args, i) -> args[1 - i]);
+        final CompiledExpression dx = differentiator.derivative(expr, 1);
+        final CompiledExpression dy = differentiator.derivative(expr, 2);
+        final GradientEvaluator gradient = differentiator.gradient(expr);
+        final double[] result = new double[2];
+        final double h = 1e-6;
+        for (final double[] point : new double[][] {{0.5, 2}, {1.5, 3}, {3, 0.25}}) {
+            final double x = point[0];
+            final double y = point[1];
+            final double expectedX = (expr.evaluate(x + h, y) - expr.evaluate(x - h, y)) / (2 * h);
+            final double expectedY = (expr.evaluate(x, y + h) - expr.evaluate(x, y - h)) / (2 * h);
+            assertEquals(expectedX, dx.evaluate(x, y), 1e-5, "Symbolic derivative by x");
+            assertEquals(expectedY, dy.evaluate(x, y), 1e-5, "Symbolic derivative by y");
+            assertEquals(expr.evaluate(x, y), gradient.evaluate(point, result), DELTA, "Gradient value");
+            assertEquals(expectedX, result[0], 1e-5, "Gradient by x");
+            assertEquals(expectedY, result[1], 1e-5, "Gradient by y");
+        }
+        assertEquals(0, differentiator.derivative(expr, 3).evaluate(1, 1, 1), "Unused variable");
+        assertEquals(6, differentiator.derivative(Crunch.compileExpression("$1^2 * 3"), 1).evaluate(1), "Power rule");
+        assertThrows(IllegalArgumentException.class, () -> differentiator.derivative(Crunch.compileExpression("rand($1)"), 1), "Random values");
+        assertThrows(IllegalArgumentException.class, () -> new Differentiator().gradient(expr), "Missing function derivative");
+        final CompiledExpression rounded = Crunch.compileExpression("$1^round($2) + $2");
+        final double[] roundedGradient = new double[2];
+        differentiator.gradient(rounded).evaluate(new double[] {-2, 1.5}, roundedGradient);
+        assertEquals(differentiator.derivative(rounded, 2).evaluate(-2, 1.5), roundedGradient[1], "Piecewise constant exponent");
+        assertEquals(1, roundedGradient[1], "Piecewise constant exponent");
+        final CompiledExpression floored = Crunch.compileExpression("log($1) * floor($2)");
+        final double[] flooredGradient = new double[2];
+        differentiator.gradient(floored).evaluate(new double[] {0, 0.5}, flooredGradient);
+        assertEquals(differentiator.derivative(floored, 2).evaluate(0, 0.5), flooredGradient[1], "Infinite factor of a piecewise constant");
+        assertEquals(0, flooredGradient[1], "Infinite factor of a piecewise constant");
+    }
+
+    @Test
+    void batchKernelTest() {
+        final double[] special = {0, -0d, 1, -1, 0.5, -0.5, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, 1e300};
+        final int rowCount = 1003;
+        final double[][] columns = new double[2][rowCount];
+        final Random random = new Random(0);
+        for (int i = 0; i < rowCount; i++) {
+            columns[0][i] = i % 3 == 0 ? special[random.nextInt(special.length)] : random.nextInt(5) - 2;
+            columns[1][i] = i % 5 == 0 ? special[random.nextInt(special.length)] : random.nextGaussian();
+        }
+        final String[] expressions = {
+                "$1 + $2", "$1 - $2", "$1 * $2", "$1 / $2", "$1 > $2", "$1 < $2", "$1 >= $2", "$1 <= $2", "$1 == $2", "$1 != $2",
+                "-$1", "!$2", "abs($2)", "sqrt($2)", "floor($2)", "ceil($2)"
+        };
+        final double[] out = new double[rowCount];
+        for (String expression : expressions) {
+            final CompiledExpression compiled = Crunch.compileExpression(expression, new ExpressionEnv(), new CompileOptions().setSimplify(false));
+            compiled.evaluateBatch(columns, rowCount, out);
+            for (int i = 0; i < rowCount; i++) {
+                assertEquals(compiled.evaluate(columns[0][i], columns[1][i]), out[i], expression + " at row " + i);
+            }
+        }
+    }
+
+    @Test
+    void metricsTest() {
+        final CompiledExpression uninstrumented = Crunch.compileExpression("$1 + 1");
+        final CrunchMetrics metrics = new CrunchMetrics();
+        Crunch.setMetricsListener(metrics);
+        try {
+            final CompiledExpression expr = Crunch.compileExpression("$1 * 2 + sin($2)");
+            assertEquals(1, metrics.getCompileCount(), "Compilations");
+            assertEquals(6, metrics.getNodeCounts().getMax(), "Node count");
+            assertEquals(3, metrics.getDepths().getMax(), "Depth");
+            assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("1 +"));
+            assertEquals(1, metrics.getCompileFailureCount(), "Compile failures");
+
+            for (int i = 0; i < 10; i++) {
+                assertEquals(2 + Math.sin(i), expr.evaluate(1, i), DELTA, "Instrumented value");
+            }
+            uninstrumented.evaluate(1);
+            assertEquals(10, metrics.getEvaluationCount(), "Only instrumented expressions are measured");
+            assertThrows(ExpressionEvaluationException.class, () -> expr.evaluate(1));
+            assertEquals(1, metrics.getEvaluationFailureCount(), "Evaluation failures");
+            final double[] out = new double[100];
+            expr.evaluateBatch(new double[2][100], 100, out);
+            assertEquals(110, metrics.getEvaluatedRowCount(), "Evaluated rows");
+            assertEquals(1, metrics.getBatchTimes().getCount(), "Batch evaluations");
+            assertEquals(110, metrics.getExpressionTimes("$1 * 2 + sin($2)").getCount(), "Expression times");
+            assertEquals("$1 * 2 + sin($2)", metrics.getMostExpensiveExpressions(1).get(0), "Most expensive expression");
+
+            final ExpressionCache cache = new ExpressionCache(4);
+            cache.compile("$1 - 1");
+            cache.compile("$1 - 1");
+            cache.compile("$1 - 1");
+            assertEquals(2 / 3d, metrics.getCacheHitRate(), DELTA, "Cache hit rate");
+            final StringBuilder builder = new StringBuilder("$1");
+            for (int i = 1; i < 100000; i++) {
+                builder.append(" + $1");
+            }
+            Crunch.compileExpression(builder.toString(), new ExpressionEnv(), CompileMode.PROGRAM);
+            assertEquals(100000, metrics.getDepths().getMax(), "Deep expressions are measured without recursion");
+
+            Crunch.setMetricsListener(null);
+            assertEquals(2, expr.evaluate(1, 0), "Evaluation without a listener");
+            assertEquals(110, metrics.getEvaluatedRowCount(), "Removed listener");
+        } finally {
+            Crunch.setMetricsListener(null);
+        }
+
+        final Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getMax(), "Histogram maximum");
+        assertEquals(500.5, histogram.getMean(), DELTA, "Histogram mean");
+        assertEquals(500, histogram.getValueAtPercentile(50), 500 / 8d, "Histogram median");
+        assertEquals(1000, histogram.getValueAtPercentile(100), "Histogram maximum percentile");
+    }
+
+    @Test
+    void profilerTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        env.setVariableNames("x");
+        env.addFunction("slow", 1, d -> {
+            double sum = 0;
+            for (int i = 0; i < 2000; i++) {
+                sum += Math.sin(d[0] + i);
+            }
+            return d[0] + sum * 1e-300;
+        });
+        env.addFunction("fast", 1, d -> d[0]);
+        final ExpressionProfiler profiler = ExpressionProfiler.profile("slow(x) + fast(x) * 2", env, 1);
+        final CompiledExpression expr = profiler.getExpression();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(3 * i, expr.evaluate(i), 1e-6, "Profiled value");
+        }
+        final ProfileReport report = profiler.getReport();
+        final ProfileReport.Node hotSpot = report.getHotSpots(1).get(0);
+        assertEquals("slow", hotSpot.getLabel(), "Hot spot label");
+        assertEquals("slow(x)", hotSpot.getSource(), "Hot spot source");
+        assertEquals(0, hotSpot.getStart(), "Hot spot start");
+        assertEquals(1000, hotSpot.getInvocations(), "Hot spot invocations");
+        assertEquals("+", report.getRoot().getLabel(), "Root label");
+        assertEquals("slow(x) + fast(x) * 2", report.getRoot().getSource(), "Root source");
+        assertEquals("fast(x) * 2", report.getRoot().getChildren().get(1).getSource(), "Operation source");
+        assertEquals("slow", report.getSelfNanosByLabel().keySet().iterator().next(), "Most expensive label");
+        assertTrue(report.toFoldedStacks().contains("slow(x) + fast(x) * 2 [0-21];slow(x) [0-7] "), "Folded stacks");
+        profiler.reset();
+        assertEquals(0, profiler.getReport().getRoot().getInvocations(), "Reset invocations");
+
+        final ExpressionProfiler nested = ExpressionProfiler.profile(" -(1 + $1) * 3", new ExpressionEnv());
+        nested.getExpression().evaluate(2);
+        final ProfileReport.Node negate = nested.getReport().getRoot().getChildren().get(0);
+        assertEquals("-(1 + $1)", negate.getSource(), "Unary source");
+        assertEquals("1 + $1", negate.getChildren().get(0).getSource(), "Group source");
+        assertEquals(1, negate.getChildren().get(0).getInvocations(), "Nested invocations");
+
+        final ExpressionEnv lazyEnv = new ExpressionEnv();
+        lazyEnv.addLazyVariable("y", () -> 5);
+        final ExpressionProfiler lazy = ExpressionProfiler.profile("if(y > 1, y, 0)", lazyEnv);
+        assertEquals(5, lazy.getExpression().evaluate(), "Profiled conditional");
+        final List<ProfileReport.Node> nodes = lazy.getReport().getNodes();
+        assertEquals("if(y > 1, y, 0)", nodes.get(0).getSource(), "Conditional source");
+        assertEquals(3, nodes.get(2).getStart(), "First lazy variable");
+        assertEquals(10, nodes.get(3).getStart(), "Second lazy variable");
+        assertEquals(1, nodes.get(3).getInvocations(), "Lazy variable invocations");
+    }
+
+    @Test
+    void primitiveModeTest() {
+        final ExpressionEnv env = new ExpressionEnv();
+        env.setVariableNames("x", "y");
+        final FloatExpression floats = Crunch.compileFloatExpression("x * y + 1 / 3 - sqrt(x)", env);
+        final float x = 1.1f;
+        final float y = 2.3f;
+        assertEquals(x * y + 1f / 3f - (float) Math.sqrt(x), floats.evaluate(x, y), "Float arithmetic");
+        final int rowCount = 1000;
+        final float[][] columns = new float[2][rowCount];
+        final float[] rows = new float[rowCount * 2];
+        for (int i = 0; i < rowCount; i++) {
+            columns[0][i] = rows[i * 2] = i * 0.25f;
+            columns[1][i] = rows[i * 2 + 1] = 10 - i;
+        }
+        final FloatExpression conditional = Crunch.compileFloatExpression("if(x > y, x - y, y / 2) + 1", env);
+        final float[] out = new float[rowCount];
+        final float[] rowOut = new float[rowCount];
+        for (final FloatExpression expr : new FloatExpression[] {floats, conditional}) {
+            expr.evaluateBatch(columns, rowCount, out);
+            expr.evaluateBatch(rows, 2, rowCount, rowOut);
+            for (int i = 0; i < rowCount; i++) {
+                assertEquals(expr.evaluate(columns[0][i], columns[1][i]), out[i], "Float column batch");
+                assertEquals(out[i], rowOut[i], "Float row batch");
+            }
+        }
+        assertEquals(2, new FloatExpression(Crunch.compileExpression("$1 / 2", new ExpressionEnv(), CompileMode.PROGRAM)).evaluate(4), "Float from program");
+
+        final LongExpression longs = Crunch.compileLongExpression("7 / 2 + x % 3 - 2^-1 + abs(y) * 2^10", env, IntegerOverflow.WRAP);
+        assertEquals(3 + 2 - 0 + 5 * 1024, longs.evaluate(5, -5), "Integer arithmetic");
+        assertEquals(Long.MIN_VALUE, Crunch.compileLongExpression("x + 1", env, IntegerOverflow.WRAP).evaluate(Long.MAX_VALUE, 0), "Wrapping overflow");
+        final LongExpression checked = Crunch.compileLongExpression("x * 2 + y", env, IntegerOverflow.CHECKED);
+        assertEquals(Long.MAX_VALUE, checked.evaluate(Long.MAX_VALUE / 2, 1), "Checked arithmetic");
+        assertThrows(ExpressionEvaluationException.class, () -> checked.evaluate(Long.MAX_VALUE / 2, 2), "Checked overflow");
+        final LongExpression divide = Crunch.compileLongExpression("x / y", env, IntegerOverflow.WRAP);
+        assertThrows(ExpressionEvaluationException.class, () -> divide.evaluate(1, 0), "Division by zero");
+        final LongExpression guarded = Crunch.compileLongExpression("if(y != 0, x / y, -1)", env, IntegerOverflow.CHECKED);
+        final long[] longOut = new long[3];
+        guarded.evaluateBatch(new int[][] {{7, -7, 9}, {2, 2, 0}}, 3, longOut);
+        assertArrayEquals(new long[] {3, -3, -1}, longOut, "Integer batch");
+        divide.evaluateBatch(new long[][] {{1L << 40, 9}, {3, -2}}, 2, longOut);
+        assertEquals((1L << 40) / 3, longOut[0], "Long column batch");
+        assertEquals(-4, longOut[1], "Truncating division");
+        assertThrows(ExpressionCompilationException.class, () -> Crunch.compileLongExpression("sqrt(x)", env, IntegerOverflow.WRAP), "Operator without integer meaning");
+        assertThrows(ExpressionCompilationException.class, () -> Crunch.compileLongExpression("x * pi", env, IntegerOverflow.WRAP), "Non-integer literal");
+        assertThrows(ExpressionCompilationException.class, () -> new LongExpression(Crunch.compileExpression("7 / 2"), IntegerOverflow.WRAP), "Folded literal");
+        final ExpressionCompilationException simplified = assertThrows(ExpressionCompilationException.class,
+                () -> new LongExpression(Crunch.compileExpression("$1 / 2", new ExpressionEnv(), new CompileOptions().setSimplify(true)), IntegerOverflow.WRAP));
+        assertTrue(simplified.getMessage().contains("simplified"), "Simplified expression message");
+        assertEquals(0, Crunch.compileLongExpression("2E-1", new ExpressionEnv(), IntegerOverflow.WRAP).evaluate(), "Integer negative exponent");
+        assertEquals(2, Crunch.compileLongExpression("25E-1", new ExpressionEnv(), IntegerOverflow.WRAP).evaluate(), "Integer exponent division");
+        assertEquals(200, Crunch.compileLongExpression("2E2", new ExpressionEnv(), IntegerOverflow.CHECKED).evaluate(), "Integer exponent");
+        assertThrows(ExpressionCompilationException.class, () -> Crunch.compileLongExpression("3E2.5", new ExpressionEnv(), IntegerOverflow.WRAP), "Integer fractional exponent");
+        assertEquals(0.2f, Crunch.compileFloatExpression("2E-1", new ExpressionEnv()).evaluate(), 1e-7f, "Float negative exponent");
+    }
 }